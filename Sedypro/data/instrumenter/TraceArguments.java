@@ -0,0 +1,337 @@
+package org.hesge.sedypro;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Argument capture policies and the deferred formatting of argument values.
+ *
+ * Instrumented methods pass their raw argument values. They are only
+ * converted to text when the event is written, according to the capture
+ * mode chosen at instrumentation time (method table) and at runtime
+ * (ch.hesge.csim2.capture), the most restrictive of both being applied.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceArguments {
+
+	// Capture modes, from the cheapest to the most expensive
+	public static final int CAPTURE_NONE       = 0;
+	public static final int CAPTURE_TYPES      = 1;
+	public static final int CAPTURE_PRIMITIVES = 2;
+	public static final int CAPTURE_SAMPLED    = 3;
+	public static final int CAPTURE_FULL       = 4;
+
+	public static final String[] CAPTURE_NAMES = { "none", "types", "primitives", "sampled", "full" };
+
+	// Public constants
+	public static final int DEFAULT_CAPTURE_LENGTH = 256;
+	public static final int DEFAULT_SAMPLING_RATE  = 100;
+
+	// Private attributes
+	private static volatile int captureMode = CAPTURE_FULL;
+	private static int captureLength = DEFAULT_CAPTURE_LENGTH;
+	private static int samplingRate = DEFAULT_SAMPLING_RATE;
+	private static volatile AtomicIntegerArray samplingCounters = new AtomicIntegerArray(0);
+
+	/*
+	 * Capture modes:
+	 *
+	 * <code>
+	 * 		none       = no argument values at all
+	 * 		types      = runtime type of each argument (no toString() call)
+	 * 		primitives = value of numbers, booleans, chars, strings and enums, type of other arguments
+	 * 		sampled    = full values for one call out of samplingRate per method, types otherwise
+	 * 		full       = value of all arguments, arrays and collections are rendered element by element
+	 * </code>
+	 *
+	 * Every value is truncated to captureLength characters.
+	 */
+
+	/**
+	 * Convert a capture mode name into its constant.
+	 *
+	 * @param captureName
+	 * @return the capture mode, or CAPTURE_FULL if the name is unknown
+	 */
+	public static int parseCaptureMode(String captureName) {
+
+		for (int i = 0; i < CAPTURE_NAMES.length; i++) {
+			if (CAPTURE_NAMES[i].equalsIgnoreCase(captureName)) {
+				return i;
+			}
+		}
+
+		return CAPTURE_FULL;
+	}
+
+	/**
+	 * Initialize the runtime capture policy.
+	 *
+	 * @param mode
+	 *        the runtime capture mode name
+	 * @param maxLength
+	 *        maximum length of a single value
+	 * @param rate
+	 *        one call out of rate is fully captured in sampled mode
+	 * @param methodCount
+	 *        number of methods in the method table
+	 */
+	public static synchronized void initialize(String mode, int maxLength, int rate, int methodCount) {
+		captureMode = parseCaptureMode(mode);
+		captureLength = Math.max(1, maxLength);
+		samplingRate = Math.max(1, rate);
+		samplingCounters = new AtomicIntegerArray(methodCount);
+	}
+
+	/**
+	 * Extend the sampling counters to methods registered after
+	 * initialization (see TraceMethodTable.register).
+	 *
+	 * @param methodCount
+	 *        number of methods in the method table
+	 */
+	public static synchronized void grow(int methodCount) {
+
+		AtomicIntegerArray counters = samplingCounters;
+
+		if (methodCount <= counters.length()) {
+			return;
+		}
+
+		AtomicIntegerArray newCounters = new AtomicIntegerArray(methodCount);
+
+		for (int methodId = 0; methodId < counters.length(); methodId++) {
+			newCounters.set(methodId, counters.get(methodId));
+		}
+
+		samplingCounters = newCounters;
+	}
+
+	/**
+	 * Change the runtime capture mode, while the application runs.
+	 *
+	 * @param mode
+	 *        the runtime capture mode name
+	 */
+	public static void setCaptureMode(String mode) {
+		captureMode = parseCaptureMode(mode);
+	}
+
+	/**
+	 * Return the name of the runtime capture mode.
+	 */
+	public static String getCaptureName() {
+		return CAPTURE_NAMES[captureMode];
+	}
+
+	/**
+	 * Resolve the capture mode to apply to the current call of a method.
+	 *
+	 * The most restrictive of the instrumentation mode (method table) and
+	 * the runtime mode is used. Sampled mode is resolved either to full or
+	 * to types, depending on the call count of the method.
+	 *
+	 * @param methodId
+	 * @return the capture mode (never CAPTURE_SAMPLED)
+	 */
+	public static int getCaptureMode(int methodId) {
+
+		int mode = Math.min(captureMode, TraceMethodTable.getCaptureMode(methodId));
+
+		if (mode == CAPTURE_SAMPLED) {
+			mode = isSampled(methodId) ? CAPTURE_FULL : CAPTURE_TYPES;
+		}
+
+		return mode;
+	}
+
+	/**
+	 * Check if the current call of a method should capture its values,
+	 * when running in sampled mode.
+	 *
+	 * @param methodId
+	 * @return true if the values should be captured
+	 */
+	private static boolean isSampled(int methodId) {
+
+		AtomicIntegerArray counters = samplingCounters;
+
+		if (methodId < 0 || methodId >= counters.length()) {
+			return true;
+		}
+
+		return counters.getAndIncrement(methodId) % samplingRate == 0;
+	}
+
+	/**
+	 * Format all argument values according to the capture mode.
+	 *
+	 * @param values
+	 * @param captureMode
+	 * @return the values separated by comma
+	 */
+	public static String format(Object[] values, int captureMode) {
+		return format(values, captureMode, captureLength);
+	}
+
+	/**
+	 * Format all argument values according to the capture mode.
+	 *
+	 * @param values
+	 * @param captureMode
+	 * @param maxLength
+	 *        maximum length of a single value
+	 * @return the values separated by comma
+	 */
+	public static String format(Object[] values, int captureMode, int maxLength) {
+
+		if (values == null || captureMode == CAPTURE_NONE) {
+			return "";
+		}
+
+		StringBuilder builder = new StringBuilder();
+
+		for (int i = 0; i < values.length; i++) {
+
+			if (i > 0) {
+				builder.append(',');
+			}
+
+			int startLength = builder.length();
+
+			try {
+				appendValue(builder, values[i], captureMode, maxLength);
+			}
+			catch (RuntimeException e) {
+
+				// toString() failure (or concurrent modification), keep the type only
+				builder.setLength(startLength);
+				builder.append(getTypeName(values[i]));
+			}
+
+			// Apply length cap
+			if (builder.length() - startLength > maxLength) {
+				builder.setLength(startLength + maxLength);
+			}
+		}
+
+		return builder.toString();
+	}
+
+	/**
+	 * Append a single value.
+	 */
+	private static void appendValue(StringBuilder builder, Object value, int captureMode, int maxLength) {
+
+		if (value == null) {
+			builder.append("null");
+		}
+		else if (captureMode == CAPTURE_TYPES) {
+			builder.append(getTypeName(value));
+		}
+		else if (isPrimitive(value)) {
+			builder.append(value);
+		}
+		else if (captureMode == CAPTURE_PRIMITIVES) {
+			builder.append(getTypeName(value));
+		}
+		else if (value.getClass().isArray()) {
+			appendElements(builder, new ArrayIterator(value), builder.length() + maxLength);
+		}
+		else if (value instanceof Collection) {
+			appendElements(builder, ((Collection<?>) value).iterator(), builder.length() + maxLength);
+		}
+		else if (value instanceof Map) {
+			appendElements(builder, ((Map<?, ?>) value).entrySet().iterator(), builder.length() + maxLength);
+		}
+		else {
+			builder.append(value);
+		}
+	}
+
+	/**
+	 * Append the elements of an array or collection, stopping as soon
+	 * as the maximum length is reached.
+	 */
+	private static void appendElements(StringBuilder builder, Iterator<?> iterator, int maxLength) {
+
+		builder.append('[');
+
+		while (iterator.hasNext() && builder.length() < maxLength) {
+
+			Object element = iterator.next();
+
+			if (element instanceof Map.Entry) {
+				Map.Entry<?, ?> entry = (Map.Entry<?, ?>) element;
+				appendElement(builder, entry.getKey());
+				builder.append('=');
+				appendElement(builder, entry.getValue());
+			}
+			else {
+				appendElement(builder, element);
+			}
+
+			if (iterator.hasNext()) {
+				builder.append(' ');
+			}
+		}
+
+		builder.append(']');
+	}
+
+	/**
+	 * Append a single element of an array or collection, without calling
+	 * toString() on complex objects.
+	 */
+	private static void appendElement(StringBuilder builder, Object element) {
+		builder.append(isPrimitive(element) ? String.valueOf(element) : getTypeName(element));
+	}
+
+	/**
+	 * Check if a value is cheap and meaningful to convert to string.
+	 */
+	private static boolean isPrimitive(Object value) {
+		return value instanceof Number || value instanceof Boolean || value instanceof Character || value instanceof String || value instanceof Enum;
+	}
+
+	/**
+	 * Return the simple type name of a value.
+	 */
+	private static String getTypeName(Object value) {
+		return value == null ? "null" : value.getClass().getSimpleName();
+	}
+
+	/**
+	 * Iterator over the elements of any array (primitive or not).
+	 */
+	private static class ArrayIterator implements Iterator<Object> {
+
+		private Object array;
+		private int index;
+
+		private ArrayIterator(Object array) {
+			this.array = array;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return index < Array.getLength(array);
+		}
+
+		@Override
+		public Object next() {
+			return Array.get(array, index++);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,252 @@
+package org.hesge.sedypro;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Runtime control of the trace points, exposed through JMX.
+ *
+ * Trace points check two guards before doing any work: a global switch,
+ * and a per-method table computed from the enable/disable rules. Both are
+ * volatile fields replaced as a whole when a setting changes, so that a
+ * trace point only pays a volatile read while nothing changes.
+ *
+ * Rules are applied in order, the last rule matching a method wins. They
+ * match the method table entries as package.class.method (class without
+ * its super classes), with * and ? wildcards, e.g.:
+ *
+ * <code>
+ * 		disable com.kenai.simulator.atm.*
+ * 		enable  com.kenai.simulator.atm.Account.*
+ * 		disable *.get*
+ * </code>
+ *
+ * Calls already in progress keep the decision taken at their entry, so
+ * that entries and exits stay paired. When all trace points are switched
+ * off, calls in progress may be reported as unmatched.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceControl implements TraceControlMBean {
+
+	// Guards checked by trace points
+	private static volatile boolean isTracing = true;
+	private static volatile boolean[] disabledMethods;
+
+	// Enable/disable rules, in order
+	private static final List<Rule> RULES = new ArrayList<>();
+
+	// Create a trace logger
+	private static final Logger LOGGER = Logger.getLogger(TraceControl.class.getName());
+
+	/**
+	 * Register the MBean in the platform MBean server.
+	 */
+	public static void register() {
+
+		try {
+			ObjectName name = new ObjectName(TraceControl.class.getPackage().getName() + ":type=TraceControl");
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new TraceControl(), name);
+		}
+		catch (JMException e) {
+			LOGGER.warning("unable to register trace control MBean: " + e.toString());
+		}
+	}
+
+	/**
+	 * Return true if trace points are active (global switch).
+	 */
+	public static boolean isTracing() {
+		return isTracing;
+	}
+
+	/**
+	 * Return true if a method is not disabled by the rules.
+	 *
+	 * @param methodId
+	 */
+	public static boolean isTraced(int methodId) {
+
+		boolean[] disabled = disabledMethods;
+
+		return disabled == null || methodId < 0 || methodId >= disabled.length || !disabled[methodId];
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return isTracing;
+	}
+
+	@Override
+	public void setEnabled(boolean isEnabled) {
+		isTracing = isEnabled;
+	}
+
+	@Override
+	public String getCaptureMode() {
+		return TraceArguments.getCaptureName();
+	}
+
+	@Override
+	public void setCaptureMode(String captureMode) {
+		TraceArguments.setCaptureMode(captureMode);
+	}
+
+	@Override
+	public void enable(String pattern) {
+		addRule(pattern, true);
+	}
+
+	@Override
+	public void disable(String pattern) {
+		addRule(pattern, false);
+	}
+
+	@Override
+	public void clearRules() {
+
+		synchronized (RULES) {
+			RULES.clear();
+			disabledMethods = null;
+		}
+	}
+
+	@Override
+	public String[] getRules() {
+
+		synchronized (RULES) {
+
+			String[] rules = new String[RULES.size()];
+
+			for (int i = 0; i < rules.length; i++) {
+				rules[i] = (RULES.get(i).isEnabled ? "enable " : "disable ") + RULES.get(i).pattern;
+			}
+
+			return rules;
+		}
+	}
+
+	@Override
+	public int getDisabledMethodCount() {
+
+		boolean[] disabled = disabledMethods;
+		int count = 0;
+
+		for (int i = 0; disabled != null && i < disabled.length; i++) {
+			if (disabled[i]) {
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	@Override
+	public long getEventCount() {
+		return TraceLogger.getEventCount();
+	}
+
+	@Override
+	public long getDroppedCount() {
+		return TraceLogger.getDroppedCount();
+	}
+
+	@Override
+	public long getByteCount() {
+		return TraceLogger.getByteCount();
+	}
+
+	@Override
+	public long getUnmatchedCount() {
+		return TraceThreadState.getUnmatchedCount();
+	}
+
+	/**
+	 * Compile a glob pattern, '*' matching any characters and '?' a single
+	 * one, all other characters literally. Also used by the filter rules of
+	 * the JavaInstrumenter and the TraceAgent (see InstrumenterRules).
+	 *
+	 * @param glob
+	 * @return the pattern, to be matched against a whole name
+	 */
+	public static Pattern compileGlob(String glob) {
+		return Pattern.compile(("\\Q" + glob + "\\E").replace("*", "\\E.*\\Q").replace("?", "\\E.\\Q"));
+	}
+
+	/**
+	 * Append a rule, then recompute the disabled methods.
+	 *
+	 * @param pattern
+	 * @param isEnabled
+	 */
+	private static void addRule(String pattern, boolean isEnabled) {
+
+		synchronized (RULES) {
+			RULES.add(new Rule(pattern.trim(), isEnabled));
+			applyRules();
+		}
+	}
+
+	/**
+	 * Apply the rules to methods registered since they were last applied
+	 * (see TraceMethodTable.register).
+	 */
+	public static void update() {
+
+		synchronized (RULES) {
+			if (!RULES.isEmpty()) {
+				applyRules();
+			}
+		}
+	}
+
+	/**
+	 * Recompute the disabled methods from all rules.
+	 */
+	private static void applyRules() {
+
+		synchronized (RULES) {
+
+			boolean[] disabled = new boolean[TraceMethodTable.size()];
+
+			for (int methodId = 0; methodId < disabled.length; methodId++) {
+
+				String[] method = TraceMethodTable.get(methodId);
+				String classname = method[TraceMethodTable.CLASSNAME].replaceAll("[$#].*", "");
+				String methodPath = method[TraceMethodTable.PACKAGE] + "." + classname + "." + method[TraceMethodTable.METHOD];
+
+				for (Rule rule : RULES) {
+					if (rule.regex.matcher(methodPath).matches()) {
+						disabled[methodId] = !rule.isEnabled;
+					}
+				}
+			}
+
+			disabledMethods = disabled;
+		}
+	}
+
+	/**
+	 * A single enable/disable rule.
+	 */
+	private static class Rule {
+
+		private String pattern;
+		private Pattern regex;
+		private boolean isEnabled;
+
+		private Rule(String pattern, boolean isEnabled) {
+			this.pattern = pattern;
+			this.regex = compileGlob(pattern);
+			this.isEnabled = isEnabled;
+		}
+	}
+}
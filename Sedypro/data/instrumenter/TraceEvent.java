@@ -0,0 +1,177 @@
+package org.hesge.sedypro;
+
+/**
+ * Represents a single method entry/exit event captured by the TraceLogger.
+ *
+ * Instances are fixed-size records preallocated by the ring buffer and
+ * reused for every event, so no allocation occurs while tracing.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceEvent {
+
+	// Public constants
+	public static final int TRACE_ENTER = 0;
+	public static final int TRACE_EXIT  = 1;
+	public static final int TRACE_ELIDED = 2;
+
+	// Private attributes
+	private int    traceType;
+	private long   timestamp;
+	private long   threadId;
+	private long   sequence;
+	private int    methodId;
+	private String packagename;
+	private String classname;
+	private String methodName;
+	private String parameterTypes;
+	private String returnType;
+	private String argumentsValues;
+	private Object[] argumentsObjects;
+	private int    captureMode;
+	private long   elidedCount;
+	private int    depth;
+	private long   elapsed;
+
+	/**
+	 * Default constructor
+	 */
+	public TraceEvent() {
+	}
+
+	/**
+	 * Update all event attributes at once.
+	 * 
+	 * Events logged through a method id leave all names null, they are
+	 * resolved through the TraceMethodTable only when the event is written.
+	 */
+	public void set(int traceType, long timestamp, long threadId, long sequence, int methodId, String packagename, String classname, String methodName, String parameterTypes, String returnType, String argumentsValues) {
+		this.traceType = traceType;
+		this.timestamp = timestamp;
+		this.threadId = threadId;
+		this.sequence = sequence;
+		this.methodId = methodId;
+		this.packagename = packagename;
+		this.classname = classname;
+		this.methodName = methodName;
+		this.parameterTypes = parameterTypes;
+		this.returnType = returnType;
+		this.argumentsValues = argumentsValues;
+		this.argumentsObjects = null;
+		this.captureMode = TraceArguments.CAPTURE_NONE;
+		this.elidedCount = 0;
+		this.depth = -1;
+		this.elapsed = 0;
+	}
+
+	/**
+	 * Attach the raw argument values of the call.
+	 *
+	 * They are only formatted when the event is written, so that in
+	 * asynchronous mode the cost of toString() is paid by the drainer thread.
+	 * Tracing is suspended meanwhile (see TraceThreadState).
+	 */
+	public void setArguments(Object[] argumentsObjects, int captureMode) {
+		this.argumentsValues = null;
+		this.argumentsObjects = argumentsObjects;
+		this.captureMode = captureMode;
+	}
+
+	/**
+	 * Set the number of calls summarized by a TRACE_ELIDED event.
+	 */
+	public void setElidedCount(long elidedCount) {
+		this.elidedCount = elidedCount;
+	}
+
+	/**
+	 * Attach the depth and elapsed time of the call to an exit event,
+	 * once paired with its entry.
+	 */
+	public void setCall(int depth, long elapsed) {
+		this.depth = depth;
+		this.elapsed = elapsed;
+	}
+
+	/**
+	 * Release all references held by the event, so that
+	 * strings and argument values can be garbage collected while the slot is idle.
+	 */
+	public void clear() {
+		set(TRACE_ENTER, 0, 0, 0, -1, null, null, null, null, null, null);
+	}
+
+	public int getTraceType() {
+		return traceType;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public long getThreadId() {
+		return threadId;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public int getMethodId() {
+		return methodId;
+	}
+
+	public String getPackageName() {
+		return packagename != null ? packagename : TraceMethodTable.get(methodId)[TraceMethodTable.PACKAGE];
+	}
+
+	public String getClassName() {
+		return classname != null ? classname : TraceMethodTable.get(methodId)[TraceMethodTable.CLASSNAME];
+	}
+
+	public String getMethodName() {
+		return methodName != null ? methodName : TraceMethodTable.get(methodId)[TraceMethodTable.METHOD];
+	}
+
+	public String getParameterTypes() {
+		return parameterTypes != null ? parameterTypes : TraceMethodTable.get(methodId)[TraceMethodTable.PARAMETERS];
+	}
+
+	public String getReturnType() {
+		return returnType != null ? returnType : TraceMethodTable.get(methodId)[TraceMethodTable.RETURNTYPE];
+	}
+
+	public long getElidedCount() {
+		return elidedCount;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public long getElapsed() {
+		return elapsed;
+	}
+
+	public String getArgumentsValues() {
+
+		if (argumentsValues == null) {
+
+			// Application toString() calls made while formatting are not traced
+			TraceThreadState threadState = TraceThreadState.get();
+			boolean isSuspended = threadState.isSuspended();
+			threadState.setSuspended(true);
+
+			try {
+				argumentsValues = TraceArguments.format(argumentsObjects, captureMode);
+			}
+			finally {
+				threadState.setSuspended(isSuspended);
+			}
+		}
+
+		return argumentsValues;
+	}
+}
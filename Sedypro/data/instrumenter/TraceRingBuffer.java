@@ -0,0 +1,308 @@
+package org.hesge.sedypro;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Lock-free multi-producer/single-consumer ring buffer of trace events.
+ *
+ * Instrumented threads claim a slot, fill the preallocated event and publish
+ * it. A single background thread drains published events to the trace writer
+ * in large batches. When the ring is full, events are dropped and counted
+ * instead of blocking the instrumented thread.
+ *
+ * If the trace writer fails, the events are dropped and counted as well:
+ * an event the writer can't format is skipped, and once writing fails
+ * (IOException) no slot is claimed anymore. At shutdown, events still
+ * pending when the drainer doesn't stop in time are counted, the writer
+ * being closed without waiting for them.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceRingBuffer {
+
+	// Private attributes
+	private TraceEvent[] slots;
+	private AtomicLongArray publishedSequences;
+	private int capacity;
+	private int mask;
+	private AtomicLong tailSequence;
+	private volatile long headSequence;
+	private AtomicLong droppedCount;
+	private AtomicLong failedCount;
+	private TraceWriter traceWriter;
+	private Thread drainerThread;
+	private volatile boolean isRunning;
+	private volatile boolean isFailed;
+	private volatile boolean isWriterClosed;
+
+	// Private constants
+	private static final int DRAIN_BATCH_SIZE = 4096;
+	private static final long DRAIN_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long DRAIN_SHUTDOWN_MILLIS = 5000;
+
+	// Create a trace logger
+	private static final Logger LOGGER = Logger.getLogger(TraceRingBuffer.class.getName());
+
+	/**
+	 * Create a ring buffer with room for at least capacity events.
+	 *
+	 * @param capacity
+	 *        the requested number of slots (rounded up to a power of two)
+	 * @param traceWriter
+	 *        the writer receiving drained events
+	 */
+	public TraceRingBuffer(int capacity, TraceWriter traceWriter) {
+
+		this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.mask = this.capacity - 1;
+		this.traceWriter = traceWriter;
+
+		slots = new TraceEvent[this.capacity];
+		publishedSequences = new AtomicLongArray(this.capacity);
+
+		// Preallocate all events and mark slots as unpublished
+		for (int i = 0; i < this.capacity; i++) {
+			slots[i] = new TraceEvent();
+			publishedSequences.set(i, -1);
+		}
+
+		tailSequence = new AtomicLong();
+		droppedCount = new AtomicLong();
+		failedCount = new AtomicLong();
+	}
+
+	/**
+	 * Claim the next free slot.
+	 *
+	 * @return the slot sequence, or -1 if the ring is full or the writer failed
+	 */
+	public long claim() {
+
+		// Trace writer failed, so drop the event
+		if (isFailed) {
+			failedCount.incrementAndGet();
+			return -1;
+		}
+
+		while (true) {
+
+			long sequence = tailSequence.get();
+
+			// Ring full, so drop the event
+			if (sequence - headSequence >= capacity) {
+				droppedCount.incrementAndGet();
+				return -1;
+			}
+
+			if (tailSequence.compareAndSet(sequence, sequence + 1)) {
+				return sequence;
+			}
+		}
+	}
+
+	/**
+	 * Return the event associated to a claimed sequence.
+	 *
+	 * @param sequence
+	 * @return the event to fill
+	 */
+	public TraceEvent get(long sequence) {
+		return slots[(int) (sequence & mask)];
+	}
+
+	/**
+	 * Make a filled event visible to the drainer thread.
+	 *
+	 * @param sequence
+	 */
+	public void publish(long sequence) {
+		publishedSequences.lazySet((int) (sequence & mask), sequence);
+	}
+
+	/**
+	 * Return the number of events dropped since the buffer creation,
+	 * buffer overflows and writer failures included.
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get() + failedCount.get();
+	}
+
+	/**
+	 * Start the background thread draining events to the trace writer.
+	 */
+	public void start() {
+
+		isRunning = true;
+
+		drainerThread = new Thread("sedypro-trace-drainer") {
+			@Override
+			public void run() {
+				drainLoop();
+			}
+		};
+
+		drainerThread.setDaemon(true);
+		drainerThread.start();
+	}
+
+	/**
+	 * Stop the drainer thread, write all pending events and close the writer.
+	 */
+	public void close() {
+
+		isRunning = false;
+
+		try {
+			if (drainerThread != null) {
+				LockSupport.unpark(drainerThread);
+				drainerThread.join(DRAIN_SHUTDOWN_MILLIS);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		// Drainer still busy: it stops at its next batch, the events left are lost
+		long pendingCount;
+		isWriterClosed = true;
+
+		synchronized (traceWriter) {
+
+			pendingCount = isFailed ? 0 : tailSequence.get() - headSequence;
+
+			try {
+				traceWriter.close();
+			}
+			catch (IOException e) {
+				LOGGER.severe("unable to close trace file: " + e.toString());
+			}
+		}
+
+		// Report on stderr, since logging handlers may already be closed at shutdown
+		if (droppedCount.get() > 0) {
+			System.err.println("TraceLogger: " + droppedCount.get() + " trace events dropped (trace buffer overflow, capacity " + capacity + ")");
+		}
+
+		if (failedCount.get() > 0) {
+			System.err.println("TraceLogger: " + failedCount.get() + " trace events dropped (trace writer failure)");
+		}
+
+		if (pendingCount > 0) {
+			System.err.println("TraceLogger: " + pendingCount + " trace events dropped (not written within " + DRAIN_SHUTDOWN_MILLIS + " ms at shutdown)");
+		}
+	}
+
+	/**
+	 * Drain events until the buffer is closed.
+	 */
+	private void drainLoop() {
+
+		// Calls made by the writer into application code are not traced
+		TraceThreadState.get().setSuspended(true);
+
+		try {
+			boolean hasPendingWrites = false;
+
+			while (isRunning) {
+
+				int drainedCount = drain(DRAIN_BATCH_SIZE);
+
+				if (drainedCount > 0) {
+					hasPendingWrites = true;
+				}
+				else {
+
+					// Nothing to do, so push last batch to disk and wait
+					if (hasPendingWrites) {
+						flush();
+						hasPendingWrites = false;
+					}
+
+					LockSupport.parkNanos(DRAIN_IDLE_NANOS);
+				}
+			}
+
+			// Write remaining events
+			while (drain(DRAIN_BATCH_SIZE) > 0);
+			flush();
+		}
+		catch (IOException e) {
+
+			// Stop claiming slots, the events already claimed are lost
+			isFailed = true;
+			failedCount.addAndGet(tailSequence.get() - headSequence);
+
+			LOGGER.severe("error while writing traces, tracing stopped: " + e.toString());
+		}
+	}
+
+	/**
+	 * Write at most maxCount published events, unless the writer is closed.
+	 *
+	 * @param maxCount
+	 * @return the number of events written
+	 * @throws IOException
+	 */
+	private int drain(int maxCount) throws IOException {
+
+		synchronized (traceWriter) {
+
+			long sequence = headSequence;
+			int drainedCount = 0;
+
+			while (drainedCount < maxCount && !isWriterClosed) {
+
+				int index = (int) (sequence & mask);
+
+				// Stop on first slot not yet published
+				if (publishedSequences.get(index) != sequence) {
+					break;
+				}
+
+				TraceEvent event = slots[index];
+
+				try {
+					traceWriter.write(event);
+				}
+				catch (RuntimeException e) {
+
+					// Skip the event, the next ones are still written
+					if (failedCount.getAndIncrement() == 0) {
+						LOGGER.severe("error while writing a trace: " + e.toString());
+					}
+				}
+
+				event.clear();
+
+				sequence++;
+				drainedCount++;
+
+				// Release the slot to producers
+				headSequence = sequence;
+			}
+
+			return drainedCount;
+		}
+	}
+
+	/**
+	 * Push the events written to the trace file, unless the writer is closed.
+	 *
+	 * @throws IOException
+	 */
+	private void flush() throws IOException {
+
+		synchronized (traceWriter) {
+			if (!isWriterClosed) {
+				traceWriter.flush();
+			}
+		}
+	}
+}
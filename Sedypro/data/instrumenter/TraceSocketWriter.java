@@ -0,0 +1,265 @@
+package org.hesge.sedypro;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.logging.Logger;
+
+/**
+ * Stream trace events to a collector process over a TCP connection,
+ * instead of writing them to a trace file.
+ *
+ * The connection starts with the name of the source (the JVM), then carries
+ * a regular binary trace. Events are sent in batches: the underlying binary
+ * writer buffers them until a flush (or until the buffer is full, or close).
+ *
+ * In asynchronous mode, the ring buffer drainer only flushes once it has no
+ * event left, so that each flush pushes the batch. In synchronous mode, the
+ * logger flushes after every event: a flush then only pushes the batch once
+ * FLUSH_INTERVAL is elapsed since the last push, and a flusher thread pushes
+ * the events left pending once the interval expires, so that the tail of a
+ * burst reaches the collector even if the application stops tracing.
+ *
+ * As for other writers, callers lock the writer while writing or flushing
+ * (see TraceLogger and TraceRingBuffer), the flusher thread taking the same
+ * lock.
+ *
+ * Backpressure is left to TCP: once the collector stops reading, writes
+ * block, so that the application waits in synchronous mode, and the ring
+ * buffer fills up and drops events in asynchronous mode. If the connection
+ * is lost, further events are dropped and counted.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceSocketWriter extends TraceWriter {
+
+	// Private attributes
+	private Socket socket;
+	private TraceBinaryWriter encoder;
+	private long lastFlush;
+	private boolean isThrottled;
+	private boolean hasPendingEvents;
+	private boolean isBroken;
+	private long droppedCount;
+	private Thread flusherThread;
+	private volatile boolean isClosed;
+
+	// Public constants
+	public static final byte[] MAGIC = { 'S', 'D', 'Y', 'S' };
+	public static final int DEFAULT_PORT = 4711;
+
+	// Private constants
+	private static final long FLUSH_INTERVAL = 100 * 1000000L;
+	private static final int CONNECT_TIMEOUT = 5000;
+
+	// Create a trace logger
+	private static final Logger LOGGER = Logger.getLogger(TraceSocketWriter.class.getName());
+
+	/*
+	 * Stream layout:
+	 *
+	 * <code>
+	 * 		stream = 'SDYS' utf(source name) binary-trace
+	 * </code>
+	 *
+	 * The source name is written as by DataOutputStream.writeUTF, the binary
+	 * trace as by the TraceBinaryWriter.
+	 */
+
+	/**
+	 * Connect to a collector.
+	 *
+	 * @param address
+	 *        host:port of the collector (port DEFAULT_PORT if missing)
+	 * @param source
+	 *        the name the collector tags events with
+	 * @param isThrottled
+	 *        true if a flush only pushes events every FLUSH_INTERVAL (synchronous
+	 *        mode), false if each flush pushes them (asynchronous mode)
+	 * @throws IOException
+	 */
+	public TraceSocketWriter(String address, String source, boolean isThrottled) throws IOException {
+
+		int separator = address.lastIndexOf(':');
+		String host = separator < 0 ? address : address.substring(0, separator);
+		int port = separator < 0 ? DEFAULT_PORT : Integer.parseInt(address.substring(separator + 1));
+
+		socket = new Socket();
+		socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+
+		DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+		output.write(MAGIC);
+		output.writeUTF(source);
+
+		encoder = new TraceBinaryWriter(output);
+		lastFlush = System.nanoTime();
+		this.isThrottled = isThrottled;
+
+		if (isThrottled) {
+
+			flusherThread = new Thread("sedypro-socket-flusher") {
+				@Override
+				public void run() {
+					flushLoop();
+				}
+			};
+
+			flusherThread.setDaemon(true);
+			flusherThread.start();
+		}
+	}
+
+	/**
+	 * Send the trace header.
+	 *
+	 * @param epochMillis
+	 * @throws IOException
+	 */
+	@Override
+	public void writeHeader(long epochMillis) throws IOException {
+		encoder.writeHeader(epochMillis);
+		encoder.flush();
+		byteCount = encoder.getByteCount();
+	}
+
+	/**
+	 * Append a single event to the current batch.
+	 *
+	 * @param event
+	 * @throws IOException
+	 */
+	@Override
+	public void write(TraceEvent event) throws IOException {
+
+		if (isBroken) {
+			droppedCount++;
+			return;
+		}
+
+		try {
+			encoder.write(event);
+			eventCount++;
+			byteCount = encoder.getByteCount();
+			hasPendingEvents = true;
+		}
+		catch (IOException e) {
+			disconnect(e);
+		}
+	}
+
+	/**
+	 * Send the current batch, unless throttled and the last one is too
+	 * recent (the flusher thread then sends it).
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void flush() throws IOException {
+
+		if (!isThrottled || System.nanoTime() - lastFlush >= FLUSH_INTERVAL) {
+			push();
+		}
+	}
+
+	/**
+	 * Send the events pending, the writer being locked.
+	 */
+	private void push() {
+
+		if (!isBroken && hasPendingEvents) {
+
+			try {
+				encoder.flush();
+			}
+			catch (IOException e) {
+				disconnect(e);
+			}
+
+			hasPendingEvents = false;
+		}
+
+		lastFlush = System.nanoTime();
+	}
+
+	/**
+	 * Send the events left pending by throttled flushes, once FLUSH_INTERVAL
+	 * is elapsed since the last push, until the writer is closed.
+	 */
+	private void flushLoop() {
+
+		while (!isClosed) {
+
+			synchronized (this) {
+
+				long remaining = FLUSH_INTERVAL - (System.nanoTime() - lastFlush);
+
+				if (remaining <= 0) {
+					if (!isClosed) {
+						push();
+					}
+
+					remaining = FLUSH_INTERVAL;
+				}
+
+				try {
+					// Release the lock while waiting
+					wait(remaining / 1000000L + 1);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Send the last batch and close the connection.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+
+		isClosed = true;
+
+		if (flusherThread != null) {
+			flusherThread.interrupt();
+		}
+
+		try {
+			if (!isBroken) {
+				encoder.close();
+			}
+		}
+		finally {
+			socket.close();
+		}
+
+		if (droppedCount > 0) {
+			System.err.println("TraceLogger: " + droppedCount + " trace events dropped (connection to the collector lost)");
+		}
+	}
+
+	/**
+	 * Stop sending events, once the collector is gone.
+	 *
+	 * @param e
+	 */
+	private void disconnect(IOException e) {
+
+		isBroken = true;
+		droppedCount++;
+
+		LOGGER.severe("connection to the trace collector lost: " + e.toString());
+
+		try {
+			socket.close();
+		}
+		catch (IOException closeException) {
+			// Already closed
+		}
+	}
+}
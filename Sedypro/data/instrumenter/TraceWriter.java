@@ -0,0 +1,62 @@
+package org.hesge.sedypro;
+
+import java.io.IOException;
+
+/**
+ * Base class of all trace encoders used by the TraceLogger.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public abstract class TraceWriter {
+
+	// Events and bytes written so far, only updated by the thread writing
+	protected long eventCount;
+	protected long byteCount;
+
+	/**
+	 * Write the trace header, before any event.
+	 *
+	 * @param epochMillis
+	 *        wall-clock time (in milliseconds) event timestamps are relative to
+	 * @throws IOException
+	 */
+	public abstract void writeHeader(long epochMillis) throws IOException;
+
+	/**
+	 * Append a single event to the trace.
+	 *
+	 * @param event
+	 * @throws IOException
+	 */
+	public abstract void write(TraceEvent event) throws IOException;
+
+	/**
+	 * Push all buffered events to the trace file.
+	 *
+	 * @throws IOException
+	 */
+	public abstract void flush() throws IOException;
+
+	/**
+	 * Flush and close the trace file.
+	 *
+	 * @throws IOException
+	 */
+	public abstract void close() throws IOException;
+
+	/**
+	 * Return the number of events written.
+	 */
+	public long getEventCount() {
+		return eventCount;
+	}
+
+	/**
+	 * Return the number of bytes written, once encoded for text traces.
+	 */
+	public long getByteCount() {
+		return byteCount;
+	}
+}
@@ -54,7 +54,25 @@ public class FileAnalyser {
 		createDefaultFolders();
 		
 		storyAnalyser.doStoryCleaner();
-		traceAnalyser.doTraceCleaner();	
+
+		// Live traces, streamed by instrumented JVMs
+		String collectorPort = StringUtils.getSwitchValue(args, "-collect", null);
+
+		if (collectorPort != null) {
+			int sourceCount = Integer.parseInt(StringUtils.getSwitchValue(args, "-sources", "1"));
+			traceAnalyser.doTraceCollector(Integer.parseInt(collectorPort), sourceCount);
+		}
+		else {
+
+			// Time range of the traces cleaned, in milliseconds since 1970 (inclusive)
+			String fromTime = StringUtils.getSwitchValue(args, "-from", null);
+			String toTime = StringUtils.getSwitchValue(args, "-to", null);
+
+			long fromTimestamp = fromTime == null ? Long.MIN_VALUE : Long.parseLong(fromTime) * 1000000L;
+			long toTimestamp = toTime == null ? Long.MAX_VALUE : Long.parseLong(toTime) * 1000000L + 999999L;
+
+			traceAnalyser.doTraceCleaner(fromTimestamp, toTimestamp);	
+		}
 		
 		storyAnalyser.doStoryDictionaryGenerator();
 		traceAnalyser.doTraceDictionaryGenerator();
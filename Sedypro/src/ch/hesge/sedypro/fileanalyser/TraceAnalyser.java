@@ -3,6 +3,7 @@ package ch.hesge.sedypro.fileanalyser;
 import java.io.IOException;
 
 import ch.hesge.sedypro.fileanalyser.trace.TraceCleaner;
+import ch.hesge.sedypro.fileanalyser.trace.TraceCollector;
 import ch.hesge.sedypro.fileanalyser.trace.TraceDictionaryGenerator;
 import ch.hesge.sedypro.fileanalyser.trace.TraceMatrixGenerator;
 import ch.hesge.sedypro.fileanalyser.trace.TraceWordsGenerator;
@@ -21,13 +22,44 @@ public class TraceAnalyser {
  	 * @throws IOException
  	 */
 	public void doTraceCleaner() throws IOException {
+		doTraceCleaner(Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+ 	 * Clean the traces of the trace file within a time range
+ 	 * 
+ 	 * @param fromTimestamp
+ 	 *        first timestamp (nanoseconds since 1970, inclusive)
+ 	 * @param toTimestamp
+ 	 *        last timestamp (nanoseconds since 1970, inclusive)
+ 	 * @throws IOException
+ 	 */
+	public void doTraceCleaner(long fromTimestamp, long toTimestamp) throws IOException {
 		
 		String traceFilename            = FileAnalyser.INPUT_FOLDER + "2.trace.txt";
 		String cleanedFilename          = FileAnalyser.TMP_FOLDER   + "02.cleaned-trace.txt";
 		String traceCleanerListFilename = "data/conf/trace-cleaner-list.txt";
 
 		System.out.println("TraceCleaner...");
-		new TraceCleaner().doGenerate(traceFilename, cleanedFilename, traceCleanerListFilename);
+		new TraceCleaner().doGenerate(traceFilename, cleanedFilename, traceCleanerListFilename, fromTimestamp, toTimestamp);
+	}
+
+	/**
+	 * Clean live traces streamed by instrumented JVMs, instead of the trace file
+	 * 
+	 * @param port
+	 *        the port JVMs connect to (-Dch.hesge.csim2.tracesocket=host:port)
+	 * @param sourceCount
+	 *        number of JVMs, cleaning ends once all of them stopped
+	 * @throws IOException
+	 */
+	public void doTraceCollector(int port, int sourceCount) throws IOException {
+		
+		String cleanedFilename          = FileAnalyser.TMP_FOLDER   + "02.cleaned-trace.txt";
+		String traceCleanerListFilename = "data/conf/trace-cleaner-list.txt";
+
+		System.out.println("TraceCollector...");
+		new TraceCleaner().doGenerate(new TraceCollector(port, sourceCount), cleanedFilename, traceCleanerListFilename);
 	}
  	
 	/**
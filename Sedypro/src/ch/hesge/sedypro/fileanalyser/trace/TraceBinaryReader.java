@@ -0,0 +1,314 @@
+package ch.hesge.sedypro.fileanalyser.trace;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ch.hesge.sedypro.javainstrumenter.TraceBinaryWriter;
+import ch.hesge.sedypro.utils.ConsoleUtils;
+import ch.hesge.sedypro.utils.Trace;
+
+/**
+ * Decode a binary trace file generated by the TraceBinaryWriter.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceBinaryReader extends TraceReader {
+
+	// Private attributes
+	private DataInputStream input;
+	private List<String> strings;
+	private List<String[]> methods;
+	private List<String> values;
+	private Map<Long, String> hashedValues;
+	private long lastTimestamp;
+	private long epochNanos;
+	private int version;
+
+	// Private constants
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Open a binary trace file and check its header.
+	 *
+	 * @param tracePath
+	 * @throws IOException
+	 */
+	public TraceBinaryReader(Path tracePath) throws IOException {
+		this(Files.newInputStream(tracePath));
+	}
+
+	/**
+	 * Read a binary trace from a stream and check its header.
+	 *
+	 * @param inputStream
+	 * @throws IOException
+	 */
+	public TraceBinaryReader(InputStream inputStream) throws IOException {
+
+		input = new DataInputStream(new BufferedInputStream(inputStream, BUFFER_SIZE));
+		strings = new ArrayList<>();
+		methods = new ArrayList<>();
+		values = new ArrayList<>();
+		hashedValues = new HashMap<>();
+
+		// Skip magic and check version
+		input.skipBytes(TraceBinaryWriter.MAGIC.length);
+		version = input.readUnsignedByte();
+
+		if (version < 1 || version > TraceBinaryWriter.VERSION) {
+			throw new IOException("unsupported binary trace version " + version);
+		}
+
+		// Version 1 had no epoch, timestamps were in milliseconds since 1970
+		if (version > 1) {
+			epochNanos = readVarLong() * 1000000L;
+		}
+	}
+
+	/**
+	 * Return the next trace available, resolving string and method ids.
+	 *
+	 * @return a trace, or null at end of file
+	 * @throws IOException
+	 */
+	@Override
+	public Trace readTrace() throws IOException {
+
+		try {
+			return readRecords();
+		}
+		catch (EOFException e) {
+
+			// Capture interrupted while writing the last record
+			ConsoleUtils.println(" truncated binary trace, last record skipped");
+			return null;
+		}
+	}
+
+	/**
+	 * Close the trace file.
+	 */
+	@Override
+	public void close() throws IOException {
+		input.close();
+	}
+
+	/**
+	 * Decode records until the next entry/exit event.
+	 *
+	 * @return a trace, or null at end of file
+	 * @throws IOException
+	 */
+	private Trace readRecords() throws IOException {
+
+		int tag;
+
+		while ((tag = input.read()) != -1) {
+
+			switch (tag) {
+
+				case TraceBinaryWriter.TAG_STRING:
+					readVarInt();
+					strings.add(readString());
+					break;
+
+				case TraceBinaryWriter.TAG_METHOD:
+					readVarInt();
+					String[] method = new String[5];
+					for (int i = 0; i < method.length; i++) {
+						method[i] = strings.get(readVarInt());
+					}
+					methods.add(method);
+					break;
+
+				case TraceBinaryWriter.TAG_VALUE:
+					readVarInt();
+					values.add(readString());
+					break;
+
+				case TraceBinaryWriter.TAG_HASHED_VALUE:
+					long fingerprint = input.readLong();
+					hashedValues.put(fingerprint, readString());
+					break;
+
+				case TraceBinaryWriter.TAG_ENTER:
+				case TraceBinaryWriter.TAG_EXIT:
+				case TraceBinaryWriter.TAG_ELIDED:
+					return readEvent(tag);
+
+				case TraceBinaryWriter.TAG_RETURN:
+					return readReturn();
+
+				default:
+					throw new IOException("corrupted binary trace (unknown tag " + tag + ")");
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Decode an entry/exit event, or an elided calls summary.
+	 *
+	 * @param tag
+	 * @return the trace
+	 * @throws IOException
+	 */
+	private Trace readEvent(int tag) throws IOException {
+
+		long threadId   = readVarLong();
+		long sequence   = version > 1 ? readVarLong() : -1;
+		long timestamp  = lastTimestamp + unzigzag(readVarLong());
+		String[] method = methods.get(readVarInt());
+		String arguments = "";
+		long elidedCount = 0;
+
+		if (tag == TraceBinaryWriter.TAG_ELIDED) {
+			elidedCount = readVarLong();
+		}
+		else {
+			arguments = readArguments().replaceAll("\\r|\\n", " ");
+		}
+
+		lastTimestamp = timestamp;
+
+		Trace trace = new Trace();
+
+		trace.setEnteringTrace(tag == TraceBinaryWriter.TAG_ENTER);
+		trace.setPairedTrace(version > 2 && tag == TraceBinaryWriter.TAG_ENTER);
+		trace.setInstanceId("0");
+		trace.setPackageName(method[0]);
+		trace.setClassName(method[1]);
+		trace.setThreadId(threadId);
+		trace.setSequence(sequence);
+		trace.setSignature(method[2] + "(" + method[3] + ")");
+		trace.setReturnType(method[4]);
+		trace.setTimestamp(version > 1 ? epochNanos + timestamp : timestamp * 1000000L);
+		trace.setArguments(arguments);
+		trace.setElidedCount(elidedCount);
+
+		return trace;
+	}
+
+	/**
+	 * Decode an exit already paired with its entry by the logger.
+	 *
+	 * @return the trace
+	 * @throws IOException
+	 */
+	private Trace readReturn() throws IOException {
+
+		long threadId  = readVarLong();
+		long sequence  = readVarLong();
+		long timestamp = lastTimestamp + unzigzag(readVarLong());
+		int depth      = readVarInt();
+		long elapsed   = readVarLong();
+
+		lastTimestamp = timestamp;
+
+		Trace trace = new Trace();
+
+		trace.setEnteringTrace(false);
+		trace.setPairedTrace(true);
+		trace.setInstanceId("0");
+		trace.setThreadId(threadId);
+		trace.setSequence(sequence);
+		trace.setLevel(depth);
+		trace.setTimestamp(epochNanos + timestamp);
+		trace.setDuration(elapsed);
+		trace.setArguments("");
+
+		return trace;
+	}
+
+	/**
+	 * Read the arguments of an event, inline or referenced.
+	 * Before version 4, arguments were always inline.
+	 *
+	 * @return the arguments
+	 * @throws IOException
+	 */
+	private String readArguments() throws IOException {
+
+		long kind = version > 3 ? readVarLong() : TraceBinaryWriter.ARGUMENT_INLINE;
+
+		if (kind == TraceBinaryWriter.ARGUMENT_INLINE) {
+			return readString();
+		}
+
+		String value;
+
+		if (kind == TraceBinaryWriter.ARGUMENT_HASHED) {
+			value = hashedValues.get(input.readLong());
+		}
+		else {
+			int valueId = (int) (kind - TraceBinaryWriter.ARGUMENT_ID);
+			value = valueId < values.size() ? values.get(valueId) : null;
+		}
+
+		if (value == null) {
+			throw new IOException("corrupted binary trace (undefined argument value)");
+		}
+
+		return value;
+	}
+
+	/**
+	 * Read a length-prefixed UTF-8 string.
+	 *
+	 * @return the string
+	 * @throws IOException
+	 */
+	private String readString() throws IOException {
+		byte[] bytes = new byte[readVarInt()];
+		input.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Read an unsigned value encoded with 7 bits per byte.
+	 *
+	 * @return the value
+	 * @throws IOException
+	 */
+	private long readVarLong() throws IOException {
+
+		long value = 0;
+		int shift = 0;
+		int b;
+
+		do {
+			b = input.read();
+
+			if (b == -1) {
+				throw new EOFException("truncated binary trace");
+			}
+
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		}
+		while ((b & 0x80) != 0);
+
+		return value;
+	}
+
+	private int readVarInt() throws IOException {
+		return (int) readVarLong();
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
@@ -0,0 +1,251 @@
+package ch.hesge.sedypro.fileanalyser.trace;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import ch.hesge.sedypro.javainstrumenter.TraceBlockWriter;
+import ch.hesge.sedypro.utils.Trace;
+
+/**
+ * Read a block-compressed trace written by the TraceBlockWriter.
+ *
+ * Blocks are inflated and decoded in parallel by a pool of threads, a few
+ * blocks ahead of the one being read. When a time range is given, the index
+ * is used to skip all blocks outside of the range without inflating them:
+ * a block is read if the range of its timestamps overlaps the time range.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceBlockReader extends TraceReader {
+
+	// Private attributes
+	private FileChannel channel;
+	private ExecutorService executor;
+	private List<long[]> blocks;
+	private int blockIndex;
+	private LinkedList<Future<List<Trace>>> pendingBlocks;
+	private Iterator<Trace> blockTraces;
+	private long fromTimestamp;
+	private long toTimestamp;
+	private int readAhead;
+
+	// Index fields
+	private static final int OFFSET        = 0;
+	private static final int COMPRESSED    = 1;
+	private static final int UNCOMPRESSED  = 2;
+	private static final int MIN_TIMESTAMP = 3;
+	private static final int MAX_TIMESTAMP = 4;
+
+	/**
+	 * Open a compressed trace, reading all its blocks.
+	 *
+	 * @param tracePath
+	 * @throws IOException
+	 */
+	public TraceBlockReader(Path tracePath) throws IOException {
+		this(tracePath, Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Open a compressed trace, reading only the traces within a time range.
+	 *
+	 * @param tracePath
+	 * @param fromTimestamp
+	 *        first timestamp (nanoseconds since 1970, inclusive)
+	 * @param toTimestamp
+	 *        last timestamp (nanoseconds since 1970, inclusive)
+	 * @throws IOException
+	 */
+	public TraceBlockReader(Path tracePath, long fromTimestamp, long toTimestamp) throws IOException {
+
+		this.fromTimestamp = fromTimestamp;
+		this.toTimestamp = toTimestamp;
+
+		channel = FileChannel.open(tracePath, StandardOpenOption.READ);
+		blocks = readBlocks(tracePath);
+		pendingBlocks = new LinkedList<>();
+
+		int threadCount = Runtime.getRuntime().availableProcessors();
+		readAhead = threadCount * 2;
+
+		executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "sedypro-block-reader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Return the next trace available, in file order.
+	 *
+	 * @return a trace, or null after the last block
+	 * @throws IOException
+	 */
+	@Override
+	public Trace readTrace() throws IOException {
+
+		while (true) {
+
+			if (blockTraces != null && blockTraces.hasNext()) {
+				return blockTraces.next();
+			}
+
+			// Keep the pool busy with the next blocks
+			while (pendingBlocks.size() < readAhead && blockIndex < blocks.size()) {
+				pendingBlocks.add(executor.submit(new BlockDecoder(blocks.get(blockIndex++))));
+			}
+
+			if (pendingBlocks.isEmpty()) {
+				return null;
+			}
+
+			try {
+				blockTraces = pendingBlocks.removeFirst().get().iterator();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while reading trace blocks", e);
+			}
+			catch (ExecutionException e) {
+				throw new IOException("unable to decode trace block", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Stop the decoding threads and close the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		executor.shutdownNow();
+		channel.close();
+	}
+
+	/**
+	 * Retrieve the blocks overlapping the time range, either from the index,
+	 * or by scanning the block headers if the index is missing.
+	 *
+	 * @param tracePath
+	 * @return the blocks (offset, compressed, uncompressed, min and max timestamps)
+	 * @throws IOException
+	 */
+	private List<long[]> readBlocks(Path tracePath) throws IOException {
+
+		List<long[]> allBlocks = new ArrayList<>();
+		Path indexPath = TraceBlockWriter.getIndexPath(tracePath);
+
+		if (Files.exists(indexPath)) {
+
+			long epochNanos = 0;
+
+			for (String line : Files.readAllLines(indexPath, StandardCharsets.UTF_8)) {
+
+				String[] fields = line.split(" ");
+
+				if (line.startsWith(TraceBlockWriter.INDEX_HEADER)) {
+					epochNanos = Long.valueOf(fields[2]) * 1000000L;
+				}
+				else if (fields.length == 6) {
+					allBlocks.add(new long[] { Long.valueOf(fields[0]), Long.valueOf(fields[1]), Long.valueOf(fields[2]), epochNanos + Long.valueOf(fields[3]), epochNanos + Long.valueOf(fields[4]) });
+				}
+			}
+		}
+		else {
+
+			ByteBuffer header = ByteBuffer.allocate(8);
+			long offset = TraceBlockWriter.MAGIC.length + 1;
+
+			while (channel.read((ByteBuffer) header.clear(), offset) == 8) {
+				allBlocks.add(new long[] { offset, header.getInt(0), header.getInt(4), Long.MIN_VALUE, Long.MAX_VALUE });
+				offset += 8 + header.getInt(0);
+			}
+		}
+
+		// Blocks of several threads overlap, so each one is checked on its own range
+		List<long[]> selectedBlocks = new ArrayList<>();
+
+		for (long[] block : allBlocks) {
+			if (block[MIN_TIMESTAMP] <= toTimestamp && block[MAX_TIMESTAMP] >= fromTimestamp) {
+				selectedBlocks.add(block);
+			}
+		}
+
+		return selectedBlocks;
+	}
+
+	/**
+	 * Task inflating and decoding a single block.
+	 */
+	private class BlockDecoder implements Callable<List<Trace>> {
+
+		private long[] block;
+
+		private BlockDecoder(long[] block) {
+			this.block = block;
+		}
+
+		@Override
+		public List<Trace> call() throws IOException, DataFormatException {
+
+			// Read compressed bytes (positional reads are thread-safe)
+			ByteBuffer compressed = ByteBuffer.allocate((int) block[COMPRESSED]);
+
+			while (compressed.hasRemaining()) {
+				if (channel.read(compressed, block[OFFSET] + 8 + compressed.position()) < 0) {
+					throw new IOException("truncated trace block at offset " + block[OFFSET]);
+				}
+			}
+
+			// Inflate the block
+			byte[] bytes = new byte[(int) block[UNCOMPRESSED]];
+			Inflater inflater = new Inflater();
+
+			try {
+				inflater.setInput(compressed.array());
+				inflater.inflate(bytes);
+			}
+			finally {
+				inflater.end();
+			}
+
+			// Decode its traces
+			List<Trace> traces = new ArrayList<>();
+
+			try (TraceReader blockReader = TraceReader.open(new ByteArrayInputStream(bytes))) {
+
+				Trace trace;
+
+				while ((trace = blockReader.readTrace()) != null) {
+					if (trace.getTimestamp() >= fromTimestamp && trace.getTimestamp() <= toTimestamp) {
+						traces.add(trace);
+					}
+				}
+			}
+
+			return traces;
+		}
+	}
+}
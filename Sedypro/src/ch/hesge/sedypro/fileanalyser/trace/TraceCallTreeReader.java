@@ -0,0 +1,164 @@
+package ch.hesge.sedypro.fileanalyser.trace;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ch.hesge.sedypro.javainstrumenter.TraceCallTree;
+import ch.hesge.sedypro.utils.ConsoleUtils;
+import ch.hesge.sedypro.utils.Trace;
+
+/**
+ * Read a calling context tree written by the TraceLogger in tree mode,
+ * as pseudo-traces.
+ *
+ * Each node gives an entry trace, carrying the counters of the call path
+ * (call count, total, self and max durations) without any argument, and an
+ * exit trace paired with it once all its children have been read. Pseudo-traces all belong to thread 0 and share the epoch timestamp.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceCallTreeReader extends TraceReader {
+
+	// Private attributes
+	private BufferedReader reader;
+	private int lineCounter;
+	private long epochNanos;
+	private LinkedList<Trace> openTraces;
+	private LinkedList<Trace> pendingTraces;
+
+	// Private constants
+	private static final Pattern NODE_PATTERN = Pattern.compile("(?<depth>\\d+)" + "\\s" + "(?<count>\\d+)" + "\\s" + "(?<total>\\d+)" + "\\s" + "(?<self>\\d+)" + "\\s" + "(?<max>\\d+)" + "\\s" + "(?<package>\\S+)?" + "\\s" + "(?<classname>\\S+)?" + "(\\s){5}" + "(?<signature>.*\\(.*\\))" + "\\s" + "AS" + "\\s" + "(?<returntype>.+)");
+
+	/**
+	 * Open a tree file.
+	 *
+	 * @param treePath
+	 * @throws IOException
+	 */
+	public TraceCallTreeReader(Path treePath) throws IOException {
+		reader = Files.newBufferedReader(treePath, StandardCharsets.UTF_8);
+		openTraces = new LinkedList<>();
+		pendingTraces = new LinkedList<>();
+	}
+
+	/**
+	 * Return true if a file starts with the tree header.
+	 *
+	 * @param tracePath
+	 * @return true for a tree file
+	 * @throws IOException
+	 */
+	public static boolean isCallTree(Path tracePath) throws IOException {
+
+		try (BufferedReader headerReader = Files.newBufferedReader(tracePath, StandardCharsets.ISO_8859_1)) {
+			String header = headerReader.readLine();
+			return header != null && header.startsWith(TraceCallTree.TREE_HEADER);
+		}
+	}
+
+	/**
+	 * Return the next pseudo-trace, in depth-first order.
+	 *
+	 * @return a trace, or null once all nodes are exited
+	 * @throws IOException
+	 */
+	@Override
+	public Trace readTrace() throws IOException {
+
+		String nodeLine;
+
+		while (pendingTraces.isEmpty() && (nodeLine = reader.readLine()) != null) {
+
+			lineCounter++;
+
+			if (nodeLine.startsWith(TraceCallTree.TREE_HEADER)) {
+				epochNanos = Long.valueOf(nodeLine.substring(TraceCallTree.TREE_HEADER.length()).trim()) * 1000000L;
+				continue;
+			}
+
+			Matcher matcher = NODE_PATTERN.matcher(nodeLine);
+
+			if (!matcher.matches()) {
+				ConsoleUtils.println(" error in line: " + lineCounter + ", content: " + nodeLine);
+				continue;
+			}
+
+			int depth = Integer.valueOf(matcher.group("depth"));
+
+			// Exit siblings and their descendants first
+			exitTraces(depth);
+
+			Trace trace = new Trace();
+
+			trace.setEnteringTrace(true);
+			trace.setPairedTrace(true);
+			trace.setInstanceId("0");
+			trace.setPackageName(matcher.group("package"));
+			trace.setClassName(matcher.group("classname"));
+			trace.setThreadId(0);
+			trace.setSequence(-1);
+			trace.setSignature(matcher.group("signature"));
+			trace.setReturnType(matcher.group("returntype"));
+			trace.setTimestamp(epochNanos);
+			trace.setLevel(depth);
+			trace.setDuration(Long.valueOf(matcher.group("total")));
+			trace.setCallCount(Long.valueOf(matcher.group("count")));
+			trace.setSelfDuration(Long.valueOf(matcher.group("self")));
+			trace.setMaxDuration(Long.valueOf(matcher.group("max")));
+			trace.setArguments("");
+
+			pendingTraces.add(trace);
+			openTraces.push(trace);
+		}
+
+		// End of file, exit all remaining nodes
+		if (pendingTraces.isEmpty()) {
+			exitTraces(0);
+		}
+
+		return pendingTraces.poll();
+	}
+
+	/**
+	 * Close the tree file.
+	 */
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	/**
+	 * Queue the exits of all open nodes at or below a depth.
+	 *
+	 * @param depth
+	 */
+	private void exitTraces(int depth) {
+
+		while (!openTraces.isEmpty() && openTraces.peek().getLevel() >= depth) {
+
+			Trace enteringTrace = openTraces.pop();
+			Trace trace = new Trace();
+
+			trace.setEnteringTrace(false);
+			trace.setPairedTrace(true);
+			trace.setInstanceId("0");
+			trace.setThreadId(0);
+			trace.setSequence(-1);
+			trace.setTimestamp(epochNanos);
+			trace.setLevel(enteringTrace.getLevel());
+			trace.setDuration(enteringTrace.getDuration());
+			trace.setCallCount(enteringTrace.getCallCount());
+			trace.setArguments("");
+
+			pendingTraces.add(trace);
+		}
+	}
+}
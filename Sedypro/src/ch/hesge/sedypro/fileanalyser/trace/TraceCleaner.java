@@ -6,16 +6,15 @@ import java.io.PrintWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Stack;
+import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Stream;
 
 import ch.hesge.sedypro.utils.ConsoleUtils;
 import ch.hesge.sedypro.utils.DictionaryUtils;
+import ch.hesge.sedypro.utils.LongHashMap;
 import ch.hesge.sedypro.utils.StringUtils;
 import ch.hesge.sedypro.utils.Trace;
 
@@ -39,9 +38,53 @@ public class TraceCleaner {
  	 * @throws IOException
  	 */
 	public void doGenerate(String traceFilename, String cleanedFilename, String substitutionStringsFilename) throws IOException {
+		doGenerate(traceFilename, cleanedFilename, substitutionStringsFilename, Long.MIN_VALUE, Long.MAX_VALUE);
+	}
+
+ 	/**
+ 	 * Generate output file from the traces within a time range only.
+ 	 * 
+ 	 * @param traceFilename
+ 	 * @param cleanedFilename
+ 	 * @param fromTimestamp
+ 	 *        first timestamp (nanoseconds since 1970, inclusive)
+ 	 * @param toTimestamp
+ 	 *        last timestamp (nanoseconds since 1970, inclusive)
+ 	 * @throws IOException
+ 	 */
+	public void doGenerate(String traceFilename, String cleanedFilename, String substitutionStringsFilename, long fromTimestamp, long toTimestamp) throws IOException {
+
+		Path tracePath = Paths.get(traceFilename).toAbsolutePath().normalize();
+		TraceReader traceReader;
+
+		try {
+			if (fromTimestamp == Long.MIN_VALUE && toTimestamp == Long.MAX_VALUE) {
+				traceReader = TraceReader.open(tracePath);
+			}
+			else {
+				traceReader = TraceReader.open(tracePath, fromTimestamp, toTimestamp);
+			}
+		}
+		catch (IOException e) {
+			ConsoleUtils.println("error while analysing trace files: " + StringUtils.toThrowableString(e));
+			return;
+		}
+
+		doGenerate(traceReader, cleanedFilename, substitutionStringsFilename);
+	}
+
+ 	/**
+ 	 * Generate output file from traces read from any source, a trace
+ 	 * file or a TraceCollector receiving live traces. The reader is
+ 	 * closed once all its traces are read.
+ 	 * 
+ 	 * @param reader
+ 	 * @param cleanedFilename
+ 	 * @throws IOException
+ 	 */
+	public void doGenerate(TraceReader reader, String cleanedFilename, String substitutionStringsFilename) throws IOException {
 		
 		// Retrieve input/output paths
-		Path tracePath  = Paths.get(traceFilename).toAbsolutePath().normalize();
 		Path cleanedPath = Paths.get(cleanedFilename).toAbsolutePath().normalize();
 		Path substitutionStringsPath = Paths.get(substitutionStringsFilename).toAbsolutePath().normalize();
 
@@ -52,6 +95,7 @@ public class TraceCleaner {
 			
 			int lineCounter  = 0;
 			int errorCounter = 0;
+			long missingCounter = 0;
 			int traceLevel   = 0;
 			
 			// If file already exists, suppress it
@@ -59,66 +103,105 @@ public class TraceCleaner {
 				Files.delete(cleanedPath);
 			}
 
-			Map<Long, Stack<Trace>> threadTraces = new Hashtable<>();
+			LongHashMap<ThreadState> threadStates = new LongHashMap<>();
+			Map<String, Long> elidedCalls = new TreeMap<>();
 			
 			try ( PrintWriter writer = new PrintWriter(new FileWriter(cleanedPath.toFile())) ) {
-					try (Stream<String> textLines = Files.lines(tracePath)) {
+				try (TraceReader traceReader = reader) {
 
-					Iterator<String> lineIterator =  textLines.iterator();
+					Trace trace;
 					
-					while (lineIterator.hasNext()) {
+					while ((trace = traceReader.readTrace()) != null) {
 												
-						// Retrieve current trace line
-						String traceLine = lineIterator.next();			
-						Trace trace = parseTraceLine(traceLine);
-						
-						if (trace != null) {
-	
-							// Check for thread stack trace
-							if (!threadTraces.containsKey(trace.getThreadId())) {
-								threadTraces.put(trace.getThreadId(), new Stack<Trace>());
+						// Retrieve current thread state
+						ThreadState threadState = threadStates.get(trace.getThreadId());
+
+						if (threadState == null) {
+							threadState = new ThreadState();
+							threadStates.put(trace.getThreadId(), threadState);
+						}
+
+						// Check thread sequence, to detect events lost by the logger
+						if (trace.getSequence() >= 0) {
+
+							if (threadState.sequence >= 0 && trace.getSequence() > threadState.sequence + 1) {
+								missingCounter += trace.getSequence() - threadState.sequence - 1;
+							}
+
+							threadState.sequence = trace.getSequence();
+						}
+
+						// Calls elided by the logger, only keep their count
+						if (trace.getElidedCount() > 0) {
+							String method = trace.getPackageName() + " " + trace.getClassName() + " " + trace.getSignature();
+							Long elidedCount = elidedCalls.get(method);
+							elidedCalls.put(method, (elidedCount == null ? 0 : elidedCount) + trace.getElidedCount());
+						}
+
+						// Trace entering, so go one level deeper
+						else if (trace.isEnteringTrace()) {
+							
+							lineCounter++;
+							
+							// Its exit will give back its depth
+							if (trace.isPairedTrace()) {
+								trace.setLevel(threadState.depth++);
+							}
+							
+							// Otherwise push trace into its stack
+							else {
+								trace.setLevel(traceLevel++);
+								threadState.traces.push(trace);
 							}
 	
-							// Retrieve current thread stack
-							Stack<Trace> threadStack = threadTraces.get(trace.getThreadId());
+							// Retrieve cleaned trace string to output
+							String cleanedTrace = getCleanTraceString(trace);
+							String outputString = String.format("T%1$04d %2$s", lineCounter, cleanedTrace);
+							writer.println(outputString);
+						}
 	
-							// Trace entering, so push trace into its stack
-							if (trace.isEnteringTrace()) {
-								
-								lineCounter++;
-								
-								trace.setLevel(traceLevel++);
-								threadStack.push(trace);
+						// Exit already paired with its entry by the logger, so its depth is known
+						else if (trace.isPairedTrace()) {
+							threadState.depth = trace.getLevel();
+						}
 	
-								// Retrieve cleaned trace string to output
-								String cleanedTrace = getCleanTraceString(trace);
-								String outputString = String.format("T%1$04d %2$s", lineCounter, cleanedTrace);
-								writer.println(outputString);
-							}
+						// Trace exiting, so compute duration trace (in nanoseconds)
+						else if (!threadState.traces.isEmpty()) {
+							Trace popedTrace = threadState.traces.pop();
+							traceLevel = popedTrace.getLevel();
 	
-							// Trace exiting, so compute duration trace
-							else {
-								Trace popedTrace = threadStack.pop();
-								traceLevel = popedTrace.getLevel();
+							long traceDuration = trace.getTimestamp() - popedTrace.getTimestamp();
+							popedTrace.setDuration(traceDuration);
+						}
 	
-								long traceDuration = trace.getTimestamp() - popedTrace.getTimestamp();
-								popedTrace.setDuration(traceDuration);
-								
-								trace = popedTrace;
-							}
+						// Exiting a call logged through the legacy API within a paired trace
+						else if (threadState.depth > 0) {
+							threadState.depth--;
 						}
 	
-						// Otherwise show error line
+						// Exiting without entering (entry dropped by the logger), so skip it
 						else {
-							ConsoleUtils.println(" error in line: " + lineCounter + ", content: " + traceLine);
+							errorCounter++;
+						}
+
+						// Thread back to its root, release its state (its next
+						// event starts a new sequence check)
+						if (threadState.depth == 0 && threadState.traces.isEmpty()) {
+							threadStates.remove(trace.getThreadId());
 						}
 					}
 	
 					if (errorCounter > 0) {
-						ConsoleUtils.println(errorCounter + " detected in traces");
+						ConsoleUtils.println(errorCounter + " unmatched exits detected in traces");
+					}
+
+					if (missingCounter > 0) {
+						ConsoleUtils.println(missingCounter + " events missing in thread sequences (dropped by the logger)");
 					}
 				}
 			}
+
+			doGenerateElidedCalls(elidedCalls, cleanedPath);
 		}
 		catch (Exception e) {
 			ConsoleUtils.println("error while analysing trace files: " + StringUtils.toThrowableString(e));
@@ -126,54 +209,34 @@ public class TraceCleaner {
 	}
 	
 	/**
-	 * Parse a single trace line.
+	 * Write the number of calls elided by the logger for each method,
+	 * next to the cleaned file, so that call counts can be reconstructed.
 	 * 
-	 * @param traceLine
-	 * @return
+	 * @param elidedCalls
+	 * @param cleanedPath
+	 * @throws IOException
 	 */
-	private Trace parseTraceLine(String traceLine) {
+	private void doGenerateElidedCalls(Map<String, Long> elidedCalls, Path cleanedPath) throws IOException {
 
-		Trace newTrace = null;
-		
-		// Now, extract all trace parts
-		String regexp = "(?<endtag>END\\s)?" + "(?<package>\\S+)?" + "\\s" + "(?<classname>\\S+)?" + "(\\s){5}" + "\\[(?<thread>\\d+)\\]" + "\\s" + "(?<signature>.*\\(.*\\))" + "\\s" + "AS" + "\\s" + "(?<returntype>.+)" + "\\s" + "\\[(?<timestamp>\\d+)\\]" + "\\s" + "(?<arguments>.*)";
-		Pattern pattern = Pattern.compile(regexp);
-		Matcher matcher = pattern.matcher(traceLine);
-		
-		if (matcher.matches()) {
-
-			boolean isEnteringTrace = matcher.group("endtag") == null;
-
-			// Extract information from traceline
-			String strPackage    = matcher.group("package");
-			String strClassname  = matcher.group("classname");
-			String strThread     = matcher.group("thread");
-			String strSignature  = matcher.group("signature");
-			String strReturnType = matcher.group("returntype");
-			String strTimestamp  = matcher.group("timestamp");
-			String strArguments  = matcher.group("arguments");
-
-			// Convert values
-			String instanceId = "0";
-			long threadId     = Long.valueOf(strThread);
-			long timestamp    = Long.valueOf(strTimestamp);
-
-			newTrace = new Trace();
-
-			newTrace.setEnteringTrace(isEnteringTrace);
-			newTrace.setInstanceId(instanceId);
-			newTrace.setPackageName(strPackage);
-			newTrace.setClassName(strClassname);
-			newTrace.setThreadId(threadId);
-			newTrace.setSignature(strSignature);
-			newTrace.setReturnType(strReturnType);
-			newTrace.setTimestamp(timestamp);
-			newTrace.setArguments(strArguments);
+		Path elidedPath = cleanedPath.resolveSibling(cleanedPath.getFileName().toString().replaceFirst("(\\.txt)?$", ".elided.txt"));
+		Files.deleteIfExists(elidedPath);
+
+		if (elidedCalls.isEmpty()) {
+			return;
 		}
-		
-		return newTrace;
+
+		long elidedTotal = 0;
+
+		try (PrintWriter writer = new PrintWriter(new FileWriter(elidedPath.toFile()))) {
+			for (Map.Entry<String, Long> elidedCall : elidedCalls.entrySet()) {
+				writer.println(elidedCall.getValue() + " " + elidedCall.getKey());
+				elidedTotal += elidedCall.getValue();
+			}
+		}
+
+		ConsoleUtils.println(elidedTotal + " calls elided by the logger in " + elidedCalls.size() + " methods (see " + elidedPath.getFileName() + ")");
 	}
-	
+
 	/**
 	 * Retrieve a simplified (cleaned) representation of current trace.
 	 * 
@@ -204,6 +267,22 @@ public class TraceCleaner {
 		// Merge all parts into a single line
 		String cleanTraceLine = classname + " " + method + " " + parameters + " " + arguments;
 
+		return traceIndent + getCleanString(cleanTraceLine, substitutionStringsMap);
+	}
+
+	/**
+	 * Retrieve a simplified (cleaned) representation of a trace line, or of
+	 * its leading part (class and method names).
+	 * 
+	 * @param traceLine
+	 * @param substitutionStringsMap
+	 *        the strings replaced (see DictionaryUtils.loadTraceReplacementDictionary)
+	 * @return
+	 */
+	public static String getCleanString(String traceLine, Map<String, String> substitutionStringsMap) {
+
+		String cleanTraceLine = traceLine;
+
 		// Remove all string defined in conf/trace-cleaner-list.txt (2-passes)
 		for (int i = 0; i < 2; i++) {
 			for (String stringToReplace : substitutionStringsMap.keySet()) {
@@ -224,6 +303,16 @@ public class TraceCleaner {
 		// Remove multiple spaces
 		cleanTraceLine  = cleanTraceLine.replaceAll(" +", " ");
 
-		return traceIndent + cleanTraceLine;
+		return cleanTraceLine;
+	}
+
+	/**
+	 * Calls in progress within a single thread.
+	 */
+	private static class ThreadState {
+
+		private int depth;
+		private Stack<Trace> traces = new Stack<>();
+		private long sequence = -1;
 	}
 }
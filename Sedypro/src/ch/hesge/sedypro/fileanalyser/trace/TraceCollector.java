@@ -0,0 +1,277 @@
+package ch.hesge.sedypro.fileanalyser.trace;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.hesge.sedypro.javainstrumenter.TraceSocketWriter;
+import ch.hesge.sedypro.utils.ConsoleUtils;
+import ch.hesge.sedypro.utils.LongHashMap;
+import ch.hesge.sedypro.utils.Trace;
+
+/**
+ * Receive live traces streamed by instrumented JVMs through a
+ * TraceSocketWriter (-Dch.hesge.csim2.tracesocket=host:port).
+ *
+ * Several JVMs may be connected at once, each one read by its own thread.
+ * Their traces are handed over through a bounded queue, so that a slow
+ * consumer stops the reading threads, and then the JVMs (TCP backpressure).
+ *
+ * Traces are tagged with the name of their source, and their threads are
+ * renumbered, since thread ids are only unique within a JVM. Traces of
+ * different sources are interleaved in arrival order.
+ *
+ * Only connections starting with a trace stream header count as sources:
+ * other ones are rejected, and the collector keeps waiting for the
+ * expected number of JVMs.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceCollector extends TraceReader {
+
+	// Private attributes
+	private ServerSocket serverSocket;
+	private BlockingQueue<Trace> traces;
+	private List<Socket> sockets;
+	private AtomicLong lastThreadId;
+	private int sourceCount;
+	private int closedCount;
+	private int connectionCount;
+	private AtomicInteger connectedCount;
+
+	// Private constants
+	private static final int QUEUE_CAPACITY = 64 * 1024;
+
+	// Marker queued once a source is disconnected
+	private static final Trace END_OF_SOURCE = new Trace();
+
+	/**
+	 * Start listening for instrumented JVMs.
+	 *
+	 * @param port
+	 *        the port JVMs connect to
+	 * @param sourceCount
+	 *        number of JVMs expected, the collector ends once all of them disconnected
+	 * @throws IOException
+	 */
+	public TraceCollector(int port, int sourceCount) throws IOException {
+
+		this.sourceCount = Math.max(1, sourceCount);
+
+		serverSocket = new ServerSocket(port);
+		traces = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+		sockets = new CopyOnWriteArrayList<>();
+		lastThreadId = new AtomicLong();
+		connectedCount = new AtomicInteger();
+
+		Thread acceptThread = new Thread("sedypro-collector") {
+			@Override
+			public void run() {
+				acceptLoop();
+			}
+		};
+
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+
+		ConsoleUtils.println("collector listening on port " + serverSocket.getLocalPort() + ", waiting for " + this.sourceCount + " source(s)");
+	}
+
+	/**
+	 * Return the next trace received from any source, waiting for it.
+	 *
+	 * @return a trace, or null once all expected sources are disconnected
+	 * @throws IOException
+	 */
+	@Override
+	public Trace readTrace() throws IOException {
+
+		while (closedCount < sourceCount) {
+
+			Trace trace;
+
+			try {
+				trace = traces.take();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while collecting traces", e);
+			}
+
+			if (trace != END_OF_SOURCE) {
+				return trace;
+			}
+
+			closedCount++;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Stop listening and disconnect all sources.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		serverSocket.close();
+
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Accept connections until the expected number of JVMs is connected.
+	 */
+	private void acceptLoop() {
+
+		while (connectedCount.get() < sourceCount) {
+
+			try {
+				final Socket socket = serverSocket.accept();
+				final int connectionId = ++connectionCount;
+
+				sockets.add(socket);
+
+				Thread readThread = new Thread("sedypro-collector-" + connectionId) {
+					@Override
+					public void run() {
+						readLoop(socket, connectionId);
+					}
+				};
+
+				readThread.setDaemon(true);
+				readThread.start();
+			}
+			catch (IOException e) {
+
+				if (!serverSocket.isClosed()) {
+					ConsoleUtils.println(" unable to accept trace source: " + e.toString());
+				}
+
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Read all traces sent by a single JVM.
+	 *
+	 * @param socket
+	 * @param connectionId
+	 */
+	private void readLoop(Socket socket, int connectionId) {
+
+		String source = "source-" + connectionId;
+		boolean isSource = false;
+
+		// Thread ids of the JVM, released once it is disconnected
+		LongHashMap<Long> threadIds = new LongHashMap<>();
+
+		try {
+			DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+			byte[] magic = new byte[TraceSocketWriter.MAGIC.length];
+			input.readFully(magic);
+
+			if (!Arrays.equals(magic, TraceSocketWriter.MAGIC)) {
+				throw new IOException("not a trace stream");
+			}
+
+			if (!addSource()) {
+				throw new IOException("all expected sources already connected");
+			}
+
+			isSource = true;
+			source = input.readUTF();
+			ConsoleUtils.println(" trace source connected: " + source);
+
+			try (TraceReader reader = TraceReader.open(input)) {
+
+				Trace trace;
+
+				while ((trace = reader.readTrace()) != null) {
+					trace.setSource(source);
+					trace.setThreadId(getThreadId(threadIds, trace.getThreadId()));
+					traces.put(trace);
+				}
+			}
+
+			ConsoleUtils.println(" trace source disconnected: " + source);
+		}
+		catch (IOException e) {
+			ConsoleUtils.println(" trace source " + source + (isSource ? " lost: " : " rejected: ") + e.toString());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+
+			try {
+				socket.close();
+
+				// Only expected sources are waited for
+				if (isSource) {
+					traces.put(END_OF_SOURCE);
+				}
+			}
+			catch (IOException | InterruptedException e) {
+				// Collector closed
+			}
+		}
+	}
+
+	/**
+	 * Count a connection as one of the expected sources.
+	 *
+	 * @return false if all expected sources are already connected
+	 */
+	private boolean addSource() {
+
+		while (true) {
+
+			int count = connectedCount.get();
+
+			if (count >= sourceCount) {
+				return false;
+			}
+
+			if (connectedCount.compareAndSet(count, count + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Return the collector-wide id of a thread, unique over all sources.
+	 *
+	 * @param threadIds
+	 *        the collector ids of the threads of the source
+	 * @param threadId
+	 *        the thread id within its JVM
+	 * @return the thread id
+	 */
+	private long getThreadId(LongHashMap<Long> threadIds, long threadId) {
+
+		Long collectorThreadId = threadIds.get(threadId);
+
+		if (collectorThreadId == null) {
+			collectorThreadId = lastThreadId.incrementAndGet();
+			threadIds.put(threadId, collectorThreadId);
+		}
+
+		return collectorThreadId;
+	}
+}
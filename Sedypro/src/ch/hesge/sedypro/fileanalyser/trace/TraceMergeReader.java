@@ -0,0 +1,132 @@
+package ch.hesge.sedypro.fileanalyser.trace;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import ch.hesge.sedypro.utils.Trace;
+
+/**
+ * Merge the shards written by the TraceShardWriter back into a single
+ * stream, ordered by timestamp, thread and sequence number.
+ *
+ * Each shard is ordered on its own, so a k-way merge is enough: a heap holds
+ * the next trace of every shard, and the smallest one is returned first.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceMergeReader extends TraceReader {
+
+	// Private attributes
+	private PriorityQueue<ShardCursor> cursors;
+
+	// Trace order within the merged stream
+	private static final Comparator<ShardCursor> CURSOR_ORDER = new Comparator<ShardCursor>() {
+		@Override
+		public int compare(ShardCursor cursor1, ShardCursor cursor2) {
+
+			Trace trace1 = cursor1.trace;
+			Trace trace2 = cursor2.trace;
+
+			int result = Long.compare(trace1.getTimestamp(), trace2.getTimestamp());
+
+			if (result == 0) {
+				result = Long.compare(trace1.getThreadId(), trace2.getThreadId());
+			}
+
+			if (result == 0) {
+				result = Long.compare(trace1.getSequence(), trace2.getSequence());
+			}
+
+			return result;
+		}
+	};
+
+	/**
+	 * Open all shards of a trace.
+	 *
+	 * @param shardPaths
+	 * @throws IOException
+	 */
+	public TraceMergeReader(List<Path> shardPaths) throws IOException {
+
+		cursors = new PriorityQueue<>(Math.max(1, shardPaths.size()), CURSOR_ORDER);
+
+		for (Path shardPath : shardPaths) {
+
+			ShardCursor cursor = new ShardCursor(TraceReader.open(shardPath));
+
+			if (cursor.next()) {
+				cursors.add(cursor);
+			}
+		}
+	}
+
+	/**
+	 * Return the next trace over all shards.
+	 *
+	 * @return a trace, or null once all shards are exhausted
+	 * @throws IOException
+	 */
+	@Override
+	public Trace readTrace() throws IOException {
+
+		ShardCursor cursor = cursors.poll();
+
+		if (cursor == null) {
+			return null;
+		}
+
+		Trace trace = cursor.trace;
+
+		if (cursor.next()) {
+			cursors.add(cursor);
+		}
+
+		return trace;
+	}
+
+	/**
+	 * Close all shards still open.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		for (ShardCursor cursor : cursors) {
+			cursor.reader.close();
+		}
+
+		cursors.clear();
+	}
+
+	/**
+	 * Current position within a single shard.
+	 */
+	private static class ShardCursor {
+
+		private TraceReader reader;
+		private Trace trace;
+
+		private ShardCursor(TraceReader reader) {
+			this.reader = reader;
+		}
+
+		/**
+		 * Move to the next trace of the shard, closing it at end of file.
+		 */
+		private boolean next() throws IOException {
+
+			trace = reader.readTrace();
+
+			if (trace == null) {
+				reader.close();
+			}
+
+			return trace != null;
+		}
+	}
+}
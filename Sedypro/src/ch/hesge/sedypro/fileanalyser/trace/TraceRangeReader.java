@@ -0,0 +1,64 @@
+package ch.hesge.sedypro.fileanalyser.trace;
+
+import java.io.IOException;
+
+import ch.hesge.sedypro.utils.Trace;
+
+/**
+ * Only return the traces of another reader within a time range.
+ *
+ * Used for trace formats without index (see TraceReader.open), which are
+ * read through: compressed traces skip the blocks outside of the range
+ * instead (see TraceBlockReader).
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceRangeReader extends TraceReader {
+
+	// Private attributes
+	private TraceReader reader;
+	private long fromTimestamp;
+	private long toTimestamp;
+
+	/**
+	 * Filter the traces of a reader.
+	 *
+	 * @param reader
+	 * @param fromTimestamp
+	 *        first timestamp (nanoseconds since 1970, inclusive)
+	 * @param toTimestamp
+	 *        last timestamp (nanoseconds since 1970, inclusive)
+	 */
+	public TraceRangeReader(TraceReader reader, long fromTimestamp, long toTimestamp) {
+		this.reader = reader;
+		this.fromTimestamp = fromTimestamp;
+		this.toTimestamp = toTimestamp;
+	}
+
+	/**
+	 * Return the next trace within the time range.
+	 *
+	 * @return a trace, or null at end of file
+	 * @throws IOException
+	 */
+	@Override
+	public Trace readTrace() throws IOException {
+
+		Trace trace;
+
+		while ((trace = reader.readTrace()) != null) {
+			if (trace.getTimestamp() >= fromTimestamp && trace.getTimestamp() <= toTimestamp) {
+				return trace;
+			}
+		}
+
+		return null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+}
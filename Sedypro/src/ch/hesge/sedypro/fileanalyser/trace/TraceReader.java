@@ -0,0 +1,154 @@
+package ch.hesge.sedypro.fileanalyser.trace;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import ch.hesge.sedypro.javainstrumenter.TraceBinaryWriter;
+import ch.hesge.sedypro.javainstrumenter.TraceBlockWriter;
+import ch.hesge.sedypro.javainstrumenter.TraceSegmentWriter;
+import ch.hesge.sedypro.javainstrumenter.TraceShardWriter;
+import ch.hesge.sedypro.utils.Trace;
+
+/**
+ * Base class of all readers able to decode a trace file
+ * generated by the TraceLogger.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public abstract class TraceReader implements Closeable {
+
+	/**
+	 * Open a trace file, selecting the reader matching its format.
+	 * 
+	 * A segmented trace is opened either through its manifest, or through
+	 * the trace file name if no such file exists. Similarly, the shards of a
+	 * trace are merged if the trace file itself doesn't exist. A calling
+	 * context tree is read as pseudo-traces.
+	 *
+	 * @param tracePath
+	 * @return a reader positioned on the first trace
+	 * @throws IOException
+	 */
+	public static TraceReader open(Path tracePath) throws IOException {
+
+		Path manifestPath = TraceSegmentWriter.getManifestPath(tracePath);
+
+		if (tracePath.getFileName().toString().endsWith(TraceSegmentWriter.MANIFEST_EXTENSION)) {
+			return new TraceSegmentReader(tracePath);
+		}
+		else if (!Files.exists(tracePath) && Files.exists(manifestPath)) {
+			return new TraceSegmentReader(manifestPath);
+		}
+		else if (!Files.exists(tracePath) && !TraceShardWriter.getShardPaths(tracePath).isEmpty()) {
+			return new TraceMergeReader(TraceShardWriter.getShardPaths(tracePath));
+		}
+
+		byte[] magic;
+
+		try (InputStream input = Files.newInputStream(tracePath)) {
+			magic = readMagic(input);
+		}
+
+		if (Arrays.equals(magic, TraceBlockWriter.MAGIC)) {
+			return new TraceBlockReader(tracePath);
+		}
+		else if (Arrays.equals(magic, TraceBinaryWriter.MAGIC)) {
+			return new TraceBinaryReader(tracePath);
+		}
+		else if (TraceCallTreeReader.isCallTree(tracePath)) {
+			return new TraceCallTreeReader(tracePath);
+		}
+
+		return new TraceTextReader(tracePath);
+	}
+
+	/**
+	 * Open a trace file, only reading the traces within a time range.
+	 *
+	 * Compressed traces seek to the blocks overlapping the range through
+	 * their index, other traces are read through and filtered.
+	 *
+	 * @param tracePath
+	 * @param fromTimestamp
+	 *        first timestamp (nanoseconds since 1970, inclusive)
+	 * @param toTimestamp
+	 *        last timestamp (nanoseconds since 1970, inclusive)
+	 * @return a reader positioned on the first trace of the range
+	 * @throws IOException
+	 */
+	public static TraceReader open(Path tracePath, long fromTimestamp, long toTimestamp) throws IOException {
+
+		if (Files.exists(tracePath)) {
+
+			byte[] magic;
+
+			try (InputStream input = Files.newInputStream(tracePath)) {
+				magic = readMagic(input);
+			}
+
+			if (Arrays.equals(magic, TraceBlockWriter.MAGIC)) {
+				return new TraceBlockReader(tracePath, fromTimestamp, toTimestamp);
+			}
+		}
+
+		return new TraceRangeReader(open(tracePath), fromTimestamp, toTimestamp);
+	}
+
+	/**
+	 * Open a trace available as a stream, selecting the reader matching its format.
+	 *
+	 * @param inputStream
+	 * @return a reader positioned on the first trace
+	 * @throws IOException
+	 */
+	public static TraceReader open(InputStream inputStream) throws IOException {
+
+		InputStream input = new BufferedInputStream(inputStream);
+
+		input.mark(TraceBinaryWriter.MAGIC.length);
+		byte[] magic = readMagic(input);
+		input.reset();
+
+		if (Arrays.equals(magic, TraceBinaryWriter.MAGIC)) {
+			return new TraceBinaryReader(input);
+		}
+
+		return new TraceTextReader(input);
+	}
+
+	/**
+	 * Return the next trace available, skipping unreadable entries.
+	 *
+	 * @return a trace, or null at end of file
+	 * @throws IOException
+	 */
+	public abstract Trace readTrace() throws IOException;
+
+	/**
+	 * Read the magic number identifying binary and compressed traces.
+	 *
+	 * @param input
+	 * @return the first bytes of the stream (shorter at end of stream)
+	 * @throws IOException
+	 */
+	private static byte[] readMagic(InputStream input) throws IOException {
+
+		byte[] header = new byte[TraceBinaryWriter.MAGIC.length];
+
+		int offset = 0;
+		int count = 0;
+
+		while (offset < header.length && (count = input.read(header, offset, header.length - offset)) > 0) {
+			offset += count;
+		}
+
+		return Arrays.copyOf(header, offset);
+	}
+}
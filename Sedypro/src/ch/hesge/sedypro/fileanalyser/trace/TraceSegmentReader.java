@@ -0,0 +1,163 @@
+package ch.hesge.sedypro.fileanalyser.trace;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.hesge.sedypro.javainstrumenter.TraceSegmentWriter;
+import ch.hesge.sedypro.utils.ConsoleUtils;
+import ch.hesge.sedypro.utils.Trace;
+
+/**
+ * Read a trace written into memory-mapped segments by the TraceSegmentWriter.
+ *
+ * Segments are read in the order given by the manifest, each one with
+ * the reader matching its format.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceSegmentReader extends TraceReader {
+
+	// Private attributes
+	private List<Path> segments;
+	private int segmentIndex;
+	private TraceReader segmentReader;
+
+	/**
+	 * Open a segmented trace through its manifest.
+	 *
+	 * @param manifestPath
+	 * @throws IOException
+	 */
+	public TraceSegmentReader(Path manifestPath) throws IOException {
+
+		segments = new ArrayList<>();
+
+		for (String line : Files.readAllLines(manifestPath, StandardCharsets.UTF_8)) {
+
+			// Skip header and empty lines
+			if (line.trim().length() > 0 && !line.startsWith("#")) {
+
+				Path segmentPath = manifestPath.resolveSibling(line.trim());
+
+				// Segment deleted after the manifest was read
+				if (Files.exists(segmentPath)) {
+					segments.add(segmentPath);
+				}
+				else {
+					ConsoleUtils.println(" missing trace segment: " + segmentPath.getFileName());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return the next trace available, moving to the next segment
+	 * once the current one is exhausted.
+	 *
+	 * @return a trace, or null after the last segment
+	 * @throws IOException
+	 */
+	@Override
+	public Trace readTrace() throws IOException {
+
+		while (true) {
+
+			if (segmentReader == null) {
+
+				if (segmentIndex >= segments.size()) {
+					return null;
+				}
+
+				segmentReader = openSegment(segments.get(segmentIndex++));
+			}
+
+			Trace trace = segmentReader.readTrace();
+
+			if (trace != null) {
+				return trace;
+			}
+
+			segmentReader.close();
+			segmentReader = null;
+		}
+	}
+
+	/**
+	 * Close the current segment.
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (segmentReader != null) {
+			segmentReader.close();
+			segmentReader = null;
+		}
+	}
+
+	/**
+	 * Map the valid bytes of a segment and open a reader on them.
+	 *
+	 * @param segmentPath
+	 * @return the segment reader
+	 * @throws IOException
+	 */
+	private static TraceReader openSegment(Path segmentPath) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(segmentPath, StandardOpenOption.READ)) {
+
+			ByteBuffer header = ByteBuffer.allocate(TraceSegmentWriter.SEGMENT_HEADER_SIZE);
+			channel.read(header, 0);
+
+			long maxLength = channel.size() - TraceSegmentWriter.SEGMENT_HEADER_SIZE;
+			long length = Math.max(0, Math.min(header.getLong(0), maxLength));
+
+			ByteBuffer content = channel.map(FileChannel.MapMode.READ_ONLY, TraceSegmentWriter.SEGMENT_HEADER_SIZE, length);
+
+			return TraceReader.open(new ByteBufferInputStream(content));
+		}
+	}
+
+	/**
+	 * Stream over the content of a byte buffer.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+
+		private ByteBuffer buffer;
+
+		private ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+
+			if (length == 0) {
+				return 0;
+			}
+
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+
+			int count = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, count);
+
+			return count;
+		}
+	}
+}
@@ -0,0 +1,291 @@
+package ch.hesge.sedypro.fileanalyser.trace;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ch.hesge.sedypro.javainstrumenter.TraceTextWriter;
+import ch.hesge.sedypro.utils.ConsoleUtils;
+import ch.hesge.sedypro.utils.Trace;
+
+/**
+ * Read a text trace file, one trace per line.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceTextReader extends TraceReader {
+
+	// Private attributes
+	private BufferedReader reader;
+	private int lineCounter;
+	private long epochNanos;
+	private boolean hasEpoch;
+	private boolean hasPairedExits;
+	private boolean hasInternedValues;
+	private List<String> values;
+	private Map<Long, String> hashedValues;
+
+	// Private constants
+	private static final Pattern EPOCH_PATTERN = Pattern.compile("# EPOCH (?<epoch>\\d+) ms");
+	private static final String  PAIRED_HEADER = "# EXITS PAIRED";
+	private static final String  INTERNED_HEADER = "# VALUES INTERNED";
+	private static final Pattern VALUE_PATTERN = Pattern.compile("# VALUE (#(?<fingerprint>[0-9a-f]{16})|(?<id>\\d+)) (?<value>.*)");
+	private static final Pattern RETURN_PATTERN = Pattern.compile("END\\s\\[(?<thread>\\d+)/(?<sequence>\\d+)\\]\\s(?<depth>\\d+)\\s\\[(?<timestamp>\\d+)\\]\\s(?<elapsed>\\d+)");
+	private static final Pattern TRACE_PATTERN = Pattern.compile("(?<tag>END\\s|# ELIDED\\s)?" + "(?<package>\\S+)?" + "\\s" + "(?<classname>\\S+)?" + "(\\s){5}" + "\\[(?<thread>\\d+)(/(?<sequence>\\d+))?\\]" + "\\s" + "(?<signature>.*\\(.*\\))" + "\\s" + "AS" + "\\s" + "(?<returntype>.+)" + "\\s" + "\\[(?<timestamp>\\d+)\\]" + "\\s" + "(?<arguments>.*)");
+
+	/**
+	 * Open a text trace file.
+	 *
+	 * @param tracePath
+	 * @throws IOException
+	 */
+	public TraceTextReader(Path tracePath) throws IOException {
+		reader = Files.newBufferedReader(tracePath);
+	}
+
+	/**
+	 * Read a text trace from a stream.
+	 *
+	 * @param inputStream
+	 */
+	public TraceTextReader(InputStream inputStream) {
+		reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Return the next trace available, skipping unreadable lines.
+	 * 
+	 * Timestamps are converted to nanoseconds since 1970, either from the
+	 * epoch header, or from milliseconds in traces without header.
+	 * Once the paired exits header is read, entries are marked as paired.
+	 * Once the interned values header is read, references to values are
+	 * replaced by the values defined before.
+	 *
+	 * @return a trace, or null at end of file
+	 * @throws IOException
+	 */
+	@Override
+	public Trace readTrace() throws IOException {
+
+		String traceLine;
+
+		while ((traceLine = reader.readLine()) != null) {
+
+			lineCounter++;
+
+			// Interned value definition
+			if (hasInternedValues && traceLine.startsWith("# VALUE ")) {
+				defineValue(traceLine);
+				continue;
+			}
+
+			Trace trace = parseTraceLine(traceLine);
+
+			if (trace != null) {
+				trace.setTimestamp(hasEpoch ? epochNanos + trace.getTimestamp() : trace.getTimestamp() * 1000000L);
+
+				if (hasInternedValues) {
+					trace.setArguments(expandValue(trace.getArguments()));
+				}
+
+				// Entries whose exit is paired by the logger
+				if (hasPairedExits && trace.isEnteringTrace()) {
+					trace.setPairedTrace(true);
+				}
+
+				return trace;
+			}
+
+			// Trace header, epoch in milliseconds
+			Matcher matcher = EPOCH_PATTERN.matcher(traceLine);
+
+			if (matcher.matches()) {
+				epochNanos = Long.valueOf(matcher.group("epoch")) * 1000000L;
+				hasEpoch = true;
+				continue;
+			}
+
+			// Exits paired by the logger
+			if (traceLine.equals(PAIRED_HEADER)) {
+				hasPairedExits = true;
+				continue;
+			}
+
+			// Argument values defined once, then referenced
+			if (traceLine.equals(INTERNED_HEADER)) {
+				hasInternedValues = true;
+				values = new ArrayList<>();
+				hashedValues = new HashMap<>();
+				continue;
+			}
+
+			// Otherwise show error line
+			ConsoleUtils.println(" error in line: " + lineCounter + ", content: " + traceLine);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Record the value defined by a metadata line.
+	 *
+	 * @param traceLine
+	 */
+	private void defineValue(String traceLine) {
+
+		Matcher matcher = VALUE_PATTERN.matcher(traceLine);
+
+		if (!matcher.matches()) {
+			ConsoleUtils.println(" error in line: " + lineCounter + ", content: " + traceLine);
+		}
+		else if (matcher.group("fingerprint") != null) {
+			hashedValues.put(Long.parseUnsignedLong(matcher.group("fingerprint"), 16), matcher.group("value"));
+		}
+		else {
+
+			int valueId = Integer.parseInt(matcher.group("id"));
+
+			while (values.size() <= valueId) {
+				values.add(null);
+			}
+
+			values.set(valueId, matcher.group("value"));
+		}
+	}
+
+	/**
+	 * Replace a reference by the value it stands for.
+	 *
+	 * @param arguments
+	 * @return the value, or the arguments unchanged if not a reference
+	 */
+	private String expandValue(String arguments) {
+
+		if (arguments.isEmpty() || arguments.charAt(0) != TraceTextWriter.VALUE_REFERENCE) {
+			return arguments;
+		}
+
+		String reference = arguments.substring(1);
+		String value = null;
+
+		try {
+
+			// Escaped value
+			if (!reference.isEmpty() && reference.charAt(0) == TraceTextWriter.VALUE_REFERENCE) {
+				return reference;
+			}
+
+			if (reference.startsWith("#")) {
+				value = hashedValues.get(Long.parseUnsignedLong(reference.substring(1), 16));
+			}
+			else {
+				int valueId = Integer.parseInt(reference);
+				value = valueId < values.size() ? values.get(valueId) : null;
+			}
+		}
+		catch (NumberFormatException e) {
+			// Reported below
+		}
+
+		if (value == null) {
+			ConsoleUtils.println(" undefined value in line: " + lineCounter + ", reference: " + arguments);
+			return arguments;
+		}
+
+		return value;
+	}
+
+	/**
+	 * Close the trace file.
+	 */
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	/**
+	 * Parse a single trace line, keeping its timestamp as written.
+	 * 
+	 * @param traceLine
+	 * @return
+	 */
+	public static Trace parseTraceLine(String traceLine) {
+
+		Trace newTrace = null;
+		
+		// Now, extract all trace parts
+		Matcher matcher = TRACE_PATTERN.matcher(traceLine);
+		
+		if (matcher.matches()) {
+
+			String strTag = matcher.group("tag");
+			boolean isEnteringTrace = strTag == null;
+			boolean isElidedTrace = strTag != null && strTag.startsWith("#");
+
+			// Extract information from traceline
+			String strPackage    = matcher.group("package");
+			String strClassname  = matcher.group("classname");
+			String strThread     = matcher.group("thread");
+			String strSequence   = matcher.group("sequence");
+			String strSignature  = matcher.group("signature");
+			String strReturnType = matcher.group("returntype");
+			String strTimestamp  = matcher.group("timestamp");
+			String strArguments  = matcher.group("arguments");
+
+			// Convert values
+			String instanceId = "0";
+			long threadId     = Long.valueOf(strThread);
+			long sequence     = strSequence == null ? -1 : Long.valueOf(strSequence);
+			long timestamp    = Long.valueOf(strTimestamp);
+
+			newTrace = new Trace();
+
+			newTrace.setEnteringTrace(isEnteringTrace);
+			newTrace.setInstanceId(instanceId);
+			newTrace.setPackageName(strPackage);
+			newTrace.setClassName(strClassname);
+			newTrace.setThreadId(threadId);
+			newTrace.setSequence(sequence);
+			newTrace.setSignature(strSignature);
+			newTrace.setReturnType(strReturnType);
+			newTrace.setTimestamp(timestamp);
+			newTrace.setArguments(strArguments);
+
+			// Elided calls summary, arguments hold the number of calls
+			if (isElidedTrace) {
+				newTrace.setArguments("");
+				newTrace.setElidedCount(Long.valueOf(strArguments.trim()));
+			}
+		}
+
+		// Exit paired by the logger, with its depth and elapsed time only
+		else if ((matcher = RETURN_PATTERN.matcher(traceLine)).matches()) {
+
+			newTrace = new Trace();
+
+			newTrace.setEnteringTrace(false);
+			newTrace.setPairedTrace(true);
+			newTrace.setInstanceId("0");
+			newTrace.setThreadId(Long.valueOf(matcher.group("thread")));
+			newTrace.setSequence(Long.valueOf(matcher.group("sequence")));
+			newTrace.setLevel(Integer.valueOf(matcher.group("depth")));
+			newTrace.setTimestamp(Long.valueOf(matcher.group("timestamp")));
+			newTrace.setDuration(Long.valueOf(matcher.group("elapsed")));
+			newTrace.setArguments("");
+		}
+		
+		return newTrace;
+	}
+}
@@ -0,0 +1,300 @@
+package ch.hesge.sedypro.javainstrumenter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jdt.core.dom.ASTNode;
+import org.eclipse.jdt.core.dom.ASTVisitor;
+import org.eclipse.jdt.core.dom.Annotation;
+import org.eclipse.jdt.core.dom.Assignment;
+import org.eclipse.jdt.core.dom.Block;
+import org.eclipse.jdt.core.dom.BodyDeclaration;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.ConstructorInvocation;
+import org.eclipse.jdt.core.dom.Expression;
+import org.eclipse.jdt.core.dom.ExpressionStatement;
+import org.eclipse.jdt.core.dom.FieldAccess;
+import org.eclipse.jdt.core.dom.MethodDeclaration;
+import org.eclipse.jdt.core.dom.ReturnStatement;
+import org.eclipse.jdt.core.dom.SimpleName;
+import org.eclipse.jdt.core.dom.SingleVariableDeclaration;
+import org.eclipse.jdt.core.dom.Statement;
+import org.eclipse.jdt.core.dom.SuperConstructorInvocation;
+import org.eclipse.jdt.core.dom.ThisExpression;
+
+/**
+ * Selection of the methods instrumented by the JavaInstrumenter.
+ *
+ * Methods are selected by rules read from a filter file, one rule per line
+ * (see InstrumenterRules), matching a glob pattern ('*' any characters, '?'
+ * a single one) against the package, the class name, the method name (new
+ * for constructors) or the annotations of the method and its class (simple
+ * or qualified name):
+ *
+ * <code>
+ * 		# comment
+ * 		include package com.kenai.atm*
+ * 		exclude class *Test
+ * 		exclude method toString
+ * 		exclude annotation Generated
+ * </code>
+ *
+ * A method is instrumented if it matches no exclude rule and, if include
+ * rules are given, at least one of them. The classifier then skips trivial
+ * methods, when a statement limit is given: getters and setters only
+ * reading or assigning a field, and methods whose body holds at most the
+ * limit of statements (nested statements included, constructor invocations
+ * excluded), such as one line delegates. An instrumentation plan can also
+ * leave out the methods called too often by a previous capture (see
+ * InstrumenterPlan).
+ *
+ * Only names found in the sources are used (no bindings), so that the
+ * counting pass of the JavaInstrumenter selects the same methods.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class InstrumenterFilter {
+
+	// Private attributes
+	private InstrumenterRules rules;
+	private int trivialStatementCount;
+	private InstrumenterPlan plan;
+
+	// Public constants
+	public static final int NO_TRIVIAL_METHODS = -1;
+	public static final String REASON_HASHCODE = "hashCode";
+	public static final String REASON_NOT_INCLUDED = InstrumenterRules.REASON_NOT_INCLUDED;
+	public static final String REASON_ACCESSOR = "trivial accessor";
+
+	/**
+	 * Create a filter without rules, only skipping hashCode.
+	 */
+	public InstrumenterFilter() {
+		this.rules = new InstrumenterRules();
+		this.trivialStatementCount = NO_TRIVIAL_METHODS;
+	}
+
+	/**
+	 * Parse a filter file.
+	 *
+	 * @param filepath
+	 * @return the filter
+	 * @throws IOException
+	 */
+	public static InstrumenterFilter read(Path filepath) throws IOException {
+		InstrumenterFilter filter = new InstrumenterFilter();
+		filter.rules = InstrumenterRules.read(filepath);
+		return filter;
+	}
+
+	public int getTrivialStatementCount() {
+		return trivialStatementCount;
+	}
+
+	/**
+	 * Set the statement limit of trivial methods.
+	 *
+	 * @param trivialStatementCount
+	 *        the limit, NO_TRIVIAL_METHODS to instrument them
+	 */
+	public void setTrivialStatementCount(int trivialStatementCount) {
+		this.trivialStatementCount = trivialStatementCount;
+	}
+
+	public InstrumenterPlan getPlan() {
+		return plan;
+	}
+
+	/**
+	 * Set the plan leaving out methods called too often.
+	 *
+	 * @param plan
+	 *        the plan, null to instrument all methods selected
+	 */
+	public void setPlan(InstrumenterPlan plan) {
+		this.plan = plan;
+	}
+
+	/**
+	 * Return a description of the filter, identifying the methods it
+	 * selects (with no spaces), none for the default filter.
+	 */
+	public String getSignature() {
+
+		if (rules.isEmpty() && trivialStatementCount == NO_TRIVIAL_METHODS && plan == null) {
+			return "none";
+		}
+
+		StringBuilder signature = new StringBuilder("trivial=" + trivialStatementCount);
+		signature.append(rules.getSignature());
+
+		if (plan != null) {
+			signature.append(';').append(plan.getSignature());
+		}
+
+		return signature.toString();
+	}
+
+	/**
+	 * Return why a method with a body is not instrumented.
+	 *
+	 * @param declaration
+	 * @return the reason, or null if the method is instrumented
+	 */
+	public String getSkipReason(MethodDeclaration declaration) {
+
+		if (declaration.getName().toString().equals("hashCode")) {
+			return REASON_HASHCODE;
+		}
+
+		String[] method = null;
+
+		if (!rules.isEmpty() || plan != null) {
+			method = JavaInstrumenterUtils.getMethodEntry((CompilationUnit) declaration.getRoot(), declaration, TraceArguments.CAPTURE_NONE);
+		}
+
+		if (!rules.isEmpty()) {
+
+			String[] names = new String[InstrumenterRules.RULE_KINDS.length];
+			names[InstrumenterRules.PACKAGE] = method[TraceMethodTable.PACKAGE];
+			names[InstrumenterRules.CLASS] = method[TraceMethodTable.CLASSNAME].substring(0, method[TraceMethodTable.CLASSNAME].indexOf('#'));
+			names[InstrumenterRules.METHOD] = method[TraceMethodTable.METHOD];
+
+			String ruleReason = rules.getSkipReason(names, getAnnotations(declaration));
+
+			if (ruleReason != null) {
+				return ruleReason;
+			}
+		}
+
+		if (plan != null && plan.getSkipReason(method) != null) {
+			return plan.getSkipReason(method);
+		}
+
+		if (trivialStatementCount != NO_TRIVIAL_METHODS) {
+
+			if (isAccessor(declaration)) {
+				return REASON_ACCESSOR;
+			}
+
+			if (getStatementCount(declaration.getBody()) <= trivialStatementCount) {
+				return "at most " + trivialStatementCount + " statement(s)";
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Return the annotation names of a method and its enclosing classes,
+	 * both as written and without qualification.
+	 *
+	 * @param declaration
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<String> getAnnotations(MethodDeclaration declaration) {
+
+		List<String> annotations = new ArrayList<>();
+		ASTNode node = declaration;
+
+		while (node != null) {
+
+			if (node instanceof BodyDeclaration) {
+
+				for (Object modifier : ((BodyDeclaration) node).modifiers()) {
+
+					if (modifier instanceof Annotation) {
+						String name = ((Annotation) modifier).getTypeName().getFullyQualifiedName();
+						annotations.add(name);
+						annotations.add(name.substring(name.lastIndexOf('.') + 1));
+					}
+				}
+			}
+
+			node = node.getParent();
+		}
+
+		return annotations;
+	}
+
+	/**
+	 * Check if a method is a getter (get/is method returning a field) or a
+	 * setter (set method assigning its single parameter to a field).
+	 *
+	 * @param declaration
+	 */
+	@SuppressWarnings("unchecked")
+	private static boolean isAccessor(MethodDeclaration declaration) {
+
+		List<Statement> statements = declaration.getBody().statements();
+		String methodName = declaration.getName().toString();
+
+		if (declaration.isConstructor() || statements.size() != 1) {
+			return false;
+		}
+
+		Statement statement = statements.get(0);
+
+		if ((methodName.startsWith("get") || methodName.startsWith("is")) && declaration.parameters().isEmpty() && statement instanceof ReturnStatement) {
+			return isField(((ReturnStatement) statement).getExpression());
+		}
+
+		if (methodName.startsWith("set") && declaration.parameters().size() == 1 && statement instanceof ExpressionStatement) {
+
+			Expression expression = ((ExpressionStatement) statement).getExpression();
+
+			if (expression instanceof Assignment && ((Assignment) expression).getOperator() == Assignment.Operator.ASSIGN) {
+
+				Assignment assignment = (Assignment) expression;
+				String parameterName = ((SingleVariableDeclaration) declaration.parameters().get(0)).getName().toString();
+
+				return isField(assignment.getLeftHandSide()) && assignment.getRightHandSide() instanceof SimpleName && ((SimpleName) assignment.getRightHandSide()).toString().equals(parameterName);
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Check if an expression reads a field of this object: a name or
+	 * this.name (within an accessor, a name can't be a local variable).
+	 *
+	 * @param expression
+	 */
+	private static boolean isField(Expression expression) {
+		return expression instanceof SimpleName || (expression instanceof FieldAccess && ((FieldAccess) expression).getExpression() instanceof ThisExpression);
+	}
+
+	/**
+	 * Count the statements of a body, nested ones included, but not
+	 * constructor invocations, always kept out of the trace points.
+	 *
+	 * @param body
+	 */
+	private static int getStatementCount(Block body) {
+
+		final int[] statementCount = new int[1];
+
+		body.accept(new ASTVisitor() {
+
+			@Override
+			public void preVisit(ASTNode node) {
+				if (node instanceof Statement && !(node instanceof Block || node instanceof ConstructorInvocation || node instanceof SuperConstructorInvocation)) {
+					statementCount[0]++;
+				}
+			}
+
+			// Methods of local and anonymous classes are counted by themselves
+			@Override
+			public boolean visit(MethodDeclaration methodDeclaration) {
+				return false;
+			}
+		});
+
+		return statementCount[0];
+	}
+}
@@ -0,0 +1,245 @@
+package ch.hesge.sedypro.javainstrumenter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import ch.hesge.sedypro.utils.FileUtils;
+
+/**
+ * Manifest of an instrumented folder, written by the JavaInstrumenter
+ * at the root of the target folder, so that a later run only handles
+ * the source files changed since.
+ *
+ * The manifest starts with the instrumenter version, the capture mode and
+ * the signature of the filter selecting methods (see InstrumenterFilter),
+ * followed by one line per source file with tab separated fields:
+ *
+ * <code>
+ * 		# SEDYPRO MANIFEST version capture filter
+ * 		path	hash	first-method-id	method-count
+ * </code>
+ *
+ * Paths are relative to the source folder (with '/' separators), hashes
+ * are SHA-1 digests of the file content (empty if the file couldn't be
+ * instrumented, so that it is handled again), and method ids give the range
+ * of the method table assigned to the file.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class InstrumenterManifest {
+
+	// Private attributes
+	private String version;
+	private String captureName;
+	private String filterSignature;
+	private Map<String, Entry> entries;
+
+	// Public constants
+	public static final String DEFAULT_MANIFEST_FILE = "sedypro-manifest.txt";
+
+	// Private constants
+	private static final String MANIFEST_HEADER = "# SEDYPRO MANIFEST";
+	private static final String HASH_ALGORITHM = "SHA-1";
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Create an empty manifest.
+	 *
+	 * @param version
+	 *        the instrumenter version
+	 * @param captureName
+	 *        the argument capture mode
+	 * @param filterSignature
+	 *        the signature of the method filter
+	 */
+	public InstrumenterManifest(String version, String captureName, String filterSignature) {
+		this.version = version;
+		this.captureName = captureName;
+		this.filterSignature = filterSignature;
+		this.entries = new TreeMap<>();
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	public String getCaptureName() {
+		return captureName;
+	}
+
+	public String getFilterSignature() {
+		return filterSignature;
+	}
+
+	/**
+	 * Return the paths of all files in the manifest, in order.
+	 */
+	public List<String> getPaths() {
+		return new ArrayList<>(entries.keySet());
+	}
+
+	/**
+	 * Return the entry of a file.
+	 *
+	 * @param path
+	 *        the path relative to the source folder
+	 * @return the entry, or null if the file is unknown
+	 */
+	public Entry get(String path) {
+		return entries.get(path);
+	}
+
+	/**
+	 * Add (or replace) the entry of a file.
+	 *
+	 * @param path
+	 * @param hash
+	 * @param firstMethodId
+	 * @param methodCount
+	 */
+	public void put(String path, String hash, int firstMethodId, int methodCount) {
+		entries.put(path, new Entry(hash, firstMethodId, methodCount));
+	}
+
+	/**
+	 * Parse a manifest file.
+	 *
+	 * @param filepath
+	 * @return the manifest, or null if the file doesn't exist or is not a manifest
+	 * @throws IOException
+	 */
+	public static InstrumenterManifest read(Path filepath) throws IOException {
+
+		if (!Files.exists(filepath)) {
+			return null;
+		}
+
+		// Same charset as FileUtils.writeFileAtomically
+		try (BufferedReader reader = Files.newBufferedReader(filepath, Charset.defaultCharset())) {
+
+			String header = reader.readLine();
+
+			if (header == null || !header.startsWith(MANIFEST_HEADER)) {
+				return null;
+			}
+
+			String[] headerFields = header.substring(MANIFEST_HEADER.length()).trim().split(" ");
+
+			if (headerFields.length != 3) {
+				return null;
+			}
+
+			InstrumenterManifest manifest = new InstrumenterManifest(headerFields[0], headerFields[1], headerFields[2]);
+			String textLine;
+
+			while ((textLine = reader.readLine()) != null) {
+
+				String[] fields = textLine.split("\t", -1);
+
+				if (fields.length == 4) {
+					manifest.put(fields[0], fields[1], Integer.parseInt(fields[2]), Integer.parseInt(fields[3]));
+				}
+			}
+
+			return manifest;
+		}
+	}
+
+	/**
+	 * Write the manifest file atomically, so that an interrupted run never
+	 * leaves a truncated manifest.
+	 *
+	 * @param filepath
+	 * @throws IOException
+	 */
+	public void write(Path filepath) throws IOException {
+
+		String lineSeparator = System.lineSeparator();
+		StringBuilder content = new StringBuilder();
+		content.append(MANIFEST_HEADER + " " + version + " " + captureName + " " + filterSignature).append(lineSeparator);
+
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			Entry fileEntry = entry.getValue();
+			content.append(entry.getKey() + "\t" + fileEntry.hash + "\t" + fileEntry.firstMethodId + "\t" + fileEntry.methodCount).append(lineSeparator);
+		}
+
+		FileUtils.writeFileAtomically(filepath, content.toString());
+	}
+
+	/**
+	 * Compute the hash of a file content.
+	 *
+	 * @param filepath
+	 * @return the hexadecimal digest
+	 * @throws IOException
+	 */
+	public static String hashFile(Path filepath) throws IOException {
+
+		MessageDigest digest;
+
+		try {
+			digest = MessageDigest.getInstance(HASH_ALGORITHM);
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IOException("no " + HASH_ALGORITHM + " digest available", e);
+		}
+
+		try (InputStream input = Files.newInputStream(filepath)) {
+
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int length;
+
+			while ((length = input.read(buffer)) > 0) {
+				digest.update(buffer, 0, length);
+			}
+		}
+
+		StringBuilder hash = new StringBuilder();
+
+		for (byte b : digest.digest()) {
+			hash.append(String.format("%02x", b & 0xff));
+		}
+
+		return hash.toString();
+	}
+
+	/**
+	 * State of a single source file.
+	 */
+	public static class Entry {
+
+		private String hash;
+		private int firstMethodId;
+		private int methodCount;
+
+		private Entry(String hash, int firstMethodId, int methodCount) {
+			this.hash = hash;
+			this.firstMethodId = firstMethodId;
+			this.methodCount = methodCount;
+		}
+
+		public String getHash() {
+			return hash;
+		}
+
+		public int getFirstMethodId() {
+			return firstMethodId;
+		}
+
+		public int getMethodCount() {
+			return methodCount;
+		}
+	}
+}
@@ -0,0 +1,363 @@
+package ch.hesge.sedypro.javainstrumenter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import ch.hesge.sedypro.fileanalyser.trace.TraceCleaner;
+import ch.hesge.sedypro.utils.DictionaryUtils;
+
+/**
+ * Instrumentation plan built from the calls observed by a previous capture,
+ * leaving out the methods called too often, so that the next capture has a
+ * bounded overhead.
+ *
+ * The profile is either a cleaned trace (see TraceCleaner), one line per
+ * call, with the calls elided by the logger listed in its .elided.txt
+ * sibling, or a call tree (see TraceCallTree), giving the number of calls
+ * of each call path. Methods whose share of all calls goes over the budget
+ * (a percentage) are left out, unless they carry distinct vocabulary: with
+ * the trace dictionary of the cleaned trace (see TraceDictionaryGenerator),
+ * a method is kept if it is the last one producing one of the dictionary
+ * terms, so that the terms matched against stories by ScoreMatrixGenerator1
+ * are all still traced. Methods are left out from the most called one.
+ *
+ * Methods are identified by their class and method names, as written in
+ * cleaned traces (overloaded methods share their calls), once rewritten
+ * by the substitutions of the TraceCleaner (data/conf/trace-cleaner-list.txt).
+ * Methods not found in the profile are instrumented as usual.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class InstrumenterPlan {
+
+	// Private attributes
+	private double budget;
+	private long callCount;
+	private Map<String, Long> methodCalls;
+	private Map<String, Set<String>> methodTerms;
+	private Map<String, Long> skippedMethods;
+	private Map<String, Set<String>> keptMethods;
+	private boolean hasDictionary;
+	private Map<String, String> substitutionStringsMap;
+
+	// Public constants
+	public static final String REASON_OVER_BUDGET = "over call budget";
+	public static final String DEFAULT_SUBSTITUTION_FILE = "data/conf/trace-cleaner-list.txt";
+
+	/**
+	 * Create an empty plan.
+	 *
+	 * @param budget
+	 *        the maximum share of all calls (%) of a method instrumented
+	 */
+	public InstrumenterPlan(double budget) {
+		this.budget = budget;
+		this.methodCalls = new TreeMap<>();
+		this.methodTerms = new HashMap<>();
+		this.skippedMethods = new TreeMap<>();
+		this.keptMethods = new TreeMap<>();
+		this.substitutionStringsMap = new TreeMap<>();
+	}
+
+	/**
+	 * Build a plan from a profile.
+	 *
+	 * @param profilePath
+	 *        a cleaned trace or a call tree
+	 * @param dictionaryPath
+	 *        the trace dictionary of the cleaned trace, null if none
+	 * @param substitutionStringsPath
+	 *        the substitutions of the TraceCleaner, null if none
+	 * @param budget
+	 *        the maximum share of all calls (%) of a method instrumented
+	 * @return the plan
+	 * @throws IOException
+	 */
+	public static InstrumenterPlan read(Path profilePath, Path dictionaryPath, Path substitutionStringsPath, double budget) throws IOException {
+
+		InstrumenterPlan plan = new InstrumenterPlan(budget);
+		boolean isCallTree;
+
+		if (substitutionStringsPath != null) {
+			plan.substitutionStringsMap = DictionaryUtils.loadTraceReplacementDictionary(substitutionStringsPath);
+		}
+
+		try (BufferedReader reader = Files.newBufferedReader(profilePath, StandardCharsets.UTF_8)) {
+			String header = reader.readLine();
+			isCallTree = header != null && header.startsWith(TraceCallTree.TREE_HEADER);
+		}
+
+		if (isCallTree) {
+
+			if (dictionaryPath != null) {
+				throw new IOException("a trace dictionary only applies to a cleaned trace");
+			}
+
+			plan.readCallTree(profilePath);
+		}
+		else {
+			plan.readCleanedTrace(profilePath, dictionaryPath == null ? null : DictionaryUtils.getLineToWordMap(DictionaryUtils.loadDictionary(dictionaryPath)));
+			plan.readElidedCalls(profilePath.resolveSibling(profilePath.getFileName().toString().replaceFirst("(\\.txt)?$", ".elided.txt")));
+		}
+
+		plan.hasDictionary = dictionaryPath != null;
+		plan.doPlan();
+
+		return plan;
+	}
+
+	/**
+	 * Count the calls of a cleaned trace, one per line, and collect the
+	 * dictionary terms of each method.
+	 *
+	 * <code>
+	 * 		T0001 classname method parameters arguments
+	 * </code>
+	 *
+	 * @param tracePath
+	 * @param lineTerms
+	 *        the dictionary terms of each line, null if none
+	 * @throws IOException
+	 */
+	private void readCleanedTrace(Path tracePath, Map<Integer, Set<String>> lineTerms) throws IOException {
+
+		try (BufferedReader reader = Files.newBufferedReader(tracePath, StandardCharsets.UTF_8)) {
+
+			String textLine;
+			int lineNumber = 0;
+
+			while ((textLine = reader.readLine()) != null) {
+
+				lineNumber++;
+
+				// Skip line number header and indentation
+				String[] words = textLine.trim().split(" +");
+
+				if (words.length < 3) {
+					continue;
+				}
+
+				// Anonymous classes are split into several words, their types starting in upper case
+				int methodIndex = 2;
+
+				while (methodIndex < words.length - 1 && (Character.isUpperCase(words[methodIndex].charAt(0)) || words[methodIndex].contains("."))) {
+					methodIndex++;
+				}
+
+				StringBuilder method = new StringBuilder();
+
+				for (int i = 1; i <= methodIndex; i++) {
+					method.append(i > 1 ? " " : "").append(words[i]);
+				}
+
+				String methodKey = method.toString();
+				addCalls(methodKey, 1);
+
+				if (lineTerms != null && lineTerms.containsKey(lineNumber)) {
+
+					if (!methodTerms.containsKey(methodKey)) {
+						methodTerms.put(methodKey, new TreeSet<String>());
+					}
+
+					methodTerms.get(methodKey).addAll(lineTerms.get(lineNumber));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Count the calls elided by the logger, listed next to a cleaned trace.
+	 *
+	 * <code>
+	 * 		count package classname method(parameters)
+	 * </code>
+	 *
+	 * @param elidedPath
+	 * @throws IOException
+	 */
+	private void readElidedCalls(Path elidedPath) throws IOException {
+
+		if (!Files.exists(elidedPath)) {
+			return;
+		}
+
+		for (String textLine : Files.readAllLines(elidedPath, StandardCharsets.UTF_8)) {
+
+			String[] fields = textLine.split(" ", 4);
+
+			if (fields.length == 4 && fields[3].contains("(")) {
+				addCalls(getMethodKey(fields[2], fields[3].substring(0, fields[3].indexOf('('))), Long.parseLong(fields[0]));
+			}
+		}
+	}
+
+	/**
+	 * Count the calls of a call tree, summing the calls of all paths
+	 * leading to each method.
+	 *
+	 * <code>
+	 * 		depth count total self max package classname     method(parameters) AS returntype
+	 * </code>
+	 *
+	 * @param treePath
+	 * @throws IOException
+	 */
+	private void readCallTree(Path treePath) throws IOException {
+
+		for (String textLine : Files.readAllLines(treePath, StandardCharsets.UTF_8)) {
+
+			if (textLine.startsWith("#")) {
+				continue;
+			}
+
+			String[] fields = textLine.trim().split("\\s+", 8);
+
+			if (fields.length == 8 && fields[7].contains("(")) {
+				addCalls(getMethodKey(fields[6], fields[7].substring(0, fields[7].indexOf('('))), Long.parseLong(fields[1]));
+			}
+		}
+	}
+
+	/**
+	 * Add calls observed for a method.
+	 *
+	 * @param methodKey
+	 * @param calls
+	 */
+	private void addCalls(String methodKey, long calls) {
+		Long methodCount = methodCalls.get(methodKey);
+		methodCalls.put(methodKey, (methodCount == null ? 0 : methodCount) + calls);
+		callCount += calls;
+	}
+
+	/**
+	 * Select the methods left out: from the most called one, all methods over
+	 * the budget, unless they are the last ones carrying some term.
+	 */
+	private void doPlan() {
+
+		// Number of methods still carrying each term
+		Map<String, Integer> termMethods = new HashMap<>();
+
+		for (Set<String> terms : methodTerms.values()) {
+			for (String term : terms) {
+				termMethods.put(term, termMethods.containsKey(term) ? termMethods.get(term) + 1 : 1);
+			}
+		}
+
+		List<String> methodKeys = new ArrayList<>(methodCalls.keySet());
+
+		Collections.sort(methodKeys, new Comparator<String>() {
+			@Override
+			public int compare(String method1, String method2) {
+				return Long.compare(methodCalls.get(method2), methodCalls.get(method1));
+			}
+		});
+
+		for (String methodKey : methodKeys) {
+
+			if (getCallShare(methodKey) <= budget) {
+				break;
+			}
+
+			Set<String> terms = methodTerms.containsKey(methodKey) ? methodTerms.get(methodKey) : Collections.<String> emptySet();
+			Set<String> distinctTerms = new TreeSet<>();
+
+			for (String term : terms) {
+				if (termMethods.get(term) == 1) {
+					distinctTerms.add(term);
+				}
+			}
+
+			if (distinctTerms.isEmpty()) {
+
+				skippedMethods.put(methodKey, methodCalls.get(methodKey));
+
+				for (String term : terms) {
+					termMethods.put(term, termMethods.get(term) - 1);
+				}
+			}
+			else {
+				keptMethods.put(methodKey, distinctTerms);
+			}
+		}
+	}
+
+	/**
+	 * Return the key identifying a method in profiles, its class and method
+	 * names as written in cleaned traces.
+	 *
+	 * @param classname
+	 *        the class name, with its super classes (see TraceMethodTable)
+	 * @param methodName
+	 */
+	public String getMethodKey(String classname, String methodName) {
+		return TraceCleaner.getCleanString(classname + " " + methodName, substitutionStringsMap).trim();
+	}
+
+	/**
+	 * Return the share of all calls (%) of a method.
+	 *
+	 * @param methodKey
+	 */
+	private double getCallShare(String methodKey) {
+		return callCount == 0 ? 0 : methodCalls.get(methodKey) * 100.0 / callCount;
+	}
+
+	/**
+	 * Return why a method is left out.
+	 *
+	 * @param method
+	 *        the method-table entry of the method
+	 * @return the reason, or null if the method is instrumented
+	 */
+	public String getSkipReason(String[] method) {
+		return skippedMethods.containsKey(getMethodKey(method[TraceMethodTable.CLASSNAME], method[TraceMethodTable.METHOD])) ? REASON_OVER_BUDGET : null;
+	}
+
+	/**
+	 * Return a description of the plan, identifying the methods left out
+	 * (with no spaces).
+	 */
+	public String getSignature() {
+		return "budget=" + budget + ":" + skippedMethods.size() + ":" + Integer.toHexString(skippedMethods.keySet().hashCode());
+	}
+
+	/**
+	 * Return a description of the plan, one line per method over the budget.
+	 */
+	public List<String> getSummary() {
+
+		List<String> lines = new ArrayList<>();
+
+		lines.add(String.format("profile: %d calls of %d methods, %d over a budget of %s%% of calls, %d kept for their vocabulary", callCount, methodCalls.size(), skippedMethods.size() + keptMethods.size(), budget, keptMethods.size()));
+
+		if (!hasDictionary) {
+			lines.add("  no trace dictionary, vocabulary not checked");
+		}
+
+		for (Map.Entry<String, Long> skippedMethod : skippedMethods.entrySet()) {
+			lines.add(String.format("  left out %6.2f%%  %s", getCallShare(skippedMethod.getKey()), skippedMethod.getKey()));
+		}
+
+		for (Map.Entry<String, Set<String>> keptMethod : keptMethods.entrySet()) {
+			lines.add(String.format("  kept     %6.2f%%  %s %s", getCallShare(keptMethod.getKey()), keptMethod.getKey(), keptMethod.getValue()));
+		}
+
+		return lines;
+	}
+}
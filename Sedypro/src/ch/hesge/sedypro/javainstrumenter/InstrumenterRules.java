@@ -0,0 +1,251 @@
+package ch.hesge.sedypro.javainstrumenter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Include and exclude rules of a filter file, matching a glob pattern (see
+ * TraceControl.compileGlob) against the package, the class name, the method
+ * name or the annotations of a method:
+ *
+ * <code>
+ * 		# comment
+ * 		include package com.kenai.atm*
+ * 		exclude class *Test
+ * 		exclude method toString
+ * 		exclude annotation Generated
+ * </code>
+ *
+ * The JavaInstrumenter applies all rules to the methods of the sources (see
+ * InstrumenterFilter), the TraceAgent only the package and class rules to
+ * the classes it loads. The rules don't depend on the JDT, so that they are
+ * available to the agent.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class InstrumenterRules {
+
+	// Private attributes
+	private List<Rule> rules;
+	private boolean hasIncludeRules;
+
+	// Public constants
+	public static final String[] RULE_KINDS = { "package", "class", "method", "annotation" };
+	public static final int PACKAGE = 0;
+	public static final int CLASS = 1;
+	public static final int METHOD = 2;
+	public static final int ANNOTATION = 3;
+	public static final String REASON_NOT_INCLUDED = "not included";
+
+	/**
+	 * Create an empty rule set.
+	 */
+	public InstrumenterRules() {
+		this.rules = new ArrayList<>();
+	}
+
+	/**
+	 * Parse a filter file.
+	 *
+	 * @param filepath
+	 * @return the rules
+	 * @throws IOException
+	 */
+	public static InstrumenterRules read(Path filepath) throws IOException {
+
+		InstrumenterRules rules = new InstrumenterRules();
+		int lineNumber = 0;
+
+		for (String textLine : Files.readAllLines(filepath, StandardCharsets.UTF_8)) {
+
+			lineNumber++;
+			textLine = textLine.trim();
+
+			if (textLine.isEmpty() || textLine.startsWith("#")) {
+				continue;
+			}
+
+			if (!rules.parseRule(textLine)) {
+				throw new IOException("invalid filter rule at line " + lineNumber + ": " + textLine);
+			}
+		}
+
+		return rules;
+	}
+
+	/**
+	 * Add a rule, written as in a filter file.
+	 *
+	 * @param textLine
+	 *        the rule, e.g. include package com.kenai.atm*
+	 */
+	public void addRule(String textLine) {
+
+		if (!parseRule(textLine.trim())) {
+			throw new RuntimeException("invalid filter rule: " + textLine + " !");
+		}
+	}
+
+	/**
+	 * Parse and add a rule.
+	 *
+	 * @param textLine
+	 * @return false if the rule is invalid
+	 */
+	private boolean parseRule(String textLine) {
+
+		String[] fields = textLine.split("\\s+");
+		int kind = fields.length == 3 ? getRuleKind(fields[1]) : -1;
+
+		if (kind < 0 || !(fields[0].equals("include") || fields[0].equals("exclude"))) {
+			return false;
+		}
+
+		rules.add(new Rule(fields[0].equals("include"), kind, fields[2]));
+		hasIncludeRules |= fields[0].equals("include");
+
+		return true;
+	}
+
+	/**
+	 * Return the index of a rule kind.
+	 *
+	 * @param kindName
+	 * @return the kind, -1 if unknown
+	 */
+	private static int getRuleKind(String kindName) {
+
+		for (int kind = 0; kind < RULE_KINDS.length; kind++) {
+			if (RULE_KINDS[kind].equals(kindName)) {
+				return kind;
+			}
+		}
+
+		return -1;
+	}
+
+	public boolean isEmpty() {
+		return rules.isEmpty();
+	}
+
+	/**
+	 * Return a description of the rules (with no spaces), one ;+kind:glob
+	 * or ;-kind:glob per rule.
+	 */
+	public String getSignature() {
+
+		StringBuilder signature = new StringBuilder();
+
+		for (Rule rule : rules) {
+			signature.append(';').append(rule.isInclude ? '+' : '-').append(RULE_KINDS[rule.kind]).append(':').append(rule.glob);
+		}
+
+		return signature.toString();
+	}
+
+	/**
+	 * Return why a method is not selected: it matches an exclude rule or,
+	 * if include rules are given, none of them.
+	 *
+	 * @param names
+	 *        the package, class and method names of the method, by rule kind
+	 * @param annotations
+	 *        the annotation names of the method and its classes
+	 * @return the reason, or null if the method is selected
+	 */
+	public String getSkipReason(String[] names, List<String> annotations) {
+
+		boolean isIncluded = !hasIncludeRules;
+
+		for (Rule rule : rules) {
+
+			boolean isMatching = rule.kind == ANNOTATION ? rule.matchesAny(annotations) : rule.matches(names[rule.kind]);
+
+			if (isMatching && !rule.isInclude) {
+				return rule.toString();
+			}
+
+			isIncluded |= isMatching && rule.isInclude;
+		}
+
+		return isIncluded ? null : REASON_NOT_INCLUDED;
+	}
+
+	/**
+	 * Check if the methods of a class may be selected, from the package and
+	 * class rules only: the class matches no exclude rule and, if package or
+	 * class include rules are given, at least one of them.
+	 *
+	 * @param packageName
+	 * @param className
+	 *        the class name, without its package
+	 */
+	public boolean isClassIncluded(String packageName, String className) {
+
+		boolean hasClassIncludeRules = false;
+		boolean isIncluded = false;
+
+		for (Rule rule : rules) {
+
+			if (rule.kind != PACKAGE && rule.kind != CLASS) {
+				continue;
+			}
+
+			boolean isMatching = rule.matches(rule.kind == PACKAGE ? packageName : className);
+
+			if (isMatching && !rule.isInclude) {
+				return false;
+			}
+
+			hasClassIncludeRules |= rule.isInclude;
+			isIncluded |= isMatching && rule.isInclude;
+		}
+
+		return !hasClassIncludeRules || isIncluded;
+	}
+
+	/**
+	 * A single include or exclude rule.
+	 */
+	private static class Rule {
+
+		private boolean isInclude;
+		private int kind;
+		private String glob;
+		private Pattern pattern;
+
+		private Rule(boolean isInclude, int kind, String glob) {
+			this.isInclude = isInclude;
+			this.kind = kind;
+			this.glob = glob;
+			this.pattern = TraceControl.compileGlob(glob);
+		}
+
+		private boolean matches(String name) {
+			return pattern.matcher(name).matches();
+		}
+
+		private boolean matchesAny(List<String> names) {
+
+			for (String name : names) {
+				if (matches(name)) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		@Override
+		public String toString() {
+			return (isInclude ? "include " : "exclude ") + RULE_KINDS[kind] + " " + glob;
+		}
+	}
+}
@@ -3,7 +3,10 @@
  */
 package ch.hesge.sedypro.javainstrumenter;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -11,8 +14,17 @@ import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.regex.Matcher;
 
 import org.eclipse.jdt.core.JavaCore;
 import org.eclipse.jdt.core.compiler.IProblem;
@@ -22,9 +34,8 @@ import org.eclipse.jdt.core.dom.ASTParser;
 import org.eclipse.jdt.core.dom.ASTVisitor;
 import org.eclipse.jdt.core.dom.Block;
 import org.eclipse.jdt.core.dom.CompilationUnit;
-import org.eclipse.jdt.core.dom.ExpressionStatement;
+import org.eclipse.jdt.core.dom.IfStatement;
 import org.eclipse.jdt.core.dom.MethodDeclaration;
-import org.eclipse.jdt.core.dom.MethodInvocation;
 import org.eclipse.jdt.core.dom.TryStatement;
 import org.eclipse.jface.text.Document;
 import org.eclipse.text.edits.TextEdit;
@@ -49,13 +60,28 @@ public class JavaInstrumenter {
 	private Path targetPath;
 	private int instrumentedClassCount;
 	private Map<String, String> visitedFiles;
-	private String VERSION = "1.0.8";
+	private List<String[]> methodTable;
+	private int captureMode;
+	private int threadCount;
+	private boolean isIncremental;
+	private InstrumenterManifest manifest;
+	private InstrumenterFilter filter;
+	private Map<String, Integer> skippedMethods;
+	private String VERSION = "1.1.0";
+
+	// Private constants
+	private static final double DEFAULT_CALL_BUDGET = 1.0;
 	
 	/**
 	 * Default constructor
 	 */
 	public JavaInstrumenter() {
 		visitedFiles = new HashMap<>();
+		methodTable = new ArrayList<>();
+		captureMode = TraceArguments.CAPTURE_FULL;
+		threadCount = 1;
+		filter = new InstrumenterFilter();
+		skippedMethods = new TreeMap<>();
 	}
 
 	/**
@@ -80,22 +106,46 @@ public class JavaInstrumenter {
 
 		printBanner();
 		
-		if (args == null || args.length < 1) {
+		List<String> params = args == null ? new ArrayList<String>() : StringUtils.getParameters(args);
+
+		if (params.isEmpty()) {
 			printUsage();
 		}
 		else {
 
+			isIncremental = StringUtils.hasSwitch(args, "-incremental");
+
 			// Check if specified folders are valid
-			checkSourceFolder(args);
-			checkTargetFolder(args);
+			checkSourceFolder(params.toArray(new String[0]));
+			checkTargetFolder(params.toArray(new String[0]));
+			checkCaptureMode(args);
+			checkThreadCount(args);
+			checkFilter(args);
 			
 			ConsoleUtils.println("source: " + sourcePath);
-			ConsoleUtils.println("target: " + targetPath + "\n");		
+			ConsoleUtils.println("target: " + targetPath);		
+			ConsoleUtils.println("capture: " + TraceArguments.CAPTURE_NAMES[captureMode]);
+			ConsoleUtils.println("threads: " + threadCount);
+			ConsoleUtils.println("filter: " + filter.getSignature());
+			ConsoleUtils.println("incremental: " + isIncremental + "\n");
+
+			// Hash sources before reading them, so that files modified meanwhile are handled again
+			doHashSourceFolder();
+
+			InstrumenterManifest previousManifest = isIncremental ? doLoadManifest() : null;
 
 			// Start instrumenting
-			doCloneSourceFolder();
-			doInstrumentFolder();
+			if (previousManifest != null) {
+				doUpdateTargetFolder(previousManifest);
+			}
+			else {
+				doCloneSourceFolder();
+				doInstrumentFolder();
+			}
+
+			doGenerateMethodTable();
 			doGenerateTraceLoggerClass();
+			doGenerateManifest();
 		}
 	}
 
@@ -124,7 +174,8 @@ public class JavaInstrumenter {
 	
 	/**
 	 * Verify that target folder specified in argument is valid
-	 * and is not already present on filesystem.
+	 * and is not already present on filesystem (unless updated
+	 * incrementally).
 	 * 
 	 * @param args
 	 */
@@ -140,11 +191,110 @@ public class JavaInstrumenter {
 		targetPath = Paths.get(folder).toAbsolutePath().normalize();
 
 		// Verify that folder does not exist
-		if (targetPath.toFile().exists()) {
+		if (targetPath.toFile().exists() && !isIncremental) {
 			throw new RuntimeException("target-folder already exist !");
 		}
 	}
 
+	/**
+	 * Retrieve the argument capture mode specified by the -capture switch.
+	 * 
+	 * @param args
+	 */
+	public void checkCaptureMode(String[] args) {
+
+		String captureName = StringUtils.getSwitchValue(args, "-capture", TraceArguments.CAPTURE_NAMES[TraceArguments.CAPTURE_FULL]);
+		captureMode = TraceArguments.parseCaptureMode(captureName);
+
+		if (!TraceArguments.CAPTURE_NAMES[captureMode].equalsIgnoreCase(captureName)) {
+			throw new RuntimeException("invalid capture mode: " + captureName + " !");
+		}
+	}
+
+	/**
+	 * Retrieve the number of instrumenting threads specified by the -threads switch
+	 * (0 for one thread per processor).
+	 * 
+	 * @param args
+	 */
+	public void checkThreadCount(String[] args) {
+
+		String threads = StringUtils.getSwitchValue(args, "-threads", "1");
+
+		try {
+			threadCount = Integer.parseInt(threads);
+		}
+		catch (NumberFormatException e) {
+			throw new RuntimeException("invalid thread count: " + threads + " !");
+		}
+
+		if (threadCount <= 0) {
+			threadCount = Runtime.getRuntime().availableProcessors();
+		}
+	}
+
+	/**
+	 * Retrieve the method filter specified by the -filter switch (rules file),
+	 * the -trivial switch (statement limit of trivial methods), and the
+	 * -profile, -budget and -dictionary switches (instrumentation plan).
+	 * 
+	 * @param args
+	 */
+	public void checkFilter(String[] args) {
+
+		String filterFile = StringUtils.getSwitchValue(args, "-filter", null);
+		String trivial = StringUtils.getSwitchValue(args, "-trivial", null);
+		String profileFile = StringUtils.getSwitchValue(args, "-profile", null);
+		String budget = StringUtils.getSwitchValue(args, "-budget", String.valueOf(DEFAULT_CALL_BUDGET));
+		String dictionaryFile = StringUtils.getSwitchValue(args, "-dictionary", null);
+
+		if (filterFile != null) {
+			try {
+				filter = InstrumenterFilter.read(Paths.get(filterFile));
+			}
+			catch (IOException e) {
+				throw new RuntimeException("invalid filter file: " + e.getMessage() + " !");
+			}
+		}
+
+		if (trivial != null) {
+			try {
+				filter.setTrivialStatementCount(Integer.parseInt(trivial));
+			}
+			catch (NumberFormatException e) {
+				throw new RuntimeException("invalid trivial statement count: " + trivial + " !");
+			}
+
+			if (filter.getTrivialStatementCount() < 0) {
+				throw new RuntimeException("invalid trivial statement count: " + trivial + " !");
+			}
+		}
+
+		if (profileFile != null) {
+
+			double callBudget;
+
+			try {
+				callBudget = Double.parseDouble(budget);
+			}
+			catch (NumberFormatException e) {
+				throw new RuntimeException("invalid call budget: " + budget + " !");
+			}
+
+			try {
+				Path substitutionStringsPath = Paths.get(InstrumenterPlan.DEFAULT_SUBSTITUTION_FILE);
+				filter.setPlan(InstrumenterPlan.read(Paths.get(profileFile), dictionaryFile == null ? null : Paths.get(dictionaryFile), Files.exists(substitutionStringsPath) ? substitutionStringsPath : null, callBudget));
+			}
+			catch (IOException e) {
+				throw new RuntimeException("invalid profile: " + StringUtils.toThrowableString(e) + " !");
+			}
+
+			for (String line : filter.getPlan().getSummary()) {
+				ConsoleUtils.println(line);
+			}
+		}
+	}
+
 	/**
 	 * Duplicate all source folder content into the target path
 	 */
@@ -161,6 +311,193 @@ public class JavaInstrumenter {
 		}
 	}
 
+	/**
+	 * Compute the hash of all source files, starting the manifest
+	 * of this run.
+	 */
+	private void doHashSourceFolder() {
+
+		manifest = new InstrumenterManifest(VERSION, TraceArguments.CAPTURE_NAMES[captureMode], filter.getSignature());
+
+		try {
+			Files.walkFileTree(sourcePath, new SimpleFileVisitor<Path>() {
+
+				@Override
+				public FileVisitResult preVisitDirectory(Path folderPath, BasicFileAttributes attrs) throws IOException {
+
+					// Skip subversion folders, as when cloning
+					if (folderPath.getFileName().toString().equals(".svn")) {
+						return FileVisitResult.SKIP_SUBTREE;
+					}
+
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path filepath, BasicFileAttributes attrs) throws IOException {
+					manifest.put(getRelativePath(sourcePath, filepath), InstrumenterManifest.hashFile(filepath), 0, 0);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		catch (Exception e) {
+			ConsoleUtils.println("error while hashing source folder: " + StringUtils.toThrowableString(e));
+		}
+	}
+
+	/**
+	 * Load the manifest of the previous run on the target folder.
+	 * 
+	 * @return the manifest, or null if the folder must be fully instrumented
+	 */
+	private InstrumenterManifest doLoadManifest() {
+
+		try {
+			InstrumenterManifest previousManifest = InstrumenterManifest.read(targetPath.resolve(InstrumenterManifest.DEFAULT_MANIFEST_FILE));
+
+			if (previousManifest == null || !Files.exists(targetPath.resolve(TraceMethodTable.DEFAULT_METHOD_FILE))) {
+				ConsoleUtils.println("no manifest found, full instrumentation.");
+				return null;
+			}
+
+			// Ids and sources depend on all of them
+			if (!previousManifest.getVersion().equals(manifest.getVersion()) || !previousManifest.getCaptureName().equals(manifest.getCaptureName())) {
+				ConsoleUtils.println("manifest of version " + previousManifest.getVersion() + " with capture " + previousManifest.getCaptureName() + ", full instrumentation.");
+				return null;
+			}
+
+			if (!previousManifest.getFilterSignature().equals(manifest.getFilterSignature())) {
+				ConsoleUtils.println("manifest with filter " + previousManifest.getFilterSignature() + ", full instrumentation.");
+				return null;
+			}
+
+			return previousManifest;
+		}
+		catch (Exception e) {
+			ConsoleUtils.println("error while reading manifest, full instrumentation: " + StringUtils.toThrowableString(e));
+			return null;
+		}
+	}
+
+	/**
+	 * Update the target folder of a previous run, instrumenting only the
+	 * source files whose hash changed.
+	 * 
+	 * Unchanged files keep their method ids. Ids of changed and removed files
+	 * are released, a changed file reusing its range if its methods still fit
+	 * in it, other files receiving ids after the last one used. Ids are thus
+	 * stable between updates, but differ from a full instrumentation.
+	 * 
+	 * @param previousManifest
+	 *        the manifest of the previous run
+	 */
+	private void doUpdateTargetFolder(InstrumenterManifest previousManifest) {
+
+		ConsoleUtils.println("updating folder " + targetPath);
+
+		try {
+
+			// Restore the method table of the previous run
+			methodTable.clear();
+
+			for (String[] method : TraceMethodTable.readMethods(targetPath.resolve(TraceMethodTable.DEFAULT_METHOD_FILE))) {
+				methodTable.add(method != null ? method : TraceMethodTable.get(methodTable.size()));
+			}
+
+			int removedCount = 0;
+			int unchangedCount = 0;
+
+			// Remove files deleted from the source folder
+			for (String path : previousManifest.getPaths()) {
+
+				if (manifest.get(path) == null) {
+					doReleaseMethods(previousManifest.get(path));
+					Files.deleteIfExists(targetPath.resolve(path));
+					ConsoleUtils.println("  file: " + path + " removed.");
+					removedCount++;
+				}
+			}
+
+			List<Path> instrumentedPaths = new ArrayList<>();
+			Map<Path, InstrumenterManifest.Entry> previousEntries = new HashMap<>();
+
+			// Copy new and changed files
+			for (String path : manifest.getPaths()) {
+
+				InstrumenterManifest.Entry entry = manifest.get(path);
+				InstrumenterManifest.Entry previousEntry = previousManifest.get(path);
+
+				if (previousEntry != null && previousEntry.getHash().equals(entry.getHash())) {
+					manifest.put(path, entry.getHash(), previousEntry.getFirstMethodId(), previousEntry.getMethodCount());
+					unchangedCount++;
+					continue;
+				}
+
+				Path filepath = targetPath.resolve(path);
+				Files.createDirectories(filepath.getParent());
+				Files.copy(sourcePath.resolve(path), filepath, StandardCopyOption.REPLACE_EXISTING);
+
+				if (previousEntry != null) {
+					doReleaseMethods(previousEntry);
+				}
+
+				// Skip the logger trace itself (if present)
+				if (FileUtils.getFileExtension(path).equalsIgnoreCase(".java") && !filepath.getFileName().toString().equals("TraceLogger.java")) {
+
+					instrumentedPaths.add(filepath);
+
+					if (previousEntry != null) {
+						previousEntries.put(filepath, previousEntry);
+					}
+				}
+			}
+
+			ConsoleUtils.println(instrumentedPaths.size() + " source files to instrument, " + removedCount + " files removed, " + unchangedCount + " files unchanged.");
+
+			doInstrumentFiles(instrumentedPaths, previousEntries);
+		}
+		catch (Exception e) {
+			ConsoleUtils.println("error while updating target folder: " + StringUtils.toThrowableString(e));
+		}
+	}
+
+	/**
+	 * Release the method ids of a file no longer instrumented the same way.
+	 * 
+	 * @param entry
+	 *        the manifest entry of the file
+	 */
+	private void doReleaseMethods(InstrumenterManifest.Entry entry) {
+
+		for (int methodId = entry.getFirstMethodId(); methodId < entry.getFirstMethodId() + entry.getMethodCount() && methodId < methodTable.size(); methodId++) {
+			methodTable.set(methodId, TraceMethodTable.get(methodId));
+		}
+	}
+
+	/**
+	 * Write the manifest of this run, at the root of the target folder.
+	 */
+	private void doGenerateManifest() {
+
+		try {
+			manifest.write(targetPath.resolve(InstrumenterManifest.DEFAULT_MANIFEST_FILE));
+			ConsoleUtils.println("manifest successfully generated");
+		}
+		catch (Exception e) {
+			ConsoleUtils.println("error while generating manifest: " + StringUtils.toThrowableString(e));
+		}
+	}
+
+	/**
+	 * Return the path of a file relative to a folder, with '/' separators.
+	 * 
+	 * @param folderPath
+	 * @param filepath
+	 */
+	private String getRelativePath(Path folderPath, Path filepath) {
+		return folderPath.relativize(filepath).toString().replace(File.separatorChar, '/');
+	}
+
 	/**
 	 * Generate TraceLogger class invocated by instrumented methods
 	 */
@@ -175,11 +512,18 @@ public class JavaInstrumenter {
 	
 					if (folderPath.getFileName().toString().equals("src")) {
 						
-						// Create "TraceLogger.java" file to the target "src" folder
+						// Copy "TraceLogger.java" and its runtime classes to the target "src" folder
 						Files.createDirectories(Paths.get(folderPath + "/org/hesge/sedypro"));
-						Path source = Paths.get("data/instrumenter/TraceLogger.java");
-						Path target = Paths.get(folderPath + "/org/hesge/sedypro/TraceLogger.java");
-						Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+
+						try (DirectoryStream<Path> runtimeFiles = Files.newDirectoryStream(Paths.get("data/instrumenter"), "*.java")) {
+							for (Path source : runtimeFiles) {
+								Path target = Paths.get(folderPath + "/org/hesge/sedypro/" + source.getFileName());
+								Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+							}
+						}
+
+						// Specialize the logger for the methods instrumented
+						doGenerateTracePrefixes(Paths.get(folderPath + "/org/hesge/sedypro/TracePrefixes.java"));
 					}
 	
 					return FileVisitResult.CONTINUE;
@@ -193,6 +537,120 @@ public class JavaInstrumenter {
 		}
 	}
 	
+	/**
+	 * Fill the copy of TracePrefixes with the static parts of the
+	 * trace lines of all methods instrumented, rendered once here
+	 * instead of event by event at runtime.
+	 * 
+	 * @param prefixesPath
+	 *        the TracePrefixes.java copied into the target
+	 * @throws IOException
+	 */
+	private void doGenerateTracePrefixes(Path prefixesPath) throws IOException {
+
+		StringBuilder chunks = new StringBuilder();
+		StringBuilder chunk = new StringBuilder();
+		int chunkLength = 0;
+
+		for (String[] method : methodTable) {
+
+			String head = TracePrefixes.renderHead(method[TraceMethodTable.PACKAGE], method[TraceMethodTable.CLASSNAME]);
+			String tail = TracePrefixes.renderTail(method[TraceMethodTable.METHOD], method[TraceMethodTable.PARAMETERS], method[TraceMethodTable.RETURNTYPE]);
+			String line = head + TracePrefixes.PART_SEPARATOR + tail + TracePrefixes.LINE_SEPARATOR;
+			int lineLength = getConstantLength(line);
+
+			// Keep each string constant far below the class file limit (64 KB once encoded)
+			if (chunkLength + lineLength > TracePrefixes.MAX_CHUNK_LENGTH && chunkLength > 0) {
+				chunks.append("\t\t").append(JavaInstrumenterUtils.toStringLiteral(chunk.toString())).append(",\n");
+				chunk.setLength(0);
+				chunkLength = 0;
+			}
+
+			// Line longer than a whole chunk, continued in the next ones
+			while (lineLength > TracePrefixes.MAX_CHUNK_LENGTH) {
+
+				int splitIndex = 0;
+				int splitLength = 0;
+
+				while (splitLength + getConstantLength(line.charAt(splitIndex)) <= TracePrefixes.MAX_CHUNK_LENGTH) {
+					splitLength += getConstantLength(line.charAt(splitIndex++));
+				}
+
+				chunks.append("\t\t").append(JavaInstrumenterUtils.toStringLiteral(line.substring(0, splitIndex))).append(",\n");
+				line = line.substring(splitIndex);
+				lineLength -= splitLength;
+			}
+
+			chunk.append(line);
+			chunkLength += lineLength;
+		}
+
+		if (chunk.length() > 0) {
+			chunks.append("\t\t").append(JavaInstrumenterUtils.toStringLiteral(chunk.toString())).append(",\n");
+		}
+
+		String content = FileUtils.readFileAsString(prefixesPath);
+		content = content.replaceFirst("CHUNKS = \\{\\s*\\};", Matcher.quoteReplacement("CHUNKS = {\n" + chunks + "\t};"));
+
+		Files.write(prefixesPath, content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Return the length of a string once encoded in a class file constant.
+	 *
+	 * @param value
+	 * @return the number of bytes
+	 */
+	private static int getConstantLength(String value) {
+
+		int byteCount = 0;
+
+		for (int i = 0; i < value.length(); i++) {
+			byteCount += getConstantLength(value.charAt(i));
+		}
+
+		return byteCount;
+	}
+
+	/**
+	 * Return the length of a character once encoded in a class file
+	 * constant (modified UTF-8: '\0' on two bytes, surrogates on three).
+	 *
+	 * @param c
+	 * @return the number of bytes
+	 */
+	private static int getConstantLength(char c) {
+
+		if (c >= 0x0001 && c <= 0x007f) {
+			return 1;
+		}
+
+		return c <= 0x07ff ? 2 : 3;
+	}
+
+	/**
+	 * Write the method table sidecar file, mapping each method id
+	 * used by the instrumented code to its names.
+	 */
+	private void doGenerateMethodTable() {
+
+		try {
+			List<String> lines = new ArrayList<>();
+
+			for (int methodId = 0; methodId < methodTable.size(); methodId++) {
+				lines.add(TraceMethodTable.formatMethod(methodId, methodTable.get(methodId)));
+			}
+
+			Path methodTablePath = targetPath.resolve(TraceMethodTable.DEFAULT_METHOD_FILE);
+			Files.write(methodTablePath, lines, StandardCharsets.UTF_8);
+
+			ConsoleUtils.println("method table successfully generated (" + methodTable.size() + " methods)");
+		}
+		catch (Exception e) {
+			ConsoleUtils.println("error while generating method table: " + StringUtils.toThrowableString(e));
+		}
+	}
+
 	/**
 	 * Start instrumenting current folder.
 	 * 
@@ -201,16 +659,15 @@ public class JavaInstrumenter {
 	public void doInstrumentFolder() {
 		try {
 
-			instrumentedClassCount = 0;
-			
 			// Initialization
 			visitedFiles.clear();
+			methodTable.clear();
 			
-			ConsoleUtils.println("instrumentation started.");
-
-			// Then, start scanning source code
+			// Start scanning source code
 			ConsoleUtils.println("source scanning started.");
 
+			final List<Path> sourceFiles = new ArrayList<>();
+
 			// Scan all folder recursively to discover source file
 			Files.walkFileTree(Paths.get(targetPath.toString()), new SimpleFileVisitor<Path>() {
 
@@ -220,31 +677,163 @@ public class JavaInstrumenter {
 					// Retrieves file extension
 					String fileExtension = FileUtils.getFileExtension(filepath.toString());
 
-					// Parse source file only and analyze it
-					if (fileExtension.equalsIgnoreCase(".java") && canVisitFile(filepath.toString())) {
+					// Keep source file only
+					if (fileExtension.equalsIgnoreCase(".java")) {
+						sourceFiles.add(filepath);
+					}
 
-						try {
+					return FileVisitResult.CONTINUE;
+				}
+			});
 
-							// Skip the logger trace itself (if present)
-							if (!filepath.getFileName().toString().equals("TraceLogger.java") ) {
+			// Sort files, so that method ids are stable from one run to another
+			Collections.sort(sourceFiles);
 
-								// Extract instrumented fragment from files
-								doInstrumentFile(filepath.toString());
-							}
+			List<Path> instrumentedPaths = new ArrayList<>();
 
-							// Mark current file as visited
-							visitedFiles.put(filepath.toString(), filepath.toString());
-						}
-						catch (Exception e) {
-							ConsoleUtils.println("error while instrumenting files: " + StringUtils.toThrowableString(e));
-						}
+			for (Path filepath : sourceFiles) {
+
+				if (canVisitFile(filepath.toString())) {
+
+					// Skip the logger trace itself (if present)
+					if (!filepath.getFileName().toString().equals("TraceLogger.java") ) {
+						instrumentedPaths.add(filepath);
 					}
 
-					return FileVisitResult.CONTINUE;
+					// Mark current file as visited
+					visitedFiles.put(filepath.toString(), filepath.toString());
 				}
-			});
-			
+			}
+
+			doInstrumentFiles(instrumentedPaths, new HashMap<Path, InstrumenterManifest.Entry>());
+		}
+		catch (Exception e) {
+			ConsoleUtils.println("error while instrumenting files: " + StringUtils.toThrowableString(e));
+		}
+	}
+
+	/**
+	 * Instrument source files of the target folder.
+	 * 
+	 * Files are handled by a pool of threadCount threads, in two passes: the
+	 * methods of each file are first counted (a parse without bindings),
+	 * which gives each file the range of ids following the previous files
+	 * (or its previous range, if its methods still fit in). Files are then
+	 * instrumented, and collected in file order, so that ids and instrumented
+	 * sources are identical whatever the number of threads.
+	 * 
+	 * @param instrumentedPaths
+	 *        the files to instrument, in order
+	 * @param previousEntries
+	 *        the manifest entries of files instrumented by a previous run
+	 */
+	private void doInstrumentFiles(List<Path> instrumentedPaths, Map<Path, InstrumenterManifest.Entry> previousEntries) {
+		try {
+
+			instrumentedClassCount = 0;
+			skippedMethods.clear();
+
+			ConsoleUtils.println("instrumentation started.");
+
+			long startTime = System.nanoTime();
+			ForkJoinPool pool = new ForkJoinPool(threadCount);
+
+			// First pass, count methods of each file
+			List<ForkJoinTask<Integer>> countTasks = new ArrayList<>();
+
+			for (final Path filepath : instrumentedPaths) {
+				countTasks.add(pool.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						return doCountMethods(filepath);
+					}
+				}));
+			}
+
+			// Second pass, extract instrumented fragment from files, each one starting at its first method id
+			List<ForkJoinTask<InstrumentedFile>> instrumentTasks = new ArrayList<>();
+			int nextMethodId = methodTable.size();
+
+			for (int i = 0; i < instrumentedPaths.size(); i++) {
+
+				final Path filepath = instrumentedPaths.get(i);
+				final int methodCount = countTasks.get(i).join();
+				final int fileMethodId;
+
+				InstrumenterManifest.Entry previousEntry = previousEntries.get(filepath);
+
+				if (previousEntry != null && methodCount <= previousEntry.getMethodCount()) {
+					fileMethodId = previousEntry.getFirstMethodId();
+				}
+				else {
+					fileMethodId = nextMethodId;
+					nextMethodId += methodCount;
+				}
+
+				instrumentTasks.add(pool.submit(new Callable<InstrumentedFile>() {
+					@Override
+					public InstrumentedFile call() {
+						return doInstrumentFile(filepath, fileMethodId, methodCount);
+					}
+				}));
+			}
+
+			List<InstrumentedFile> instrumentedFiles = new ArrayList<>();
+
+			// Collect files in order
+			for (ForkJoinTask<InstrumentedFile> instrumentTask : instrumentTasks) {
+
+				InstrumentedFile instrumentedFile = instrumentTask.join();
+				instrumentedFiles.add(instrumentedFile);
+				instrumentedClassCount++;
+
+				for (String message : instrumentedFile.messages) {
+					ConsoleUtils.println(message);
+				}
+
+				for (String skipReason : instrumentedFile.skipReasons) {
+					skippedMethods.put(skipReason, skippedMethods.containsKey(skipReason) ? skippedMethods.get(skipReason) + 1 : 1);
+				}
+
+				// Ids counted for files that couldn't be instrumented are left unused
+				while (methodTable.size() < instrumentedFile.firstMethodId + instrumentedFile.methodCount) {
+					methodTable.add(TraceMethodTable.get(methodTable.size()));
+				}
+
+				String path = getRelativePath(targetPath, instrumentedFile.filepath);
+				String hash = manifest.get(path) != null ? manifest.get(path).getHash() : "";
+
+				try {
+
+					if (instrumentedFile.error != null) {
+						throw instrumentedFile.error;
+					}
+
+					// Save modified (instrumented) version of the original source file
+					FileUtils.writeFileAtomically(instrumentedFile.filepath, instrumentedFile.source);
+
+					for (int i = 0; i < instrumentedFile.methods.size(); i++) {
+						methodTable.set(instrumentedFile.firstMethodId + i, instrumentedFile.methods.get(i));
+					}
+				}
+				catch (Exception e) {
+					ConsoleUtils.println("error while instrumenting files: " + StringUtils.toThrowableString(e));
+
+					// Left uninstrumented, the file is handled again by the next update
+					hash = "";
+				}
+
+				manifest.put(path, hash, instrumentedFile.firstMethodId, instrumentedFile.methodCount);
+
+				// Release the source, once saved
+				instrumentedFile.source = null;
+			}
+
+			pool.shutdown();
+
 			ConsoleUtils.println("instrumentation completed (" + instrumentedClassCount + " classes instrumented)");
+			printTimings(instrumentedFiles, System.nanoTime() - startTime);
+			printSkippedMethods();
 		}
 		catch (Exception e) {
 			ConsoleUtils.println("error while instrumenting files: " + StringUtils.toThrowableString(e));
@@ -277,68 +866,78 @@ public class JavaInstrumenter {
 	 * Instrument a single source file by surrounding body method with
 	 * try/finally statement.
 	 * 
+	 * Runs on a pool thread, with its own parser: the file is only read
+	 * here, its instrumented source being saved once collected.
+	 * 
 	 * @param filepath
 	 *        the file to parse
-	 * @throws Exception
+	 * @param firstMethodId
+	 *        the id of the first method of the file
+	 * @param methodCount
+	 *        the number of methods counted by the first pass
+	 * @return the instrumented file, holding the error raised if any
 	 */
-	private void doInstrumentFile(String filepath) throws Exception {
-		
-		instrumentedClassCount++;
-		final String filename = Paths.get(filepath).getFileName().toString();
+	private InstrumentedFile doInstrumentFile(Path filepath, int firstMethodId, int methodCount) {
 
-		// Retrieve source content
-		String originalContent = FileUtils.readFileAsString(Paths.get(filepath));
-		Document originalSources = new Document(originalContent);
+		long startTime = System.nanoTime();
+		final InstrumentedFile instrumentedFile = new InstrumentedFile(filepath, firstMethodId, methodCount);
+		final String filename = filepath.getFileName().toString();
 
-		ConsoleUtils.println("parsing file " + filename + ".");
+		try {
 
-		// Create a parser
-		ASTParser parser = ASTParser.newParser(AST.JLS4);
-		parser.setSource(originalSources.get().toCharArray());
-		parser.setKind(ASTParser.K_COMPILATION_UNIT);
-		Map<?, ?> options = JavaCore.getOptions();
-		JavaCore.setComplianceOptions(JavaCore.VERSION_1_7, options);
-		parser.setCompilerOptions(options);
-		parser.setResolveBindings(true);
+			// Retrieve source content
+			String originalContent = FileUtils.readFileAsString(filepath);
+			Document originalSources = new Document(originalContent);
 
-		// Parse the source file
-		final CompilationUnit compilationUnit = (CompilationUnit) parser.createAST(null);
+			instrumentedFile.messages.add("parsing file " + filename + ".");
 
-		// Display parsing problems
-		for (IProblem parsingProblem : compilationUnit.getProblems()) {
-			System.out.println(parsingProblem.getMessage());
-		}
+			// Parse the source file
+			final CompilationUnit compilationUnit = parseFile(originalSources.get(), true);
 
-		// Start recording all AST modifications
-		compilationUnit.recordModifications();
+			// Display parsing problems
+			for (IProblem parsingProblem : compilationUnit.getProblems()) {
+				instrumentedFile.messages.add(parsingProblem.getMessage());
+			}
 
-		// Instrument all declared methods (standard and anonymous classes)
-		compilationUnit.accept(new ASTVisitor() {
+			// Start recording all AST modifications
+			compilationUnit.recordModifications();
 
-			// Instrument all methods
-			public boolean visit(MethodDeclaration methodDeclaration) {
+			// Instrument all declared methods (standard and anonymous classes)
+			compilationUnit.accept(new ASTVisitor() {
+
+				// Instrument all methods
+				public boolean visit(MethodDeclaration methodDeclaration) {
 
-				// Skip method interface
-				if (!JavaInstrumenterUtils.isInterfaceMethod(methodDeclaration)) {
-					doInstrumentMethod(compilationUnit, methodDeclaration);
+					// Skip method interface
+					if (!JavaInstrumenterUtils.isInterfaceMethod(methodDeclaration)) {
+						doInstrumentMethod(compilationUnit, methodDeclaration, instrumentedFile);
+					}
+					return true;
 				}
-				return true;
+			});
+
+			// The first pass must have seen the same methods, or ids would overlap
+			if (instrumentedFile.methods.size() != methodCount || methodCount != doCountMethods(compilationUnit)) {
+				throw new RuntimeException("unexpected method count in " + filename + " !");
 			}
-		});
 
-		// Retrieve all source modifications made within the compilation unit
-		TextEdit sourceModifications = compilationUnit.rewrite(originalSources, null);
+			// Retrieve all source modifications made within the compilation unit
+			TextEdit sourceModifications = compilationUnit.rewrite(originalSources, null);
+
+			// Create a new copy of the original sources
+			Document modifiedSources = new Document(originalSources.get());
 
-		// Create a new copy of the original sources
-		Document modifiedSources = new Document(originalSources.get());
+			// And apply all modifications to separate copy of the original sources code
+			sourceModifications.apply(modifiedSources);
+			instrumentedFile.source = modifiedSources.get();
+		}
+		catch (Exception e) {
+			instrumentedFile.error = e;
+		}
 
-		// And apply all modifications to separate copy of the original sources code
-		sourceModifications.apply(modifiedSources);
-		String modifiedSource = modifiedSources.get();
+		instrumentedFile.elapsedTime = System.nanoTime() - startTime;
 
-		// Save modified (instrumented) version of the original source file
-		Files.delete(Paths.get(filepath));
-		FileUtils.writeFile(Paths.get(filepath), modifiedSource);
+		return instrumentedFile;
 	}
 
 	/**
@@ -348,16 +947,17 @@ public class JavaInstrumenter {
 	 * 
 	 * @param compilationUnit
 	 * @param methodDeclaration
+	 * @param instrumentedFile
+	 *        the file the method belongs to, receiving its method table entry
 	 */
 	@SuppressWarnings("unchecked")
-	private void doInstrumentMethod(CompilationUnit compilationUnit, MethodDeclaration methodDeclaration) {
+	private void doInstrumentMethod(CompilationUnit compilationUnit, MethodDeclaration methodDeclaration, InstrumentedFile instrumentedFile) {
 
 		AST ast = compilationUnit.getAST();
 		Block originalBody = methodDeclaration.getBody();
-		String methodName = methodDeclaration.getName().toString();
-		
+
 		// Skip abstract method without body
-		if (!methodName.equals("hashCode") && originalBody != null) {
+		if (isInstrumented(methodDeclaration)) {
 
 			ASTNode constructorInvocation = null;
 
@@ -378,10 +978,13 @@ public class JavaInstrumenter {
 			tryStatement.setBody(ast.newBlock());
 			tryStatement.setFinally(ast.newBlock());
 
-			// Add a Trace enter invocation within the try-statement
-			MethodInvocation traceEnterCode = JavaInstrumenterUtils.createTraceInvocation(compilationUnit, "entering", methodDeclaration);
-			ExpressionStatement expressionStatement = ast.newExpressionStatement(traceEnterCode);
-			tryStatement.getBody().statements().add(expressionStatement);
+			// Assign the method its id in the method table
+			int methodId = instrumentedFile.firstMethodId + instrumentedFile.methods.size();
+			instrumentedFile.methods.add(JavaInstrumenterUtils.getMethodEntry(compilationUnit, methodDeclaration, captureMode));
+
+			// Add a guarded Trace enter invocation within the try-statement
+			IfStatement traceEnterCode = JavaInstrumenterUtils.createTraceStatement(compilationUnit, "enter", methodId, methodDeclaration, captureMode);
+			tryStatement.getBody().statements().add(traceEnterCode);
 
 			// Move all original statements within the try-statement (but after the trace invocation)
 			while (originalBody.statements().size() > 0) {
@@ -389,9 +992,9 @@ public class JavaInstrumenter {
 				tryStatement.getBody().statements().add(statement);
 			}
 
-			// Add a Trace exit invocation within the try-statement
-			MethodInvocation traceExitCode = JavaInstrumenterUtils.createTraceInvocation(compilationUnit, "exiting", methodDeclaration);
-			tryStatement.getFinally().statements().add(ast.newExpressionStatement(traceExitCode));
+			// Add a guarded Trace exit invocation within the finally-statement
+			IfStatement traceExitCode = JavaInstrumenterUtils.createTraceStatement(compilationUnit, "exit", methodId, methodDeclaration, captureMode);
+			tryStatement.getFinally().statements().add(traceExitCode);
 
 			// Restore the constructor invocation as the first body statement
 			if (constructorInvocation != null) {
@@ -401,7 +1004,161 @@ public class JavaInstrumenter {
 			// Apply the new try-statement as the second statement
 			originalBody.statements().add(tryStatement);
 			
-			ConsoleUtils.println("  method: " + methodDeclaration.getName().toString() + " instrumented.");
+			instrumentedFile.messages.add("  method: " + methodDeclaration.getName().toString() + " instrumented.");
+		}
+		else if (originalBody != null) {
+
+			// Keep track of methods left out by the filter
+			String skipReason = filter.getSkipReason(methodDeclaration);
+			instrumentedFile.skipReasons.add(skipReason);
+			instrumentedFile.messages.add("  method: " + methodDeclaration.getName().toString() + " skipped (" + skipReason + ").");
+		}
+	}
+
+	/**
+	 * Count the methods of a file instrumented by doInstrumentFile(), on a
+	 * pool thread, with a lighter parse (no bindings).
+	 * 
+	 * @param filepath
+	 *        the file to parse
+	 * @return the number of methods, 0 if the file can't be read
+	 */
+	private int doCountMethods(Path filepath) {
+
+		try {
+			return doCountMethods(parseFile(FileUtils.readFileAsString(filepath), false));
+		}
+		catch (IOException e) {
+
+			// Reported by the second pass
+			return 0;
+		}
+	}
+
+	/**
+	 * Count the methods of a compilation unit instrumented by doInstrumentMethod().
+	 * 
+	 * @param compilationUnit
+	 * @return the number of methods
+	 */
+	private int doCountMethods(CompilationUnit compilationUnit) {
+
+		final int[] methodCount = new int[1];
+
+		compilationUnit.accept(new ASTVisitor() {
+			public boolean visit(MethodDeclaration methodDeclaration) {
+
+				if (!JavaInstrumenterUtils.isInterfaceMethod(methodDeclaration) && isInstrumented(methodDeclaration)) {
+					methodCount[0]++;
+				}
+				return true;
+			}
+		});
+
+		return methodCount[0];
+	}
+
+	/**
+	 * Check if a method gets trace invocations: all methods with a body selected
+	 * by the filter (by default all but hashCode).
+	 * 
+	 * @param methodDeclaration
+	 */
+	private boolean isInstrumented(MethodDeclaration methodDeclaration) {
+		return methodDeclaration.getBody() != null && filter.getSkipReason(methodDeclaration) == null;
+	}
+
+	/**
+	 * Parse a source file, with a new parser, since parsers can't be shared between threads.
+	 * 
+	 * @param source
+	 *        the file content
+	 * @param resolveBindings
+	 * @return the compilation unit
+	 */
+	private CompilationUnit parseFile(String source, boolean resolveBindings) {
+
+		// Create a parser
+		ASTParser parser = ASTParser.newParser(AST.JLS4);
+		parser.setSource(source.toCharArray());
+		parser.setKind(ASTParser.K_COMPILATION_UNIT);
+		Map<?, ?> options = JavaCore.getOptions();
+		JavaCore.setComplianceOptions(JavaCore.VERSION_1_7, options);
+		parser.setCompilerOptions(options);
+		parser.setResolveBindings(resolveBindings);
+
+		return (CompilationUnit) parser.createAST(null);
+	}
+
+	/**
+	 * Print the time taken by the instrumentation, and by each file
+	 * (slowest first).
+	 * 
+	 * @param instrumentedFiles
+	 * @param elapsedTime
+	 *        wall-clock time of the whole instrumentation (ns)
+	 */
+	private void printTimings(List<InstrumentedFile> instrumentedFiles, long elapsedTime) {
+
+		long totalTime = 0;
+
+		for (InstrumentedFile instrumentedFile : instrumentedFiles) {
+			totalTime += instrumentedFile.elapsedTime;
+		}
+
+		ConsoleUtils.println(String.format("instrumentation time: %.1f s with %d thread(s), %.1f s spent in files (%.1f ms per file on average)", elapsedTime / 1e9, threadCount, totalTime / 1e9, instrumentedFiles.isEmpty() ? 0 : totalTime / 1e6 / instrumentedFiles.size()));
+
+		List<InstrumentedFile> sortedFiles = new ArrayList<>(instrumentedFiles);
+
+		Collections.sort(sortedFiles, new Comparator<InstrumentedFile>() {
+			@Override
+			public int compare(InstrumentedFile file1, InstrumentedFile file2) {
+				return Long.compare(file2.elapsedTime, file1.elapsedTime);
+			}
+		});
+
+		for (InstrumentedFile instrumentedFile : sortedFiles) {
+			ConsoleUtils.println(String.format("  %8.1f ms  %4d methods  %s", instrumentedFile.elapsedTime / 1e6, instrumentedFile.methods.size(), targetPath.relativize(instrumentedFile.filepath)));
+		}
+	}
+
+	/**
+	 * Print the number of methods left out by the filter, by reason.
+	 */
+	private void printSkippedMethods() {
+
+		int skippedCount = 0;
+
+		for (int count : skippedMethods.values()) {
+			skippedCount += count;
+		}
+
+		ConsoleUtils.println(skippedCount + " methods skipped by filter " + filter.getSignature());
+
+		for (Map.Entry<String, Integer> skippedMethod : skippedMethods.entrySet()) {
+			ConsoleUtils.println(String.format("  %6d  %s", skippedMethod.getValue(), skippedMethod.getKey()));
+		}
+	}
+
+	/**
+	 * Result of the instrumentation of a single file.
+	 */
+	private static class InstrumentedFile {
+
+		private Path filepath;
+		private int firstMethodId;
+		private int methodCount;
+		private String source;
+		private List<String[]> methods = new ArrayList<>();
+		private List<String> messages = new ArrayList<>();
+		private List<String> skipReasons = new ArrayList<>();
+		private Exception error;
+		private long elapsedTime;
+
+		private InstrumentedFile(Path filepath, int firstMethodId, int methodCount) {
+			this.filepath = filepath;
+			this.firstMethodId = firstMethodId;
+			this.methodCount = methodCount;
 		}
 	}
 	
@@ -417,11 +1174,41 @@ public class JavaInstrumenter {
 	 * Print how to launch the instrumenter
 	 */
 	private void printUsage() {
-		ConsoleUtils.println("usage: JavaInstrumenter source-folder [target-folder]\n");
+		ConsoleUtils.println("usage: JavaInstrumenter [-capture=mode] [-threads=n] [-incremental] [-filter=file] [-trivial=n] [-profile=file [-budget=percent] [-dictionary=file]] source-folder [target-folder]\n");
 		ConsoleUtils.println("description:");
 		ConsoleUtils.println("   JavaInstrumenter first clone source-folder into a separate folder.");
 		ConsoleUtils.println("   The cloned folder is then scanned and for each function detected,");
 		ConsoleUtils.println("   entry/exit fragments are inserted to write traces while running");
 		ConsoleUtils.println("   instrumented code version..");
+		ConsoleUtils.println("   Each method receives an id, listed in " + TraceMethodTable.DEFAULT_METHOD_FILE);
+		ConsoleUtils.println("   at the root of target-folder (see -Dch.hesge.csim2.methodfile).");
+		ConsoleUtils.println("");
+		ConsoleUtils.println("options:");
+		ConsoleUtils.println("   -capture=mode   argument values passed to traces: none, types, primitives,");
+		ConsoleUtils.println("                   sampled or full (default). At runtime, -Dch.hesge.csim2.capture");
+		ConsoleUtils.println("                   can only restrict this mode.");
+		ConsoleUtils.println("   -threads=n      number of files instrumented in parallel (default 1, 0 for");
+		ConsoleUtils.println("                   one per processor). Sources and method ids are the same");
+		ConsoleUtils.println("                   whatever the number of threads.");
+		ConsoleUtils.println("   -incremental    update an existing target-folder, only instrumenting files");
+		ConsoleUtils.println("                   changed since the previous run, as listed by its");
+		ConsoleUtils.println("                   " + InstrumenterManifest.DEFAULT_MANIFEST_FILE + ". Unchanged files keep their method");
+		ConsoleUtils.println("                   ids. Without manifest (or with another version or capture");
+		ConsoleUtils.println("                   mode), the folder is fully instrumented again.");
+		ConsoleUtils.println("   -filter=file    rules selecting the methods instrumented, one per line:");
+		ConsoleUtils.println("                   include|exclude package|class|method|annotation glob");
+		ConsoleUtils.println("                   (see InstrumenterFilter). By default, all methods but");
+		ConsoleUtils.println("                   hashCode are instrumented.");
+		ConsoleUtils.println("   -trivial=n      skip trivial methods: getters and setters, and methods");
+		ConsoleUtils.println("                   with at most n statements. Skipped methods are listed");
+		ConsoleUtils.println("                   with their reason, and counted at the end.");
+		ConsoleUtils.println("   -profile=file   leave out the methods called too often by a previous");
+		ConsoleUtils.println("                   capture, given its cleaned trace or its call tree");
+		ConsoleUtils.println("                   (see InstrumenterPlan).");
+		ConsoleUtils.println("   -budget=percent maximum share of all calls of a method instrumented");
+		ConsoleUtils.println("                   (default " + DEFAULT_CALL_BUDGET + ").");
+		ConsoleUtils.println("   -dictionary=file trace dictionary of the cleaned trace: methods over the");
+		ConsoleUtils.println("                   budget are kept when they are the last ones carrying");
+		ConsoleUtils.println("                   some of its terms.");
 	}
 }
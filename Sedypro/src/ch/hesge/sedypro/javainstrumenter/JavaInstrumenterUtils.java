@@ -1,15 +1,16 @@
 package ch.hesge.sedypro.javainstrumenter;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.eclipse.jdt.core.dom.AST;
 import org.eclipse.jdt.core.dom.ASTNode;
+import org.eclipse.jdt.core.dom.ArrayCreation;
+import org.eclipse.jdt.core.dom.ArrayInitializer;
 import org.eclipse.jdt.core.dom.ClassInstanceCreation;
 import org.eclipse.jdt.core.dom.CompilationUnit;
 import org.eclipse.jdt.core.dom.Expression;
-import org.eclipse.jdt.core.dom.InfixExpression;
-import org.eclipse.jdt.core.dom.InfixExpression.Operator;
+import org.eclipse.jdt.core.dom.IfStatement;
 import org.eclipse.jdt.core.dom.MethodDeclaration;
 import org.eclipse.jdt.core.dom.MethodInvocation;
 import org.eclipse.jdt.core.dom.Modifier;
@@ -27,6 +28,9 @@ import ch.hesge.sedypro.utils.StringUtils;
  */
 public class JavaInstrumenterUtils {
 
+	// Private constants
+	private static final List<String> PRIMITIVE_TYPES = Arrays.asList("String", "Integer", "Long", "Short", "Byte", "Double", "Float", "Boolean", "Character", "java.lang.String");
+
 	/**
 	 * Return the name of the compilation unit is defining.
 	 * 
@@ -183,89 +187,55 @@ public class JavaInstrumenterUtils {
 	}
 
 	/**
-	 * Return an expression allowing retrieve all argument's values.
+	 * Return an expression allowing retrieve all argument's values,
+	 * as an array of objects formatted later by the TraceLogger.
+	 * 
+	 * In primitives mode, arguments which are neither primitives nor strings
+	 * are replaced by their declared type, so that no reference is kept on them.
 	 * 
 	 * @param declaration
+	 * @param captureMode
 	 * @return an expression.
 	 */
-	private static Expression getArgumentValues(AST ast, MethodDeclaration declaration) {
+	@SuppressWarnings("unchecked")
+	private static Expression getArgumentValues(AST ast, MethodDeclaration declaration, int captureMode) {
 
-		@SuppressWarnings("unchecked")
-		List<SingleVariableDeclaration> parameters = new ArrayList<>((List<SingleVariableDeclaration>) declaration.parameters());
+		ArrayCreation arrayCreation = ast.newArrayCreation();
+		arrayCreation.setType(ast.newArrayType(ast.newSimpleType(ast.newSimpleName("Object"))));
 
-		Expression argValuesExpr = null;
-		
-		if (parameters.size() == 0) {
-			
-			StringLiteral expr = ast.newStringLiteral(); 
-			expr.setLiteralValue("");
-			argValuesExpr = expr;
-		}
-		else {
-			
-			// Retrieve imbricated expression concatenating all arguments		
-			Expression valuesExpr = getArgumentValuesAsExpression2(ast, parameters);
-			
-			// Create ("" + expr) expression, so to cast everything to String
-			InfixExpression expr = ast.newInfixExpression();
-			StringLiteral stringLiteral = ast.newStringLiteral(); 
-			stringLiteral.setLiteralValue("");
-			expr.setLeftOperand(stringLiteral);
-			expr.setOperator(Operator.PLUS);
-			expr.setRightOperand(valuesExpr);
-			argValuesExpr = expr;
+		ArrayInitializer initializer = ast.newArrayInitializer();
+		arrayCreation.setInitializer(initializer);
+
+		for (SingleVariableDeclaration parameter : (List<SingleVariableDeclaration>) declaration.parameters()) {
+
+			if (captureMode == TraceArguments.CAPTURE_PRIMITIVES && !isPrimitiveParameter(parameter)) {
+				StringLiteral typeExpr = ast.newStringLiteral();
+				typeExpr.setLiteralValue(parameter.getType().toString() + StringUtils.repeat("[]", parameter.getExtraDimensions() + (parameter.isVarargs() ? 1 : 0)));
+				initializer.expressions().add(typeExpr);
+			}
+			else {
+				initializer.expressions().add(ast.newSimpleName(parameter.getName().toString()));
+			}
 		}
-		
-		return argValuesExpr;
+
+		return arrayCreation;
 	}
 
 	/**
-	 * Recursively build the imbricated expression describing all arguments values.
+	 * Check if a parameter is declared with a primitive (or boxed primitive) or a string type.
 	 * 
-	 * @param ast
-	 * @param parameters
-	 * @return
+	 * @param parameter
+	 * @return true if its value is cheap to convert to string
 	 */
-	private static Expression getArgumentValuesAsExpression2(AST ast, List<SingleVariableDeclaration> parameters) {
-		
-		Expression expr = null;
-		
-		if (parameters.isEmpty()) {
-			StringLiteral emptyStringExpr = ast.newStringLiteral(); 
-			emptyStringExpr.setLiteralValue("");
-			expr = emptyStringExpr;
-		}
-		else if (parameters.size() == 1) {
-			SingleVariableDeclaration parameter = parameters.get(0);
-			expr = ast.newSimpleName(parameter.getName().toString());
-		}
-		else {
-					
-			SingleVariableDeclaration parameter = parameters.remove(0);
-			
-			Expression expr1 = ast.newSimpleName(parameter.getName().toString());
-			Expression expr2 = getArgumentValuesAsExpression2(ast, parameters);
-			
-			// Create (expr1 + ",") expression
-			InfixExpression infix1 = ast.newInfixExpression();
-			infix1.setLeftOperand(expr1);
-			infix1.setOperator(Operator.PLUS);
-			StringLiteral commaExpr1 = ast.newStringLiteral(); 
-			commaExpr1.setLiteralValue(",");
-			infix1.setRightOperand(commaExpr1);
-			
-			// Create (expr1 + "," + expr2) expression
-			InfixExpression infix2 = ast.newInfixExpression();
-			infix2.setLeftOperand(infix1);
-			infix2.setOperator(Operator.PLUS);
-			infix2.setRightOperand(expr2);
-			
-			expr = infix2;
+	private static boolean isPrimitiveParameter(SingleVariableDeclaration parameter) {
+
+		if (parameter.isVarargs() || parameter.getExtraDimensions() > 0) {
+			return false;
 		}
-		
-		return expr;
+
+		return parameter.getType().isPrimitiveType() || PRIMITIVE_TYPES.contains(parameter.getType().toString());
 	}
-	
+
 	/**
 	 * Retrieve the return type of the method passed in argument.
 	 * 
@@ -277,79 +247,169 @@ public class JavaInstrumenterUtils {
 	}
 
 	/**
-	 * Create a MethodInvocation based on the method specified in argument.
+	 * Retrieve the method-table entry describing the method passed in argument.
 	 * 
 	 * @param compilationUnit
 	 *            the top level unit containing the method
-	 * @param traceType
-	 *            type of trace = "entering" or "exiting"
 	 * @param declaration
 	 *            the method declaration
-	 * @return the method invocation for the class, method passed in argument.
+	 * @param captureMode
+	 *            the argument capture mode (see TraceArguments)
+	 * @return package, classname, method, parameter types, return type and capture mode
 	 */
-	@SuppressWarnings("unchecked")
-	public static MethodInvocation createTraceInvocation(CompilationUnit compilationUnit, String traceType, MethodDeclaration declaration) {
-
-		AST ast = compilationUnit.getAST();
+	public static String[] getMethodEntry(CompilationUnit compilationUnit, MethodDeclaration declaration, int captureMode) {
 
 		boolean isStaticMethod = Modifier.isStatic(declaration.getModifiers()); 
 		
 		// Retrieve the package name
-		StringLiteral packageNameLLiteral = ast.newStringLiteral();
-		packageNameLLiteral.setLiteralValue(JavaInstrumenterUtils.getPackageName(compilationUnit));
+		String packageName = JavaInstrumenterUtils.getPackageName(compilationUnit);
 
 		// Retrieve the classname
-		Expression classNameExpression;
 		String classname = JavaInstrumenterUtils.getClassName(declaration);
 		String superClassName = JavaInstrumenterUtils.getSuperClassName(declaration);
+		String traceClassName;
 		
 		if (isStaticMethod) {			
 
 			// Retrieve the classname for static methods
-			StringLiteral stringLiteral = ast.newStringLiteral(); 
-			stringLiteral.setLiteralValue(classname + "#Object");
-			classNameExpression = stringLiteral;
+			traceClassName = classname + "#Object";
 		}		
 		else {
 			
 			// Concatenate classname and superClassName
-			StringLiteral stringLiteral = ast.newStringLiteral();
-			stringLiteral.setLiteralValue(classname + "#" + superClassName);
-
-			classNameExpression = stringLiteral;
+			traceClassName = classname + "#" + superClassName;
 		}
 		
 		// Retrieve the method name
-		StringLiteral methodNameLiteral = ast.newStringLiteral();
 		String methodName = JavaInstrumenterUtils.getMethodName(declaration);
 		if (methodName.equals(classname)) {
 			methodName = "new";
 		}
-		methodNameLiteral.setLiteralValue(methodName);
 
 		// Retrieve the list of parameter types
-		StringLiteral parameterTypesLiteral = ast.newStringLiteral();
-		String paramTypesExpression = JavaInstrumenterUtils.getParameterTypes(declaration);
-		parameterTypesLiteral.setLiteralValue(paramTypesExpression);
+		String parameterTypes = JavaInstrumenterUtils.getParameterTypes(declaration);
 
-		// Retrieve the list of argument's values
-		Expression argumentValuesExpression = getArgumentValues(ast, declaration);
-		
 		// Retrieve the return type
-		StringLiteral returnTypeLiteral = ast.newStringLiteral();
-		returnTypeLiteral.setLiteralValue(JavaInstrumenterUtils.getReturnType(declaration));
+		String returnType = JavaInstrumenterUtils.getReturnType(declaration);
+
+		return new String[] { packageName, traceClassName, methodName, parameterTypes, returnType, TraceArguments.CAPTURE_NAMES[captureMode] };
+	}
+
+	/**
+	 * Create a MethodInvocation based on the method specified in argument.
+	 * 
+	 * Entering invocations also pass the argument's values, when the method
+	 * has parameters and the capture mode is not none. All names are resolved
+	 * through the method id.
+	 * 
+	 * @param compilationUnit
+	 *            the top level unit containing the method
+	 * @param traceType
+	 *            type of trace = "enter" or "exit"
+	 * @param methodId
+	 *            the id assigned to the method in the method table
+	 * @param declaration
+	 *            the method declaration
+	 * @param captureMode
+	 *            the argument capture mode (see TraceArguments)
+	 * @return the method invocation for the class, method passed in argument.
+	 */
+	@SuppressWarnings("unchecked")
+	public static MethodInvocation createTraceInvocation(CompilationUnit compilationUnit, String traceType, int methodId, MethodDeclaration declaration, int captureMode) {
+
+		AST ast = compilationUnit.getAST();
 
 		// Create a new method invocation with proper parameters
 		MethodInvocation methodInvocation = ast.newMethodInvocation();
 		methodInvocation.setExpression(ast.newName(TraceLogger.TRACECLASS_FULLNAME));
 		methodInvocation.setName(ast.newSimpleName(traceType));
-		methodInvocation.arguments().add(packageNameLLiteral);
-		methodInvocation.arguments().add(classNameExpression);
-		methodInvocation.arguments().add(methodNameLiteral);
-		methodInvocation.arguments().add(parameterTypesLiteral);
-		methodInvocation.arguments().add(returnTypeLiteral);
-		methodInvocation.arguments().add(argumentValuesExpression);
+		methodInvocation.arguments().add(ast.newNumberLiteral(String.valueOf(methodId)));
+
+		// Retrieve the list of argument's values
+		if (traceType.equals("enter") && !declaration.parameters().isEmpty() && captureMode != TraceArguments.CAPTURE_NONE) {
+			methodInvocation.arguments().add(getArgumentValues(ast, declaration, captureMode));
+		}
 
 		return methodInvocation;
 	}
+
+	/**
+	 * Create the statement invoking a trace method, guarded by the static
+	 * final switch of the TraceLogger:
+	 *
+	 * <code>
+	 * 		if (org.hesge.sedypro.TraceLogger.IS_ENABLED) org.hesge.sedypro.TraceLogger.enter(id, new Object[] { ... });
+	 * </code>
+	 *
+	 * Argument values are only built within the guard. When tracing is
+	 * disabled at startup, the JIT folds the guard and removes the whole
+	 * statement.
+	 * 
+	 * @param compilationUnit
+	 *            the top level unit containing the method
+	 * @param traceType
+	 *            type of trace = "enter" or "exit"
+	 * @param methodId
+	 *            the id assigned to the method in the method table
+	 * @param declaration
+	 *            the method declaration
+	 * @param captureMode
+	 *            the argument capture mode (see TraceArguments)
+	 * @return the guarded trace statement
+	 */
+	public static IfStatement createTraceStatement(CompilationUnit compilationUnit, String traceType, int methodId, MethodDeclaration declaration, int captureMode) {
+
+		AST ast = compilationUnit.getAST();
+
+		IfStatement ifStatement = ast.newIfStatement();
+		ifStatement.setExpression(ast.newName(TraceLogger.TRACEGUARD_FULLNAME));
+		ifStatement.setThenStatement(ast.newExpressionStatement(createTraceInvocation(compilationUnit, traceType, methodId, declaration, captureMode)));
+
+		return ifStatement;
+	}
+
+	/**
+	 * Convert a string into a Java string literal, escaping quotes,
+	 * backslashes, control and non-ASCII characters. Control characters are
+	 * escaped in octal, since unicode escapes are translated before lexing
+	 * (an escaped line feed would end the line within the literal).
+	 * 
+	 * @param value
+	 *            the string to convert
+	 * @return the literal, with its surrounding quotes
+	 */
+	public static String toStringLiteral(String value) {
+
+		StringBuilder literal = new StringBuilder(value.length() + 2);
+		literal.append('"');
+
+		for (int i = 0; i < value.length(); i++) {
+
+			char c = value.charAt(i);
+
+			if (c == '"' || c == '\\') {
+				literal.append('\\').append(c);
+			}
+			else if (c == '\n') {
+				literal.append("\\n");
+			}
+			else if (c == '\r') {
+				literal.append("\\r");
+			}
+			else if (c == '\t') {
+				literal.append("\\t");
+			}
+			else if (c < 0x20) {
+				literal.append(String.format("\\%03o", (int) c));
+			}
+			else if (c >= 0x7f) {
+				literal.append(String.format("\\u%04x", (int) c));
+			}
+			else {
+				literal.append(c);
+			}
+		}
+
+		return literal.append('"').toString();
+	}
 }
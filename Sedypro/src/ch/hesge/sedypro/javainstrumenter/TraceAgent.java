@@ -0,0 +1,375 @@
+package ch.hesge.sedypro.javainstrumenter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Paths;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Capture traces without rewriting the sources: trace points are injected
+ * into the bytecode of the classes when they are loaded (see
+ * TraceClassRewriter), so that neither the application nor its jars have to
+ * be rebuilt. Methods register in the TraceMethodTable as their class is
+ * loaded, and the TraceLogger writes the same traces as for instrumented
+ * sources, read by the TraceTextReader and cleaned by the TraceCleaner.
+ *
+ * The agent is started either with -javaagent (the sedypro jar declaring it
+ * as Premain-Class, agent arguments giving the packages traced), or as a
+ * launcher, loading the application classes through its own class loader:
+ *
+ * <code>
+ * 		java -javaagent:sedypro.jar=com.kenai -jar JavaATM-v1.0.jar
+ * 		java -javaagent:sedypro.jar=sample[=ms] -jar JavaATM-v1.0.jar
+ * 		java -cp sedypro:application ch.hesge.sedypro.javainstrumenter.TraceAgent [-capture=mode] [-packages=prefixes] [-filter=file] main-class [arguments]
+ * </code>
+ *
+ * Classes are selected by the package and class rules of a filter (see
+ * InstrumenterRules): the JDK and the tracing runtime are always excluded,
+ * each package prefix is included (com.kenai as include package com.kenai*),
+ * and a filter file may add its own rules.
+ *
+ * With the sample agent argument, no trace point is injected: the agent
+ * starts the TraceStackSampler instead, sampling thread stacks every
+ * interval milliseconds.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceAgent implements ClassFileTransformer {
+
+	// Private attributes
+	private InstrumenterRules rules;
+	private int captureMode;
+
+	// Private constants
+	private static final String SAMPLE_ARGUMENT = "sample";
+	private static final String[] EXCLUDED_RULES = { "exclude package java.*", "exclude package javax.*", "exclude package sun.*", "exclude package com.sun.*", "exclude package jdk.*", "exclude package ch.hesge.sedypro.*", "exclude package org.hesge.sedypro.*" };
+	private static final InstrumenterRules RUNTIME_RULES = addRuntimeRules(new InstrumenterRules());
+
+	// Create a trace logger
+	private static final Logger LOGGER = Logger.getLogger(TraceAgent.class.getName());
+
+	/*
+	 * Available system properties:
+	 *
+	 * <code>
+	 * 		ch.hesge.csim2.agentpackages = comma separated prefixes of the classes traced
+	 * 		                               (default all classes, except the JDK ones)
+	 * 		ch.hesge.csim2.agentfilter   = filter file selecting the classes traced with its
+	 * 		                               package and class rules (see InstrumenterRules)
+	 * 		ch.hesge.csim2.agentcapture  = argument capture mode injected: none, types, primitives,
+	 * 		                               sampled or full (default full), ch.hesge.csim2.capture
+	 * 		                               can only restrict it, as for instrumented sources
+	 * </code>
+	 *
+	 * Classes loaded before the agent starts (agentmain) are not traced.
+	 * The TraceLogger properties apply as usual, ch.hesge.csim2.trace=false
+	 * leaving all classes unchanged.
+	 */
+
+	/**
+	 * Create an agent.
+	 *
+	 * @param rules
+	 *        the rules selecting the classes traced, JDK ones excluded
+	 * @param captureMode
+	 *        the argument capture mode (see TraceArguments)
+	 */
+	public TraceAgent(InstrumenterRules rules, int captureMode) {
+		this.rules = rules;
+		this.captureMode = captureMode;
+	}
+
+	/**
+	 * Agent entry point, when loaded with -javaagent (the agent arguments
+	 * give the packages traced, or sample[=ms] to sample thread stacks).
+	 *
+	 * @param agentArgs
+	 * @param instrumentation
+	 */
+	public static void premain(String agentArgs, Instrumentation instrumentation) {
+
+		if (agentArgs != null && (agentArgs.equals(SAMPLE_ARGUMENT) || agentArgs.startsWith(SAMPLE_ARGUMENT + "="))) {
+
+			try {
+				TraceStackSampler.startAgent(agentArgs.substring(Math.min(agentArgs.length(), SAMPLE_ARGUMENT.length() + 1)));
+			}
+			catch (IOException | NumberFormatException e) {
+				LOGGER.severe("unable to start stack sampler: " + e.toString());
+			}
+
+			return;
+		}
+
+		if (TraceLogger.IS_ENABLED) {
+			instrumentation.addTransformer(create(agentArgs == null || agentArgs.isEmpty() ? null : agentArgs, null, null));
+		}
+	}
+
+	/**
+	 * Agent entry point, when attached to a running JVM.
+	 *
+	 * @param agentArgs
+	 * @param instrumentation
+	 */
+	public static void agentmain(String agentArgs, Instrumentation instrumentation) {
+		premain(agentArgs, instrumentation);
+	}
+
+	/**
+	 * Launcher entry point: load the application through a class loader
+	 * injecting trace points, then start it.
+	 *
+	 * @param args
+	 *        [-capture=mode] [-packages=prefixes] [-filter=file] main-class [arguments]
+	 */
+	public static void main(String[] args) throws Exception {
+
+		int argIndex = 0;
+		String packageList = null;
+		String captureName = null;
+		String filterName = null;
+
+		while (argIndex < args.length && args[argIndex].startsWith("-")) {
+
+			if (args[argIndex].startsWith("-packages=")) {
+				packageList = args[argIndex].substring("-packages=".length());
+			}
+			else if (args[argIndex].startsWith("-capture=")) {
+				captureName = args[argIndex].substring("-capture=".length());
+			}
+			else if (args[argIndex].startsWith("-filter=")) {
+				filterName = args[argIndex].substring("-filter=".length());
+			}
+
+			argIndex++;
+		}
+
+		if (argIndex >= args.length) {
+			System.out.println("usage: TraceAgent [-capture=mode] [-packages=prefixes] [-filter=file] main-class [arguments]");
+			return;
+		}
+
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+
+		if (TraceLogger.IS_ENABLED) {
+			loader = new TraceClassLoader(getClassPath(), loader, create(packageList, captureName, filterName));
+			Thread.currentThread().setContextClassLoader(loader);
+		}
+
+		Class<?> mainClass = Class.forName(args[argIndex], true, loader);
+		Method mainMethod = mainClass.getMethod("main", String[].class);
+		mainMethod.invoke(null, (Object) Arrays.copyOfRange(args, argIndex + 1, args.length));
+	}
+
+	/**
+	 * Create an agent, the system properties giving the settings not specified.
+	 *
+	 * @param packageList
+	 *        comma separated prefixes of the classes traced
+	 * @param captureName
+	 *        the argument capture mode
+	 * @param filterName
+	 *        the filter file selecting the classes traced
+	 */
+	private static TraceAgent create(String packageList, String captureName, String filterName) {
+
+		if (packageList == null) {
+			packageList = System.getProperty("ch.hesge.csim2.agentpackages");
+		}
+
+		if (captureName == null) {
+			captureName = System.getProperty("ch.hesge.csim2.agentcapture", TraceArguments.CAPTURE_NAMES[TraceArguments.CAPTURE_FULL]);
+		}
+
+		if (filterName == null) {
+			filterName = System.getProperty("ch.hesge.csim2.agentfilter");
+		}
+
+		InstrumenterRules rules = new InstrumenterRules();
+
+		if (filterName != null) {
+
+			try {
+				rules = InstrumenterRules.read(Paths.get(filterName));
+			}
+			catch (IOException e) {
+				throw new RuntimeException("unable to read agent filter " + filterName + ": " + e.toString() + " !");
+			}
+		}
+
+		addRuntimeRules(rules);
+
+		if (packageList != null) {
+			for (String tracedPackage : packageList.split("\\s*,\\s*")) {
+				rules.addRule("include package " + tracedPackage + "*");
+			}
+		}
+
+		return new TraceAgent(rules, TraceArguments.parseCaptureMode(captureName));
+	}
+
+	/**
+	 * Add the rules excluding the JDK and the tracing runtime.
+	 *
+	 * @param rules
+	 * @return the rules
+	 */
+	private static InstrumenterRules addRuntimeRules(InstrumenterRules rules) {
+
+		for (String rule : EXCLUDED_RULES) {
+			rules.addRule(rule);
+		}
+
+		return rules;
+	}
+
+	/**
+	 * Return the application class path.
+	 */
+	private static URL[] getClassPath() throws IOException {
+
+		List<URL> urls = new ArrayList<>();
+
+		for (String path : System.getProperty("java.class.path").split(File.pathSeparator)) {
+			if (!path.isEmpty()) {
+				urls.add(new File(path).toURI().toURL());
+			}
+		}
+
+		return urls.toArray(new URL[urls.size()]);
+	}
+
+	/**
+	 * Check if the methods of a class get trace points.
+	 *
+	 * @param className
+	 *        the internal name of the class (with '/' separators)
+	 */
+	public boolean isTraced(String className) {
+		return isIncluded(rules, className);
+	}
+
+	/**
+	 * Check if a class is selected by package and class rules.
+	 *
+	 * @param rules
+	 * @param className
+	 *        the internal name of the class (with '/' separators)
+	 */
+	private static boolean isIncluded(InstrumenterRules rules, String className) {
+		int separatorIndex = className.lastIndexOf('/');
+		return rules.isClassIncluded(separatorIndex < 0 ? "" : className.substring(0, separatorIndex).replace('/', '.'), className.substring(separatorIndex + 1));
+	}
+
+	@Override
+	public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+
+		// Classes of the bootstrap loader can't see the TraceLogger, redefined ones can't get new constants
+		if (loader == null || className == null || classBeingRedefined != null || !isTraced(className)) {
+			return null;
+		}
+
+		try {
+			return new TraceClassRewriter(captureMode, loader).rewrite(classfileBuffer);
+		}
+		catch (Throwable e) {
+			LOGGER.warning("unable to inject trace points into " + className + ": " + e.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Class loader defining the application classes itself (the classes
+	 * traced once rewritten), so that classes not traced still link to the
+	 * traced ones, and delegating the JDK and runtime classes to its parent.
+	 */
+	private static class TraceClassLoader extends URLClassLoader {
+
+		private TraceAgent agent;
+
+		private TraceClassLoader(URL[] urls, ClassLoader parent, TraceAgent agent) {
+			super(urls, parent);
+			this.agent = agent;
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+
+			synchronized (getClassLoadingLock(name)) {
+
+				Class<?> loadedClass = findLoadedClass(name);
+				String className = name.replace('.', '/');
+
+				if (loadedClass == null && isIncluded(RUNTIME_RULES, className)) {
+
+					byte[] classfile = readClass(className + ".class");
+
+					if (classfile != null) {
+
+						byte[] tracedClassfile = agent.transform(this, className, null, null, classfile);
+
+						if (tracedClassfile != null) {
+							classfile = tracedClassfile;
+						}
+
+						loadedClass = defineClass(name, classfile, 0, classfile.length);
+					}
+				}
+
+				if (loadedClass == null) {
+					return super.loadClass(name, resolve);
+				}
+
+				if (resolve) {
+					resolveClass(loadedClass);
+				}
+
+				return loadedClass;
+			}
+		}
+
+		/**
+		 * Read a class file from the class path.
+		 *
+		 * @param resourceName
+		 * @return the class file, or null if not found
+		 */
+		private byte[] readClass(String resourceName) throws ClassNotFoundException {
+
+			URL url = findResource(resourceName);
+
+			if (url == null) {
+				return null;
+			}
+
+			try (InputStream input = url.openStream()) {
+
+				ByteArrayOutputStream classfile = new ByteArrayOutputStream();
+				byte[] buffer = new byte[4096];
+				int length;
+
+				while ((length = input.read(buffer)) > 0) {
+					classfile.write(buffer, 0, length);
+				}
+
+				return classfile.toByteArray();
+			}
+			catch (IOException e) {
+				throw new ClassNotFoundException(resourceName, e);
+			}
+		}
+	}
+}
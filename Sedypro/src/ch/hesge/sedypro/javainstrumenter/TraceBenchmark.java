@@ -0,0 +1,589 @@
+package ch.hesge.sedypro.javainstrumenter;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import ch.hesge.sedypro.utils.ConsoleUtils;
+import ch.hesge.sedypro.utils.StringUtils;
+
+/**
+ * Benchmarks measuring the cost of instrumentation on a single method call.
+ *
+ * Each benchmark runs a number of warmup iterations, then measured
+ * iterations of a fixed number of operations, and reports the average
+ * time per operation (in nanoseconds) with its standard deviation:
+ *
+ * <code>
+ * 		baseline.empty       empty method, not instrumented
+ * 		baseline.tryfinally  empty method with the try/finally block injected, without trace calls
+ * 		instrumented.empty   empty method instrumented with enter(id) / exit(id)
+ * 		instrumented.legacy  empty method instrumented with entering() / exiting() and names
+ * 		capture.[mode]       method with 3 arguments, captured with each runtime capture mode
+ * 		contended.[threads]  instrumented empty method called by several threads at once
+ * 		macro.atm.original   JavaATM workload on the bundled (original) jar
+ * 		macro.atm.instrumented  same workload on the instrumented and compiled JavaATM classes
+ * </code>
+ *
+ * Trace points write to a trace file like any instrumented application,
+ * so that the trace mode, format and shards are chosen through the usual
+ * ch.hesge.csim2.* system properties (one run per configuration, with
+ * -Dch.hesge.csim2.trace=false for instrumented code switched off). The
+ * properties in effect are saved with the results, in JSON.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceBenchmark {
+
+	// Private attributes
+	private Path outputPath;
+	private int warmupCount;
+	private int iterationCount;
+	private int operationCount;
+	private int threadCount;
+	private String filter;
+	private Path atmJarPath;
+	private Path atmClassesPath;
+	private Path atmMethodsPath;
+	private JSONArray results;
+
+	// Prevent the JIT from removing benchmarked calls
+	private static volatile long sink;
+	private static long finallyCount;
+
+	// Private constants
+	private static final String DEFAULT_OUTPUT_FILE = "sedypro-benchmark.json";
+	private static final String DEFAULT_ATM_JAR = "data/javaatm/JavaATM-v1.0.jar";
+	private static final String ATM_PACKAGE = "com.kenai.simulator.atm";
+	private static final String[] BENCHMARK_PROPERTIES = { "trace", "tracemode", "traceformat", "tracebuffer", "traceshards", "tracesegmentsize", "traceblocksize", "tracedictionary", "capturelength", "capturesampling", "samplingbudget" };
+
+	// Methods of the benchmark method table
+	private static final int EMPTY_METHOD_ID = 0;
+	private static final int CAPTURE_METHOD_ID = 1;
+
+	/**
+	 * Startup method
+	 * @param args
+	 */
+	public static void main(String[] args) {
+
+		try {
+			TraceBenchmark benchmark = new TraceBenchmark();
+			benchmark.start(args);
+		}
+		catch (Exception e) {
+			ConsoleUtils.println("exception raised: " + StringUtils.toThrowableString(e));
+		}
+	}
+
+	/**
+	 * Parse the arguments and run all benchmarks.
+	 */
+	public void start(String[] args) throws Exception {
+
+		ConsoleUtils.println("TraceBenchmark");
+		ConsoleUtils.println("Copyright (c) University of Geneva, Switzerland, 2018\n");
+
+		if (StringUtils.hasSwitch(args, "-help", "-h")) {
+			printUsage();
+			return;
+		}
+
+		List<String> params = StringUtils.getParameters(args);
+
+		outputPath = Paths.get(params.isEmpty() ? DEFAULT_OUTPUT_FILE : params.get(0)).toAbsolutePath();
+		warmupCount = Integer.parseInt(StringUtils.getSwitchValue(args, "-warmup", "3"));
+		iterationCount = Integer.parseInt(StringUtils.getSwitchValue(args, "-iterations", "5"));
+		operationCount = Integer.parseInt(StringUtils.getSwitchValue(args, "-operations", "10000"));
+		threadCount = Integer.parseInt(StringUtils.getSwitchValue(args, "-threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+		filter = StringUtils.getSwitchValue(args, "-filter", "");
+		atmJarPath = Paths.get(StringUtils.getSwitchValue(args, "-atmjar", DEFAULT_ATM_JAR));
+
+		String atmClasses = StringUtils.getSwitchValue(args, "-atm", null);
+
+		if (atmClasses != null) {
+			atmClassesPath = Paths.get(atmClasses).toAbsolutePath();
+			atmMethodsPath = Paths.get(StringUtils.getSwitchValue(args, "-atmmethods", atmClassesPath.resolveSibling(TraceMethodTable.DEFAULT_METHOD_FILE).toString()));
+		}
+
+		initializeTrace();
+
+		results = new JSONArray();
+
+		runMicroBenchmarks();
+		runMacroBenchmarks();
+
+		writeResults();
+		ConsoleUtils.println("\nresults written to " + outputPath);
+	}
+
+	/**
+	 * Point the trace logger to a trace file and method table next to the
+	 * results, unless given explicitly, and let it initialize itself.
+	 */
+	private void initializeTrace() throws IOException {
+
+		Path methodPath = outputPath.resolveSibling("sedypro-benchmark-methods.txt");
+
+		List<String> methodLines = new ArrayList<>();
+		methodLines.add(TraceMethodTable.formatMethod(EMPTY_METHOD_ID, new String[] { "ch.hesge.sedypro.javainstrumenter", "TraceBenchmark", "emptyMethod", "int", "int", "full" }));
+		methodLines.add(TraceMethodTable.formatMethod(CAPTURE_METHOD_ID, new String[] { "ch.hesge.sedypro.javainstrumenter", "TraceBenchmark", "argumentsMethod", "int,String,int[]", "int", "full" }));
+		Files.write(methodPath, methodLines, StandardCharsets.UTF_8);
+
+		if (System.getProperty("ch.hesge.csim2.tracefile") == null) {
+			System.setProperty("ch.hesge.csim2.tracefile", outputPath.resolveSibling("sedypro-benchmark.log").toString());
+		}
+
+		if (System.getProperty("ch.hesge.csim2.methodfile") == null) {
+			System.setProperty("ch.hesge.csim2.methodfile", methodPath.toString());
+		}
+
+		// First trace point initializes the trace file
+		instrumentedMethod(0);
+	}
+
+	/**
+	 * Benchmarks on single calls, within this JVM.
+	 */
+	private void runMicroBenchmarks() throws Exception {
+
+		runBenchmark(new Benchmark("baseline.empty", 1) {
+			@Override
+			public long run(int operations) {
+				long result = 0;
+				for (int i = 0; i < operations; i++) {
+					result += emptyMethod(i);
+				}
+				return result;
+			}
+		});
+
+		runBenchmark(new Benchmark("baseline.tryfinally", 1) {
+			@Override
+			public long run(int operations) {
+				long result = 0;
+				for (int i = 0; i < operations; i++) {
+					result += tryFinallyMethod(i);
+				}
+				return result;
+			}
+		});
+
+		runBenchmark(new Benchmark("instrumented.empty", 1) {
+			@Override
+			public long run(int operations) {
+				long result = 0;
+				for (int i = 0; i < operations; i++) {
+					result += instrumentedMethod(i);
+				}
+				return result;
+			}
+		});
+
+		runBenchmark(new Benchmark("instrumented.legacy", 1) {
+			@Override
+			public long run(int operations) {
+				long result = 0;
+				for (int i = 0; i < operations; i++) {
+					result += legacyMethod(i);
+				}
+				return result;
+			}
+		});
+
+		// Same call site, restricted at runtime to each capture mode
+		String initialCapture = TraceArguments.getCaptureName();
+		final int[] values = { 1, 2, 3 };
+
+		for (final String captureName : TraceArguments.CAPTURE_NAMES) {
+
+			TraceArguments.setCaptureMode(captureName);
+
+			runBenchmark(new Benchmark("capture." + captureName, 1) {
+				@Override
+				public long run(int operations) {
+					long result = 0;
+					for (int i = 0; i < operations; i++) {
+						result += argumentsMethod(i, captureName, values);
+					}
+					return result;
+				}
+			});
+		}
+
+		TraceArguments.setCaptureMode(initialCapture);
+
+		// Contention on the trace writer (or ring buffer, or shards)
+		for (int threads = 2; threads <= threadCount; threads *= 2) {
+
+			runBenchmark(new Benchmark("contended." + threads, threads) {
+				@Override
+				public long run(int operations) {
+					long result = 0;
+					for (int i = 0; i < operations; i++) {
+						result += instrumentedMethod(i);
+					}
+					return result;
+				}
+			});
+		}
+	}
+
+	/**
+	 * End-to-end benchmarks on the JavaATM workload, original and instrumented.
+	 */
+	private void runMacroBenchmarks() throws Exception {
+
+		if (Files.exists(atmJarPath)) {
+			runBenchmark(new AtmBenchmark("macro.atm.original", atmJarPath));
+		}
+		else {
+			ConsoleUtils.println("JavaATM jar not found: " + atmJarPath + ", skipping macro.atm.original");
+		}
+
+		if (atmClassesPath == null) {
+			ConsoleUtils.println("no instrumented JavaATM classes (see -atm), skipping macro.atm.instrumented");
+			return;
+		}
+
+		// The instrumented classes come with their own TraceLogger copy, writing its own trace
+		System.setProperty("ch.hesge.csim2.tracefile", outputPath.resolveSibling("sedypro-benchmark-atm.log").toString());
+		System.setProperty("ch.hesge.csim2.methodfile", atmMethodsPath.toString());
+
+		runBenchmark(new AtmBenchmark("macro.atm.instrumented", atmClassesPath));
+	}
+
+	/**
+	 * Run the warmup and measured iterations of a benchmark, and add its score to the results.
+	 *
+	 * @param benchmark
+	 * @throws Exception
+	 */
+	@SuppressWarnings("unchecked")
+	private void runBenchmark(Benchmark benchmark) throws Exception {
+
+		if (!benchmark.name.contains(filter)) {
+			return;
+		}
+
+		for (int i = 0; i < warmupCount; i++) {
+			runIteration(benchmark);
+		}
+
+		double[] scores = new double[iterationCount];
+
+		for (int i = 0; i < iterationCount; i++) {
+			scores[i] = runIteration(benchmark);
+		}
+
+		double mean = 0;
+		double variance = 0;
+
+		for (double score : scores) {
+			mean += score / scores.length;
+		}
+
+		for (double score : scores) {
+			variance += (score - mean) * (score - mean) / Math.max(1, scores.length - 1);
+		}
+
+		ConsoleUtils.println(String.format("%-28s %12.1f +- %8.1f %s", benchmark.name, mean, Math.sqrt(variance), benchmark.unit));
+
+		JSONArray rawScores = new JSONArray();
+
+		for (double score : scores) {
+			rawScores.add(score);
+		}
+
+		JSONObject result = new JSONObject();
+		result.put("benchmark", benchmark.name);
+		result.put("mode", "avgt");
+		result.put("threads", benchmark.threads);
+		result.put("warmupIterations", warmupCount);
+		result.put("measurementIterations", iterationCount);
+		result.put("operations", benchmark.getOperations(operationCount));
+		result.put("score", mean);
+		result.put("scoreError", Math.sqrt(variance));
+		result.put("scoreUnit", benchmark.unit);
+		result.put("rawData", rawScores);
+		results.add(result);
+	}
+
+	/**
+	 * Run a single iteration of a benchmark, all its threads starting together.
+	 *
+	 * @param benchmark
+	 * @return the average time per operation and thread, in the benchmark unit
+	 * @throws Exception
+	 */
+	private double runIteration(final Benchmark benchmark) throws Exception {
+
+		final int operations = benchmark.getOperations(operationCount);
+
+		if (benchmark.threads == 1) {
+			long startTime = System.nanoTime();
+			sink += benchmark.run(operations);
+			return (System.nanoTime() - startTime) / (double) operations / benchmark.scale;
+		}
+
+		final CyclicBarrier barrier = new CyclicBarrier(benchmark.threads + 1);
+		List<Thread> threads = new ArrayList<>();
+
+		for (int i = 0; i < benchmark.threads; i++) {
+
+			Thread thread = new Thread("sedypro-benchmark-" + i) {
+				@Override
+				public void run() {
+					try {
+						barrier.await();
+						sink += benchmark.run(operations);
+						barrier.await();
+					}
+					catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+
+			thread.start();
+			threads.add(thread);
+		}
+
+		barrier.await();
+		long startTime = System.nanoTime();
+		barrier.await();
+		long elapsedTime = System.nanoTime() - startTime;
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		return elapsedTime / (double) operations / benchmark.scale;
+	}
+
+	/**
+	 * Save the results, along with the trace properties they were measured with.
+	 *
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	private void writeResults() throws IOException {
+
+		JSONObject properties = new JSONObject();
+
+		for (String property : BENCHMARK_PROPERTIES) {
+
+			String value = System.getProperty("ch.hesge.csim2." + property);
+
+			if (value != null) {
+				properties.put("ch.hesge.csim2." + property, value);
+			}
+		}
+
+		JSONObject document = new JSONObject();
+		document.put("jvm", System.getProperty("java.vm.name") + " " + System.getProperty("java.version"));
+		document.put("processors", Runtime.getRuntime().availableProcessors());
+		document.put("properties", properties);
+		document.put("results", results);
+
+		Files.write(outputPath, Arrays.asList(document.toJSONString()), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Empty method, as written by developers
+	 */
+	private static int emptyMethod(int value) {
+		return value;
+	}
+
+	/**
+	 * Empty method with the block injected by JavaInstrumenter.doInstrumentMethod,
+	 * but without its trace invocations
+	 */
+	private static int tryFinallyMethod(int value) {
+		try {
+			return value;
+		}
+		finally {
+			finallyCount++;
+		}
+	}
+
+	/**
+	 * Empty method, as instrumented by JavaInstrumenter
+	 */
+	private static int instrumentedMethod(int value) {
+		try {
+			if (TraceLogger.IS_ENABLED) TraceLogger.enter(EMPTY_METHOD_ID);
+			return value;
+		}
+		finally {
+			if (TraceLogger.IS_ENABLED) TraceLogger.exit(EMPTY_METHOD_ID);
+		}
+	}
+
+	/**
+	 * Empty method, as instrumented before the method table
+	 */
+	private static int legacyMethod(int value) {
+		try {
+			TraceLogger.entering("ch.hesge.sedypro.javainstrumenter", "TraceBenchmark", "legacyMethod", "int", "int", "value=" + value);
+			return value;
+		}
+		finally {
+			TraceLogger.exiting("ch.hesge.sedypro.javainstrumenter", "TraceBenchmark", "legacyMethod", "int", "int", "");
+		}
+	}
+
+	/**
+	 * Method with arguments, as instrumented by JavaInstrumenter (full capture)
+	 */
+	private static int argumentsMethod(int value, String name, int[] values) {
+		try {
+			if (TraceLogger.IS_ENABLED) TraceLogger.enter(CAPTURE_METHOD_ID, new Object[] { value, name, values });
+			return value + name.length() + values.length;
+		}
+		finally {
+			if (TraceLogger.IS_ENABLED) TraceLogger.exit(CAPTURE_METHOD_ID);
+		}
+	}
+
+	/**
+	 * Print how to launch the benchmarks
+	 */
+	private void printUsage() {
+		ConsoleUtils.println("usage: TraceBenchmark [options] [result-file]\n");
+		ConsoleUtils.println("description:");
+		ConsoleUtils.println("   Measure the time taken by a call to an instrumented method, compared to");
+		ConsoleUtils.println("   the same method not instrumented, and save results in JSON (default " + DEFAULT_OUTPUT_FILE + ").");
+		ConsoleUtils.println("   Traces are written as configured by -Dch.hesge.csim2.* properties.");
+		ConsoleUtils.println("");
+		ConsoleUtils.println("options:");
+		ConsoleUtils.println("   -warmup=N       warmup iterations per benchmark (default 3)");
+		ConsoleUtils.println("   -iterations=N   measured iterations per benchmark (default 5)");
+		ConsoleUtils.println("   -operations=N   calls per iteration (default 10000)");
+		ConsoleUtils.println("   -threads=N      maximum number of threads in contended benchmarks (default: processors)");
+		ConsoleUtils.println("   -filter=text    only run benchmarks whose name contains text");
+		ConsoleUtils.println("   -atmjar=file    original JavaATM jar (default " + DEFAULT_ATM_JAR + ")");
+		ConsoleUtils.println("   -atm=folder     JavaATM classes, instrumented by JavaInstrumenter and compiled");
+		ConsoleUtils.println("   -atmmethods=file  method table of the instrumented JavaATM (default next to folder)");
+	}
+
+	/**
+	 * A benchmark, run by one or more threads.
+	 */
+	private static abstract class Benchmark {
+
+		protected String name;
+		protected int threads;
+		protected String unit = "ns/op";
+		protected double scale = 1;
+
+		protected Benchmark(String name, int threads) {
+			this.name = name;
+			this.threads = threads;
+		}
+
+		/**
+		 * Return the number of operations per iteration.
+		 */
+		protected int getOperations(int operationCount) {
+			return operationCount;
+		}
+
+		/**
+		 * Run a number of operations.
+		 *
+		 * @return a value depending on all operations
+		 */
+		public abstract long run(int operations) throws Exception;
+	}
+
+	/**
+	 * JavaATM workload: accounts created, checked, credited and debited,
+	 * then cash dispensed. Classes are loaded from a jar or a folder through
+	 * a dedicated class loader, and invoked by reflection.
+	 */
+	private static class AtmBenchmark extends Benchmark {
+
+		private Constructor<?> newAccount;
+		private Method validatePIN;
+		private Method credit;
+		private Method debit;
+		private Method getAvailableBalance;
+		private Method getTotalBalance;
+		private Constructor<?> newCashDispenser;
+		private Method isSufficientCashAvailable;
+		private Method dispenseCash;
+
+		// Accounts per operation
+		private static final int ACCOUNT_COUNT = 100;
+
+		private AtmBenchmark(String name, Path classpath) throws Exception {
+
+			super(name, 1);
+			unit = "us/op";
+			scale = 1000;
+
+			@SuppressWarnings("resource")
+			ClassLoader classLoader = new URLClassLoader(new URL[] { classpath.toUri().toURL() }, TraceBenchmark.class.getClassLoader());
+			Class<?> accountClass = classLoader.loadClass(ATM_PACKAGE + ".Account");
+			Class<?> dispenserClass = classLoader.loadClass(ATM_PACKAGE + ".CashDispenser");
+
+			newAccount = accountClass.getConstructor(int.class, int.class, double.class, double.class);
+			validatePIN = accountClass.getMethod("validatePIN", int.class);
+			credit = accountClass.getMethod("credit", double.class);
+			debit = accountClass.getMethod("debit", double.class);
+			getAvailableBalance = accountClass.getMethod("getAvailableBalance");
+			getTotalBalance = accountClass.getMethod("getTotalBalance");
+			newCashDispenser = dispenserClass.getConstructor();
+			isSufficientCashAvailable = dispenserClass.getMethod("isSufficientCashAvailable", int.class);
+			dispenseCash = dispenserClass.getMethod("dispenseCash", int.class);
+		}
+
+		@Override
+		protected int getOperations(int operationCount) {
+			return Math.max(1, operationCount / ACCOUNT_COUNT);
+		}
+
+		@Override
+		public long run(int operations) throws Exception {
+
+			double result = 0;
+
+			for (int i = 0; i < operations; i++) {
+
+				for (int j = 0; j < ACCOUNT_COUNT; j++) {
+					Object account = newAccount.newInstance(1234 + j, 4321, 100.0, 130.0);
+					validatePIN.invoke(account, 4321);
+					credit.invoke(account, 10.0);
+					debit.invoke(account, 5.0);
+					result += (Double) getAvailableBalance.invoke(account) + (Double) getTotalBalance.invoke(account);
+				}
+
+				Object dispenser = newCashDispenser.newInstance();
+
+				if ((Boolean) isSufficientCashAvailable.invoke(dispenser, 40)) {
+					dispenseCash.invoke(dispenser, 40);
+				}
+			}
+
+			return (long) result;
+		}
+	}
+}
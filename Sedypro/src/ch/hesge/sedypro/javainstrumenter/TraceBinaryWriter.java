@@ -0,0 +1,403 @@
+package ch.hesge.sedypro.javainstrumenter;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Write trace events in a compact binary form.
+ *
+ * Every string (package, class, method, parameters, return type) is written
+ * once into an interned string table. Each distinct method is then defined
+ * once by the ids of its strings, and events only carry varint-encoded
+ * method ids, thread ids and timestamp deltas. Argument values are defined
+ * once as well, through a TraceValueDictionary, and then referenced.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceBinaryWriter extends TraceWriter {
+
+	// Private attributes
+	private OutputStream output;
+	private Map<String, Integer> stringIds;
+	private Map<MethodKey, Integer> methodIds;
+	private MethodKey methodProbe;
+	private int[] tableMethodIds;
+	private TraceValueDictionary dictionary;
+	private long lastTimestamp;
+
+	// Public constants
+	public static final byte[] MAGIC   = { 'S', 'D', 'Y', 'T' };
+	public static final int    VERSION = 4;
+
+	// Record tags
+	public static final int TAG_STRING = 1;
+	public static final int TAG_METHOD = 2;
+	public static final int TAG_ENTER  = 3;
+	public static final int TAG_EXIT   = 4;
+	public static final int TAG_ELIDED = 5;
+	public static final int TAG_RETURN = 6;
+	public static final int TAG_VALUE  = 7;
+	public static final int TAG_HASHED_VALUE = 8;
+
+	// Argument kinds, value ids are written as ARGUMENT_ID + id
+	public static final int ARGUMENT_INLINE = 0;
+	public static final int ARGUMENT_HASHED = 1;
+	public static final int ARGUMENT_ID     = 2;
+
+	// Private constants
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/*
+	 * Binary layout (varint = unsigned LEB128, zigzag = signed LEB128):
+	 *
+	 * <code>
+	 * 		header  = 'SDYT' version varint(epoch milliseconds)
+	 * 		string  = TAG_STRING varint(id) varint(length) utf8-bytes
+	 * 		method  = TAG_METHOD varint(id) varint(package) varint(classname) varint(method) varint(parameters) varint(returntype)
+	 * 		value   = TAG_VALUE varint(id) varint(length) utf8-bytes
+	 * 		hashed  = TAG_HASHED_VALUE long(fingerprint) varint(length) utf8-bytes
+	 * 		event   = (TAG_ENTER | TAG_EXIT) varint(threadId) varint(sequence) zigzag(timestamp - previous timestamp) varint(method) arguments
+	 * 		arguments = varint(ARGUMENT_INLINE) varint(length) utf8-bytes
+	 * 		          | varint(ARGUMENT_HASHED) long(fingerprint)
+	 * 		          | varint(ARGUMENT_ID + value id)
+	 * 		elided  = TAG_ELIDED varint(threadId) varint(sequence) zigzag(timestamp - previous timestamp) varint(method) varint(count)
+	 * 		return  = TAG_RETURN varint(threadId) varint(sequence) zigzag(timestamp - previous timestamp) varint(depth) varint(elapsed)
+	 * </code>
+	 *
+	 * Strings, methods and values are always defined before the first record using them.
+	 * Timestamps are nanoseconds elapsed since the epoch, longs are 8 bytes big-endian.
+	 * Version 1 files had no epoch nor sequence, and timestamps in milliseconds.
+	 * Before version 3, all exits were written as full events. Before version 4,
+	 * arguments were always inline, without kind.
+	 *
+	 * A return record is an exit already paired with its entry by the logger,
+	 * giving only the depth of the call and its elapsed time.
+	 */
+
+	/**
+	 * Create a binary writer.
+	 *
+	 * @param output
+	 * @throws IOException
+	 */
+	public TraceBinaryWriter(OutputStream output) throws IOException {
+
+		this.output = new CountingOutputStream(new BufferedOutputStream(output, BUFFER_SIZE));
+
+		stringIds = new HashMap<>();
+		methodIds = new HashMap<>();
+		methodProbe = new MethodKey();
+		tableMethodIds = new int[0];
+		dictionary = new TraceValueDictionary();
+	}
+
+	/**
+	 * Write the file header.
+	 *
+	 * @param epochMillis
+	 * @throws IOException
+	 */
+	@Override
+	public void writeHeader(long epochMillis) throws IOException {
+		output.write(MAGIC);
+		output.write(VERSION);
+		writeVarLong(epochMillis);
+	}
+
+	/**
+	 * Append a single event to the trace.
+	 *
+	 * @param event
+	 * @throws IOException
+	 */
+	@Override
+	public void write(TraceEvent event) throws IOException {
+
+		// Exit already paired with its entry
+		if (event.getTraceType() == TraceEvent.TRACE_EXIT && event.getDepth() >= 0) {
+			output.write(TAG_RETURN);
+			writeVarLong(event.getThreadId());
+			writeVarLong(event.getSequence());
+			writeVarLong(zigzag(event.getTimestamp() - lastTimestamp));
+			writeVarLong(event.getDepth());
+			writeVarLong(event.getElapsed());
+			lastTimestamp = event.getTimestamp();
+			eventCount++;
+			return;
+		}
+
+		int methodId = getMethodId(event);
+
+		if (event.getTraceType() == TraceEvent.TRACE_ELIDED) {
+			output.write(TAG_ELIDED);
+			writeVarLong(event.getThreadId());
+			writeVarLong(event.getSequence());
+			writeVarLong(zigzag(event.getTimestamp() - lastTimestamp));
+			writeVarLong(methodId);
+			writeVarLong(event.getElidedCount());
+		}
+		else {
+			int arguments = defineArguments(event.getArgumentsValues());
+
+			output.write(event.getTraceType() == TraceEvent.TRACE_ENTER ? TAG_ENTER : TAG_EXIT);
+			writeVarLong(event.getThreadId());
+			writeVarLong(event.getSequence());
+			writeVarLong(zigzag(event.getTimestamp() - lastTimestamp));
+			writeVarLong(methodId);
+			writeArguments(arguments, event.getArgumentsValues());
+		}
+
+		lastTimestamp = event.getTimestamp();
+		eventCount++;
+	}
+
+	/**
+	 * Push all buffered events to the trace file.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void flush() throws IOException {
+		output.flush();
+	}
+
+	/**
+	 * Flush and close the trace file.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		output.close();
+	}
+
+	/**
+	 * Retrieve the id of the event method, defining it on first use.
+	 *
+	 * @param event
+	 * @return the method id
+	 * @throws IOException
+	 */
+	private int getMethodId(TraceEvent event) throws IOException {
+
+		int tableMethodId = event.getMethodId();
+
+		// Events logged by method table id are resolved only once
+		if (tableMethodId >= 0 && tableMethodId < tableMethodIds.length && tableMethodIds[tableMethodId] > 0) {
+			return tableMethodIds[tableMethodId] - 1;
+		}
+
+		methodProbe.stringIds[0] = getStringId(event.getPackageName());
+		methodProbe.stringIds[1] = getStringId(event.getClassName());
+		methodProbe.stringIds[2] = getStringId(event.getMethodName());
+		methodProbe.stringIds[3] = getStringId(event.getParameterTypes());
+		methodProbe.stringIds[4] = getStringId(event.getReturnType());
+
+		Integer methodId = methodIds.get(methodProbe);
+
+		// Define the method, if first occurrence
+		if (methodId == null) {
+
+			methodId = methodIds.size();
+			methodIds.put(methodProbe.copy(), methodId);
+
+			output.write(TAG_METHOD);
+			writeVarLong(methodId);
+
+			for (int stringId : methodProbe.stringIds) {
+				writeVarLong(stringId);
+			}
+		}
+
+		if (tableMethodId >= 0) {
+
+			if (tableMethodId >= tableMethodIds.length) {
+				tableMethodIds = Arrays.copyOf(tableMethodIds, Math.max(tableMethodId + 1, tableMethodIds.length * 2));
+			}
+
+			tableMethodIds[tableMethodId] = methodId + 1;
+		}
+
+		return methodId;
+	}
+
+	/**
+	 * Retrieve the id of a string, adding it to the string table on first use.
+	 *
+	 * @param value
+	 * @return the string id
+	 * @throws IOException
+	 */
+	private int getStringId(String value) throws IOException {
+
+		Integer stringId = stringIds.get(value);
+
+		// Define the string, if first occurrence
+		if (stringId == null) {
+
+			stringId = stringIds.size();
+			stringIds.put(value, stringId);
+
+			output.write(TAG_STRING);
+			writeVarLong(stringId);
+			writeBytes(value.replace("class ", ""));
+		}
+
+		return stringId;
+	}
+
+	/**
+	 * Look the arguments of an event up in the value dictionary,
+	 * defining the value on first occurrence.
+	 *
+	 * @param value
+	 * @return how the arguments are written (see TraceValueDictionary.intern)
+	 * @throws IOException
+	 */
+	private int defineArguments(String value) throws IOException {
+
+		int result = dictionary.intern(value);
+
+		if (result == TraceValueDictionary.VALUE_NEW_ID) {
+			output.write(TAG_VALUE);
+			writeVarLong(dictionary.getId());
+			writeBytes(value);
+		}
+		else if (result == TraceValueDictionary.VALUE_NEW_FINGERPRINT) {
+			output.write(TAG_HASHED_VALUE);
+			writeLong(dictionary.getFingerprint());
+			writeBytes(value);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Write the arguments of an event, inline or as a reference.
+	 *
+	 * @param result
+	 *        the result of defineArguments()
+	 * @param value
+	 * @throws IOException
+	 */
+	private void writeArguments(int result, String value) throws IOException {
+
+		if (result == TraceValueDictionary.VALUE_ID || result == TraceValueDictionary.VALUE_NEW_ID) {
+			writeVarLong(ARGUMENT_ID + dictionary.getId());
+		}
+		else if (result == TraceValueDictionary.VALUE_FINGERPRINT || result == TraceValueDictionary.VALUE_NEW_FINGERPRINT) {
+			writeVarLong(ARGUMENT_HASHED);
+			writeLong(dictionary.getFingerprint());
+		}
+		else {
+			writeVarLong(ARGUMENT_INLINE);
+			writeBytes(value);
+		}
+	}
+
+	/**
+	 * Write a length-prefixed UTF-8 string.
+	 *
+	 * @param value
+	 * @throws IOException
+	 */
+	private void writeBytes(String value) throws IOException {
+		byte[] bytes = value.getBytes(UTF8);
+		writeVarLong(bytes.length);
+		output.write(bytes);
+	}
+
+	/**
+	 * Write a long on 8 bytes, big-endian.
+	 *
+	 * @param value
+	 * @throws IOException
+	 */
+	private void writeLong(long value) throws IOException {
+
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			output.write((int) (value >>> shift));
+		}
+	}
+
+	/**
+	 * Write an unsigned value using 7 bits per byte.
+	 *
+	 * @param value
+	 * @throws IOException
+	 */
+	private void writeVarLong(long value) throws IOException {
+
+		while ((value & ~0x7FL) != 0) {
+			output.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+
+		output.write((int) value);
+	}
+
+	/**
+	 * Map signed values to unsigned ones, so that small negative deltas stay small.
+	 *
+	 * @param value
+	 * @return the zigzag encoded value
+	 */
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	/**
+	 * Key identifying a method by the ids of its strings.
+	 */
+	private static class MethodKey {
+
+		private int[] stringIds = new int[5];
+
+		private MethodKey copy() {
+			MethodKey key = new MethodKey();
+			key.stringIds = stringIds.clone();
+			return key;
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(stringIds);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof MethodKey && Arrays.equals(stringIds, ((MethodKey) other).stringIds);
+		}
+	}
+
+	/**
+	 * Stream counting the bytes written through it.
+	 */
+	private class CountingOutputStream extends FilterOutputStream {
+
+		private CountingOutputStream(OutputStream output) {
+			super(output);
+		}
+
+		@Override
+		public void write(int value) throws IOException {
+			out.write(value);
+			byteCount++;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			out.write(bytes, offset, length);
+			byteCount += length;
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package ch.hesge.sedypro.javainstrumenter;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Write trace events into independently compressed blocks.
+ *
+ * Events are first encoded (text or binary) into an uncompressed block.
+ * Once the block reaches blockSize bytes, it is deflated and appended to
+ * the trace file. Each block is a self-contained trace starting with its
+ * own header (and binary string table), so that blocks can be inflated and
+ * decoded in parallel, or skipped.
+ *
+ * A side index (trace.log.index) gives, for each block, its offset in the
+ * file, the range of its event timestamps and the number of events before
+ * it. Events of several threads are not written in timestamp order, so
+ * that a block may start before the previous one ends: readers select the
+ * blocks whose range overlaps the time range they look for.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceBlockWriter extends TraceWriter {
+
+	// Private attributes
+	private DataOutputStream output;
+	private Writer indexWriter;
+	private boolean isBinary;
+	private int blockSize;
+	private long epochMillis;
+	private Deflater deflater;
+	private BlockBuffer blockBuffer;
+	private byte[] compressedBytes;
+	private TraceWriter encoder;
+	private long fileOffset;
+	private long blockMinTimestamp;
+	private long blockMaxTimestamp;
+	private long blockEventCount;
+
+	// Public constants
+	public static final byte[] MAGIC   = { 'S', 'D', 'Y', 'Z' };
+	public static final int    VERSION = 1;
+	public static final String INDEX_EXTENSION = ".index";
+	public static final String INDEX_HEADER = "# BLOCKS";
+	public static final int    MIN_BLOCK_SIZE = 64 * 1024;
+	public static final int    MAX_BLOCK_SIZE = 1024 * 1024;
+
+	// Private constants
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/*
+	 * Compressed file layout:
+	 *
+	 * <code>
+	 * 		header = 'SDYZ' version
+	 * 		block  = int(compressed length) int(uncompressed length) deflated-bytes
+	 * </code>
+	 *
+	 * Index layout (one line per block):
+	 *
+	 * <code>
+	 * 		# BLOCKS epoch-milliseconds
+	 * 		offset compressed-length uncompressed-length min-timestamp max-timestamp first-event
+	 * </code>
+	 *
+	 * Timestamps are nanoseconds since the epoch, events are numbered from 0.
+	 */
+
+	/**
+	 * Create a block writer.
+	 *
+	 * @param tracePath
+	 *        the compressed trace file, the index is written next to it
+	 * @param isBinary
+	 *        true to encode blocks in binary, false in text
+	 * @param blockSize
+	 *        uncompressed size of a block, in bytes
+	 * @throws IOException
+	 */
+	public TraceBlockWriter(Path tracePath, boolean isBinary, int blockSize) throws IOException {
+
+		this.isBinary = isBinary;
+		this.blockSize = Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, blockSize));
+
+		output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tracePath), BUFFER_SIZE));
+		indexWriter = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(getIndexPath(tracePath)), UTF8));
+
+		deflater = new Deflater(Deflater.BEST_SPEED);
+		blockBuffer = new BlockBuffer(this.blockSize + BUFFER_SIZE);
+		compressedBytes = new byte[this.blockSize];
+	}
+
+	/**
+	 * Return the index path of a compressed trace.
+	 *
+	 * @param tracePath
+	 * @return the index path
+	 */
+	public static Path getIndexPath(Path tracePath) {
+		return tracePath.resolveSibling(tracePath.getFileName() + INDEX_EXTENSION);
+	}
+
+	/**
+	 * Write the file and index headers.
+	 *
+	 * @param epochMillis
+	 * @throws IOException
+	 */
+	@Override
+	public void writeHeader(long epochMillis) throws IOException {
+
+		this.epochMillis = epochMillis;
+
+		output.write(MAGIC);
+		output.write(VERSION);
+		fileOffset = MAGIC.length + 1;
+		byteCount = fileOffset;
+
+		indexWriter.write(INDEX_HEADER + " " + epochMillis + "\n");
+	}
+
+	/**
+	 * Append a single event to the current block, compressing
+	 * the block once full.
+	 *
+	 * @param event
+	 * @throws IOException
+	 */
+	@Override
+	public void write(TraceEvent event) throws IOException {
+
+		// Start a new block, with its own encoder
+		if (encoder == null) {
+			encoder = isBinary ? new TraceBinaryWriter(blockBuffer) : new TraceTextWriter(blockBuffer);
+			encoder.writeHeader(epochMillis);
+			blockMinTimestamp = event.getTimestamp();
+			blockMaxTimestamp = event.getTimestamp();
+			blockEventCount = eventCount;
+		}
+
+		blockMinTimestamp = Math.min(blockMinTimestamp, event.getTimestamp());
+		blockMaxTimestamp = Math.max(blockMaxTimestamp, event.getTimestamp());
+
+		encoder.write(event);
+		encoder.flush();
+		eventCount++;
+
+		if (blockBuffer.size() >= blockSize) {
+			writeBlock();
+		}
+	}
+
+	/**
+	 * Push all completed blocks to the trace file. The current
+	 * block is only written once full, or when the trace is closed.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void flush() throws IOException {
+		output.flush();
+		indexWriter.flush();
+	}
+
+	/**
+	 * Compress the last block and close the trace file and its index.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (encoder != null) {
+			writeBlock();
+		}
+
+		output.close();
+		indexWriter.close();
+		deflater.end();
+	}
+
+	/**
+	 * Deflate the current block, append it to the file and index it.
+	 *
+	 * @throws IOException
+	 */
+	private void writeBlock() throws IOException {
+
+		deflater.reset();
+		deflater.setInput(blockBuffer.getBytes(), 0, blockBuffer.size());
+		deflater.finish();
+
+		int compressedLength = 0;
+
+		while (!deflater.finished()) {
+
+			if (compressedLength == compressedBytes.length) {
+				compressedBytes = Arrays.copyOf(compressedBytes, compressedBytes.length * 2);
+			}
+
+			compressedLength += deflater.deflate(compressedBytes, compressedLength, compressedBytes.length - compressedLength);
+		}
+
+		output.writeInt(compressedLength);
+		output.writeInt(blockBuffer.size());
+		output.write(compressedBytes, 0, compressedLength);
+
+		indexWriter.write(fileOffset + " " + compressedLength + " " + blockBuffer.size() + " " + blockMinTimestamp + " " + blockMaxTimestamp + " " + blockEventCount + "\n");
+
+		fileOffset += 8 + compressedLength;
+		byteCount = fileOffset;
+		blockBuffer.reset();
+		encoder = null;
+	}
+
+	/**
+	 * Buffer receiving the uncompressed bytes of a block.
+	 */
+	private static class BlockBuffer extends ByteArrayOutputStream {
+
+		private BlockBuffer(int size) {
+			super(size);
+		}
+
+		private byte[] getBytes() {
+			return buf;
+		}
+	}
+}
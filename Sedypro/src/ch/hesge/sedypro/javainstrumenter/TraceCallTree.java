@@ -0,0 +1,249 @@
+package ch.hesge.sedypro.javainstrumenter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Calling context tree aggregating the calls of a single thread.
+ *
+ * Each node stands for a call path, from the thread root down to a method,
+ * and holds the number of calls along this path, with their total and
+ * maximum elapsed time. Nodes are only updated by the thread owning the tree,
+ * without any lock. Each time the thread gets back to its root, its tree is
+ * merged into a global tree and restarts empty, so that only threads with
+ * calls in progress hold a tree. The global tree and the trees still in
+ * progress are merged when the application stops, and written one node per
+ * line, children after their parent:
+ *
+ * <code>
+ * 		# CALLTREE epoch-milliseconds
+ * 		depth count total self max package classname     method(parameters) AS returntype
+ *
+ * 		Exemple:
+ * 		0 1 38319914 3112501 38319914 demo Nest#Object     main(String[] args) AS void
+ * 		1 2 9260131 1022418 8356566 demo Nest#Object     fib(int n) AS int
+ * </code>
+ *
+ * Times are nanoseconds, self time excludes the time spent in children.
+ * Calls still in progress when the tree is written are not counted.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceCallTree {
+
+	// Private attributes
+	private Node root;
+	private Node[] callPath;
+	private boolean isActive;
+
+	// Public constants
+	public static final String TREE_HEADER = "# CALLTREE";
+
+	// Private constants
+	private static final int INITIAL_DEPTH = 64;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String NODE_FORMAT = "%1$s %2$s %3$s %4$s %5$s %6$s %7$s     %8$s(%9$s) AS %10$s%n";
+
+	// Calls of all threads back to their root, and trees with calls in progress
+	private static final Node MERGED_ROOT = new Node(-1);
+	private static final Set<TraceCallTree> ACTIVE_TREES = Collections.newSetFromMap(new IdentityHashMap<TraceCallTree, Boolean>());
+
+	/**
+	 * Create the tree of the current thread.
+	 */
+	public TraceCallTree() {
+		root = new Node(-1);
+		callPath = new Node[INITIAL_DEPTH];
+	}
+
+	/**
+	 * Move down to the node of a method entry.
+	 *
+	 * @param frame
+	 *        position of the call in the thread shadow stack
+	 * @param methodId
+	 */
+	public void enter(int frame, int methodId) {
+
+		// First call since the last merge, register the tree
+		if (!isActive) {
+
+			synchronized (MERGED_ROOT) {
+				ACTIVE_TREES.add(this);
+			}
+
+			isActive = true;
+		}
+
+		if (frame == callPath.length) {
+			callPath = Arrays.copyOf(callPath, frame * 2);
+		}
+
+		Node parent = frame == 0 ? root : callPath[frame - 1];
+		callPath[frame] = parent.getChild(methodId);
+	}
+
+	/**
+	 * Count a method exit on the node of its entry.
+	 *
+	 * @param frame
+	 *        position of the call in the thread shadow stack
+	 * @param elapsed
+	 *        elapsed time of the call (ns)
+	 */
+	public void exit(int frame, long elapsed) {
+		callPath[frame].add(1, elapsed, elapsed);
+	}
+
+	/**
+	 * Merge the tree into the global one, once the thread is back to its root,
+	 * and restart with an empty tree.
+	 */
+	public void fold() {
+
+		synchronized (MERGED_ROOT) {
+			MERGED_ROOT.merge(root);
+			ACTIVE_TREES.remove(this);
+		}
+
+		root = new Node(-1);
+		callPath = new Node[INITIAL_DEPTH];
+		isActive = false;
+	}
+
+	/**
+	 * Merge the trees of all threads and write them into a tree file.
+	 *
+	 * @param filepath
+	 * @param epochMillis
+	 * @throws IOException
+	 */
+	public static void write(Path filepath, long epochMillis) throws IOException {
+
+		Node mergedRoot = new Node(-1);
+
+		synchronized (MERGED_ROOT) {
+
+			mergedRoot.merge(MERGED_ROOT);
+
+			for (TraceCallTree threadTree : ACTIVE_TREES) {
+				mergedRoot.merge(threadTree.root);
+			}
+		}
+
+		try (Writer writer = Files.newBufferedWriter(filepath, UTF8)) {
+
+			writer.write(TREE_HEADER + " " + epochMillis + "\n");
+
+			for (int i = 0; i < mergedRoot.childCount; i++) {
+				writeNode(writer, mergedRoot.children[i], 0);
+			}
+		}
+	}
+
+	/**
+	 * Write a node, then all its children.
+	 *
+	 * @param writer
+	 * @param node
+	 * @param depth
+	 * @throws IOException
+	 */
+	private static void writeNode(Writer writer, Node node, int depth) throws IOException {
+
+		long childrenTime = 0;
+
+		for (int i = 0; i < node.childCount; i++) {
+			childrenTime += node.children[i].totalTime;
+		}
+
+		String[] method = TraceMethodTable.get(node.methodId);
+		String classname = method[TraceMethodTable.CLASSNAME].replace("class ", "");
+		long selfTime = Math.max(0, node.totalTime - childrenTime);
+
+		writer.write(String.format(NODE_FORMAT, depth, node.callCount, node.totalTime, selfTime, node.maxTime, method[TraceMethodTable.PACKAGE], classname, method[TraceMethodTable.METHOD], method[TraceMethodTable.PARAMETERS], method[TraceMethodTable.RETURNTYPE]));
+
+		for (int i = 0; i < node.childCount; i++) {
+			writeNode(writer, node.children[i], depth + 1);
+		}
+	}
+
+	/**
+	 * A single call path.
+	 */
+	private static class Node {
+
+		private int methodId;
+		private long callCount;
+		private long totalTime;
+		private long maxTime;
+		private Node[] children;
+		private int childCount;
+		private Node lastChild;
+
+		private Node(int methodId) {
+			this.methodId = methodId;
+			this.children = new Node[0];
+		}
+
+		/**
+		 * Retrieve the child of a method, creating it on first call.
+		 */
+		private Node getChild(int methodId) {
+
+			// Loops usually call the same method again
+			if (lastChild != null && lastChild.methodId == methodId) {
+				return lastChild;
+			}
+
+			for (int i = 0; i < childCount; i++) {
+				if (children[i].methodId == methodId) {
+					lastChild = children[i];
+					return lastChild;
+				}
+			}
+
+			if (childCount == children.length) {
+				children = Arrays.copyOf(children, Math.max(4, childCount * 2));
+			}
+
+			lastChild = new Node(methodId);
+			children[childCount++] = lastChild;
+
+			return lastChild;
+		}
+
+		private void add(long calls, long elapsed, long maxElapsed) {
+			callCount += calls;
+			totalTime += elapsed;
+			maxTime = Math.max(maxTime, maxElapsed);
+		}
+
+		/**
+		 * Add the counters of another tree, node by node. The other
+		 * thread may still be running, so its children may be incomplete.
+		 */
+		private void merge(Node other) {
+
+			add(other.callCount, other.totalTime, other.maxTime);
+
+			Node[] otherChildren = other.children;
+			int otherCount = Math.min(other.childCount, otherChildren.length);
+
+			for (int i = 0; i < otherCount; i++) {
+				if (otherChildren[i] != null) {
+					getChild(otherChildren[i].methodId).merge(otherChildren[i]);
+				}
+			}
+		}
+	}
+}
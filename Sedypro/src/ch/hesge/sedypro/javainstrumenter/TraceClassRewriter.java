@@ -0,0 +1,1900 @@
+package ch.hesge.sedypro.javainstrumenter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Class file rewriter injecting trace points into the bytecode of a class,
+ * as the JavaInstrumenter does into its sources:
+ *
+ * <code>
+ * 		TraceLogger.enter(id, new Object[] { arguments });
+ * 		try {
+ * 			original body (each return preceded by TraceLogger.exit(id))
+ * 		}
+ * 		catch (any) {
+ * 			TraceLogger.exit(id);
+ * 			throw;
+ * 		}
+ * </code>
+ *
+ * Methods get their id from the TraceMethodTable, when the class is loaded.
+ * Instructions are copied as is, branches, switches, exception ranges, stack
+ * map frames and debug tables being moved by the code inserted. In
+ * constructors, trace points start after the super() (or this()) invocation,
+ * as within instrumented sources.
+ *
+ * Interfaces, abstract, native, bridge and synthetic methods, class
+ * initializers and hashCode are left unchanged, as are the methods not
+ * declared in sources (default and anonymous class constructors, values()
+ * and valueOf() of enums) and methods whose branches wouldn't fit in 16-bit offsets once rewritten.
+ *
+ * Nested and anonymous classes are named from the InnerClasses and
+ * EnclosingMethod attributes of the class and of its enclosing classes,
+ * read through the class loader. Parameters added by the compiler are
+ * found from the MethodParameters attribute, or else from the synthetic
+ * fields they are stored into, without relying on debug information.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceClassRewriter {
+
+	// Private attributes
+	private int captureMode;
+	private ClassLoader loader;
+	private int majorVersion;
+	private ClassHeader header;
+	private Set<String> syntheticFields;
+	private List<Constant> constants;
+	private Map<String, Integer> constantIndexes;
+
+	// Private constants
+	private static final String TRACECLASS_INTERNALNAME = "ch/hesge/sedypro/javainstrumenter/TraceLogger";
+	private static final int CLASSFILE_MAGIC = 0xCAFEBABE;
+	private static final int STACKMAP_VERSION = 50;
+	private static final int MAX_CODE_LENGTH = 65535;
+
+	private static final int ACC_STATIC    = 0x0008;
+	private static final int ACC_BRIDGE    = 0x0040;
+	private static final int ACC_NATIVE    = 0x0100;
+	private static final int ACC_INTERFACE = 0x0200;
+	private static final int ACC_ABSTRACT  = 0x0400;
+	private static final int ACC_SYNTHETIC = 0x1000;
+	private static final int ACC_ENUM      = 0x4000;
+	private static final int ACC_MANDATED  = 0x8000;
+	private static final int ACC_MODULE    = 0x8000;
+
+	private static final int CONSTANT_UTF8    = 1;
+	private static final int CONSTANT_INTEGER = 3;
+	private static final int CONSTANT_LONG    = 5;
+	private static final int CONSTANT_DOUBLE  = 6;
+	private static final int CONSTANT_CLASS   = 7;
+	private static final int CONSTANT_STRING  = 8;
+	private static final int CONSTANT_METHOD  = 10;
+	private static final int CONSTANT_NAMEANDTYPE = 12;
+
+	private static final int OP_ICONST_0     = 0x03;
+	private static final int OP_BIPUSH       = 0x10;
+	private static final int OP_SIPUSH       = 0x11;
+	private static final int OP_LDC          = 0x12;
+	private static final int OP_LDC_W        = 0x13;
+	private static final int OP_ILOAD        = 0x15;
+	private static final int OP_LLOAD        = 0x16;
+	private static final int OP_FLOAD        = 0x17;
+	private static final int OP_DLOAD        = 0x18;
+	private static final int OP_ALOAD        = 0x19;
+	private static final int OP_ILOAD_0      = 0x1a;
+	private static final int OP_ALOAD_3      = 0x2d;
+	private static final int OP_AASTORE      = 0x53;
+	private static final int OP_DUP          = 0x59;
+	private static final int OP_IFEQ         = 0x99;
+	private static final int OP_JSR          = 0xa8;
+	private static final int OP_TABLESWITCH  = 0xaa;
+	private static final int OP_LOOKUPSWITCH = 0xab;
+	private static final int OP_IRETURN      = 0xac;
+	private static final int OP_RETURN       = 0xb1;
+	private static final int OP_PUTFIELD     = 0xb5;
+	private static final int OP_INVOKESPECIAL = 0xb7;
+	private static final int OP_INVOKESTATIC = 0xb8;
+	private static final int OP_NEW          = 0xbb;
+	private static final int OP_ANEWARRAY    = 0xbd;
+	private static final int OP_ATHROW       = 0xbf;
+	private static final int OP_WIDE         = 0xc4;
+	private static final int OP_IFNULL       = 0xc6;
+	private static final int OP_IFNONNULL    = 0xc7;
+	private static final int OP_GOTO_W       = 0xc8;
+	private static final int OP_JSR_W        = 0xc9;
+
+	// Length of the opcodes without operand, or with fixed operands (0 = variable length)
+	private static final int[] OPCODE_LENGTHS = new int[256];
+
+	// Verification types followed by a constant pool index or an offset
+	private static final int ITEM_OBJECT        = 7;
+	private static final int ITEM_UNINITIALIZED = 8;
+
+	// Stack map frame kinds
+	private static final int FRAME_SAME   = 0;
+	private static final int FRAME_SAME1  = 1;
+	private static final int FRAME_CHOP   = 2;
+	private static final int FRAME_APPEND = 3;
+	private static final int FRAME_FULL   = 4;
+
+	static {
+
+		Arrays.fill(OPCODE_LENGTHS, 1);
+
+		for (int opcode : new int[] { 0x10, 0x12, 0x15, 0x16, 0x17, 0x18, 0x19, 0x36, 0x37, 0x38, 0x39, 0x3a, 0xa9, 0xbc }) {
+			OPCODE_LENGTHS[opcode] = 2;
+		}
+
+		for (int opcode : new int[] { 0x11, 0x13, 0x14, 0x84, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xbb, 0xbd, 0xc0, 0xc1, 0xc6, 0xc7 }) {
+			OPCODE_LENGTHS[opcode] = 3;
+		}
+
+		for (int opcode = OP_IFEQ; opcode <= OP_JSR; opcode++) {
+			OPCODE_LENGTHS[opcode] = 3;
+		}
+
+		OPCODE_LENGTHS[0xc5] = 4;
+		OPCODE_LENGTHS[0xb9] = 5;
+		OPCODE_LENGTHS[0xba] = 5;
+		OPCODE_LENGTHS[OP_GOTO_W] = 5;
+		OPCODE_LENGTHS[OP_JSR_W] = 5;
+		OPCODE_LENGTHS[OP_TABLESWITCH] = 0;
+		OPCODE_LENGTHS[OP_LOOKUPSWITCH] = 0;
+		OPCODE_LENGTHS[OP_WIDE] = 0;
+	}
+
+	/**
+	 * Create a rewriter, for a single class.
+	 *
+	 * @param captureMode
+	 *        the argument capture mode (see TraceArguments)
+	 * @param loader
+	 *        the loader of the class, reading its enclosing classes (may be null)
+	 */
+	public TraceClassRewriter(int captureMode, ClassLoader loader) {
+		this.captureMode = captureMode;
+		this.loader = loader;
+		this.constants = new ArrayList<>();
+		this.constantIndexes = new HashMap<>();
+	}
+
+	/**
+	 * Inject trace points into all methods of a class.
+	 *
+	 * @param classfile
+	 *        the original class file
+	 * @return the rewritten class file, or null if the class is left unchanged
+	 * @throws IOException
+	 *         if the class file can't be parsed or rewritten
+	 */
+	public byte[] rewrite(byte[] classfile) throws IOException {
+
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(classfile));
+
+		if (input.readInt() != CLASSFILE_MAGIC) {
+			throw new IOException("not a class file");
+		}
+
+		int minorVersion = input.readUnsignedShort();
+		majorVersion = input.readUnsignedShort();
+
+		readConstants(input);
+
+		int accessFlags = input.readUnsignedShort();
+		int thisClass = input.readUnsignedShort();
+		int superClass = input.readUnsignedShort();
+
+		// Interfaces and annotations have no method instrumented by the JavaInstrumenter either
+		if ((accessFlags & (ACC_INTERFACE | ACC_MODULE)) != 0) {
+			return null;
+		}
+
+		int[] interfaces = new int[input.readUnsignedShort()];
+
+		for (int i = 0; i < interfaces.length; i++) {
+			interfaces[i] = input.readUnsignedShort();
+		}
+
+		List<byte[]> fields = new ArrayList<>();
+		int fieldCount = input.readUnsignedShort();
+
+		for (int i = 0; i < fieldCount; i++) {
+			fields.add(readMember(input));
+		}
+
+		List<MethodInfo> methods = new ArrayList<>();
+		int methodCount = input.readUnsignedShort();
+
+		for (int i = 0; i < methodCount; i++) {
+			methods.add(readMethod(input));
+		}
+
+		byte[] classAttributes = readRemaining(input);
+
+		header = getClassHeader(accessFlags, thisClass, superClass, interfaces, classAttributes);
+		syntheticFields = new HashSet<>();
+
+		for (byte[] field : fields) {
+			if ((readShort(field, 0) & ACC_SYNTHETIC) != 0) {
+				syntheticFields.add(getUtf8(readShort(field, 2)));
+			}
+		}
+
+		// Register the methods traced, in order
+		List<MethodInfo> tracedMethods = new ArrayList<>();
+		List<String[]> methodEntries = new ArrayList<>();
+
+		for (MethodInfo method : methods) {
+			if (isTraced(method)) {
+				tracedMethods.add(method);
+				methodEntries.add(getMethodEntry(method));
+			}
+		}
+
+		if (tracedMethods.isEmpty()) {
+			return null;
+		}
+
+		int firstMethodId = TraceMethodTable.register(methodEntries.toArray(new String[methodEntries.size()][]));
+
+		for (int i = 0; i < tracedMethods.size(); i++) {
+
+			MethodInfo method = tracedMethods.get(i);
+
+			try {
+				method.code = rewriteCode(method, firstMethodId + i);
+			}
+			catch (CodeOverflowException e) {
+
+				// Left unchanged, its id is never traced
+			}
+		}
+
+		// Write the class file, the constant pool last, since it grew while rewriting
+		ByteArrayOutputStream bodyBuffer = new ByteArrayOutputStream(classfile.length + 1024);
+		DataOutputStream body = new DataOutputStream(bodyBuffer);
+
+		body.writeShort(accessFlags);
+		body.writeShort(thisClass);
+		body.writeShort(superClass);
+		body.writeShort(interfaces.length);
+
+		for (int interfaceIndex : interfaces) {
+			body.writeShort(interfaceIndex);
+		}
+
+		body.writeShort(fields.size());
+
+		for (byte[] field : fields) {
+			body.write(field);
+		}
+
+		body.writeShort(methods.size());
+
+		for (MethodInfo method : methods) {
+			writeMethod(body, method);
+		}
+
+		body.write(classAttributes);
+
+		ByteArrayOutputStream classBuffer = new ByteArrayOutputStream(bodyBuffer.size() + classfile.length / 2);
+		DataOutputStream output = new DataOutputStream(classBuffer);
+
+		output.writeInt(CLASSFILE_MAGIC);
+		output.writeShort(minorVersion);
+		output.writeShort(majorVersion);
+		writeConstants(output);
+		bodyBuffer.writeTo(output);
+
+		return classBuffer.toByteArray();
+	}
+
+	/**
+	 * Check if a method gets trace points: all methods declared in sources,
+	 * except class initializers and hashCode.
+	 *
+	 * @param method
+	 */
+	private boolean isTraced(MethodInfo method) {
+
+		if ((method.accessFlags & (ACC_ABSTRACT | ACC_NATIVE | ACC_BRIDGE | ACC_SYNTHETIC)) != 0 || method.code == null) {
+			return false;
+		}
+
+		String methodName = getUtf8(method.nameIndex);
+
+		if (methodName.equals("<init>")) {
+			return !header.isAnonymous() && !isDefaultConstructor(method);
+		}
+
+		// Methods generated for enums
+		String signature = methodName + getUtf8(method.descriptorIndex);
+
+		if ((header.accessFlags & ACC_ENUM) != 0 && (signature.equals("values()[L" + header.name + ";") || signature.equals("valueOf(Ljava/lang/String;)L" + header.name + ";"))) {
+			return false;
+		}
+
+		return !methodName.equals("<clinit>") && !signature.equals("hashCode()I");
+	}
+
+	/**
+	 * Check if a constructor is the one added by the compiler, when none is
+	 * declared. Without parameter (but synthetic ones), it starts at the line
+	 * of the class declaration and its return has no line of its own, unlike
+	 * the closing brace of declared constructors. Without line numbers, only
+	 * constructors calling super() and returning are recognized.
+	 *
+	 * @param method
+	 */
+	private boolean isDefaultConstructor(MethodInfo method) {
+
+		for (boolean isSynthetic : getSyntheticParameters(method, getParameterTypes(getUtf8(method.descriptorIndex)))) {
+			if (!isSynthetic) {
+				return false;
+			}
+		}
+
+		byte[] bytecode = method.code.bytecode;
+		boolean isSuperCalled = false;
+		boolean isSuperOnly = true;
+		int returnOffset = -1;
+		int offset = 0;
+
+		while (offset < bytecode.length) {
+
+			int opcode = bytecode[offset] & 0xff;
+
+			if (opcode == OP_INVOKESPECIAL && !isSuperCalled && getMemberName(readShort(bytecode, offset + 1)).equals("<init>")) {
+				isSuperCalled = true;
+			}
+			else if (opcode != OP_RETURN && getLoadedSlot(bytecode, offset) < 0 && !(opcode == OP_PUTFIELD && isSyntheticField(readShort(bytecode, offset + 1)))) {
+				isSuperOnly = false;
+			}
+
+			returnOffset = opcode == OP_RETURN ? offset : -1;
+			offset += getInstructionLength(bytecode, offset, offset);
+		}
+
+		if (returnOffset < 0) {
+			return false;
+		}
+
+		for (AttributeInfo attribute : method.code.attributes) {
+
+			if (getUtf8(attribute.nameIndex).equals("LineNumberTable")) {
+
+				int count = readShort(attribute.info, 0);
+				int firstLine = -1;
+				int returnLine = -1;
+
+				// Start offset and line of each entry
+				for (int i = 0; i < count; i++) {
+
+					int startOffset = readShort(attribute.info, 2 + i * 4);
+					int line = readShort(attribute.info, 4 + i * 4);
+
+					if (startOffset == 0) {
+						firstLine = line;
+					}
+					else if (startOffset == returnOffset) {
+						returnLine = line;
+					}
+				}
+
+				return returnLine < 0 || returnLine == firstLine;
+			}
+		}
+
+		return isSuperOnly && isSuperCalled;
+	}
+
+	/**
+	 * Retrieve the method-table entry describing a method, named as the
+	 * JavaInstrumenter names it from the sources:
+	 *
+	 * - nested classes by their own simple name
+	 * - anonymous classes by their enclosing class and the type they extend
+	 * - the super class by the first one declared, climbing to the enclosing
+	 *   classes (none for static methods and generic super classes)
+	 *
+	 * @param method
+	 * @return package, classname, method, parameter types, return type and capture mode
+	 */
+	private String[] getMethodEntry(MethodInfo method) throws IOException {
+
+		int packageIndex = header.name.lastIndexOf('/');
+		String packageName = packageIndex < 0 ? "" : header.name.substring(0, packageIndex).replace('/', '.');
+
+		ClassHeader namedHeader = getNamedHeader(header);
+		String simpleName;
+
+		if (header.isAnonymous()) {
+
+			String outerName;
+
+			if (namedHeader != null) {
+				outerName = namedHeader.getSimpleName();
+			}
+			else {
+				String binaryName = getSimpleName(header.name);
+				outerName = getNestedName(binaryName.substring(0, Math.max(binaryName.lastIndexOf('$'), 0)));
+			}
+
+			String anonymousType = header.interfaceName != null && "java/lang/Object".equals(header.superName) ? header.interfaceName : header.superName;
+			simpleName = outerName + "$" + getNestedName(anonymousType);
+		}
+		else {
+			simpleName = header.getSimpleName();
+		}
+
+		String superClassname = (method.accessFlags & ACC_STATIC) != 0 ? null : getSuperClassName(namedHeader);
+		String traceClassName = superClassname == null ? simpleName + "#Object" : simpleName + "#" + superClassname + "#Object";
+
+		String methodName = getUtf8(method.nameIndex);
+
+		if (methodName.equals("<init>")) {
+			methodName = "new";
+		}
+
+		String descriptor = getUtf8(method.descriptorIndex);
+		List<String> parameterTypes = getParameterTypes(descriptor);
+		String[] parameterNames = getParameterNames(method, parameterTypes);
+		boolean[] syntheticParameters = getSyntheticParameters(method, parameterTypes);
+		StringBuilder parameters = new StringBuilder();
+
+		for (int i = 0; i < parameterTypes.size(); i++) {
+
+			if (syntheticParameters[i]) {
+				continue;
+			}
+
+			if (parameters.length() > 0) {
+				parameters.append(',');
+			}
+
+			parameters.append(getTypeName(parameterTypes.get(i))).append(' ').append(parameterNames[i]);
+		}
+
+		String returnType = getTypeName(descriptor.substring(descriptor.indexOf(')') + 1));
+
+		return new String[] { packageName, traceClassName, methodName, parameters.toString(), returnType, TraceArguments.CAPTURE_NAMES[captureMode] };
+	}
+
+	/**
+	 * Return the simple name of the super class declared by a class, or by
+	 * the first of its enclosing classes declaring one.
+	 *
+	 * @param namedHeader
+	 *        the class, or the named class enclosing an anonymous one
+	 * @return the name, null if none is declared or if it is generic
+	 */
+	private String getSuperClassName(ClassHeader namedHeader) throws IOException {
+
+		ClassHeader classHeader = namedHeader;
+
+		while (classHeader != null) {
+
+			if (classHeader.superName != null && !classHeader.superName.equals("java/lang/Object")) {
+				return classHeader.isSuperGeneric ? null : getNestedName(classHeader.superName);
+			}
+
+			classHeader = getNamedHeader(getEnclosingHeader(classHeader));
+		}
+
+		return null;
+	}
+
+	/**
+	 * Return the header of a class if it is named, or of the first named
+	 * class enclosing it.
+	 *
+	 * @param classHeader
+	 * @return the header, null if not found
+	 */
+	private ClassHeader getNamedHeader(ClassHeader classHeader) throws IOException {
+
+		while (classHeader != null && classHeader.isAnonymous()) {
+			classHeader = getEnclosingHeader(classHeader);
+		}
+
+		return classHeader;
+	}
+
+	/**
+	 * Read the header of the class enclosing another one, through the class
+	 * loader.
+	 *
+	 * @param classHeader
+	 * @return the header, null if the class isn't nested or can't be read
+	 */
+	private ClassHeader getEnclosingHeader(ClassHeader classHeader) throws IOException {
+
+		if (classHeader == null || classHeader.outerName == null || loader == null) {
+			return null;
+		}
+
+		try (InputStream stream = loader.getResourceAsStream(classHeader.outerName + ".class")) {
+
+			if (stream == null) {
+				return null;
+			}
+
+			return new TraceClassRewriter(captureMode, loader).readClassHeader(readRemaining(new DataInputStream(stream)));
+		}
+	}
+
+	/**
+	 * Parse the header of a class file: its names and its nesting attributes.
+	 *
+	 * @param classfile
+	 */
+	private ClassHeader readClassHeader(byte[] classfile) throws IOException {
+
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(classfile));
+
+		if (input.readInt() != CLASSFILE_MAGIC) {
+			throw new IOException("not a class file");
+		}
+
+		input.readUnsignedShort();
+		majorVersion = input.readUnsignedShort();
+
+		readConstants(input);
+
+		int accessFlags = input.readUnsignedShort();
+		int thisClass = input.readUnsignedShort();
+		int superClass = input.readUnsignedShort();
+		int[] interfaces = new int[input.readUnsignedShort()];
+
+		for (int i = 0; i < interfaces.length; i++) {
+			interfaces[i] = input.readUnsignedShort();
+		}
+
+		// Fields and methods have the same layout
+		int memberCount = input.readUnsignedShort();
+
+		for (int i = 0; i < memberCount; i++) {
+			readMember(input);
+		}
+
+		memberCount = input.readUnsignedShort();
+
+		for (int i = 0; i < memberCount; i++) {
+			readMember(input);
+		}
+
+		return getClassHeader(accessFlags, thisClass, superClass, interfaces, readRemaining(input));
+	}
+
+	/**
+	 * Build the header of the class parsed, from its attributes.
+	 *
+	 * @param accessFlags
+	 * @param thisClass
+	 * @param superClass
+	 * @param interfaces
+	 * @param classAttributes
+	 *        the attributes of the class, as is
+	 */
+	private ClassHeader getClassHeader(int accessFlags, int thisClass, int superClass, int[] interfaces, byte[] classAttributes) throws IOException {
+
+		ClassHeader classHeader = new ClassHeader();
+		classHeader.accessFlags = accessFlags;
+		classHeader.name = getClassName(thisClass);
+		classHeader.superName = superClass == 0 ? null : getClassName(superClass);
+		classHeader.interfaceName = interfaces.length == 0 ? null : getClassName(interfaces[0]);
+
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(classAttributes));
+		int attributeCount = input.readUnsignedShort();
+		String enclosingName = null;
+
+		for (int i = 0; i < attributeCount; i++) {
+
+			AttributeInfo attribute = readAttribute(input);
+			String attributeName = getUtf8(attribute.nameIndex);
+
+			if (attributeName.equals("InnerClasses")) {
+
+				int count = readShort(attribute.info, 0);
+
+				for (int j = 0; j < count; j++) {
+
+					// Inner class, outer class, inner name and flags
+					int entry = 2 + j * 8;
+					int innerClass = readShort(attribute.info, entry);
+
+					if (innerClass != 0 && getClassName(innerClass).equals(classHeader.name)) {
+
+						int outerClass = readShort(attribute.info, entry + 2);
+						int innerName = readShort(attribute.info, entry + 4);
+
+						classHeader.innerName = innerName == 0 ? "" : getUtf8(innerName);
+						classHeader.outerName = outerClass == 0 ? null : getClassName(outerClass);
+					}
+				}
+			}
+			else if (attributeName.equals("EnclosingMethod")) {
+				enclosingName = getClassName(readShort(attribute.info, 0));
+			}
+			else if (attributeName.equals("Signature")) {
+				classHeader.isSuperGeneric = isSuperGeneric(getUtf8(readShort(attribute.info, 0)));
+			}
+		}
+
+		// Local and anonymous classes have no outer class, but an enclosing method
+		if (classHeader.outerName == null) {
+			classHeader.outerName = enclosingName;
+		}
+
+		return classHeader;
+	}
+
+	/**
+	 * Check if the super class of a class signature has type arguments.
+	 *
+	 * @param signature
+	 */
+	private static boolean isSuperGeneric(String signature) {
+
+		int index = 0;
+
+		// Type parameters of the class first
+		if (signature.charAt(0) == '<') {
+
+			int depth = 0;
+
+			do {
+				char c = signature.charAt(index++);
+				depth += c == '<' ? 1 : c == '>' ? -1 : 0;
+			}
+			while (depth > 0);
+		}
+
+		int argumentsIndex = signature.indexOf('<', index);
+		return argumentsIndex >= 0 && argumentsIndex < signature.indexOf(';', index);
+	}
+
+	/**
+	 * Retrieve the names of the parameters of a method from its local variable
+	 * table, argN when the class is compiled without debug information.
+	 *
+	 * @param method
+	 * @param parameterTypes
+	 *        the parameter descriptors
+	 */
+	private String[] getParameterNames(MethodInfo method, List<String> parameterTypes) {
+
+		String[] parameterNames = new String[parameterTypes.size()];
+		int[] slots = getParameterSlots(method, parameterTypes);
+
+		for (int i = 0; i < parameterNames.length; i++) {
+			parameterNames[i] = "arg" + i;
+		}
+
+		for (AttributeInfo attribute : method.code.attributes) {
+
+			if (getUtf8(attribute.nameIndex).equals("LocalVariableTable")) {
+
+				byte[] info = attribute.info;
+				int count = readShort(info, 0);
+
+				for (int i = 0; i < count; i++) {
+
+					int entry = 2 + i * 10;
+
+					if (readShort(info, entry) == 0) {
+
+						int slot = readShort(info, entry + 8);
+
+						for (int j = 0; j < slots.length; j++) {
+							if (slots[j] == slot) {
+								parameterNames[j] = getUtf8(readShort(info, entry + 4));
+							}
+						}
+					}
+				}
+			}
+		}
+
+		return parameterNames;
+	}
+
+	/**
+	 * Find the parameters added by the compiler, not declared in sources:
+	 * flagged so by the MethodParameters attribute if present, or else the
+	 * name and ordinal of enum constants and, in constructors, the parameters
+	 * stored into synthetic fields (outer instance and captured variables).
+	 *
+	 * @param method
+	 * @param parameterTypes
+	 *        the parameter descriptors
+	 */
+	private boolean[] getSyntheticParameters(MethodInfo method, List<String> parameterTypes) {
+
+		boolean[] syntheticParameters = new boolean[parameterTypes.size()];
+
+		for (AttributeInfo attribute : method.attributes) {
+
+			if (getUtf8(attribute.nameIndex).equals("MethodParameters") && (attribute.info[0] & 0xff) == syntheticParameters.length) {
+
+				// Name and flags of each parameter
+				for (int i = 0; i < syntheticParameters.length; i++) {
+					syntheticParameters[i] = (readShort(attribute.info, 3 + i * 4) & (ACC_SYNTHETIC | ACC_MANDATED)) != 0;
+				}
+
+				return syntheticParameters;
+			}
+		}
+
+		if (!getUtf8(method.nameIndex).equals("<init>")) {
+			return syntheticParameters;
+		}
+
+		if ((header.accessFlags & ACC_ENUM) != 0 && parameterTypes.size() >= 2 && parameterTypes.get(0).equals("Ljava/lang/String;") && parameterTypes.get(1).equals("I")) {
+			syntheticParameters[0] = true;
+			syntheticParameters[1] = true;
+		}
+
+		int[] slots = getParameterSlots(method, parameterTypes);
+		byte[] bytecode = method.code.bytecode;
+		int loadedSlot = -1;
+		int offset = 0;
+
+		while (offset < bytecode.length) {
+
+			if ((bytecode[offset] & 0xff) == OP_PUTFIELD && loadedSlot > 0 && isSyntheticField(readShort(bytecode, offset + 1))) {
+				for (int i = 0; i < slots.length; i++) {
+					syntheticParameters[i] |= slots[i] == loadedSlot;
+				}
+			}
+
+			loadedSlot = getLoadedSlot(bytecode, offset);
+			offset += getInstructionLength(bytecode, offset, offset);
+		}
+
+		return syntheticParameters;
+	}
+
+	/**
+	 * Return the local variable slot loaded by an instruction.
+	 *
+	 * @param bytecode
+	 * @param offset
+	 * @return the slot, -1 if the instruction isn't a load
+	 */
+	private static int getLoadedSlot(byte[] bytecode, int offset) {
+
+		int opcode = bytecode[offset] & 0xff;
+
+		if (opcode >= OP_ILOAD && opcode <= OP_ALOAD) {
+			return bytecode[offset + 1] & 0xff;
+		}
+
+		if (opcode >= OP_ILOAD_0 && opcode <= OP_ALOAD_3) {
+			return (opcode - OP_ILOAD_0) % 4;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Check if a field reference is a synthetic field of the class.
+	 *
+	 * @param refIndex
+	 */
+	private boolean isSyntheticField(int refIndex) {
+		return getClassName(readShort(constants.get(refIndex).data, 0)).equals(header.name) && syntheticFields.contains(getMemberName(refIndex));
+	}
+
+	/**
+	 * Return the local variable slot of each parameter of a method.
+	 *
+	 * @param method
+	 * @param parameterTypes
+	 *        the parameter descriptors
+	 */
+	private int[] getParameterSlots(MethodInfo method, List<String> parameterTypes) {
+
+		int[] slots = new int[parameterTypes.size()];
+		int slot = (method.accessFlags & ACC_STATIC) != 0 ? 0 : 1;
+
+		for (int i = 0; i < slots.length; i++) {
+			slots[i] = slot;
+			slot += parameterTypes.get(i).equals("J") || parameterTypes.get(i).equals("D") ? 2 : 1;
+		}
+
+		return slots;
+	}
+
+	/**
+	 * Rewrite the code of a method, injecting its trace points.
+	 *
+	 * @param method
+	 * @param methodId
+	 *        the id of the method in the method table
+	 * @return the rewritten code
+	 * @throws CodeOverflowException
+	 *         if the code doesn't fit within the class file limits once rewritten
+	 */
+	private CodeInfo rewriteCode(MethodInfo method, int methodId) throws IOException, CodeOverflowException {
+
+		CodeInfo code = method.code;
+		byte[] bytecode = code.bytecode;
+
+		// Before the super() invocation, the object is not initialized and can't be covered by a handler
+		int bodyStart = getUtf8(method.nameIndex).equals("<init>") ? getConstructorBodyStart(bytecode) : 0;
+		boolean hasHandler = bodyStart >= 0;
+		bodyStart = Math.max(bodyStart, 0);
+
+		// Code inserted: entry, before each return, and as the catch-all handler
+		ByteArrayOutputStream prologue = new ByteArrayOutputStream();
+		int prologueStack = writePrologue(prologue, method, methodId);
+
+		ByteArrayOutputStream epilogue = new ByteArrayOutputStream();
+		writeInt(epilogue, methodId);
+		writeInstruction(epilogue, OP_INVOKESTATIC, getMethodRef(TRACECLASS_INTERNALNAME, "exit", "(I)V"));
+
+		// Instruction boundaries and their position once moved
+		int[] newOffsets = new int[bytecode.length + 1];
+		int[] newPositions = new int[bytecode.length + 1];
+		boolean[] isInstruction = new boolean[bytecode.length + 1];
+		int position = 0;
+		int offset = 0;
+
+		while (offset < bytecode.length) {
+
+			// Branches to the body start skip the prologue
+			if (offset == bodyStart) {
+				position += prologue.size();
+			}
+
+			isInstruction[offset] = true;
+			newOffsets[offset] = position;
+
+			if (isReturn(bytecode[offset] & 0xff)) {
+				position += epilogue.size();
+			}
+
+			newPositions[offset] = position;
+			position += getInstructionLength(bytecode, offset, position);
+			offset += getInstructionLength(bytecode, offset, offset);
+		}
+
+		isInstruction[bytecode.length] = true;
+		newOffsets[bytecode.length] = position;
+		newPositions[bytecode.length] = position;
+
+		int bodyEnd = position;
+
+		// Copy instructions, moving their branches
+		ByteArrayOutputStream newBytecode = new ByteArrayOutputStream(bodyEnd + epilogue.size() + 1);
+		offset = 0;
+
+		while (offset < bytecode.length) {
+
+			int opcode = bytecode[offset] & 0xff;
+			int length = getInstructionLength(bytecode, offset, offset);
+
+			if (offset == bodyStart) {
+				prologue.writeTo(newBytecode);
+			}
+
+			if (isReturn(opcode)) {
+				epilogue.writeTo(newBytecode);
+			}
+
+			if ((opcode >= OP_IFEQ && opcode <= OP_JSR) || opcode == OP_IFNULL || opcode == OP_IFNONNULL) {
+
+				int branch = newOffsets[offset + readShort(bytecode, offset + 1, true)] - newPositions[offset];
+
+				if (branch < Short.MIN_VALUE || branch > Short.MAX_VALUE) {
+					throw new CodeOverflowException();
+				}
+
+				newBytecode.write(opcode);
+				newBytecode.write(branch >> 8);
+				newBytecode.write(branch);
+			}
+			else if (opcode == OP_GOTO_W || opcode == OP_JSR_W) {
+				newBytecode.write(opcode);
+				writeInt(newBytecode, 4, newOffsets[offset + readInt(bytecode, offset + 1)] - newPositions[offset]);
+			}
+			else if (opcode == OP_TABLESWITCH || opcode == OP_LOOKUPSWITCH) {
+
+				int oldOperands = offset + 4 - (offset % 4);
+				int newOperands = newPositions[offset] + 4 - (newPositions[offset] % 4);
+
+				newBytecode.write(opcode);
+
+				for (int i = newPositions[offset] + 1; i < newOperands; i++) {
+					newBytecode.write(0);
+				}
+
+				// Default, then either low, high and offsets, or pairs of match and offset
+				writeInt(newBytecode, 4, newOffsets[offset + readInt(bytecode, oldOperands)] - newPositions[offset]);
+
+				if (opcode == OP_TABLESWITCH) {
+
+					int low = readInt(bytecode, oldOperands + 4);
+					int high = readInt(bytecode, oldOperands + 8);
+
+					writeInt(newBytecode, 4, low);
+					writeInt(newBytecode, 4, high);
+
+					for (int i = 0; i <= high - low; i++) {
+						writeInt(newBytecode, 4, newOffsets[offset + readInt(bytecode, oldOperands + 12 + i * 4)] - newPositions[offset]);
+					}
+				}
+				else {
+
+					int pairCount = readInt(bytecode, oldOperands + 4);
+					writeInt(newBytecode, 4, pairCount);
+
+					for (int i = 0; i < pairCount; i++) {
+						writeInt(newBytecode, 4, readInt(bytecode, oldOperands + 8 + i * 8));
+						writeInt(newBytecode, 4, newOffsets[offset + readInt(bytecode, oldOperands + 12 + i * 8)] - newPositions[offset]);
+					}
+				}
+			}
+			else {
+				newBytecode.write(bytecode, offset, length);
+			}
+
+			offset += length;
+		}
+
+		// Catch-all handler, covering the body
+		int protectedStart = newOffsets[bodyStart];
+		hasHandler &= protectedStart < bodyEnd;
+
+		if (hasHandler) {
+			epilogue.writeTo(newBytecode);
+			newBytecode.write(OP_ATHROW);
+		}
+
+		if (newBytecode.size() > MAX_CODE_LENGTH) {
+			throw new CodeOverflowException();
+		}
+
+		CodeInfo newCode = new CodeInfo();
+		newCode.maxStack = Math.max(code.maxStack + 1, Math.max(prologueStack, 2));
+		newCode.maxLocals = code.maxLocals;
+		newCode.bytecode = newBytecode.toByteArray();
+		newCode.exceptions = new int[code.exceptions.length + (hasHandler ? 1 : 0)][];
+
+		for (int i = 0; i < code.exceptions.length; i++) {
+			int[] exception = code.exceptions[i];
+			newCode.exceptions[i] = new int[] { newOffsets[exception[0]], newOffsets[exception[1]], newOffsets[exception[2]], exception[3] };
+		}
+
+		// Last entry, so that the handlers of the method come first
+		if (hasHandler) {
+			newCode.exceptions[code.exceptions.length] = new int[] { protectedStart, bodyEnd, bodyEnd, 0 };
+		}
+
+		// Debug tables and stack map frames
+		newCode.attributes = new ArrayList<>();
+		boolean hasStackMap = false;
+
+		for (AttributeInfo attribute : code.attributes) {
+
+			String attributeName = getUtf8(attribute.nameIndex);
+
+			if (attributeName.equals("LineNumberTable")) {
+				newCode.attributes.add(new AttributeInfo(attribute.nameIndex, moveLineNumbers(attribute.info, newOffsets)));
+			}
+			else if (attributeName.equals("LocalVariableTable") || attributeName.equals("LocalVariableTypeTable")) {
+				newCode.attributes.add(new AttributeInfo(attribute.nameIndex, moveLocalVariables(attribute.info, newOffsets)));
+			}
+			else if (attributeName.equals("StackMapTable")) {
+				newCode.attributes.add(new AttributeInfo(attribute.nameIndex, moveStackMap(attribute.info, newOffsets, hasHandler ? bodyEnd : -1)));
+				hasStackMap = true;
+			}
+
+			// Other attributes (type annotations) refer to offsets not moved, they are dropped
+		}
+
+		if (!hasStackMap && hasHandler && majorVersion >= STACKMAP_VERSION) {
+			newCode.attributes.add(new AttributeInfo(getUtf8Index("StackMapTable"), moveStackMap(new byte[2], newOffsets, bodyEnd)));
+		}
+
+		return newCode;
+	}
+
+	/**
+	 * Write the entry trace point of a method.
+	 *
+	 * @param prologue
+	 * @param method
+	 * @param methodId
+	 * @return the operand stack size it needs
+	 */
+	private int writePrologue(ByteArrayOutputStream prologue, MethodInfo method, int methodId) throws IOException {
+
+		List<String> parameterTypes = getParameterTypes(getUtf8(method.descriptorIndex));
+		boolean[] syntheticParameters = getSyntheticParameters(method, parameterTypes);
+		int[] slots = getParameterSlots(method, parameterTypes);
+		List<Integer> parameters = new ArrayList<>();
+
+		for (int i = 0; i < parameterTypes.size(); i++) {
+			if (!syntheticParameters[i]) {
+				parameters.add(i);
+			}
+		}
+
+		writeInt(prologue, methodId);
+
+		if (parameters.isEmpty() || captureMode == TraceArguments.CAPTURE_NONE) {
+			writeInstruction(prologue, OP_INVOKESTATIC, getMethodRef(TRACECLASS_INTERNALNAME, "enter", "(I)V"));
+			return 1;
+		}
+
+		// Argument values, boxed into an array
+		writeInt(prologue, parameters.size());
+		writeInstruction(prologue, OP_ANEWARRAY, getClassIndex("java/lang/Object"));
+
+		for (int index = 0; index < parameters.size(); index++) {
+
+			int i = parameters.get(index);
+			String parameterType = parameterTypes.get(i);
+
+			prologue.write(OP_DUP);
+			writeInt(prologue, index);
+
+			if (captureMode == TraceArguments.CAPTURE_PRIMITIVES && !isPrimitiveType(parameterType)) {
+				writeConstant(prologue, getStringIndex(getTypeName(parameterType)));
+			}
+			else {
+
+				char kind = parameterType.charAt(0);
+				int opcode = kind == 'J' ? OP_LLOAD : kind == 'F' ? OP_FLOAD : kind == 'D' ? OP_DLOAD : kind == 'L' || kind == '[' ? OP_ALOAD : OP_ILOAD;
+
+				if (slots[i] > 0xff) {
+					prologue.write(OP_WIDE);
+					writeInstruction(prologue, opcode, slots[i]);
+				}
+				else {
+					prologue.write(opcode);
+					prologue.write(slots[i]);
+				}
+
+				String boxClass = getBoxClass(kind);
+
+				if (boxClass != null) {
+					writeInstruction(prologue, OP_INVOKESTATIC, getMethodRef(boxClass, "valueOf", "(" + kind + ")L" + boxClass + ";"));
+				}
+			}
+
+			prologue.write(OP_AASTORE);
+		}
+
+		writeInstruction(prologue, OP_INVOKESTATIC, getMethodRef(TRACECLASS_INTERNALNAME, "enter", "(I[Ljava/lang/Object;)V"));
+
+		// id, array, array, index, value (long or double)
+		return 6;
+	}
+
+	/**
+	 * Find the instruction following the super() (or this()) invocation of a
+	 * constructor. Objects created meanwhile (as arguments) are skipped by
+	 * counting their new instructions.
+	 *
+	 * @param bytecode
+	 * @return the offset of the instruction, -1 if not found
+	 */
+	private int getConstructorBodyStart(byte[] bytecode) {
+
+		int pendingObjects = 0;
+		int offset = 0;
+
+		while (offset < bytecode.length) {
+
+			int opcode = bytecode[offset] & 0xff;
+			int length = getInstructionLength(bytecode, offset, offset);
+
+			if (opcode == OP_NEW) {
+				pendingObjects++;
+			}
+			else if (opcode == OP_INVOKESPECIAL && getMemberName(readShort(bytecode, offset + 1)).equals("<init>")) {
+
+				if (pendingObjects == 0) {
+					return offset + length;
+				}
+
+				pendingObjects--;
+			}
+
+			offset += length;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Move the entries of a line number table.
+	 */
+	private byte[] moveLineNumbers(byte[] info, int[] newOffsets) {
+
+		byte[] newInfo = info.clone();
+		int count = readShort(info, 0);
+
+		for (int i = 0; i < count; i++) {
+			writeShort(newInfo, 2 + i * 4, newOffsets[readShort(info, 2 + i * 4)]);
+		}
+
+		return newInfo;
+	}
+
+	/**
+	 * Move the ranges of a local variable (type) table.
+	 */
+	private byte[] moveLocalVariables(byte[] info, int[] newOffsets) {
+
+		byte[] newInfo = info.clone();
+		int count = readShort(info, 0);
+
+		for (int i = 0; i < count; i++) {
+
+			int entry = 2 + i * 10;
+			int start = readShort(info, entry);
+			int end = start + readShort(info, entry + 2);
+
+			writeShort(newInfo, entry, newOffsets[start]);
+			writeShort(newInfo, entry + 2, newOffsets[end] - newOffsets[start]);
+		}
+
+		return newInfo;
+	}
+
+	/**
+	 * Move the frames of a stack map table, appending the frame of the
+	 * catch-all handler (no local, the exception on the stack).
+	 *
+	 * @param info
+	 * @param newOffsets
+	 * @param handlerOffset
+	 *        offset of the catch-all handler, -1 if none
+	 */
+	private byte[] moveStackMap(byte[] info, int[] newOffsets, int handlerOffset) throws IOException {
+
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(info));
+		ByteArrayOutputStream newInfo = new ByteArrayOutputStream(info.length + 8);
+		DataOutputStream output = new DataOutputStream(newInfo);
+
+		int count = input.readUnsignedShort();
+		output.writeShort(count + (handlerOffset >= 0 ? 1 : 0));
+
+		int offset = -1;
+		int newOffset = -1;
+
+		for (int i = 0; i < count; i++) {
+
+			int frameType = input.readUnsignedByte();
+			int frameKind;
+			int delta;
+
+			if (frameType < 64) {
+				frameKind = FRAME_SAME;
+				delta = frameType;
+			}
+			else if (frameType < 128) {
+				frameKind = FRAME_SAME1;
+				delta = frameType - 64;
+			}
+			else if (frameType == 247) {
+				frameKind = FRAME_SAME1;
+				delta = input.readUnsignedShort();
+			}
+			else if (frameType >= 248 && frameType <= 250) {
+				frameKind = FRAME_CHOP;
+				delta = input.readUnsignedShort();
+			}
+			else if (frameType == 251) {
+				frameKind = FRAME_SAME;
+				delta = input.readUnsignedShort();
+			}
+			else if (frameType >= 252 && frameType <= 254) {
+				frameKind = FRAME_APPEND;
+				delta = input.readUnsignedShort();
+			}
+			else if (frameType == 255) {
+				frameKind = FRAME_FULL;
+				delta = input.readUnsignedShort();
+			}
+			else {
+				throw new IOException("invalid stack map frame: " + frameType);
+			}
+
+			// Offsets are coded as deltas from the previous frame
+			offset += delta + 1;
+			int newDelta = newOffsets[offset] - newOffset - 1;
+			newOffset = newOffsets[offset];
+
+			if (frameKind == FRAME_SAME) {
+
+				if (newDelta < 64) {
+					output.writeByte(newDelta);
+				}
+				else {
+					output.writeByte(251);
+					output.writeShort(newDelta);
+				}
+			}
+			else if (frameKind == FRAME_SAME1) {
+
+				if (newDelta < 64) {
+					output.writeByte(64 + newDelta);
+				}
+				else {
+					output.writeByte(247);
+					output.writeShort(newDelta);
+				}
+
+				moveVerificationTypes(input, output, 1, newOffsets);
+			}
+			else if (frameKind == FRAME_FULL) {
+
+				output.writeByte(frameType);
+				output.writeShort(newDelta);
+
+				int localCount = input.readUnsignedShort();
+				output.writeShort(localCount);
+				moveVerificationTypes(input, output, localCount, newOffsets);
+
+				int stackCount = input.readUnsignedShort();
+				output.writeShort(stackCount);
+				moveVerificationTypes(input, output, stackCount, newOffsets);
+			}
+			else {
+				output.writeByte(frameType);
+				output.writeShort(newDelta);
+				moveVerificationTypes(input, output, frameKind == FRAME_APPEND ? frameType - 251 : 0, newOffsets);
+			}
+		}
+
+		if (handlerOffset >= 0) {
+			output.writeByte(255);
+			output.writeShort(handlerOffset - newOffset - 1);
+			output.writeShort(0);
+			output.writeShort(1);
+			output.writeByte(ITEM_OBJECT);
+			output.writeShort(getClassIndex("java/lang/Throwable"));
+		}
+
+		return newInfo.toByteArray();
+	}
+
+	/**
+	 * Copy verification types, moving the offsets of uninitialized objects.
+	 */
+	private void moveVerificationTypes(DataInputStream input, DataOutputStream output, int count, int[] newOffsets) throws IOException {
+
+		for (int i = 0; i < count; i++) {
+
+			int tag = input.readUnsignedByte();
+			output.writeByte(tag);
+
+			if (tag == ITEM_OBJECT) {
+				output.writeShort(input.readUnsignedShort());
+			}
+			else if (tag == ITEM_UNINITIALIZED) {
+				output.writeShort(newOffsets[input.readUnsignedShort()]);
+			}
+		}
+	}
+
+	/**
+	 * Return the length of an instruction.
+	 *
+	 * @param bytecode
+	 * @param offset
+	 *        offset of the instruction
+	 * @param position
+	 *        position the instruction is written at (switch padding depends on it)
+	 */
+	private static int getInstructionLength(byte[] bytecode, int offset, int position) {
+
+		int opcode = bytecode[offset] & 0xff;
+
+		if (opcode == OP_WIDE) {
+			return (bytecode[offset + 1] & 0xff) == 0x84 ? 6 : 4;
+		}
+
+		if (opcode == OP_TABLESWITCH || opcode == OP_LOOKUPSWITCH) {
+
+			int operands = offset + 4 - (offset % 4);
+			int padding = 3 - (position % 4);
+
+			if (opcode == OP_TABLESWITCH) {
+				return 1 + padding + 12 + (readInt(bytecode, operands + 8) - readInt(bytecode, operands + 4) + 1) * 4;
+			}
+
+			return 1 + padding + 8 + readInt(bytecode, operands + 4) * 8;
+		}
+
+		return OPCODE_LENGTHS[opcode];
+	}
+
+	private static boolean isReturn(int opcode) {
+		return opcode >= OP_IRETURN && opcode <= OP_RETURN;
+	}
+
+	/**
+	 * Split a method descriptor into its parameter descriptors.
+	 *
+	 * @param descriptor
+	 */
+	private static List<String> getParameterTypes(String descriptor) {
+
+		List<String> parameterTypes = new ArrayList<>();
+		int index = 1;
+
+		while (descriptor.charAt(index) != ')') {
+
+			int start = index;
+
+			while (descriptor.charAt(index) == '[') {
+				index++;
+			}
+
+			if (descriptor.charAt(index) == 'L') {
+				index = descriptor.indexOf(';', index);
+			}
+
+			parameterTypes.add(descriptor.substring(start, ++index));
+		}
+
+		return parameterTypes;
+	}
+
+	/**
+	 * Convert a type descriptor into the type name written in sources
+	 * (without its package).
+	 *
+	 * @param descriptor
+	 */
+	private static String getTypeName(String descriptor) {
+
+		int dimensions = 0;
+
+		while (descriptor.charAt(dimensions) == '[') {
+			dimensions++;
+		}
+
+		String typeName;
+
+		switch (descriptor.charAt(dimensions)) {
+		case 'Z': typeName = "boolean"; break;
+		case 'B': typeName = "byte"; break;
+		case 'C': typeName = "char"; break;
+		case 'S': typeName = "short"; break;
+		case 'I': typeName = "int"; break;
+		case 'J': typeName = "long"; break;
+		case 'F': typeName = "float"; break;
+		case 'D': typeName = "double"; break;
+		case 'V': typeName = "void"; break;
+		default: typeName = getSimpleName(descriptor.substring(dimensions + 1, descriptor.length() - 1)).replace('$', '.');
+		}
+
+		for (int i = 0; i < dimensions; i++) {
+			typeName += "[]";
+		}
+
+		return typeName;
+	}
+
+	private static String getSimpleName(String internalName) {
+		return internalName.substring(internalName.lastIndexOf('/') + 1);
+	}
+
+	/**
+	 * Return the name of a class without its package and enclosing classes,
+	 * as written in sources.
+	 */
+	private static String getNestedName(String internalName) {
+		return internalName.substring(Math.max(internalName.lastIndexOf('/'), internalName.lastIndexOf('$')) + 1);
+	}
+
+	/**
+	 * Check if a parameter type is a primitive (or boxed primitive) or a string type,
+	 * as the JavaInstrumenter does in primitives mode.
+	 *
+	 * @param descriptor
+	 */
+	private static boolean isPrimitiveType(String descriptor) {
+		return descriptor.length() == 1 || descriptor.equals("Ljava/lang/String;") || (descriptor.startsWith("Ljava/lang/") && getBoxKind(descriptor) != 0);
+	}
+
+	private static char getBoxKind(String descriptor) {
+
+		for (char kind : "ZBCSIJFD".toCharArray()) {
+			if (descriptor.equals("L" + getBoxClass(kind) + ";")) {
+				return kind;
+			}
+		}
+
+		return 0;
+	}
+
+	private static String getBoxClass(char kind) {
+
+		switch (kind) {
+		case 'Z': return "java/lang/Boolean";
+		case 'B': return "java/lang/Byte";
+		case 'C': return "java/lang/Character";
+		case 'S': return "java/lang/Short";
+		case 'I': return "java/lang/Integer";
+		case 'J': return "java/lang/Long";
+		case 'F': return "java/lang/Float";
+		case 'D': return "java/lang/Double";
+		default: return null;
+		}
+	}
+
+	/**
+	 * Write the instruction pushing an int constant.
+	 */
+	private void writeInt(ByteArrayOutputStream output, int value) {
+
+		if (value >= -1 && value <= 5) {
+			output.write(OP_ICONST_0 + value);
+		}
+		else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			output.write(OP_BIPUSH);
+			output.write(value);
+		}
+		else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			writeInstruction(output, OP_SIPUSH, value);
+		}
+		else {
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			writeInt(data, 4, value);
+			writeConstant(output, getConstantIndex(CONSTANT_INTEGER, data.toByteArray()));
+		}
+	}
+
+	/**
+	 * Write the instruction loading a constant of the pool.
+	 */
+	private void writeConstant(ByteArrayOutputStream output, int constantIndex) {
+
+		if (constantIndex <= 0xff) {
+			output.write(OP_LDC);
+			output.write(constantIndex);
+		}
+		else {
+			writeInstruction(output, OP_LDC_W, constantIndex);
+		}
+	}
+
+	/**
+	 * Write an instruction with a 16-bit operand.
+	 */
+	private static void writeInstruction(ByteArrayOutputStream output, int opcode, int operand) {
+		output.write(opcode);
+		output.write(operand >> 8);
+		output.write(operand);
+	}
+
+	private static void writeInt(ByteArrayOutputStream output, int length, int value) {
+		for (int shift = (length - 1) * 8; shift >= 0; shift -= 8) {
+			output.write(value >> shift);
+		}
+	}
+
+	private static int readShort(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xff) << 8) | (bytes[offset + 1] & 0xff);
+	}
+
+	private static int readShort(byte[] bytes, int offset, boolean isSigned) {
+		return isSigned ? (short) readShort(bytes, offset) : readShort(bytes, offset);
+	}
+
+	private static int readInt(byte[] bytes, int offset) {
+		return (readShort(bytes, offset) << 16) | readShort(bytes, offset + 2);
+	}
+
+	private static void writeShort(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >> 8);
+		bytes[offset + 1] = (byte) value;
+	}
+
+	/**
+	 * Parse the constant pool.
+	 */
+	private void readConstants(DataInputStream input) throws IOException {
+
+		int count = input.readUnsignedShort();
+		constants.add(null);
+
+		while (constants.size() < count) {
+
+			int tag = input.readUnsignedByte();
+			Constant constant = new Constant(tag);
+
+			if (tag == CONSTANT_UTF8) {
+				constant.text = input.readUTF();
+			}
+			else {
+				constant.data = new byte[getConstantLength(tag)];
+				input.readFully(constant.data);
+			}
+
+			constantIndexes.put(constant.getKey(), constants.size());
+			constants.add(constant);
+
+			// Long and double constants take two entries
+			if (tag == CONSTANT_LONG || tag == CONSTANT_DOUBLE) {
+				constants.add(null);
+			}
+		}
+	}
+
+	private static int getConstantLength(int tag) throws IOException {
+
+		switch (tag) {
+		case 7: case 8: case 16: case 19: case 20:
+			return 2;
+		case 15:
+			return 3;
+		case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+			return 4;
+		case 5: case 6:
+			return 8;
+		default:
+			throw new IOException("invalid constant tag: " + tag);
+		}
+	}
+
+	/**
+	 * Write the constant pool, with the constants added.
+	 */
+	private void writeConstants(DataOutputStream output) throws IOException {
+
+		if (constants.size() > 0xffff) {
+			throw new IOException("constant pool overflow");
+		}
+
+		output.writeShort(constants.size());
+
+		for (Constant constant : constants) {
+
+			if (constant != null) {
+
+				output.writeByte(constant.tag);
+
+				if (constant.tag == CONSTANT_UTF8) {
+					output.writeUTF(constant.text);
+				}
+				else {
+					output.write(constant.data);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return the index of a constant, adding it to the pool if missing.
+	 */
+	private int getConstantIndex(int tag, byte[] data) {
+
+		Constant constant = new Constant(tag);
+		constant.data = data;
+
+		Integer index = constantIndexes.get(constant.getKey());
+
+		if (index == null) {
+			index = constants.size();
+			constantIndexes.put(constant.getKey(), index);
+			constants.add(constant);
+		}
+
+		return index;
+	}
+
+	private int getUtf8Index(String text) {
+
+		Constant constant = new Constant(CONSTANT_UTF8);
+		constant.text = text;
+
+		Integer index = constantIndexes.get(constant.getKey());
+
+		if (index == null) {
+			index = constants.size();
+			constantIndexes.put(constant.getKey(), index);
+			constants.add(constant);
+		}
+
+		return index;
+	}
+
+	private int getClassIndex(String internalName) {
+		return getConstantIndex(CONSTANT_CLASS, toShorts(getUtf8Index(internalName)));
+	}
+
+	private int getStringIndex(String text) {
+		return getConstantIndex(CONSTANT_STRING, toShorts(getUtf8Index(text)));
+	}
+
+	private int getMethodRef(String owner, String name, String descriptor) {
+		int nameAndType = getConstantIndex(CONSTANT_NAMEANDTYPE, toShorts(getUtf8Index(name), getUtf8Index(descriptor)));
+		return getConstantIndex(CONSTANT_METHOD, toShorts(getClassIndex(owner), nameAndType));
+	}
+
+	private static byte[] toShorts(int... values) {
+
+		byte[] bytes = new byte[values.length * 2];
+
+		for (int i = 0; i < values.length; i++) {
+			writeShort(bytes, i * 2, values[i]);
+		}
+
+		return bytes;
+	}
+
+	private String getUtf8(int index) {
+		return constants.get(index).text;
+	}
+
+	private String getClassName(int classIndex) {
+		return getUtf8(readShort(constants.get(classIndex).data, 0));
+	}
+
+	/**
+	 * Return the member name of a field or method reference.
+	 */
+	private String getMemberName(int refIndex) {
+		Constant nameAndType = constants.get(readShort(constants.get(refIndex).data, 2));
+		return getUtf8(readShort(nameAndType.data, 0));
+	}
+
+	/**
+	 * Read a field, as is.
+	 */
+	private byte[] readMember(DataInputStream input) throws IOException {
+
+		ByteArrayOutputStream member = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(member);
+
+		output.writeShort(input.readUnsignedShort());
+		output.writeShort(input.readUnsignedShort());
+		output.writeShort(input.readUnsignedShort());
+
+		int attributeCount = input.readUnsignedShort();
+		output.writeShort(attributeCount);
+
+		for (int i = 0; i < attributeCount; i++) {
+			AttributeInfo attribute = readAttribute(input);
+			output.writeShort(attribute.nameIndex);
+			output.writeInt(attribute.info.length);
+			output.write(attribute.info);
+		}
+
+		return member.toByteArray();
+	}
+
+	/**
+	 * Read a method, parsing its code.
+	 */
+	private MethodInfo readMethod(DataInputStream input) throws IOException {
+
+		MethodInfo method = new MethodInfo();
+		method.accessFlags = input.readUnsignedShort();
+		method.nameIndex = input.readUnsignedShort();
+		method.descriptorIndex = input.readUnsignedShort();
+		method.attributes = new ArrayList<>();
+
+		int attributeCount = input.readUnsignedShort();
+
+		for (int i = 0; i < attributeCount; i++) {
+
+			AttributeInfo attribute = readAttribute(input);
+
+			if (getUtf8(attribute.nameIndex).equals("Code")) {
+				method.codeIndex = getUtf8Index("Code");
+				method.code = readCode(attribute.info);
+			}
+			else {
+				method.attributes.add(attribute);
+			}
+		}
+
+		return method;
+	}
+
+	private CodeInfo readCode(byte[] info) throws IOException {
+
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(info));
+
+		CodeInfo code = new CodeInfo();
+		code.maxStack = input.readUnsignedShort();
+		code.maxLocals = input.readUnsignedShort();
+		code.bytecode = new byte[input.readInt()];
+		input.readFully(code.bytecode);
+		code.exceptions = new int[input.readUnsignedShort()][];
+
+		for (int i = 0; i < code.exceptions.length; i++) {
+			code.exceptions[i] = new int[] { input.readUnsignedShort(), input.readUnsignedShort(), input.readUnsignedShort(), input.readUnsignedShort() };
+		}
+
+		code.attributes = new ArrayList<>();
+		int attributeCount = input.readUnsignedShort();
+
+		for (int i = 0; i < attributeCount; i++) {
+			code.attributes.add(readAttribute(input));
+		}
+
+		return code;
+	}
+
+	private AttributeInfo readAttribute(DataInputStream input) throws IOException {
+
+		int nameIndex = input.readUnsignedShort();
+		byte[] info = new byte[input.readInt()];
+		input.readFully(info);
+
+		return new AttributeInfo(nameIndex, info);
+	}
+
+	private byte[] readRemaining(DataInputStream input) throws IOException {
+
+		ByteArrayOutputStream remaining = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int length;
+
+		while ((length = input.read(buffer)) > 0) {
+			remaining.write(buffer, 0, length);
+		}
+
+		return remaining.toByteArray();
+	}
+
+	private void writeMethod(DataOutputStream output, MethodInfo method) throws IOException {
+
+		output.writeShort(method.accessFlags);
+		output.writeShort(method.nameIndex);
+		output.writeShort(method.descriptorIndex);
+		output.writeShort(method.attributes.size() + (method.code != null ? 1 : 0));
+
+		if (method.code != null) {
+
+			ByteArrayOutputStream codeBuffer = new ByteArrayOutputStream(method.code.bytecode.length + 64);
+			DataOutputStream code = new DataOutputStream(codeBuffer);
+
+			code.writeShort(method.code.maxStack);
+			code.writeShort(method.code.maxLocals);
+			code.writeInt(method.code.bytecode.length);
+			code.write(method.code.bytecode);
+			code.writeShort(method.code.exceptions.length);
+
+			for (int[] exception : method.code.exceptions) {
+				for (int field : exception) {
+					code.writeShort(field);
+				}
+			}
+
+			code.writeShort(method.code.attributes.size());
+
+			for (AttributeInfo attribute : method.code.attributes) {
+				code.writeShort(attribute.nameIndex);
+				code.writeInt(attribute.info.length);
+				code.write(attribute.info);
+			}
+
+			output.writeShort(method.codeIndex);
+			output.writeInt(codeBuffer.size());
+			codeBuffer.writeTo(output);
+		}
+
+		for (AttributeInfo attribute : method.attributes) {
+			output.writeShort(attribute.nameIndex);
+			output.writeInt(attribute.info.length);
+			output.write(attribute.info);
+		}
+	}
+
+	/**
+	 * A single constant of the pool.
+	 */
+	private static class Constant {
+
+		private int tag;
+		private String text;
+		private byte[] data;
+
+		private Constant(int tag) {
+			this.tag = tag;
+		}
+
+		private String getKey() {
+			return tag == CONSTANT_UTF8 ? tag + ":" + text : tag + ":" + Arrays.toString(data);
+		}
+	}
+
+	/**
+	 * The names of a class and of its enclosing class.
+	 */
+	private static class ClassHeader {
+
+		private int accessFlags;
+		private String name;
+		private String superName;
+		private String interfaceName;
+		private String innerName;
+		private String outerName;
+		private boolean isSuperGeneric;
+
+		private boolean isAnonymous() {
+			return innerName != null && innerName.isEmpty();
+		}
+
+		/**
+		 * Return the name of the class, as declared in sources.
+		 */
+		private String getSimpleName() {
+			return innerName != null ? innerName : TraceClassRewriter.getSimpleName(name);
+		}
+	}
+
+	/**
+	 * A method, its code parsed.
+	 */
+	private static class MethodInfo {
+
+		private int accessFlags;
+		private int nameIndex;
+		private int descriptorIndex;
+		private int codeIndex;
+		private CodeInfo code;
+		private List<AttributeInfo> attributes;
+	}
+
+	/**
+	 * The code attribute of a method.
+	 */
+	private static class CodeInfo {
+
+		private int maxStack;
+		private int maxLocals;
+		private byte[] bytecode;
+		private int[][] exceptions;
+		private List<AttributeInfo> attributes;
+	}
+
+	/**
+	 * An attribute, as is.
+	 */
+	private static class AttributeInfo {
+
+		private int nameIndex;
+		private byte[] info;
+
+		private AttributeInfo(int nameIndex, byte[] info) {
+			this.nameIndex = nameIndex;
+			this.info = info;
+		}
+	}
+
+	/**
+	 * Raised when a method no longer fits within the class file limits.
+	 */
+	private static class CodeOverflowException extends Exception {
+
+		private static final long serialVersionUID = 1L;
+	}
+}
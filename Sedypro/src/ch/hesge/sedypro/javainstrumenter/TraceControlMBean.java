@@ -0,0 +1,84 @@
+package ch.hesge.sedypro.javainstrumenter;
+
+/**
+ * Management interface of the TraceLogger, registered as
+ * <package>:type=TraceControl in the platform MBean server.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public interface TraceControlMBean {
+
+	/**
+	 * Return true if trace points are active.
+	 */
+	boolean isEnabled();
+
+	/**
+	 * Switch all trace points on or off.
+	 */
+	void setEnabled(boolean isEnabled);
+
+	/**
+	 * Return the runtime argument capture mode.
+	 */
+	String getCaptureMode();
+
+	/**
+	 * Change the runtime argument capture mode (none, types, primitives, sampled
+	 * or full). It can only restrict the mode chosen at instrumentation time.
+	 */
+	void setCaptureMode(String captureMode);
+
+	/**
+	 * Trace the methods matching a pattern.
+	 *
+	 * @param pattern
+	 *        package.class.method, with * and ? wildcards
+	 */
+	void enable(String pattern);
+
+	/**
+	 * Stop tracing the methods matching a pattern.
+	 *
+	 * @param pattern
+	 *        package.class.method, with * and ? wildcards
+	 */
+	void disable(String pattern);
+
+	/**
+	 * Remove all enable/disable rules.
+	 */
+	void clearRules();
+
+	/**
+	 * Return the enable/disable rules, in the order they are applied.
+	 */
+	String[] getRules();
+
+	/**
+	 * Return the number of methods currently disabled by the rules.
+	 */
+	int getDisabledMethodCount();
+
+	/**
+	 * Return the number of events written.
+	 */
+	long getEventCount();
+
+	/**
+	 * Return the number of events dropped by the trace buffer.
+	 */
+	long getDroppedCount();
+
+	/**
+	 * Return the number of bytes written, once encoded for text traces.
+	 */
+	long getByteCount();
+
+	/**
+	 * Return the number of calls whose entry and exit couldn't be paired.
+	 */
+	long getUnmatchedCount();
+}
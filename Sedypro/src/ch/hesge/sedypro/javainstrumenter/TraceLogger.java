@@ -1,8 +1,8 @@
 package ch.hesge.sedypro.javainstrumenter;
 
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.Writer;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -11,107 +11,602 @@ import java.util.logging.Logger;
 public class TraceLogger {
 
 	// Private attributes
-	private static Writer traceWriter;
+	private static TraceWriter traceWriter;
+	private static TraceRingBuffer traceBuffer;
+	private static TraceShardWriter traceShards;
+	private static volatile boolean isInitialized;
+	private static boolean isClosed;
+	private static boolean isTreeMode;
 
 	// Private constants
-	private static int TRACE_ENTER = 0;
-	private static int TRACE_EXIT  = 1;
 	private static String DEFAULT_TRACE_FILE = "log/trace.log";
+	private static String DEFAULT_METHOD_FILE = TraceMethodTable.DEFAULT_METHOD_FILE;
+	private static String DEFAULT_TRACE_MODE = "sync";
+	private static String DEFAULT_TRACE_FORMAT = "text";
+	private static int DEFAULT_TRACE_BUFFER = 64 * 1024;
+	private static String DEFAULT_CAPTURE_MODE = "full";
 	public static String TRACECLASS_FULLNAME = "org.hesge.sedypro.TraceLogger";
+	public static String TRACEGUARD_FULLNAME = TRACECLASS_FULLNAME + ".IS_ENABLED";
 
-	// Predefined formatter
-	private static final String TRACE_ENTER_FORMAT = "%3$s %4$s     [%2$s] %5$s(%6$s) AS %7$s [%1$s] %8$s%n";
-	private static final String TRACE_EXIT_FORMAT  = "END %3$s %4$s     [%2$s] %5$s(%6$s) AS %7$s [%1$s] %8$s%n";
+	// Switch guarding all trace points, read once when the class is loaded. It is
+	// not a compile-time constant (not inlined into instrumented classes), but a
+	// static final field the JIT folds into instrumented methods.
+	public static final boolean IS_ENABLED = Boolean.parseBoolean(System.getProperty("ch.hesge.csim2.trace", "true"));
+
+	// Trace epoch, all timestamps are nanoseconds elapsed since then
+	private static final long EPOCH_MILLIS = System.currentTimeMillis();
+	private static final long EPOCH_NANOS = System.nanoTime();
 
 	// Create a trace logger
 	private static final Logger LOGGER = Logger.getLogger(TraceLogger.class.getName());
 
 	/*
-	 * Available info on format within the TRACE_FORMAT string: 
-	 * 
+	 * Available system properties:
+	 *
 	 * <code>
-	 * 		1$ = timestamp
-	 * 		2$ = threadId 
-	 * 		3$ = package 
-	 * 		4$ = classname 
-	 * 		5$ = method
-	 * 		6$ = parameters (types and names) 
-	 * 		7$ = return type
-	 * 		8$ = arguments (only values)
-	 * 
-	 * 
-	 * 		Exemple (format): 
-	 * 
-	 * 		package + ' ' + classname + ' ' + threadId + ' ' + method + ( + parameters + ) + AS + return + [ + tstamp + ] + arguments
-	 *  
-	 * 		Exemple (trace): 
-	 * 		com.kenai.simulator.atm Account#Object     [1] new(int theAccountNumber,int thePIN,double theAvailableBalance,double theTotalBalance) AS void [1519728258655] 1234,1234,130.0,130.0
-	 * 
-	 * 
-	 * 
-	 * 
+	 * 		ch.hesge.csim2.trace       = false to disable all trace points for the lifetime of the JVM (default true),
+	 * 		                             instrumented methods then run at (almost) their original speed
+	 * 		ch.hesge.csim2.tracefile   = trace file path (default log/trace.log)
+	 * 		ch.hesge.csim2.tracemode   = sync (write and flush on every call) or
+	 * 		                             async (lock-free ring buffer drained by a background thread) or
+	 * 		                             tree (calling context tree aggregated in memory, written at exit)
+	 * 		ch.hesge.csim2.tracebuffer = number of events held by the ring buffer in async mode
+	 * 		ch.hesge.csim2.traceformat = text (one line per event) or
+	 * 		                             binary (string table and varint encoded events)
+	 * 		ch.hesge.csim2.tracesegmentsize  = size in bytes of memory-mapped segments (default 0 = single trace file)
+	 * 		ch.hesge.csim2.tracesegmentcount = number of segments kept, oldest ones are deleted (default 0 = all)
+	 * 		ch.hesge.csim2.traceblocksize    = size in bytes of independently deflated blocks, between 64 KB and 1 MB,
+	 * 		                                   indexed in trace.log.index (default 0 = no compression)
+	 * 		ch.hesge.csim2.traceshards = thread (one trace file per thread, up to 256 files shared beyond) or number
+	 * 		                             of trace files threads are spread over, by thread id (default 0 = single trace file)
+	 * 		ch.hesge.csim2.tracesocket = host:port of a TraceCollector events are streamed to (binary format),
+	 * 		                             instead of the trace file (default none)
+	 * 		ch.hesge.csim2.tracesource = name the collector tags events with (default pid@host)
+	 * 		ch.hesge.csim2.tracejmx    = true to register the TraceControl MBean (default true)
+	 * 		ch.hesge.csim2.tracedictionary = number of argument values defined once per trace file and then
+	 * 		                                 referenced by id, further ones by fingerprint (default 4096, 0 = none)
+	 * 		ch.hesge.csim2.methodfile  = method table written by the JavaInstrumenter (default sedypro-methods.txt)
+	 * 		ch.hesge.csim2.capture     = argument capture mode: none, types, primitives, sampled or full (default full),
+	 * 		                             it can only restrict the mode chosen at instrumentation time
+	 * 		ch.hesge.csim2.capturelength   = maximum length of a single argument value (default 256)
+	 * 		ch.hesge.csim2.capturesampling = one call out of N per method captured in sampled mode (default 100)
+	 * 		ch.hesge.csim2.samplingbudget  = calls traced per method within a window, further calls
+	 * 		                                 are elided (default 0 = no suppression)
+	 * 		ch.hesge.csim2.samplingwindow  = window duration in milliseconds (default 1000)
+	 * 		ch.hesge.csim2.samplingrate    = one elided call out of N still traced (default 0 = none)
+	 * 		ch.hesge.csim2.tracedepth      = number of call levels traced, deeper calls are only counted (default 0 = all)
+	 * 		ch.hesge.csim2.tracerecursion  = number of levels a method directly calling itself is traced, deeper
+	 * 		                                 recursive calls (and all calls they make) are only counted (default 0 = all)
 	 * </code>
+	 *
+	 * See TraceTextWriter and TraceBinaryWriter for the trace formats, TraceArguments for capture modes,
+	 * TraceCallTree for the tree file written in tree mode, TraceControl for the
+	 * trace points enabled or disabled at runtime (only the global switch applies in tree mode).
+	 * Trace points disabled at startup by ch.hesge.csim2.trace can't be enabled through TraceControl.
+	 * Elided calls are summarized by TRACE_ELIDED events, one per method and per window.
+	 * Collapsed calls are summarized the same way, one per method, once the outermost collapsed call exits.
+	 *
+	 * Timestamps are monotonic (System.nanoTime) nanoseconds elapsed since the epoch
+	 * recorded in the trace header, and each event carries a sequence number
+	 * incremented per thread, so that missing events can be detected. Threads are
+	 * identified by compact ids assigned in order of their first event.
+	 */
+
+	/**
+	 * Log a single method entry, identified by its method table id
+	 */
+	public static void enter(int methodId) {
+		trace(TraceEvent.TRACE_ENTER, methodId, null, null, null, null, null, "", null);
+	}
+
+	/**
+	 * Log a single method entry with its raw argument values,
+	 * formatted later according to the capture mode
 	 */
+	public static void enter(int methodId, Object[] argumentsObjects) {
+		trace(TraceEvent.TRACE_ENTER, methodId, null, null, null, null, null, null, argumentsObjects);
+	}
+
+	/**
+	 * Log a single method exit, identified by its method table id
+	 */
+	public static void exit(int methodId) {
+		trace(TraceEvent.TRACE_EXIT, methodId, null, null, null, null, null, "", null);
+	}
 
 	/**
 	 * Log a single method entry
 	 */
 	public static void entering(String packagename, String classname, String methodName, String parametersTypes, String returnType, String argumentsValues) {
-		trace(TRACE_ENTER, packagename, classname, methodName, parametersTypes, returnType, argumentsValues);
+		trace(TraceEvent.TRACE_ENTER, -1, packagename, classname, methodName, parametersTypes, returnType, argumentsValues, null);
 	}
 
 	/**
 	 * Log a single method exit
 	 */
 	public static void exiting(String packagename, String classname, String methodName, String parametersTypes, String returnType, String argumentsValues) {
-		trace(TRACE_EXIT, packagename, classname, methodName, parametersTypes, returnType, argumentsValues);
+		trace(TraceEvent.TRACE_EXIT, -1, packagename, classname, methodName, parametersTypes, returnType, argumentsValues, null);
 	}
 
 	/**
 	 * Write a trace into the trace file
 	 */
-	private static void trace(int traceType, String packagename, String classname, String methodName, String parameterTypes, String returnType, String argumentsValues) {
+	private static void trace(int traceType, int methodId, String packagename, String classname, String methodName, String parameterTypes, String returnType, String argumentsValues, Object[] argumentsObjects) {
 
-		try {
-			long timestamp = System.currentTimeMillis();
-			long threadId = Thread.currentThread().getId();
+		// Trace points switched off through JMX
+		if (!TraceControl.isTracing()) {
+			return;
+		}
+
+		long timestamp = System.nanoTime() - EPOCH_NANOS;
+
+		// Autocreate trace writer, if first invocation
+		if (!isInitialized) {
+			initialize();
+		}
+
+		TraceThreadState threadState = TraceThreadState.get();
+
+		// Application code run by the logger itself (argument formatting, drainer thread)
+		if (threadState.isSuspended()) {
+			return;
+		}
+
+		// Tree mode: only aggregate the call into the thread calling context tree
+		if (isTreeMode) {
+
+			if (methodId >= 0) {
+				aggregate(threadState, traceType, methodId, timestamp);
+			}
+
+			return;
+		}
+
+		if (traceWriter == null) {
+			return;
+		}
+
+		long threadId = threadState.getThreadId();
+
+		int depth = -1;
+		long elapsed = 0;
+
+		// Pair entries and exits on the shadow stack, suppressing disabled and hot methods
+		if (methodId >= 0) {
+
+			if (traceType == TraceEvent.TRACE_ENTER) {
+
+				// Too deep or recursive, only counted
+				if (threadState.isCollapsed(methodId)) {
+					threadState.enterCollapsed(methodId, timestamp);
+					return;
+				}
+
+				boolean isTraced = TraceControl.isTraced(methodId);
+
+				if (isTraced && TraceSampler.isEnabled()) {
+
+					long elidedCount = TraceSampler.checkWindow(methodId, timestamp);
+
+					if (elidedCount > 0) {
+						traceElided(methodId, timestamp, threadId, elidedCount);
+					}
+
+					isTraced = TraceSampler.isTraced(methodId);
+				}
+
+				threadState.enter(methodId, timestamp, isTraced);
+
+				if (!isTraced) {
+					return;
+				}
+			}
+			else {
+
+				int frame = threadState.exit(methodId);
+
+				// Outermost collapsed call exited, write the calls counted
+				if (threadState.getCollapsedMethodCount() > 0) {
+					traceCollapsed(threadState, timestamp, threadId);
+				}
+
+				if (frame < 0 || !threadState.isTraced(frame)) {
+					return;
+				}
+
+				depth = threadState.getDepth(frame);
+				elapsed = timestamp - threadState.getTimestamp(frame);
+			}
+		}
+
+		long sequence = threadState.nextSequence();
+		int captureMode = argumentsObjects != null ? TraceArguments.getCaptureMode(methodId) : TraceArguments.CAPTURE_NONE;
+
+		// Asynchronous mode: hand over the event to the drainer thread
+		if (traceBuffer != null) {
 
-			// Autocreate trace write, if first invocation
-			if (traceWriter == null) {
+			long bufferSequence = traceBuffer.claim();
 
-				// Retrieve output file name
-				String propertyValue = System.getProperties().getProperty("ch.hesge.csim2.tracefile");
+			if (bufferSequence >= 0) {
+				TraceEvent event = traceBuffer.get(bufferSequence);
+				event.set(traceType, timestamp, threadId, sequence, methodId, packagename, classname, methodName, parameterTypes, returnType, argumentsValues);
 
-				if (propertyValue != null) {
-					DEFAULT_TRACE_FILE = propertyValue;
+				if (argumentsObjects != null) {
+					event.setArguments(argumentsObjects, captureMode);
+				}
+
+				if (depth >= 0) {
+					event.setCall(depth, elapsed);
+				}
+
+				traceBuffer.publish(bufferSequence);
+			}
+		}
+
+		// Synchronous mode: add it to the trace file immediately
+		else {
+
+			TraceWriter writer = getWriter(threadState, threadId);
+
+			synchronized (writer) {
+
+				if (isClosed) {
+					return;
 				}
 
-				// Create the trace file
 				try {
-					Path filepath = Paths.get(DEFAULT_TRACE_FILE);
-					Files.createDirectories(filepath.getParent());
-					Files.deleteIfExists(filepath);
-					Files.createFile(filepath);
-					traceWriter = new FileWriter(filepath.toFile());
+					TraceEvent event = new TraceEvent();
+					event.set(traceType, timestamp, threadId, sequence, methodId, packagename, classname, methodName, parameterTypes, returnType, argumentsValues);
+
+					if (argumentsObjects != null) {
+						event.setArguments(argumentsObjects, captureMode);
+					}
+
+					if (depth >= 0) {
+						event.setCall(depth, elapsed);
+					}
+
+					writer.write(event);
+					writer.flush();
 				}
 				catch (IOException e) {
-					LOGGER.severe("unable to open trace file: " + e.toString() + " ! Exception: " + e.toString());
+					LOGGER.severe("error while creating a trace: " + e.toString() + " ! Exception: " + e.toString());
 				}
 			}
-			
-			// Clean classname and arguments content
-			classname = classname.replace("class ",  "");
-			argumentsValues = argumentsValues.replaceAll("\\r|\\n", " ");
-			
-			// Create the trace entry
-			String traceMessage = String.format((traceType == TRACE_ENTER ? TRACE_ENTER_FORMAT : TRACE_EXIT_FORMAT), timestamp, threadId, packagename, classname, methodName, parameterTypes, returnType, argumentsValues);
+		}
+	}
+
+	/**
+	 * Count a method entry or exit into the calling context tree of the thread
+	 */
+	private static void aggregate(TraceThreadState threadState, int traceType, int methodId, long timestamp) {
 
-			// Add it to the trace file
-			traceWriter.append(traceMessage);
-			traceWriter.flush();
+		TraceCallTree callTree = threadState.getCallTree();
+
+		if (traceType == TraceEvent.TRACE_ENTER) {
+			int frame = threadState.enter(methodId, timestamp, true);
+			callTree.enter(frame, methodId);
+		}
+		else {
+
+			int frame = threadState.exit(methodId);
+
+			if (frame >= 0) {
+				callTree.exit(frame, timestamp - threadState.getTimestamp(frame));
+			}
+
+			// Back to the thread root, hand over the tree to the merged one
+			if (frame == 0) {
+				callTree.fold();
+			}
+		}
+	}
+
+	/**
+	 * Write the number of calls of a method elided by the sampler
+	 */
+	private static void traceElided(int methodId, long timestamp, long threadId, long elidedCount) {
+
+		TraceThreadState threadState = TraceThreadState.get();
+		long sequence = threadState.nextSequence();
+
+		if (traceBuffer != null) {
+
+			long bufferSequence = traceBuffer.claim();
+
+			if (bufferSequence >= 0) {
+				TraceEvent event = traceBuffer.get(bufferSequence);
+				event.set(TraceEvent.TRACE_ELIDED, timestamp, threadId, sequence, methodId, null, null, null, null, null, "");
+				event.setElidedCount(elidedCount);
+				traceBuffer.publish(bufferSequence);
+			}
+		}
+		else {
+
+			TraceWriter writer = getWriter(threadState, threadId);
+
+			synchronized (writer) {
+
+				if (isClosed) {
+					return;
+				}
+
+				try {
+					TraceEvent event = new TraceEvent();
+					event.set(TraceEvent.TRACE_ELIDED, timestamp, threadId, sequence, methodId, null, null, null, null, null, "");
+					event.setElidedCount(elidedCount);
+					writer.write(event);
+					writer.flush();
+				}
+				catch (IOException e) {
+					LOGGER.severe("error while creating a trace: " + e.toString() + " ! Exception: " + e.toString());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write the number of calls collapsed by the thread, per method
+	 */
+	private static void traceCollapsed(TraceThreadState threadState, long timestamp, long threadId) {
+
+		for (int i = 0; i < threadState.getCollapsedMethodCount(); i++) {
+			traceElided(threadState.getCollapsedMethodId(i), timestamp, threadId, threadState.getCollapsedCount(i));
+		}
+
+		threadState.clearCollapsedCalls();
+	}
+
+	/**
+	 * Write the calls elided since the last window of each method,
+	 * before the trace file is closed
+	 */
+	private static void traceElidedCounts() {
+
+		long timestamp = System.nanoTime() - EPOCH_NANOS;
+		long threadId = TraceThreadState.get().getThreadId();
+
+		for (int methodId = 0; methodId < TraceSampler.size(); methodId++) {
+
+			long elidedCount = TraceSampler.takeElidedCount(methodId);
+
+			if (elidedCount > 0) {
+				traceElided(methodId, timestamp, threadId, elidedCount);
+			}
+		}
+	}
+
+	/**
+	 * Return the writer of a thread in synchronous mode, either
+	 * the trace file, or the shard assigned to the thread
+	 */
+	private static TraceWriter getWriter(TraceThreadState threadState, long threadId) {
+
+		if (traceShards == null) {
+			return traceWriter;
+		}
+
+		TraceWriter shardWriter = threadState.getShardWriter();
+
+		if (shardWriter == null) {
+			shardWriter = traceShards.getShard(threadId);
+			threadState.setShardWriter(shardWriter);
+		}
+
+		return shardWriter;
+	}
+
+	/**
+	 * Return the number of events written, for the TraceControl MBean
+	 */
+	static long getEventCount() {
+		return traceWriter != null ? traceWriter.getEventCount() : 0;
+	}
+
+	/**
+	 * Return the number of events dropped by the ring buffer, for the TraceControl MBean
+	 */
+	static long getDroppedCount() {
+		return traceBuffer != null ? traceBuffer.getDroppedCount() : 0;
+	}
+
+	/**
+	 * Return the number of bytes written, for the TraceControl MBean
+	 */
+	static long getByteCount() {
+		return traceWriter != null ? traceWriter.getByteCount() : 0;
+	}
+
+	/**
+	 * Close the trace file in synchronous mode, writing
+	 * the data still buffered by the trace writer
+	 */
+	private static void close() {
+
+		synchronized (traceWriter) {
+
+			try {
+				isClosed = true;
+				traceWriter.close();
+			}
+			catch (IOException e) {
+				LOGGER.severe("error while closing trace file: " + e.toString());
+			}
+		}
+	}
+
+	/**
+	 * Create the trace file and, in asynchronous mode, the ring buffer
+	 * with its drainer thread.
+	 */
+	private static synchronized void initialize() {
+
+		if (isInitialized) {
+			return;
+		}
+
+		// Retrieve output file name
+		String propertyValue = System.getProperties().getProperty("ch.hesge.csim2.tracefile");
+
+		if (propertyValue != null) {
+			DEFAULT_TRACE_FILE = propertyValue;
+		}
+
+		// Load method table, if generated by the instrumenter (the TraceAgent registers its methods instead)
+		Path methodFilepath = Paths.get(System.getProperties().getProperty("ch.hesge.csim2.methodfile", DEFAULT_METHOD_FILE));
+
+		if (TraceMethodTable.size() == 0 && Files.exists(methodFilepath)) {
+			try {
+				TraceMethodTable.load(methodFilepath);
+			}
+			catch (IOException e) {
+				LOGGER.severe("unable to load method table: " + e.toString());
+			}
+		}
+
+		// Expose trace points control through JMX
+		if (Boolean.parseBoolean(System.getProperties().getProperty("ch.hesge.csim2.tracejmx", "true"))) {
+			TraceControl.register();
+		}
+
+		// Retrieve argument capture policy
+		String captureMode = System.getProperties().getProperty("ch.hesge.csim2.capture", DEFAULT_CAPTURE_MODE);
+		int captureLength = Integer.getInteger("ch.hesge.csim2.capturelength", TraceArguments.DEFAULT_CAPTURE_LENGTH);
+		int captureSampling = Integer.getInteger("ch.hesge.csim2.capturesampling", TraceArguments.DEFAULT_SAMPLING_RATE);
+		TraceArguments.initialize(captureMode, captureLength, captureSampling, TraceMethodTable.size());
+
+		// Retrieve hot-method suppression policy
+		int samplingBudget = Integer.getInteger("ch.hesge.csim2.samplingbudget", TraceSampler.DEFAULT_SAMPLING_BUDGET);
+		long samplingWindow = Long.getLong("ch.hesge.csim2.samplingwindow", TraceSampler.DEFAULT_SAMPLING_WINDOW);
+		int samplingRate = Integer.getInteger("ch.hesge.csim2.samplingrate", TraceSampler.DEFAULT_SAMPLING_RATE);
+		TraceSampler.initialize(samplingBudget, samplingWindow, samplingRate, TraceMethodTable.size());
+
+		// Retrieve deep and recursive calls collapse policy
+		int maxDepth = Integer.getInteger("ch.hesge.csim2.tracedepth", TraceThreadState.DEFAULT_MAX_DEPTH);
+		int maxRecursion = Integer.getInteger("ch.hesge.csim2.tracerecursion", TraceThreadState.DEFAULT_MAX_RECURSION);
+		TraceThreadState.initialize(maxDepth, maxRecursion);
+
+		String traceMode = System.getProperties().getProperty("ch.hesge.csim2.tracemode", DEFAULT_TRACE_MODE);
+		String traceFormat = System.getProperties().getProperty("ch.hesge.csim2.traceformat", DEFAULT_TRACE_FORMAT);
+		int bufferSize = Integer.getInteger("ch.hesge.csim2.tracebuffer", DEFAULT_TRACE_BUFFER);
+		long segmentSize = Long.getLong("ch.hesge.csim2.tracesegmentsize", 0L);
+		int segmentCount = Integer.getInteger("ch.hesge.csim2.tracesegmentcount", 0);
+		int blockSize = Integer.getInteger("ch.hesge.csim2.traceblocksize", 0);
+		int shardCount = getShardCount(System.getProperties().getProperty("ch.hesge.csim2.traceshards", "0"));
+		String socketAddress = System.getProperties().getProperty("ch.hesge.csim2.tracesocket");
+		String sourceName = System.getProperties().getProperty("ch.hesge.csim2.tracesource", ManagementFactory.getRuntimeMXBean().getName());
+
+		// Retrieve argument values interning policy, applied by all trace writers
+		TraceValueDictionary.initialize(Integer.getInteger("ch.hesge.csim2.tracedictionary", TraceValueDictionary.DEFAULT_CAPACITY));
+
+		// Create the trace file
+		try {
+			Path filepath = Paths.get(DEFAULT_TRACE_FILE).toAbsolutePath();
+			Files.createDirectories(filepath.getParent());
+			Files.deleteIfExists(filepath);
+
+			// Tree mode: no event written, the tree file is created at exit
+			if (traceMode.equalsIgnoreCase("tree")) {
+				initializeTree(filepath);
+				isInitialized = true;
+				return;
+			}
+
+			if (socketAddress != null) {
+				traceWriter = new TraceSocketWriter(socketAddress, sourceName, !traceMode.equalsIgnoreCase("async"));
+			}
+			else if (shardCount != 0) {
+				traceShards = new TraceShardWriter(filepath, traceFormat.equalsIgnoreCase("binary"), shardCount);
+				traceWriter = traceShards;
+			}
+			else if (segmentSize > 0) {
+				traceWriter = new TraceSegmentWriter(filepath, traceFormat.equalsIgnoreCase("binary"), segmentSize, segmentCount);
+			}
+			else if (blockSize > 0) {
+				traceWriter = new TraceBlockWriter(filepath, traceFormat.equalsIgnoreCase("binary"), blockSize);
+			}
+			else if (traceFormat.equalsIgnoreCase("binary")) {
+				Files.createFile(filepath);
+				traceWriter = new TraceBinaryWriter(new FileOutputStream(filepath.toFile()));
+			}
+			else {
+				Files.createFile(filepath);
+				traceWriter = new TraceTextWriter(new FileOutputStream(filepath.toFile()));
+			}
+
+			traceWriter.writeHeader(EPOCH_MILLIS);
+
+			if (traceMode.equalsIgnoreCase("async")) {
+				traceBuffer = new TraceRingBuffer(bufferSize, traceWriter);
+				traceBuffer.start();
+			}
+
+			// Flush pending events and elided counts when the application stops
+			Runtime.getRuntime().addShutdownHook(new Thread("sedypro-trace-shutdown") {
+				@Override
+				public void run() {
+
+					traceElidedCounts();
+
+					if (traceBuffer != null) {
+						traceBuffer.close();
+					}
+					else {
+						close();
+					}
+
+					// Report on stderr, since logging handlers may already be closed at shutdown
+					if (TraceThreadState.getUnmatchedCount() > 0) {
+						System.err.println("TraceLogger: " + TraceThreadState.getUnmatchedCount() + " method calls without matching entry or exit");
+					}
+				}
+			});
 		}
 		catch (IOException e) {
-			LOGGER.severe("error while creating a trace: " + e.toString() + " ! Exception: " + e.toString());
+			LOGGER.severe("unable to open trace file: " + e.toString() + " ! Exception: " + e.toString());
+		}
+
+		isInitialized = true;
+	}
+
+	/**
+	 * Switch to tree mode, writing the merged calling context
+	 * trees of all threads when the application stops.
+	 */
+	private static void initializeTree(final Path filepath) {
+
+		isTreeMode = true;
+
+		Runtime.getRuntime().addShutdownHook(new Thread("sedypro-trace-shutdown") {
+			@Override
+			public void run() {
+
+				try {
+					TraceCallTree.write(filepath, EPOCH_MILLIS);
+				}
+				catch (IOException e) {
+					System.err.println("TraceLogger: unable to write calling context tree: " + e.toString());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Convert the shard property into a number of shards
+	 */
+	private static int getShardCount(String propertyValue) {
+
+		if (propertyValue.equalsIgnoreCase("thread")) {
+			return TraceShardWriter.SHARD_PER_THREAD;
+		}
+
+		try {
+			return Math.max(0, Integer.parseInt(propertyValue.trim()));
+		}
+		catch (NumberFormatException e) {
+			LOGGER.severe("invalid trace shards: " + propertyValue);
 		}
+
+		return 0;
 	}
 }
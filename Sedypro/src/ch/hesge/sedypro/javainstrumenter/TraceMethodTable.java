@@ -0,0 +1,182 @@
+package ch.hesge.sedypro.javainstrumenter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Method table mapping the integer ids assigned by the JavaInstrumenter
+ * to the package, class, method, parameters and return type they stand for.
+ *
+ * The table is written by the instrumenter as a sidecar file, one method per
+ * line with tab separated fields:
+ *
+ * <code>
+ * 		id	package	classname	method	parameters	returntype	capture
+ * </code>
+ *
+ * The capture column holds the argument capture mode chosen at
+ * instrumentation time (see TraceArguments), full if missing.
+ *
+ * Classes rewritten by the TraceAgent register their methods when they
+ * are loaded, instead of a sidecar file.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceMethodTable {
+
+	// Private attributes
+	private static volatile String[][] methods = new String[0][];
+	private static volatile int[] captureModes = new int[0];
+
+	// Public constants
+	public static final String DEFAULT_METHOD_FILE = "sedypro-methods.txt";
+	public static final int PACKAGE    = 0;
+	public static final int CLASSNAME  = 1;
+	public static final int METHOD     = 2;
+	public static final int PARAMETERS = 3;
+	public static final int RETURNTYPE = 4;
+	public static final int CAPTURE    = 5;
+
+	/**
+	 * Load the method table sidecar file.
+	 *
+	 * @param filepath
+	 * @throws IOException
+	 */
+	public static void load(Path filepath) throws IOException {
+
+		String[][] entries = readMethods(filepath);
+		int[] modes = new int[entries.length];
+
+		for (int i = 0; i < entries.length; i++) {
+			modes[i] = entries[i] != null ? TraceArguments.parseCaptureMode(entries[i][CAPTURE]) : TraceArguments.CAPTURE_FULL;
+		}
+
+		methods = entries;
+		captureModes = modes;
+	}
+
+	/**
+	 * Append the methods of a class, assigning them consecutive ids.
+	 *
+	 * @param entries
+	 *        the method fields (see field indexes above)
+	 * @return the id of the first method
+	 */
+	public static synchronized int register(String[][] entries) {
+
+		int firstMethodId = methods.length;
+		String[][] newMethods = Arrays.copyOf(methods, firstMethodId + entries.length);
+		int[] newModes = Arrays.copyOf(captureModes, firstMethodId + entries.length);
+
+		for (int i = 0; i < entries.length; i++) {
+			newMethods[firstMethodId + i] = entries[i];
+			newModes[firstMethodId + i] = TraceArguments.parseCaptureMode(entries[i][CAPTURE]);
+		}
+
+		// Modes first, since readers check the id against methods
+		captureModes = newModes;
+		methods = newMethods;
+
+		// Per-method tables sized at startup must also cover the new methods
+		TraceSampler.grow(newMethods.length);
+		TraceArguments.grow(newMethods.length);
+		TraceControl.update();
+
+		return firstMethodId;
+	}
+
+	/**
+	 * Return the number of methods known.
+	 */
+	public static int size() {
+		return methods.length;
+	}
+
+	/**
+	 * Return the description of a method (see field indexes above).
+	 *
+	 * @param methodId
+	 * @return the method fields, or a placeholder if the id is unknown
+	 */
+	public static String[] get(int methodId) {
+
+		if (methodId >= 0 && methodId < methods.length && methods[methodId] != null) {
+			return methods[methodId];
+		}
+
+		return new String[] { "unknown", "Method" + methodId + "#Object", "method" + methodId, "", "void", "full" };
+	}
+
+	/**
+	 * Return the argument capture mode chosen at instrumentation time.
+	 *
+	 * @param methodId
+	 * @return the capture mode, or CAPTURE_FULL if the id is unknown
+	 */
+	public static int getCaptureMode(int methodId) {
+
+		int[] modes = captureModes;
+
+		if (methodId >= 0 && methodId < modes.length) {
+			return modes[methodId];
+		}
+
+		return TraceArguments.CAPTURE_FULL;
+	}
+
+	/**
+	 * Parse a method table file.
+	 *
+	 * @param filepath
+	 * @return the methods indexed by their id
+	 * @throws IOException
+	 */
+	public static String[][] readMethods(Path filepath) throws IOException {
+
+		List<String[]> entries = new ArrayList<>();
+
+		try (BufferedReader reader = Files.newBufferedReader(filepath, Charset.forName("UTF-8"))) {
+
+			String textLine;
+
+			while ((textLine = reader.readLine()) != null) {
+
+				String[] fields = textLine.split("\t", -1);
+
+				if (fields.length == 6 || fields.length == 7) {
+
+					int methodId = Integer.parseInt(fields[0]);
+					String capture = fields.length == 7 ? fields[6] : "full";
+
+					while (entries.size() <= methodId) {
+						entries.add(null);
+					}
+
+					entries.set(methodId, new String[] { fields[1], fields[2], fields[3], fields[4], fields[5], capture });
+				}
+			}
+		}
+
+		return entries.toArray(new String[entries.size()][]);
+	}
+
+	/**
+	 * Format a single method table line.
+	 *
+	 * @param methodId
+	 * @param method
+	 * @return the line (without line separator)
+	 */
+	public static String formatMethod(int methodId, String[] method) {
+		return methodId + "\t" + method[PACKAGE] + "\t" + method[CLASSNAME] + "\t" + method[METHOD] + "\t" + method[PARAMETERS] + "\t" + method[RETURNTYPE] + "\t" + method[CAPTURE];
+	}
+}
@@ -0,0 +1,133 @@
+package ch.hesge.sedypro.javainstrumenter;
+
+import java.nio.charset.Charset;
+
+/**
+ * Static parts of the text trace lines of each instrumented method,
+ * encoded once, so that the TraceTextWriter only appends the timestamp,
+ * thread, sequence and arguments of an event.
+ *
+ * The JavaInstrumenter generates this class for the project instrumented,
+ * filling CHUNKS from the method table. This version holds no method: lines
+ * are then rendered from the method table, event by event.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TracePrefixes {
+
+	// Rendered methods, one line per method id, generated by the JavaInstrumenter
+	private static final String[] CHUNKS = {
+	};
+
+	// Encoded parts, indexed by method id
+	private static final byte[][] HEADS;
+	private static final byte[][] TAILS;
+
+	// Public constants
+	public static final int MAX_CHUNK_LENGTH = 32 * 1024;
+	public static final char LINE_SEPARATOR = '\n';
+	public static final char PART_SEPARATOR = '\t';
+
+	// Private constants
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/*
+	 * Each event line is made of the following parts, head and tail only
+	 * depending on the method:
+	 *
+	 * <code>
+	 * 		head = package + ' ' + classname + '     ['
+	 * 		tail = '] ' + method + '(' + parameters + ') AS ' + return + ' ['
+	 *
+	 * 		line = [END |# ELIDED ] + head + threadId + '/' + sequence + tail + tstamp + '] ' + arguments
+	 * </code>
+	 *
+	 * Chunks hold 'head \t tail' lines separated by '\n', several methods
+	 * per string constant, so that the class initializer stays small. Each
+	 * chunk takes at most MAX_CHUNK_LENGTH bytes once encoded in the class
+	 * file (modified UTF-8), a longer line continuing in the next chunk.
+	 */
+
+	static {
+
+		int methodCount = 0;
+
+		for (String chunk : CHUNKS) {
+			for (int i = 0; i < chunk.length(); i++) {
+				if (chunk.charAt(i) == LINE_SEPARATOR) {
+					methodCount++;
+				}
+			}
+		}
+
+		HEADS = new byte[methodCount][];
+		TAILS = new byte[methodCount][];
+
+		int methodId = 0;
+		String pendingLine = "";
+
+		for (String chunk : CHUNKS) {
+
+			int start = 0;
+			int end;
+
+			while ((end = chunk.indexOf(LINE_SEPARATOR, start)) >= 0) {
+				String line = pendingLine.isEmpty() ? chunk.substring(start, end) : pendingLine + chunk.substring(start, end);
+				int separator = line.indexOf(PART_SEPARATOR);
+				HEADS[methodId] = line.substring(0, separator).getBytes(UTF8);
+				TAILS[methodId] = line.substring(separator + 1).getBytes(UTF8);
+				methodId++;
+				pendingLine = "";
+				start = end + 1;
+			}
+
+			// Line continued in the next chunk
+			pendingLine += chunk.substring(start);
+		}
+	}
+
+	/**
+	 * Return the encoded head of the lines of a method.
+	 *
+	 * @param methodId
+	 * @return the head, or null if not generated for the method
+	 */
+	public static byte[] getHead(int methodId) {
+		return methodId >= 0 && methodId < HEADS.length ? HEADS[methodId] : null;
+	}
+
+	/**
+	 * Return the encoded tail of the lines of a method.
+	 *
+	 * @param methodId
+	 * @return the tail, or null if not generated for the method
+	 */
+	public static byte[] getTail(int methodId) {
+		return methodId >= 0 && methodId < TAILS.length ? TAILS[methodId] : null;
+	}
+
+	/**
+	 * Render the head of the lines of a method.
+	 *
+	 * @param packagename
+	 * @param classname
+	 * @return the head
+	 */
+	public static String renderHead(String packagename, String classname) {
+		return packagename + " " + classname.replace("class ", "") + "     [";
+	}
+
+	/**
+	 * Render the tail of the lines of a method.
+	 *
+	 * @param methodName
+	 * @param parameterTypes
+	 * @param returnType
+	 * @return the tail
+	 */
+	public static String renderTail(String methodName, String parameterTypes, String returnType) {
+		return "] " + methodName + "(" + parameterTypes + ") AS " + returnType + " [";
+	}
+}
@@ -0,0 +1,169 @@
+package ch.hesge.sedypro.javainstrumenter;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-method call-rate budget used to suppress hot methods.
+ *
+ * Each method may be traced samplingBudget times within a window of
+ * samplingWindow milliseconds. Once its budget is exhausted, further calls
+ * are elided (or only one out of samplingRate is kept) until the next
+ * window starts. The number of elided calls is handed back to the logger,
+ * so that it can be recorded in the trace.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceSampler {
+
+	// Public constants
+	public static final int DEFAULT_SAMPLING_BUDGET = 0;
+	public static final int DEFAULT_SAMPLING_WINDOW = 1000;
+	public static final int DEFAULT_SAMPLING_RATE   = 0;
+
+	// Private attributes
+	private static int samplingBudget = DEFAULT_SAMPLING_BUDGET;
+	private static long samplingWindow = DEFAULT_SAMPLING_WINDOW * 1000000L;
+	private static int samplingRate = DEFAULT_SAMPLING_RATE;
+	private static volatile AtomicLongArray windowStarts = new AtomicLongArray(0);
+	private static volatile AtomicIntegerArray windowCalls = new AtomicIntegerArray(0);
+	private static volatile AtomicLongArray elidedCounts = new AtomicLongArray(0);
+
+	/*
+	 * Sampling parameters:
+	 *
+	 * <code>
+	 * 		samplingBudget = number of calls traced per method and per window (0 = no sampling)
+	 * 		samplingWindow = window duration in milliseconds
+	 * 		samplingRate   = once the budget is exhausted, one call out of samplingRate
+	 * 		                 is still traced (0 = all calls elided)
+	 * </code>
+	 */
+
+	/**
+	 * Initialize the sampling policy.
+	 *
+	 * @param budget
+	 * @param window
+	 * @param rate
+	 * @param methodCount
+	 *        number of methods in the method table
+	 */
+	public static synchronized void initialize(int budget, long window, int rate, int methodCount) {
+		samplingBudget = Math.max(0, budget);
+		samplingWindow = Math.max(1, window) * 1000000L;
+		samplingRate = Math.max(0, rate);
+		windowStarts = new AtomicLongArray(methodCount);
+		windowCalls = new AtomicIntegerArray(methodCount);
+		elidedCounts = new AtomicLongArray(methodCount);
+	}
+
+	/**
+	 * Extend the tables to methods registered after initialization (see
+	 * TraceMethodTable.register), keeping the counts of the known methods.
+	 * Calls counted while the tables are copied may be lost.
+	 *
+	 * @param methodCount
+	 *        number of methods in the method table
+	 */
+	public static synchronized void grow(int methodCount) {
+
+		if (methodCount <= elidedCounts.length()) {
+			return;
+		}
+
+		AtomicLongArray newWindowStarts = new AtomicLongArray(methodCount);
+		AtomicIntegerArray newWindowCalls = new AtomicIntegerArray(methodCount);
+		AtomicLongArray newElidedCounts = new AtomicLongArray(methodCount);
+
+		for (int methodId = 0; methodId < elidedCounts.length(); methodId++) {
+			newWindowStarts.set(methodId, windowStarts.get(methodId));
+			newWindowCalls.set(methodId, windowCalls.get(methodId));
+			newElidedCounts.set(methodId, elidedCounts.get(methodId));
+		}
+
+		windowStarts = newWindowStarts;
+		windowCalls = newWindowCalls;
+		elidedCounts = newElidedCounts;
+	}
+
+	/**
+	 * Check if sampling is active.
+	 */
+	public static boolean isEnabled() {
+		return samplingBudget > 0;
+	}
+
+	/**
+	 * Start a new window for the method, if the current one is over.
+	 *
+	 * @param methodId
+	 * @param timestamp
+	 *        current time in nanoseconds since the trace epoch
+	 * @return the number of calls elided during the previous window, to be
+	 *         recorded by the caller
+	 */
+	public static long checkWindow(int methodId, long timestamp) {
+
+		if (methodId < 0 || methodId >= windowStarts.length()) {
+			return 0;
+		}
+
+		long windowStart = windowStarts.get(methodId);
+
+		// Only one thread opens the new window
+		if (timestamp - windowStart >= samplingWindow && windowStarts.compareAndSet(methodId, windowStart, timestamp)) {
+			windowCalls.set(methodId, 0);
+			return elidedCounts.getAndSet(methodId, 0);
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Count a new call of the method and check if it should be traced.
+	 *
+	 * @param methodId
+	 * @return true if the call is traced, false if it is elided
+	 */
+	public static boolean isTraced(int methodId) {
+
+		if (methodId < 0 || methodId >= windowCalls.length()) {
+			return true;
+		}
+
+		int calls = windowCalls.incrementAndGet(methodId);
+
+		if (calls <= samplingBudget || (samplingRate > 0 && (calls - samplingBudget) % samplingRate == 0)) {
+			return true;
+		}
+
+		elidedCounts.incrementAndGet(methodId);
+		return false;
+	}
+
+	/**
+	 * Retrieve and reset the number of calls elided since the last window
+	 * for the method, used to record pending counts when the trace is closed.
+	 *
+	 * @param methodId
+	 * @return the number of calls elided
+	 */
+	public static long takeElidedCount(int methodId) {
+
+		if (methodId < 0 || methodId >= elidedCounts.length()) {
+			return 0;
+		}
+
+		return elidedCounts.getAndSet(methodId, 0);
+	}
+
+	/**
+	 * Return the number of methods tracked.
+	 */
+	public static int size() {
+		return elidedCounts.length();
+	}
+}
@@ -0,0 +1,282 @@
+package ch.hesge.sedypro.javainstrumenter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Write trace events into fixed-size memory-mapped segments.
+ *
+ * Segments are numbered files (trace.log.000001, trace.log.000002, ...)
+ * rolling over once full. Each segment is a self-contained trace (text or
+ * binary) starting with its own header, so that the oldest segments can be
+ * deleted when only the last segmentCount ones are kept.
+ *
+ * Events are copied into the mapped pages only, without any flush: the
+ * operating system persists them even if the JVM is killed. The number of
+ * valid bytes is updated at the start of the segment after each event.
+ *
+ * The manifest (trace.log.manifest) lists the segments in order and is
+ * rewritten atomically each time a segment is added or deleted.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceSegmentWriter extends TraceWriter {
+
+	// Private attributes
+	private Path tracePath;
+	private boolean isBinary;
+	private long segmentSize;
+	private int segmentCount;
+	private long epochMillis;
+	private int segmentIndex;
+	private LinkedList<Path> segments;
+	private MappedByteBuffer segment;
+	private TraceWriter encoder;
+	private EventBuffer eventBuffer;
+	private long droppedCount;
+
+	// Public constants
+	public static final String MANIFEST_EXTENSION = ".manifest";
+	public static final String MANIFEST_HEADER = "# SEGMENTS";
+	public static final int SEGMENT_HEADER_SIZE = 8;
+
+	// Private constants
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/*
+	 * Segment layout:
+	 *
+	 * <code>
+	 * 		segment  = long(number of valid bytes) trace-bytes (zero padded up to segmentSize)
+	 * 		manifest = '# SEGMENTS' segmentSize
+	 * 		           segment filename (one per line, oldest first)
+	 * </code>
+	 */
+
+	/**
+	 * Create a segment writer, removing segments left by a previous capture.
+	 *
+	 * @param tracePath
+	 *        the trace file path, used as prefix for segments and manifest
+	 * @param isBinary
+	 *        true for binary segments, false for text segments
+	 * @param segmentSize
+	 *        size of each segment, in bytes
+	 * @param segmentCount
+	 *        number of segments kept (0 = unlimited)
+	 * @throws IOException
+	 */
+	public TraceSegmentWriter(Path tracePath, boolean isBinary, long segmentSize, int segmentCount) throws IOException {
+
+		this.tracePath = tracePath;
+		this.isBinary = isBinary;
+		this.segmentSize = Math.max(segmentSize, SEGMENT_HEADER_SIZE + 4096);
+		this.segmentCount = Math.max(0, segmentCount);
+
+		segments = new LinkedList<>();
+		eventBuffer = new EventBuffer();
+
+		// Remove previous segments
+		try (DirectoryStream<Path> oldSegments = Files.newDirectoryStream(tracePath.getParent(), tracePath.getFileName() + ".[0-9][0-9][0-9][0-9][0-9][0-9]")) {
+			for (Path oldSegment : oldSegments) {
+				Files.delete(oldSegment);
+			}
+		}
+
+		Files.deleteIfExists(getManifestPath(tracePath));
+	}
+
+	/**
+	 * Return the manifest path of a segmented trace.
+	 *
+	 * @param tracePath
+	 * @return the manifest path
+	 */
+	public static Path getManifestPath(Path tracePath) {
+		return tracePath.resolveSibling(tracePath.getFileName() + MANIFEST_EXTENSION);
+	}
+
+	/**
+	 * Open the first segment and write its header.
+	 *
+	 * @param epochMillis
+	 * @throws IOException
+	 */
+	@Override
+	public void writeHeader(long epochMillis) throws IOException {
+		this.epochMillis = epochMillis;
+		rollSegment();
+	}
+
+	/**
+	 * Append a single event to the current segment, rolling over
+	 * to a new segment if it doesn't fit.
+	 *
+	 * @param event
+	 * @throws IOException
+	 */
+	@Override
+	public void write(TraceEvent event) throws IOException {
+
+		eventBuffer.reset();
+		encoder.write(event);
+		encoder.flush();
+
+		if (eventBuffer.size() > segment.remaining()) {
+
+			eventBuffer.reset();
+			rollSegment();
+
+			encoder.write(event);
+			encoder.flush();
+
+			// Event larger than a whole segment, also drop the strings the encoder defined for it
+			if (eventBuffer.size() > segment.remaining()) {
+				eventBuffer.reset();
+				encoder = createEncoder();
+				droppedCount++;
+				return;
+			}
+		}
+
+		appendBuffer();
+		eventCount++;
+	}
+
+	/**
+	 * Nothing to do, mapped pages are persisted by the operating system.
+	 */
+	@Override
+	public void flush() throws IOException {
+	}
+
+	/**
+	 * Force the current segment to disk.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (segment != null) {
+			segment.force();
+		}
+
+		if (droppedCount > 0) {
+			System.err.println("TraceLogger: " + droppedCount + " trace events dropped (larger than a segment of " + segmentSize + " bytes)");
+		}
+	}
+
+	/**
+	 * Map a new segment, write its header, delete the oldest segment
+	 * if needed, and update the manifest.
+	 *
+	 * @throws IOException
+	 */
+	private void rollSegment() throws IOException {
+
+		if (segment != null) {
+			segment.force();
+		}
+
+		// Map the new segment
+		Path segmentPath = tracePath.resolveSibling(String.format("%s.%06d", tracePath.getFileName(), ++segmentIndex));
+
+		try (FileChannel channel = FileChannel.open(segmentPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		}
+
+		segment.putLong(0, 0);
+		segment.position(SEGMENT_HEADER_SIZE);
+		segments.add(segmentPath);
+
+		// Drop the oldest segment
+		if (segmentCount > 0 && segments.size() > segmentCount) {
+			Files.deleteIfExists(segments.removeFirst());
+		}
+
+		writeManifest();
+
+		// Each segment has its own encoder (and binary string table)
+		encoder = createEncoder();
+		encoder.writeHeader(epochMillis);
+		encoder.flush();
+		appendBuffer();
+	}
+
+	/**
+	 * Create an encoder writing into the event buffer, without any string
+	 * defined yet.
+	 *
+	 * @throws IOException
+	 */
+	private TraceWriter createEncoder() throws IOException {
+		return isBinary ? new TraceBinaryWriter(eventBuffer) : new TraceTextWriter(eventBuffer);
+	}
+
+	/**
+	 * Copy the encoded bytes into the segment, then publish the new length.
+	 */
+	private void appendBuffer() {
+		segment.put(eventBuffer.getBytes(), 0, eventBuffer.size());
+		segment.putLong(0, segment.position() - SEGMENT_HEADER_SIZE);
+		byteCount += eventBuffer.size();
+		eventBuffer.reset();
+	}
+
+	/**
+	 * Rewrite the manifest listing all segments, oldest first.
+	 *
+	 * @throws IOException
+	 */
+	private void writeManifest() throws IOException {
+
+		List<String> lines = new ArrayList<>();
+		lines.add(MANIFEST_HEADER + " " + segmentSize);
+
+		for (Path segmentPath : segments) {
+			lines.add(segmentPath.getFileName().toString());
+		}
+
+		Path manifestPath = getManifestPath(tracePath);
+		Path tempPath = manifestPath.resolveSibling(manifestPath.getFileName() + ".tmp");
+
+		Files.write(tempPath, lines, UTF8);
+
+		// Not supported by every file system, the manifest is then replaced
+		try {
+			Files.move(tempPath, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException e) {
+			Files.move(tempPath, manifestPath, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Reusable buffer receiving the bytes of a single event.
+	 */
+	private static class EventBuffer extends ByteArrayOutputStream {
+
+		private EventBuffer() {
+			super(4096);
+		}
+
+		private byte[] getBytes() {
+			return buf;
+		}
+	}
+}
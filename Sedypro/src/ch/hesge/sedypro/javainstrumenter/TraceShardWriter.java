@@ -0,0 +1,296 @@
+package ch.hesge.sedypro.javainstrumenter;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Write trace events into one shard file per thread, or per group of threads.
+ *
+ * Each shard is a self-contained trace (text or binary) with its own header
+ * and its own lock, so that threads writing to different shards never wait
+ * for each other. Shards are named after the trace file and the thread
+ * (or group) id: trace.log.shard0001, trace.log.shard0012, ...
+ *
+ * Shards stay open until the writer is closed. With one shard per thread,
+ * at most MAX_THREAD_SHARDS shards are created, so that an application
+ * starting many short-lived threads doesn't run out of file descriptors:
+ * threads beyond this number share the shards of the first ones.
+ *
+ * All shards share the same epoch, so that a reader can merge them back
+ * into a single stream ordered by timestamp. Once the writer is closed, no
+ * shard is created anymore: events of threads without a shard are dropped.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceShardWriter extends TraceWriter {
+
+	// Private attributes
+	private Path tracePath;
+	private boolean isBinary;
+	private int shardCount;
+	private long epochMillis;
+	private Map<Long, Shard> shards;
+	private boolean isClosed;
+
+	// Public constants
+	public static final String SHARD_EXTENSION = ".shard";
+	public static final int SHARD_PER_THREAD = -1;
+	public static final int MAX_THREAD_SHARDS = 256;
+
+	// Private constants
+	private static final Shard CLOSED_SHARD = new Shard(null);
+
+	// Create a trace logger
+	private static final Logger LOGGER = Logger.getLogger(TraceShardWriter.class.getName());
+
+	/**
+	 * Create a shard writer, removing shards left by a previous capture.
+	 *
+	 * @param tracePath
+	 *        the trace file path, used as prefix for shards
+	 * @param isBinary
+	 *        true for binary shards, false for text shards
+	 * @param shardCount
+	 *        number of shards, threads being spread by id,
+	 *        or SHARD_PER_THREAD for one shard per thread
+	 * @throws IOException
+	 */
+	public TraceShardWriter(Path tracePath, boolean isBinary, int shardCount) throws IOException {
+
+		this.tracePath = tracePath;
+		this.isBinary = isBinary;
+		this.shardCount = shardCount;
+
+		shards = new ConcurrentHashMap<>();
+
+		for (Path oldShard : getShardPaths(tracePath)) {
+			Files.delete(oldShard);
+		}
+	}
+
+	/**
+	 * Return all shards of a trace, in shard id order.
+	 *
+	 * @param tracePath
+	 * @return the shard paths
+	 * @throws IOException
+	 */
+	public static List<Path> getShardPaths(Path tracePath) throws IOException {
+
+		List<Path> shardPaths = new ArrayList<>();
+
+		if (!Files.isDirectory(tracePath.toAbsolutePath().getParent())) {
+			return shardPaths;
+		}
+
+		try (DirectoryStream<Path> shardFiles = Files.newDirectoryStream(tracePath.toAbsolutePath().getParent(), tracePath.getFileName() + SHARD_EXTENSION + "[0-9]*")) {
+			for (Path shardFile : shardFiles) {
+				shardPaths.add(shardFile);
+			}
+		}
+
+		Collections.sort(shardPaths);
+
+		return shardPaths;
+	}
+
+	/**
+	 * Keep the epoch, written at the start of each shard.
+	 *
+	 * @param epochMillis
+	 */
+	@Override
+	public void writeHeader(long epochMillis) throws IOException {
+		this.epochMillis = epochMillis;
+	}
+
+	/**
+	 * Return the shard of a thread, creating it on first use.
+	 *
+	 * The shard is locked by the threads writing to it,
+	 * in place of the whole trace.
+	 *
+	 * @param threadId
+	 * @return the shard writer, dropping all events once the writer is closed
+	 */
+	public TraceWriter getShard(long threadId) {
+
+		long shardId = shardCount == SHARD_PER_THREAD ? (threadId - 1) % MAX_THREAD_SHARDS + 1 : threadId % shardCount;
+		Shard shard = shards.get(shardId);
+
+		if (shard == null) {
+
+			synchronized (shards) {
+
+				shard = shards.get(shardId);
+
+				// Late event, after the shards were closed and listed
+				if (isClosed) {
+					return CLOSED_SHARD;
+				}
+
+				if (shard == null) {
+					shard = new Shard(openShard(shardId));
+					shards.put(shardId, shard);
+				}
+			}
+		}
+
+		return shard;
+	}
+
+	/**
+	 * Write an event into the shard of its thread.
+	 *
+	 * @param event
+	 * @throws IOException
+	 */
+	@Override
+	public void write(TraceEvent event) throws IOException {
+		getShard(event.getThreadId()).write(event);
+	}
+
+	/**
+	 * Push the buffered events of all shards.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void flush() throws IOException {
+		for (Shard shard : shards.values()) {
+			shard.flush();
+		}
+	}
+
+	/**
+	 * Close all shards.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+
+		synchronized (shards) {
+			isClosed = true;
+		}
+
+		for (Shard shard : shards.values()) {
+			shard.close();
+		}
+	}
+
+	/**
+	 * Return the number of events written into all shards.
+	 */
+	@Override
+	public long getEventCount() {
+
+		long count = 0;
+
+		for (Shard shard : shards.values()) {
+			count += shard.getEventCount();
+		}
+
+		return count;
+	}
+
+	/**
+	 * Return the number of bytes written into all shards.
+	 */
+	@Override
+	public long getByteCount() {
+
+		long count = 0;
+
+		for (Shard shard : shards.values()) {
+			count += shard.getByteCount();
+		}
+
+		return count;
+	}
+
+	/**
+	 * Create the file of a shard and write its header.
+	 *
+	 * @param shardId
+	 * @return the shard writer, or null if the file can't be created
+	 */
+	private TraceWriter openShard(long shardId) {
+
+		Path shardPath = tracePath.resolveSibling(String.format("%s%s%04d", tracePath.getFileName(), SHARD_EXTENSION, shardId));
+
+		try {
+
+			TraceWriter writer = isBinary ? new TraceBinaryWriter(new FileOutputStream(shardPath.toFile())) : new TraceTextWriter(new FileOutputStream(shardPath.toFile()));
+			writer.writeHeader(epochMillis);
+
+			return writer;
+		}
+		catch (IOException e) {
+			LOGGER.severe("unable to open trace shard: " + e.toString());
+		}
+
+		return null;
+	}
+
+	/**
+	 * A single shard, with its own lock.
+	 */
+	private static class Shard extends TraceWriter {
+
+		private TraceWriter writer;
+		private boolean isClosed;
+
+		private Shard(TraceWriter writer) {
+			this.writer = writer;
+			this.isClosed = writer == null;
+		}
+
+		@Override
+		public void writeHeader(long epochMillis) throws IOException {
+		}
+
+		@Override
+		public synchronized void write(TraceEvent event) throws IOException {
+			if (!isClosed) {
+				writer.write(event);
+			}
+		}
+
+		@Override
+		public synchronized void flush() throws IOException {
+			if (!isClosed) {
+				writer.flush();
+			}
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			if (!isClosed) {
+				isClosed = true;
+				writer.close();
+			}
+		}
+
+		@Override
+		public long getEventCount() {
+			return writer != null ? writer.getEventCount() : 0;
+		}
+
+		@Override
+		public long getByteCount() {
+			return writer != null ? writer.getByteCount() : 0;
+		}
+	}
+}
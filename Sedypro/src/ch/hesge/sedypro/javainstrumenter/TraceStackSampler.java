@@ -0,0 +1,533 @@
+package ch.hesge.sedypro.javainstrumenter;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Capture traces without any instrumentation, by sampling thread stacks.
+ *
+ * A daemon thread takes a snapshot of all thread stacks every interval
+ * milliseconds. Successive snapshots of a thread are compared frame by frame
+ * from the root: frames gone since the previous snapshot are written as
+ * exits, new frames as entries. The trace is a regular text trace (paired
+ * exits), read by the TraceTextReader and cleaned by the TraceCleaner as any
+ * instrumented trace.
+ *
+ * Calls shorter than the interval are mostly missed, and a method called
+ * twice between two snapshots is seen as a single call. Parameters and
+ * argument values are unknown. In return, the overhead only depends on the
+ * interval (and on the number and depth of threads), not on the call rate.
+ *
+ * Frames are named as the JavaInstrumenter names the methods it instruments
+ * (see JavaInstrumenterUtils.getMethodEntry), from the classes loaded.
+ * Frames of code not declared as a method in sources (lambda bodies, hidden
+ * classes, accessors and class initializers) are skipped.
+ *
+ * The sampler is started either as an agent, through the TraceAgent (the
+ * sedypro jar Premain-Class) with the sample agent argument, or as a launcher:
+ *
+ * <code>
+ * 		java -javaagent:sedypro.jar=sample[=ms] -jar JavaATM-v1.0.jar
+ * 		java -cp sedypro:application ch.hesge.sedypro.javainstrumenter.TraceStackSampler [-interval=ms] main-class [arguments]
+ * </code>
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceStackSampler {
+
+	// Private attributes
+	private TraceWriter traceWriter;
+	private long interval;
+	private String[] packages;
+	private Map<Long, SampledThread> sampledThreads;
+	private Map<String, String[]> frameNames;
+	private long lastThreadId;
+	private volatile boolean isRunning;
+	private Thread samplerThread;
+
+	// Public constants
+	public static final int DEFAULT_SAMPLING_INTERVAL = 10;
+
+	// Private constants
+	private static final String DEFAULT_TRACE_FILE = "log/trace.log";
+	private static final String[] EXCLUDED_PACKAGES = { "java.", "javax.", "sun.", "com.sun.", "jdk.", "ch.hesge.sedypro.", "org.hesge.sedypro." };
+	private static final String UNKNOWN_TYPE = "?";
+
+	// Trace epoch, all timestamps are nanoseconds elapsed since then
+	private static final long EPOCH_MILLIS = System.currentTimeMillis();
+	private static final long EPOCH_NANOS = System.nanoTime();
+
+	// Create a trace logger
+	private static final Logger LOGGER = Logger.getLogger(TraceStackSampler.class.getName());
+
+	/*
+	 * Available system properties:
+	 *
+	 * <code>
+	 * 		ch.hesge.csim2.tracefile      = trace file path (default log/trace.log)
+	 * 		ch.hesge.csim2.sampleinterval = milliseconds between two snapshots (default 10)
+	 * 		ch.hesge.csim2.samplepackages = comma separated prefixes of the classes traced
+	 * 		                                (default all classes, except the JDK ones)
+	 * </code>
+	 */
+
+	/**
+	 * Create a sampler writing into a trace.
+	 *
+	 * @param traceWriter
+	 * @param interval
+	 *        milliseconds between two snapshots
+	 * @param packages
+	 *        prefixes of the classes traced, null for all classes except the JDK ones
+	 */
+	public TraceStackSampler(TraceWriter traceWriter, long interval, String[] packages) {
+		this.traceWriter = traceWriter;
+		this.interval = Math.max(1, interval);
+		this.packages = packages;
+		this.sampledThreads = new HashMap<>();
+		this.frameNames = new HashMap<>();
+	}
+
+	/**
+	 * Agent entry point, called by the TraceAgent premain and agentmain.
+	 *
+	 * @param interval
+	 *        milliseconds between two snapshots, null or empty for the system property
+	 * @throws IOException
+	 */
+	public static void startAgent(String interval) throws IOException {
+		start(interval == null || interval.isEmpty() ? null : Long.valueOf(interval));
+	}
+
+	/**
+	 * Launcher entry point: start the sampler, then the application.
+	 *
+	 * @param args
+	 *        [-interval=ms] main-class [arguments]
+	 */
+	public static void main(String[] args) throws Exception {
+
+		int argIndex = 0;
+		Long interval = null;
+
+		while (argIndex < args.length && args[argIndex].startsWith("-")) {
+
+			if (args[argIndex].startsWith("-interval=")) {
+				interval = Long.valueOf(args[argIndex].substring("-interval=".length()));
+			}
+
+			argIndex++;
+		}
+
+		if (argIndex >= args.length) {
+			System.out.println("usage: TraceStackSampler [-interval=ms] main-class [arguments]");
+			return;
+		}
+
+		start(interval);
+
+		Class<?> mainClass = Class.forName(args[argIndex], true, Thread.currentThread().getContextClassLoader());
+		Method mainMethod = mainClass.getMethod("main", String[].class);
+		mainMethod.invoke(null, (Object) Arrays.copyOfRange(args, argIndex + 1, args.length));
+	}
+
+	/**
+	 * Create the trace file and start sampling until the JVM stops.
+	 *
+	 * @param interval
+	 *        milliseconds between two snapshots, null for the system property
+	 * @throws IOException
+	 */
+	private static void start(Long interval) throws IOException {
+
+		Path filepath = Paths.get(System.getProperty("ch.hesge.csim2.tracefile", DEFAULT_TRACE_FILE)).toAbsolutePath();
+		Files.createDirectories(filepath.getParent());
+		Files.deleteIfExists(filepath);
+
+		if (interval == null) {
+			interval = Long.getLong("ch.hesge.csim2.sampleinterval", DEFAULT_SAMPLING_INTERVAL);
+		}
+
+		String packageList = System.getProperty("ch.hesge.csim2.samplepackages");
+		String[] packages = packageList == null ? null : packageList.split("\\s*,\\s*");
+
+		TraceWriter traceWriter = new TraceTextWriter(new FileOutputStream(filepath.toFile()));
+		traceWriter.writeHeader(EPOCH_MILLIS);
+
+		final TraceStackSampler sampler = new TraceStackSampler(traceWriter, interval, packages);
+		sampler.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread("sedypro-sampler-shutdown") {
+			@Override
+			public void run() {
+				sampler.stop();
+			}
+		});
+	}
+
+	/**
+	 * Start the sampling thread.
+	 */
+	public void start() {
+
+		isRunning = true;
+
+		samplerThread = new Thread("sedypro-stack-sampler") {
+			@Override
+			public void run() {
+				sampleLoop();
+			}
+		};
+
+		samplerThread.setDaemon(true);
+		samplerThread.start();
+	}
+
+	/**
+	 * Stop sampling, close all calls still in progress and the trace.
+	 */
+	public void stop() {
+
+		isRunning = false;
+		samplerThread.interrupt();
+
+		try {
+			samplerThread.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		try {
+			long timestamp = System.nanoTime() - EPOCH_NANOS;
+
+			for (SampledThread sampledThread : sampledThreads.values()) {
+				writeExits(sampledThread, 0, timestamp);
+			}
+
+			traceWriter.close();
+		}
+		catch (IOException e) {
+			System.err.println("TraceStackSampler: error while closing trace file: " + e.toString());
+		}
+	}
+
+	/**
+	 * Take snapshots until stopped.
+	 */
+	private void sampleLoop() {
+
+		long sampleCount = 0;
+
+		while (isRunning) {
+
+			try {
+				sample(++sampleCount);
+				traceWriter.flush();
+				Thread.sleep(interval);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			catch (IOException e) {
+				LOGGER.severe("error while writing sampled traces: " + e.toString());
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Compare a snapshot of all threads with the previous one,
+	 * and write the differences.
+	 *
+	 * @param sampleCount
+	 *        number of the snapshot
+	 * @throws IOException
+	 */
+	private void sample(long sampleCount) throws IOException {
+
+		Map<Thread, StackTraceElement[]> stacks = Thread.getAllStackTraces();
+		long timestamp = System.nanoTime() - EPOCH_NANOS;
+
+		for (Map.Entry<Thread, StackTraceElement[]> stack : stacks.entrySet()) {
+
+			if (stack.getKey() == samplerThread) {
+				continue;
+			}
+
+			SampledThread sampledThread = sampledThreads.get(stack.getKey().getId());
+
+			if (sampledThread == null) {
+				sampledThread = new SampledThread();
+				sampledThreads.put(stack.getKey().getId(), sampledThread);
+			}
+
+			sampledThread.lastSample = sampleCount;
+
+			// Traced frames, from the thread root
+			List<String> frames = new ArrayList<>();
+			StackTraceElement[] elements = stack.getValue();
+
+			for (int i = elements.length - 1; i >= 0; i--) {
+				if (isTraced(elements[i])) {
+					frames.add(elements[i].getClassName() + "." + elements[i].getMethodName());
+				}
+			}
+
+			// Frames shared with the previous snapshot are still in progress
+			int commonDepth = 0;
+
+			while (commonDepth < frames.size() && commonDepth < sampledThread.frames.size() && frames.get(commonDepth).equals(sampledThread.frames.get(commonDepth))) {
+				commonDepth++;
+			}
+
+			writeExits(sampledThread, commonDepth, timestamp);
+
+			for (int i = commonDepth; i < frames.size(); i++) {
+				writeEntry(sampledThread, frames.get(i), stack.getKey(), timestamp);
+			}
+		}
+
+		// Threads terminated since the previous snapshot
+		Iterator<SampledThread> iterator = sampledThreads.values().iterator();
+
+		while (iterator.hasNext()) {
+
+			SampledThread sampledThread = iterator.next();
+
+			if (sampledThread.lastSample != sampleCount) {
+				writeExits(sampledThread, 0, timestamp);
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Write the entry of a frame, and push it on the thread stack.
+	 *
+	 * @param sampledThread
+	 * @param frame
+	 * @param thread
+	 * @param timestamp
+	 * @throws IOException
+	 */
+	private void writeEntry(SampledThread sampledThread, String frame, Thread thread, long timestamp) throws IOException {
+
+		String[] names = getFrameNames(frame, thread);
+
+		// Threads are numbered once they run traced code
+		if (sampledThread.threadId == 0) {
+			sampledThread.threadId = ++lastThreadId;
+		}
+
+		TraceEvent event = new TraceEvent();
+		event.set(TraceEvent.TRACE_ENTER, timestamp, sampledThread.threadId, sampledThread.sequence++, -1, names[0], names[1], names[2], "", UNKNOWN_TYPE, "");
+		traceWriter.write(event);
+
+		sampledThread.frames.add(frame);
+		sampledThread.timestamps.add(timestamp);
+	}
+
+	/**
+	 * Write the exits of all frames above a depth, deepest first,
+	 * and pop them from the thread stack.
+	 *
+	 * @param sampledThread
+	 * @param depth
+	 * @param timestamp
+	 * @throws IOException
+	 */
+	private void writeExits(SampledThread sampledThread, int depth, long timestamp) throws IOException {
+
+		for (int i = sampledThread.frames.size() - 1; i >= depth; i--) {
+
+			TraceEvent event = new TraceEvent();
+			event.set(TraceEvent.TRACE_EXIT, timestamp, sampledThread.threadId, sampledThread.sequence++, -1, null, null, null, null, null, "");
+			event.setCall(i, timestamp - sampledThread.timestamps.get(i));
+			traceWriter.write(event);
+
+			sampledThread.frames.remove(i);
+			sampledThread.timestamps.remove(i);
+		}
+	}
+
+	/**
+	 * Check if a frame is traced: declared in sources, by a class selected.
+	 *
+	 * @param element
+	 */
+	private boolean isTraced(StackTraceElement element) {
+
+		String className = element.getClassName();
+		String methodName = element.getMethodName();
+
+		// Lambda bodies and hidden classes, accessors and initializers generated by the compiler
+		if (className.contains("$$Lambda") || className.indexOf('/') >= 0 || methodName.startsWith("lambda$") || methodName.startsWith("access$") || methodName.equals("<clinit>")) {
+			return false;
+		}
+
+		if (packages != null) {
+
+			for (String prefix : packages) {
+				if (className.startsWith(prefix)) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+
+		for (String prefix : EXCLUDED_PACKAGES) {
+			if (className.startsWith(prefix)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Convert a frame into the package, class and method names written by
+	 * the instrumenter: nested classes by their simple name, anonymous ones
+	 * by their enclosing class and the type they extend, followed by the
+	 * super class declared (#Object alone for static methods, or if the
+	 * class can't be loaded).
+	 *
+	 * @param frame
+	 *        class and method names
+	 * @param thread
+	 *        the thread whose class loader loads the class
+	 * @return package, class and method names
+	 */
+	private String[] getFrameNames(String frame, Thread thread) {
+
+		String[] names = frameNames.get(frame);
+
+		if (names == null) {
+
+			int methodIndex = frame.lastIndexOf('.');
+			String className = frame.substring(0, methodIndex);
+			String methodName = frame.substring(methodIndex + 1);
+
+			int packageIndex = className.lastIndexOf('.');
+			String packageName = packageIndex < 0 ? "" : className.substring(0, packageIndex);
+			String simpleName = className.substring(Math.max(packageIndex, className.lastIndexOf('$')) + 1);
+			String superName = null;
+
+			try {
+				Class<?> frameClass = Class.forName(className, false, thread.getContextClassLoader());
+				Class<?> namedClass = getNamedClass(frameClass);
+
+				if (frameClass.isAnonymousClass()) {
+					Class<?> anonymousType = frameClass.getSuperclass() == Object.class && frameClass.getInterfaces().length > 0 ? frameClass.getInterfaces()[0] : frameClass.getSuperclass();
+					simpleName = (namedClass != null ? namedClass.getSimpleName() : simpleName) + "$" + anonymousType.getSimpleName();
+				}
+				else {
+					simpleName = frameClass.getSimpleName();
+				}
+
+				if (methodName.equals("<init>") || !isStatic(frameClass, methodName)) {
+					superName = getSuperClassName(namedClass);
+				}
+			}
+			catch (ClassNotFoundException | LinkageError | InternalError | SecurityException e) {
+				// Not visible from the thread, named from its binary name
+			}
+
+			if (methodName.equals("<init>")) {
+				methodName = "new";
+			}
+
+			names = new String[] { packageName, superName == null ? simpleName + "#Object" : simpleName + "#" + superName + "#Object", methodName };
+			frameNames.put(frame, names);
+		}
+
+		return names;
+	}
+
+	/**
+	 * Return a class if it is named, or the first named class enclosing it.
+	 *
+	 * @param frameClass
+	 */
+	private static Class<?> getNamedClass(Class<?> frameClass) {
+
+		while (frameClass != null && frameClass.isAnonymousClass()) {
+			frameClass = frameClass.getEnclosingClass();
+		}
+
+		return frameClass;
+	}
+
+	/**
+	 * Return the simple name of the super class declared by a class, or by
+	 * the first of its enclosing classes declaring one.
+	 *
+	 * @param namedClass
+	 * @return the name, null if none is declared or if it is generic
+	 */
+	private static String getSuperClassName(Class<?> namedClass) {
+
+		for (Class<?> frameClass = namedClass; frameClass != null; frameClass = getNamedClass(frameClass.getEnclosingClass())) {
+
+			if (frameClass.getSuperclass() != null && frameClass.getSuperclass() != Object.class) {
+				return frameClass.getGenericSuperclass() instanceof ParameterizedType ? null : frameClass.getSuperclass().getSimpleName();
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Check if the methods of a class with a given name are all static
+	 * (frames don't tell which overload runs).
+	 *
+	 * @param frameClass
+	 * @param methodName
+	 */
+	private static boolean isStatic(Class<?> frameClass, String methodName) {
+
+		boolean isStatic = false;
+
+		for (Method method : frameClass.getDeclaredMethods()) {
+
+			if (method.getName().equals(methodName)) {
+
+				if (!Modifier.isStatic(method.getModifiers())) {
+					return false;
+				}
+
+				isStatic = true;
+			}
+		}
+
+		return isStatic;
+	}
+
+	/**
+	 * Frames of a thread seen in the previous snapshot.
+	 */
+	private static class SampledThread {
+
+		private long threadId;
+		private long sequence;
+		private long lastSample;
+		private List<String> frames = new ArrayList<>();
+		private List<Long> timestamps = new ArrayList<>();
+	}
+}
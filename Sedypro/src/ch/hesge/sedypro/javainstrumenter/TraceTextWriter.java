@@ -0,0 +1,451 @@
+package ch.hesge.sedypro.javainstrumenter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Write trace events into a text file, one line per event.
+ *
+ * Lines are encoded straight into a reusable byte buffer (UTF-8): the
+ * static parts of each method line come pre-encoded from TracePrefixes,
+ * numbers and arguments are appended without any intermediate string.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceTextWriter extends TraceWriter {
+
+	// Private attributes
+	private OutputStream output;
+	private TraceValueDictionary dictionary;
+	private byte[] buffer;
+	private int count;
+	private long drainedCount;
+
+	// Private constants
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_NUMBER_LENGTH = 20;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// Predefined formatter (header and metadata lines only)
+	private static final String TRACE_HEADER_FORMAT = "# EPOCH %1$s ms%n# EXITS PAIRED%n";
+	private static final String TRACE_INTERNED_HEADER = "# VALUES INTERNED%n";
+
+	// Pre-encoded line parts
+	private static final byte[] TRACE_EXIT_MARKER   = "END ".getBytes(UTF8);
+	private static final byte[] TRACE_ELIDED_MARKER = "# ELIDED ".getBytes(UTF8);
+	private static final byte[] TRACE_RETURN_HEAD   = "END [".getBytes(UTF8);
+	private static final byte[] TRACE_RETURN_DEPTH  = "] ".getBytes(UTF8);
+	private static final byte[] TRACE_RETURN_TAIL   = " [".getBytes(UTF8);
+	private static final byte[] TRACE_ARGUMENTS     = "] ".getBytes(UTF8);
+	private static final byte[] TRACE_VALUE_HEAD    = "# VALUE ".getBytes(UTF8);
+	private static final byte[] TRACE_HASHED_VALUE_HEAD = "# VALUE #".getBytes(UTF8);
+	private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(UTF8);
+	private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(UTF8);
+
+	// Prefix of references to interned values
+	public static final char VALUE_REFERENCE = '$';
+
+	/*
+	 * Available info on format within the TRACE_FORMAT string:
+	 *
+	 * <code>
+	 * 		1$ = timestamp (nanoseconds since the epoch written in the header)
+	 * 		2$ = threadId
+	 * 		3$ = package
+	 * 		4$ = classname
+	 * 		5$ = method
+	 * 		6$ = parameters (types and names)
+	 * 		7$ = return type
+	 * 		8$ = arguments (only values)
+	 * 		9$ = sequence number of the event within its thread
+	 *
+	 *
+	 * 		Exemple (format):
+	 *
+	 * 		package + ' ' + classname + ' ' + [ + threadId + / + sequence + ] + ' ' + method + ( + parameters + ) + AS + return + [ + tstamp + ] + arguments
+	 *
+	 * 		Exemple (trace):
+	 * 		# EPOCH 1519728258655 ms
+	 * 		# EXITS PAIRED
+	 * 		com.kenai.simulator.atm Account#Object     [1/0] new(int theAccountNumber,int thePIN,double theAvailableBalance,double theTotalBalance) AS void [1520345] 1234,1234,130.0,130.0
+	 *
+	 * 		Elided calls are summarized by metadata lines, with the number of calls instead of arguments:
+	 * 		# ELIDED com.kenai.simulator.atm Screen#Object     [1/42] displayMessage(String message) AS void [983200417] 1250
+	 *
+	 * 		Exits paired with their entry by the logger only give the depth of the call, and its elapsed time (ns):
+	 * 		END [1/43] 2 [983254112] 53695
+	 *
+	 * 		Once the '# VALUES INTERNED' header is written, arguments are defined once by a metadata line, with an
+	 * 		id (or a 16-digit hexadecimal fingerprint after #), and referenced by '$' + id (or '$#' + fingerprint).
+	 * 		Arguments really starting with '$' are written with an extra '$':
+	 * 		# VALUE 7 1234,1234,130.0,130.0
+	 * 		com.kenai.simulator.atm Account#Object     [1/0] new(int theAccountNumber,int thePIN,double theAvailableBalance,double theTotalBalance) AS void [1520345] $7
+	 *
+	 * </code>
+	 *
+	 * Lines are the ones once written through String.format with the following formats:
+	 *
+	 * <code>
+	 * 		enter  = "%3$s %4$s     [%2$s/%9$s] %5$s(%6$s) AS %7$s [%1$s] %8$s%n"
+	 * 		exit   = "END %3$s %4$s     [%2$s/%9$s] %5$s(%6$s) AS %7$s [%1$s] %8$s%n"
+	 * 		elided = "# ELIDED %3$s %4$s     [%2$s/%9$s] %5$s(%6$s) AS %7$s [%1$s] %8$s%n"
+	 * 		return = "END [%2$s/%3$s] %4$s [%1$s] %5$s%n" (1$ timestamp, 2$ threadId, 3$ sequence, 4$ depth, 5$ elapsed)
+	 * </code>
+	 */
+
+	/**
+	 * Create a writer buffering its output before sending it to the underlying stream.
+	 *
+	 * @param output
+	 */
+	public TraceTextWriter(OutputStream output) {
+		this.output = output;
+		this.dictionary = new TraceValueDictionary();
+		this.buffer = new byte[BUFFER_SIZE];
+	}
+
+	/**
+	 * Write the epoch all timestamps are relative to.
+	 *
+	 * @param epochMillis
+	 * @throws IOException
+	 */
+	@Override
+	public void writeHeader(long epochMillis) throws IOException {
+		String header = String.format(TRACE_HEADER_FORMAT, epochMillis);
+
+		if (dictionary.isEnabled()) {
+			header += String.format(TRACE_INTERNED_HEADER);
+		}
+
+		appendString(header);
+		byteCount = drainedCount + count;
+	}
+
+	/**
+	 * Append a single event to the trace.
+	 *
+	 * @param event
+	 * @throws IOException
+	 */
+	@Override
+	public void write(TraceEvent event) throws IOException {
+
+		// Exit already paired with its entry
+		if (event.getTraceType() == TraceEvent.TRACE_EXIT && event.getDepth() >= 0) {
+
+			appendBytes(TRACE_RETURN_HEAD);
+			appendNumber(event.getThreadId());
+			appendByte('/');
+			appendNumber(event.getSequence());
+			appendBytes(TRACE_RETURN_DEPTH);
+			appendNumber(event.getDepth());
+			appendBytes(TRACE_RETURN_TAIL);
+			appendNumber(event.getTimestamp());
+			appendBytes(TRACE_ARGUMENTS);
+			appendNumber(event.getElapsed());
+			appendBytes(LINE_SEPARATOR);
+
+			eventCount++;
+			byteCount = drainedCount + count;
+			return;
+		}
+
+		// Clean arguments content, defining it first if interned
+		String argumentsValues = null;
+		int internResult = TraceValueDictionary.VALUE_INLINE;
+
+		if (event.getTraceType() != TraceEvent.TRACE_ELIDED) {
+
+			argumentsValues = removeLineBreaks(event.getArgumentsValues());
+
+			if (dictionary.isEnabled()) {
+				internResult = internValue(argumentsValues);
+			}
+		}
+
+		// Create the trace entry
+		if (event.getTraceType() == TraceEvent.TRACE_EXIT) {
+			appendBytes(TRACE_EXIT_MARKER);
+		}
+		else if (event.getTraceType() == TraceEvent.TRACE_ELIDED) {
+			appendBytes(TRACE_ELIDED_MARKER);
+		}
+
+		// Static parts generated by the instrumenter, or rendered from the event names
+		byte[] head = TracePrefixes.getHead(event.getMethodId());
+		byte[] tail = TracePrefixes.getTail(event.getMethodId());
+
+		if (head != null) {
+			appendBytes(head);
+		}
+		else {
+			appendString(TracePrefixes.renderHead(event.getPackageName(), event.getClassName()));
+		}
+
+		appendNumber(event.getThreadId());
+		appendByte('/');
+		appendNumber(event.getSequence());
+
+		if (tail != null) {
+			appendBytes(tail);
+		}
+		else {
+			appendString(TracePrefixes.renderTail(event.getMethodName(), event.getParameterTypes(), event.getReturnType()));
+		}
+
+		appendNumber(event.getTimestamp());
+		appendBytes(TRACE_ARGUMENTS);
+
+		if (argumentsValues == null) {
+			appendNumber(event.getElidedCount());
+		}
+		else if (dictionary.isEnabled()) {
+			appendValue(argumentsValues, internResult);
+		}
+		else {
+			appendString(argumentsValues);
+		}
+
+		appendBytes(LINE_SEPARATOR);
+
+		eventCount++;
+		byteCount = drainedCount + count;
+	}
+
+	/**
+	 * Replace line breaks by spaces, so that a value stays on its line.
+	 *
+	 * @param value
+	 * @return the value, unchanged if it has no line break
+	 */
+	private static String removeLineBreaks(String value) {
+
+		if (value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+			return value;
+		}
+
+		return value.replace('\r', ' ').replace('\n', ' ');
+	}
+
+	/**
+	 * Look up a value in the dictionary, writing its definition on first
+	 * occurrence.
+	 *
+	 * @param value
+	 * @return the dictionary result (see TraceValueDictionary)
+	 * @throws IOException
+	 */
+	private int internValue(String value) throws IOException {
+
+		int result = dictionary.intern(value);
+
+		if (result == TraceValueDictionary.VALUE_NEW_ID) {
+			appendBytes(TRACE_VALUE_HEAD);
+			appendNumber(dictionary.getId());
+			appendByte(' ');
+			appendString(value);
+			appendBytes(LINE_SEPARATOR);
+		}
+		else if (result == TraceValueDictionary.VALUE_NEW_FINGERPRINT) {
+			appendBytes(TRACE_HASHED_VALUE_HEAD);
+			appendHex(dictionary.getFingerprint());
+			appendByte(' ');
+			appendString(value);
+			appendBytes(LINE_SEPARATOR);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Append the reference to an interned value, or the value itself.
+	 *
+	 * @param value
+	 * @param internResult
+	 *        the dictionary result of the value (see internValue)
+	 * @throws IOException
+	 */
+	private void appendValue(String value, int internResult) throws IOException {
+
+		if (internResult == TraceValueDictionary.VALUE_ID || internResult == TraceValueDictionary.VALUE_NEW_ID) {
+			appendByte(VALUE_REFERENCE);
+			appendNumber(dictionary.getId());
+		}
+		else if (internResult == TraceValueDictionary.VALUE_FINGERPRINT || internResult == TraceValueDictionary.VALUE_NEW_FINGERPRINT) {
+			appendByte(VALUE_REFERENCE);
+			appendByte('#');
+			appendHex(dictionary.getFingerprint());
+		}
+		else {
+
+			// Inline value, escaped if it looks like a reference
+			if (value.length() > 0 && value.charAt(0) == VALUE_REFERENCE) {
+				appendByte(VALUE_REFERENCE);
+			}
+
+			appendString(value);
+		}
+	}
+
+	/**
+	 * Append a single ASCII character.
+	 *
+	 * @param c
+	 * @throws IOException
+	 */
+	private void appendByte(char c) throws IOException {
+
+		if (count == buffer.length) {
+			drain();
+		}
+
+		buffer[count++] = (byte) c;
+	}
+
+	/**
+	 * Append pre-encoded bytes.
+	 *
+	 * @param bytes
+	 * @throws IOException
+	 */
+	private void appendBytes(byte[] bytes) throws IOException {
+
+		if (count + bytes.length > buffer.length) {
+			drain();
+
+			if (bytes.length > buffer.length) {
+				output.write(bytes);
+				drainedCount += bytes.length;
+				return;
+			}
+		}
+
+		System.arraycopy(bytes, 0, buffer, count, bytes.length);
+		count += bytes.length;
+	}
+
+	/**
+	 * Append a string, ASCII characters being encoded in place.
+	 *
+	 * @param value
+	 * @throws IOException
+	 */
+	private void appendString(String value) throws IOException {
+
+		int length = value.length();
+
+		for (int i = 0; i < length; i++) {
+
+			char c = value.charAt(i);
+
+			if (c >= 0x80) {
+				appendBytes(value.substring(i).getBytes(UTF8));
+				return;
+			}
+
+			if (count == buffer.length) {
+				drain();
+			}
+
+			buffer[count++] = (byte) c;
+		}
+	}
+
+	/**
+	 * Append the decimal digits of a number.
+	 *
+	 * @param value
+	 * @throws IOException
+	 */
+	private void appendNumber(long value) throws IOException {
+
+		if (count + MAX_NUMBER_LENGTH > buffer.length) {
+			drain();
+		}
+
+		if (value < 0) {
+
+			if (value == Long.MIN_VALUE) {
+				appendString(String.valueOf(value));
+				return;
+			}
+
+			buffer[count++] = '-';
+			value = -value;
+		}
+
+		// Digits are produced from the lowest one, then reversed
+		int start = count;
+
+		do {
+			buffer[count++] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		while (value != 0);
+
+		for (int i = start, j = count - 1; i < j; i++, j--) {
+			byte digit = buffer[i];
+			buffer[i] = buffer[j];
+			buffer[j] = digit;
+		}
+	}
+
+	/**
+	 * Append the 16 hexadecimal digits of a number.
+	 *
+	 * @param value
+	 * @throws IOException
+	 */
+	private void appendHex(long value) throws IOException {
+
+		if (count + 16 > buffer.length) {
+			drain();
+		}
+
+		for (int shift = 60; shift >= 0; shift -= 4) {
+			buffer[count++] = HEX_DIGITS[(int) (value >>> shift) & 0xf];
+		}
+	}
+
+	/**
+	 * Send the buffered bytes to the underlying stream.
+	 *
+	 * @throws IOException
+	 */
+	private void drain() throws IOException {
+		drainedCount += count;
+		output.write(buffer, 0, count);
+		count = 0;
+	}
+
+	/**
+	 * Push all buffered events to the trace file.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void flush() throws IOException {
+		drain();
+		output.flush();
+	}
+
+	/**
+	 * Flush and close the trace file.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+
+		try {
+			drain();
+		}
+		finally {
+			output.close();
+		}
+	}
+}
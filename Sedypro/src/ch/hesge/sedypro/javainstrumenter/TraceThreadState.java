@@ -0,0 +1,393 @@
+package ch.hesge.sedypro.javainstrumenter;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracing state owned by a single application thread.
+ *
+ * It numbers the events of the thread with a monotonic sequence, and
+ * keeps a shadow of the call stack: for each method call in progress,
+ * its method id, its entry timestamp, its depth in the trace and whether
+ * its entry was traced or elided, so that the matching exit gets the
+ * same decision.
+ *
+ * Entries and exits are paired here, at capture time, so that an exit
+ * is written with its depth and elapsed time only.
+ *
+ * Calls may also be collapsed: beyond maxDepth traced levels, or when a
+ * method directly re-enters itself beyond maxRecursion levels, the call and
+ * all calls it makes are only counted, per method. The counts are handed
+ * back to the logger once the outermost collapsed call exits.
+ *
+ * Threads are identified in the trace by compact ids (1, 2, 3, ...)
+ * assigned on their first event, instead of Thread.getId().
+ *
+ * Once the stack of a thread is empty, the memory taken by deep calls is
+ * released, so that many short-lived threads only cost a small state each.
+ *
+ * Tracing can be suspended for a thread while the logger runs application
+ * code itself, such as the toString() of argument values formatted when
+ * events are written, so that these calls don't end up in the trace.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceThreadState {
+
+	// Private attributes
+	private long threadId;
+	private int[] methodIds;
+	private long[] timestamps;
+	private int[] tracedDepths;
+	private int[] recursionLevels;
+	private boolean[] tracedCalls;
+	private int depth;
+	private int tracedDepth;
+	private int collapsedFrame = -1;
+	private int[] collapsedMethodIds;
+	private long[] collapsedCounts;
+	private int collapsedMethodCount;
+	private long sequence;
+	private TraceCallTree callTree;
+	private TraceWriter shardWriter;
+	private boolean isSuspended;
+
+	// Public constants
+	public static final int DEFAULT_MAX_DEPTH = 0;
+	public static final int DEFAULT_MAX_RECURSION = 0;
+
+	// Collapse policy (0 = unlimited)
+	private static int maxDepth = DEFAULT_MAX_DEPTH;
+	private static int maxRecursion = DEFAULT_MAX_RECURSION;
+
+	// Private constants
+	private static final int INITIAL_DEPTH = 64;
+	private static final int INITIAL_COLLAPSED_METHODS = 8;
+
+	// Exits (or entries) without matching call, over all threads
+	private static final AtomicLong UNMATCHED_COUNT = new AtomicLong();
+
+	// Last compact thread id assigned
+	private static final AtomicLong LAST_THREAD_ID = new AtomicLong();
+
+	// Thread states
+	private static final ThreadLocal<TraceThreadState> THREAD_STATES = new ThreadLocal<TraceThreadState>() {
+		@Override
+		protected TraceThreadState initialValue() {
+			return new TraceThreadState();
+		}
+	};
+
+	/**
+	 * Default constructor
+	 */
+	public TraceThreadState() {
+		allocateStack(INITIAL_DEPTH);
+	}
+
+	/**
+	 * Initialize the collapse policy.
+	 *
+	 * @param depth
+	 *        number of levels traced, deeper calls are collapsed (0 = unlimited)
+	 * @param recursion
+	 *        number of levels a method directly re-entering itself is traced,
+	 *        deeper recursive calls are collapsed (0 = unlimited)
+	 */
+	public static void initialize(int depth, int recursion) {
+		maxDepth = Math.max(0, depth);
+		maxRecursion = Math.max(0, recursion);
+	}
+
+	/**
+	 * Return the state of the current thread.
+	 */
+	public static TraceThreadState get() {
+		return THREAD_STATES.get();
+	}
+
+	/**
+	 * Return the compact id of the thread, assigned on first use, so that
+	 * threads never writing an event (the drainer) don't take an id.
+	 */
+	public long getThreadId() {
+
+		if (threadId == 0) {
+			threadId = LAST_THREAD_ID.incrementAndGet();
+		}
+
+		return threadId;
+	}
+
+	/**
+	 * Check if tracing is suspended for the thread.
+	 */
+	public boolean isSuspended() {
+		return isSuspended;
+	}
+
+	/**
+	 * Suspend or resume tracing for the thread.
+	 *
+	 * @param isSuspended
+	 */
+	public void setSuspended(boolean isSuspended) {
+		this.isSuspended = isSuspended;
+	}
+
+	/**
+	 * Return the number of calls whose entry and exit couldn't be paired.
+	 */
+	public static long getUnmatchedCount() {
+		return UNMATCHED_COUNT.get();
+	}
+
+	/**
+	 * Return the sequence number of the next event written by the thread.
+	 */
+	public long nextSequence() {
+		return sequence++;
+	}
+
+	/**
+	 * Return the calling context tree of the thread, created on first use.
+	 */
+	public TraceCallTree getCallTree() {
+
+		if (callTree == null) {
+			callTree = new TraceCallTree();
+		}
+
+		return callTree;
+	}
+
+	/**
+	 * Return the trace shard the thread writes to, null until assigned.
+	 */
+	public TraceWriter getShardWriter() {
+		return shardWriter;
+	}
+
+	public void setShardWriter(TraceWriter shardWriter) {
+		this.shardWriter = shardWriter;
+	}
+
+	/**
+	 * Push a method entry on the shadow stack.
+	 *
+	 * @param methodId
+	 * @param timestamp
+	 * @param isTraced
+	 *        true if the entry is written to the trace
+	 * @return the position of the call in the stack
+	 */
+	public int enter(int methodId, long timestamp, boolean isTraced) {
+
+		if (depth == methodIds.length) {
+			methodIds = Arrays.copyOf(methodIds, depth * 2);
+			timestamps = Arrays.copyOf(timestamps, depth * 2);
+			tracedDepths = Arrays.copyOf(tracedDepths, depth * 2);
+			recursionLevels = Arrays.copyOf(recursionLevels, depth * 2);
+			tracedCalls = Arrays.copyOf(tracedCalls, depth * 2);
+		}
+
+		recursionLevels[depth] = depth > 0 && methodIds[depth - 1] == methodId ? recursionLevels[depth - 1] + 1 : 1;
+		methodIds[depth] = methodId;
+		timestamps[depth] = timestamp;
+		tracedDepths[depth] = tracedDepth;
+		tracedCalls[depth] = isTraced;
+		depth++;
+
+		if (isTraced) {
+			tracedDepth++;
+		}
+
+		return depth - 1;
+	}
+
+	/**
+	 * Check if the entry of a method must be collapsed, either because a
+	 * call in progress is collapsed, or because of the collapse policy.
+	 *
+	 * @param methodId
+	 */
+	public boolean isCollapsed(int methodId) {
+
+		if (collapsedFrame >= 0) {
+			return true;
+		}
+
+		if (maxDepth > 0 && tracedDepth >= maxDepth) {
+			return true;
+		}
+
+		return maxRecursion > 0 && depth > 0 && methodIds[depth - 1] == methodId && recursionLevels[depth - 1] >= maxRecursion;
+	}
+
+	/**
+	 * Push a collapsed method entry on the shadow stack,
+	 * counting it instead of tracing it.
+	 *
+	 * @param methodId
+	 * @param timestamp
+	 * @return the position of the call in the stack
+	 */
+	public int enterCollapsed(int methodId, long timestamp) {
+
+		int frame = enter(methodId, timestamp, false);
+
+		if (collapsedFrame < 0) {
+			collapsedFrame = frame;
+		}
+
+		if (collapsedMethodIds == null) {
+			collapsedMethodIds = new int[INITIAL_COLLAPSED_METHODS];
+			collapsedCounts = new long[INITIAL_COLLAPSED_METHODS];
+		}
+
+		// Collapsed calls mostly belong to a few methods, a linear search is enough
+		for (int i = 0; i < collapsedMethodCount; i++) {
+			if (collapsedMethodIds[i] == methodId) {
+				collapsedCounts[i]++;
+				return frame;
+			}
+		}
+
+		if (collapsedMethodCount == collapsedMethodIds.length) {
+			collapsedMethodIds = Arrays.copyOf(collapsedMethodIds, collapsedMethodCount * 2);
+			collapsedCounts = Arrays.copyOf(collapsedCounts, collapsedMethodCount * 2);
+		}
+
+		collapsedMethodIds[collapsedMethodCount] = methodId;
+		collapsedCounts[collapsedMethodCount] = 1;
+		collapsedMethodCount++;
+
+		return frame;
+	}
+
+	/**
+	 * Return the number of methods whose calls were collapsed, once the
+	 * outermost collapsed call exited (0 while it is still in progress).
+	 */
+	public int getCollapsedMethodCount() {
+		return collapsedFrame < 0 ? collapsedMethodCount : 0;
+	}
+
+	/**
+	 * Return the id of a method whose calls were collapsed.
+	 *
+	 * @param index
+	 *        between 0 and getCollapsedMethodCount() - 1
+	 */
+	public int getCollapsedMethodId(int index) {
+		return collapsedMethodIds[index];
+	}
+
+	/**
+	 * Return the number of calls of a method collapsed.
+	 *
+	 * @param index
+	 *        between 0 and getCollapsedMethodCount() - 1
+	 */
+	public long getCollapsedCount(int index) {
+		return collapsedCounts[index];
+	}
+
+	/**
+	 * Forget the collapsed calls, once handed back to the logger.
+	 */
+	public void clearCollapsedCalls() {
+		collapsedMethodCount = 0;
+	}
+
+	/**
+	 * Pop the call matching a method exit from the shadow stack.
+	 *
+	 * Calls left above the matching one never exited (their exit is lost)
+	 * and are dropped with it. An exit without any matching call is ignored.
+	 *
+	 * @param methodId
+	 * @return the position of the call in the stack, or -1 if not found
+	 */
+	public int exit(int methodId) {
+
+		int frame = depth - 1;
+
+		while (frame >= 0 && methodIds[frame] != methodId) {
+			frame--;
+		}
+
+		if (frame < 0) {
+			UNMATCHED_COUNT.incrementAndGet();
+			return -1;
+		}
+
+		if (frame < depth - 1) {
+			UNMATCHED_COUNT.addAndGet(depth - 1 - frame);
+		}
+
+		depth = frame;
+		tracedDepth = tracedDepths[frame];
+
+		// Outermost collapsed call exited
+		if (frame <= collapsedFrame) {
+			collapsedFrame = -1;
+		}
+
+		// Back to the thread root, release a stack grown by deep calls
+		if (depth == 0 && methodIds.length > INITIAL_DEPTH) {
+			long timestamp = timestamps[0];
+			boolean isTraced = tracedCalls[0];
+			allocateStack(INITIAL_DEPTH);
+			timestamps[0] = timestamp;
+			tracedCalls[0] = isTraced;
+		}
+
+		return frame;
+	}
+
+	/**
+	 * Return true if the entry of a call was written to the trace.
+	 *
+	 * @param frame
+	 *        a position returned by exit()
+	 */
+	public boolean isTraced(int frame) {
+		return tracedCalls[frame];
+	}
+
+	/**
+	 * Return the depth in the trace of a call.
+	 *
+	 * @param frame
+	 *        a position returned by exit()
+	 */
+	public int getDepth(int frame) {
+		return tracedDepths[frame];
+	}
+
+	/**
+	 * Return the entry timestamp of a call.
+	 *
+	 * @param frame
+	 *        a position returned by exit()
+	 */
+	public long getTimestamp(int frame) {
+		return timestamps[frame];
+	}
+
+	/**
+	 * Allocate an empty shadow stack.
+	 *
+	 * @param size
+	 */
+	private void allocateStack(int size) {
+		methodIds = new int[size];
+		timestamps = new long[size];
+		tracedDepths = new int[size];
+		recursionLevels = new int[size];
+		tracedCalls = new boolean[size];
+	}
+}
@@ -0,0 +1,160 @@
+package ch.hesge.sedypro.javainstrumenter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Dictionary of the argument values written into a single trace file.
+ *
+ * The first occurrence of a value is defined once in the trace, with an id,
+ * and later events only reference it. Once capacity values are defined, new
+ * values are defined with their 64-bit fingerprint instead, and only their
+ * fingerprint is kept, so that the memory used stays bounded. When the
+ * fingerprint table is full too, values are written inline.
+ *
+ * Values shorter than MIN_LENGTH characters are always written inline.
+ * A dictionary is owned by a single trace writer, and not thread-safe.
+ *
+ * Copyright HEG Geneva 2018, Switzerland
+ *
+ * @author Eric Harth
+ */
+public class TraceValueDictionary {
+
+	// Public constants
+	public static final int DEFAULT_CAPACITY = 4096;
+	public static final int MIN_LENGTH = 8;
+
+	// Results of intern()
+	public static final int VALUE_INLINE          = 0;
+	public static final int VALUE_ID              = 1;
+	public static final int VALUE_NEW_ID          = 2;
+	public static final int VALUE_FINGERPRINT     = 3;
+	public static final int VALUE_NEW_FINGERPRINT = 4;
+
+	// Private constants
+	private static final int FINGERPRINTS_PER_VALUE = 4;
+
+	// Private attributes
+	private static int defaultCapacity = DEFAULT_CAPACITY;
+	private int capacity;
+	private Map<String, Integer> valueIds;
+	private long[] fingerprints;
+	private int fingerprintCount;
+	private int lastId;
+	private long lastFingerprint;
+
+	/**
+	 * Initialize the capacity of the dictionaries created afterwards.
+	 *
+	 * @param capacity
+	 *        number of values defined with an id (0 = no dictionary)
+	 */
+	public static void initialize(int capacity) {
+		defaultCapacity = Math.max(0, capacity);
+	}
+
+	/**
+	 * Create a dictionary with the default capacity.
+	 */
+	public TraceValueDictionary() {
+		capacity = defaultCapacity;
+		valueIds = new HashMap<>();
+	}
+
+	/**
+	 * Check if values are interned at all.
+	 */
+	public boolean isEnabled() {
+		return capacity > 0;
+	}
+
+	/**
+	 * Look a value up, defining it on first occurrence.
+	 *
+	 * @param value
+	 * @return how the value should be written (VALUE_xxx), its id or
+	 *         fingerprint being then available through getId() or getFingerprint()
+	 */
+	public int intern(String value) {
+
+		if (capacity == 0 || value.length() < MIN_LENGTH) {
+			return VALUE_INLINE;
+		}
+
+		Integer valueId = valueIds.get(value);
+
+		if (valueId != null) {
+			lastId = valueId;
+			return VALUE_ID;
+		}
+
+		if (valueIds.size() < capacity) {
+			lastId = valueIds.size();
+			valueIds.put(value, lastId);
+			return VALUE_NEW_ID;
+		}
+
+		// Dictionary full, keep fingerprints only
+		if (fingerprints == null) {
+			fingerprints = new long[Integer.highestOneBit(capacity * FINGERPRINTS_PER_VALUE - 1) << 1];
+		}
+
+		lastFingerprint = fingerprint(value);
+
+		int mask = fingerprints.length - 1;
+		int slot = (int) (lastFingerprint ^ (lastFingerprint >>> 32)) & mask;
+
+		while (fingerprints[slot] != 0) {
+
+			if (fingerprints[slot] == lastFingerprint) {
+				return VALUE_FINGERPRINT;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		// Table 3/4 full, further values inline
+		if (fingerprintCount >= fingerprints.length / 4 * 3) {
+			return VALUE_INLINE;
+		}
+
+		fingerprints[slot] = lastFingerprint;
+		fingerprintCount++;
+
+		return VALUE_NEW_FINGERPRINT;
+	}
+
+	/**
+	 * Return the id of the last value looked up.
+	 */
+	public int getId() {
+		return lastId;
+	}
+
+	/**
+	 * Return the fingerprint of the last value looked up.
+	 */
+	public long getFingerprint() {
+		return lastFingerprint;
+	}
+
+	/**
+	 * Compute the 64-bit fingerprint of a value (FNV-1a on its characters),
+	 * never 0.
+	 *
+	 * @param value
+	 * @return the fingerprint
+	 */
+	public static long fingerprint(String value) {
+
+		long hash = 0xcbf29ce484222325L;
+
+		for (int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+
+		return hash == 0 ? 1 : hash;
+	}
+}
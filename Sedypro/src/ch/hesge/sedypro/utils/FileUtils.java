@@ -3,6 +3,7 @@ package ch.hesge.sedypro.utils;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -115,6 +116,31 @@ public class FileUtils {
 		Files.write(filepath, content.getBytes(), StandardOpenOption.CREATE);
 	}
 
+	/**
+	 * Replace the content of a file atomically: the content is first written
+	 * into a temporary file of the same folder, then moved over the file, so
+	 * that readers never see a partially written file.
+	 *
+	 * @param filepath
+	 *            the path to the file to replace
+	 * @param content
+	 *            the new file content
+	 * @throws IOException
+	 *             if the file could not be written
+	 */
+	public static void writeFileAtomically(Path filepath, String content) throws IOException {
+
+		Path tempPath = filepath.resolveSibling(filepath.getFileName() + ".tmp");
+		Files.write(tempPath, content.getBytes());
+
+		try {
+			Files.move(tempPath, filepath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException e) {
+			Files.move(tempPath, filepath, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
 	/**
 	 * Read the contents of the file with the given name, and return it as a
 	 * list of String.
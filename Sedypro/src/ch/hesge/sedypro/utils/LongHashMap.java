@@ -0,0 +1,205 @@
+package ch.hesge.sedypro.utils;
+
+import java.util.Arrays;
+
+/**
+ * A hash map keyed by primitive longs, without boxing.
+ *
+ * Keys are stored in open addressing with linear probing. Removed entries
+ * are filled by shifting back the following ones, so that the table never
+ * fills with deleted markers, and the table shrinks back once most
+ * entries are removed. Null values are not allowed.
+ * 
+ * Copyright HEG Geneva 2018, Switzerland
+ * 
+ * @author Eric Harth
+ */
+public class LongHashMap<V> {
+
+	// Private attributes
+	private long[] keys;
+	private Object[] values;
+	private int size;
+	private int mask;
+
+	// Private constants
+	private static final int INITIAL_CAPACITY = 16;
+
+	/**
+	 * Default constructor
+	 */
+	public LongHashMap() {
+		keys = new long[INITIAL_CAPACITY];
+		values = new Object[INITIAL_CAPACITY];
+		mask = INITIAL_CAPACITY - 1;
+	}
+
+	/**
+	 * Return the number of entries.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Return the value of a key.
+	 * 
+	 * @param key
+	 * @return the value, or null if the key is missing
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+
+		int slot = indexOf(key);
+
+		return slot >= 0 ? (V) values[slot] : null;
+	}
+
+	/**
+	 * Set the value of a key.
+	 * 
+	 * @param key
+	 * @param value
+	 *        a value (not null)
+	 */
+	public void put(long key, V value) {
+
+		if (value == null) {
+			throw new IllegalArgumentException("null value for key " + key);
+		}
+
+		int slot = hash(key);
+
+		while (values[slot] != null) {
+
+			if (keys[slot] == key) {
+				values[slot] = value;
+				return;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		keys[slot] = key;
+		values[slot] = value;
+		size++;
+
+		// Keep the table half empty
+		if (size * 2 > keys.length) {
+			resize(keys.length * 2);
+		}
+	}
+
+	/**
+	 * Remove a key.
+	 * 
+	 * @param key
+	 */
+	public void remove(long key) {
+
+		int slot = indexOf(key);
+
+		if (slot < 0) {
+			return;
+		}
+
+		values[slot] = null;
+		size--;
+
+		// Shift back the entries displaced by the removed one
+		int next = (slot + 1) & mask;
+
+		while (values[next] != null) {
+
+			int home = hash(keys[next]);
+
+			if (((next - home) & mask) >= ((next - slot) & mask)) {
+				keys[slot] = keys[next];
+				values[slot] = values[next];
+				values[next] = null;
+				slot = next;
+			}
+
+			next = (next + 1) & mask;
+		}
+
+		// Give back memory once most entries are gone
+		if (size * 8 < keys.length && keys.length > INITIAL_CAPACITY) {
+			resize(keys.length / 2);
+		}
+	}
+
+	/**
+	 * Remove all entries.
+	 */
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	/**
+	 * Find the slot of a key.
+	 * 
+	 * @param key
+	 * @return the slot, or -1 if the key is missing
+	 */
+	private int indexOf(long key) {
+
+		int slot = hash(key);
+
+		while (values[slot] != null) {
+
+			if (keys[slot] == key) {
+				return slot;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Spread the bits of a key over the table.
+	 */
+	private int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	/**
+	 * Move all entries into a new table.
+	 */
+	private void resize(int capacity) {
+
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		size = 0;
+
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != null) {
+				insert(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+
+	/**
+	 * Insert an entry known to be missing, without resizing.
+	 */
+	private void insert(long key, Object value) {
+
+		int slot = hash(key);
+
+		while (values[slot] != null) {
+			slot = (slot + 1) & mask;
+		}
+
+		keys[slot] = key;
+		values[slot] = value;
+		size++;
+	}
+}
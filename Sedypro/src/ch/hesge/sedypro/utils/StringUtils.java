@@ -450,6 +450,32 @@ public class StringUtils {
 		return params;
 	}
 
+	/**
+	 * Return the value of a switch written as switchName=value.
+	 * 
+	 * @param args
+	 *            the argument to scan
+	 * @param switchName
+	 *            the switch name (with its '-')
+	 * @param defaultValue
+	 *            the value returned if the switch is not present
+	 * @return the switch value
+	 */
+	public static String getSwitchValue(String[] args, String switchName, String defaultValue) {
+
+		if (args != null) {
+
+			for (String arg : args) {
+
+				if (arg.startsWith(switchName + "=")) {
+					return arg.substring(switchName.length() + 1);
+				}
+			}
+		}
+
+		return defaultValue;
+	}
+
 	/**
 	 * Compute a string with elapsed-time between to time expressed in
 	 * milliseconds.
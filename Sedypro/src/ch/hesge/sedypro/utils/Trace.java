@@ -21,12 +21,19 @@ public class Trace {
 	private String	packagename;
 	private String	classname;
 	private long	    threadId;
+	private long	    sequence;
 	private String	signature;
 	private boolean	isEnteringTrace;
+	private boolean	isPairedTrace;
 	private String	returnType;
 	private long	    timestamp;
 	private String  arguments;
 	private long	    duration;
+	private long	    elidedCount;
+	private long	    callCount;
+	private long	    selfDuration;
+	private long	    maxDuration;
+	private String  source;
 
 	/**
 	 * Default constructor
@@ -82,6 +89,14 @@ public class Trace {
 		this.threadId = threadId;
 	}
 
+	public long getSequence() {
+		return sequence;
+	}
+
+	public void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
 	public String getSignature() {
 		return signature;
 	}
@@ -98,6 +113,14 @@ public class Trace {
 		this.isEnteringTrace = isEnteringTrace;
 	}
 
+	public boolean isPairedTrace() {
+		return isPairedTrace;
+	}
+
+	public void setPairedTrace(boolean isPairedTrace) {
+		this.isPairedTrace = isPairedTrace;
+	}
+
 	public String getReturnType() {
 		return returnType;
 	}
@@ -130,4 +153,56 @@ public class Trace {
 		this.arguments = arguments;
 	}
 
+	public long getElidedCount() {
+		return elidedCount;
+	}
+
+	public void setElidedCount(long elidedCount) {
+		this.elidedCount = elidedCount;
+	}
+
+	/**
+	 * Return the number of calls aggregated by a calling context tree node
+	 * (0 for a single call).
+	 */
+	public long getCallCount() {
+		return callCount;
+	}
+
+	public void setCallCount(long callCount) {
+		this.callCount = callCount;
+	}
+
+	/**
+	 * Return the time spent in the calls aggregated, excluding their children.
+	 */
+	public long getSelfDuration() {
+		return selfDuration;
+	}
+
+	public void setSelfDuration(long selfDuration) {
+		this.selfDuration = selfDuration;
+	}
+
+	/**
+	 * Return the duration of the longest call aggregated.
+	 */
+	public long getMaxDuration() {
+		return maxDuration;
+	}
+
+	public void setMaxDuration(long maxDuration) {
+		this.maxDuration = maxDuration;
+	}
+
+	/**
+	 * Return the JVM a live trace was collected from (null if read from a file).
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	public void setSource(String source) {
+		this.source = source;
+	}
 }